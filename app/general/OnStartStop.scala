@@ -3,7 +3,7 @@ package general
 import akka.actor.ActorSystem
 import daos.common.LoginAttemptDao
 import general.common.{Common, JatosUpdater}
-import migrations.common.{ComponentResultMigration, MySQLCharsetFix, StudyLinkMigration}
+import migrations.common.{ComponentResultMigration, MySQLCharsetFix, ResultFileMigration, StudyLinkMigration}
 import play.api.Logger
 import play.api.inject.ApplicationLifecycle
 import play.db.jpa.JPAApi
@@ -31,6 +31,7 @@ class OnStartStop @Inject()(lifecycle: ApplicationLifecycle,
                             mySQLCharsetFix: MySQLCharsetFix,
                             studyLinkMigration: StudyLinkMigration,
                             componentResultMigration: ComponentResultMigration,
+                            resultFileMigration: ResultFileMigration,
                             loginAttemptDao: LoginAttemptDao) {
 
   private val logger = Logger(this.getClass)
@@ -48,6 +49,7 @@ class OnStartStop @Inject()(lifecycle: ApplicationLifecycle,
   createDirIfNotExist(Common.getTmpPath)
   studyLinkMigration.run()
   componentResultMigration.run()
+  resultFileMigration.run()
   scheduleLoginAttemptCleaning()
 
   if (isPortInUse && environment.isProd) {
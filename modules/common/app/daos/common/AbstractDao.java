@@ -1,8 +1,13 @@
 package daos.common;
 
 import javax.inject.Singleton;
+import javax.persistence.Query;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
 
 import play.db.jpa.JPAApi;
+import utils.common.IdSet;
 
 /**
  * Abstract DAO: Of the JPA calls only refresh() is public - persist(), merge()
@@ -37,4 +42,21 @@ public abstract class AbstractDao {
 		jpa.em().refresh(entity);
 	}
 
+	/**
+	 * Runs a query for each part of the IdSet and returns all results together.
+	 * This way no giant IN lists are bound to a query. The queryCreator gets the
+	 * condition for the IDs (see IdSet.condition) and has to return the query
+	 * with all other parameters already set.
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T> List<T> findByIdSet(IdSet ids, String column, Function<String, Query> queryCreator) {
+		List<T> results = new ArrayList<>();
+		for (IdSet part : ids.partition()) {
+			Query query = queryCreator.apply(part.condition(column));
+			part.bindParameters(query);
+			results.addAll(query.getResultList());
+		}
+		return results;
+	}
+
 }
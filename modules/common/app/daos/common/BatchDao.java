@@ -5,6 +5,7 @@ import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.util.List;
 
 /**
  * DAO of Batch entity
@@ -36,4 +37,34 @@ public class BatchDao extends AbstractDao {
 		return jpa.em().find(Batch.class, id);
 	}
 
+	/**
+	 * Returns the batch session version of the given batch or null if the
+	 * batch doesn't exist. It doesn't load the whole batch.
+	 */
+	public Long findBatchSessionVersion(Long batchId) {
+		List<Long> results = jpa.em().createQuery("SELECT b.batchSessionVersion "
+				+ "FROM Batch b WHERE b.id = :id", Long.class)
+				.setParameter("id", batchId)
+				.getResultList();
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+	/**
+	 * Updates only the batch session data and version of the batch - but only
+	 * if the stored version is still the expected one. Returns true if the
+	 * batch session was updated.
+	 */
+	public boolean updateBatchSession(Long batchId, String batchSessionData,
+			Long batchSessionVersion, Long expectedVersion) {
+		int updated = jpa.em().createQuery("UPDATE Batch b "
+				+ "SET b.batchSessionData = :data, b.batchSessionVersion = :version "
+				+ "WHERE b.id = :id AND b.batchSessionVersion = :expectedVersion")
+				.setParameter("data", batchSessionData)
+				.setParameter("version", batchSessionVersion)
+				.setParameter("id", batchId)
+				.setParameter("expectedVersion", expectedVersion)
+				.executeUpdate();
+		return updated > 0;
+	}
+
 }
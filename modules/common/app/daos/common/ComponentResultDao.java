@@ -1,24 +1,43 @@
 package daos.common;
 
+import com.google.common.collect.ImmutableMap;
 import general.common.Common;
 import models.common.Component;
 import models.common.ComponentResult;
 import models.common.Study;
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.Session;
 import play.Logger;
 import play.db.jpa.JPAApi;
+import utils.common.Helpers;
+import utils.common.IdSet;
+import utils.common.ResultDataCodec;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import javax.persistence.Query;
-import java.io.BufferedReader;
+import javax.persistence.TypedQuery;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.Blob;
 import java.sql.Clob;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 /**
  * DAO for ComponentResult entity
  *
@@ -30,6 +49,46 @@ public class ComponentResultDao extends AbstractDao {
 
     private static final Logger.ALogger LOGGER = Logger.of(ComponentResultDao.class);
 
+    /**
+     * Size of the char buffer used to stream result data
+     */
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    /**
+     * JDBC query for all data chunks of a component result in the order of their sequence number
+     */
+    static final String SELECT_DATA_CHUNKS = "SELECT crdc.data, crdc.dataCompressed, crdc.dataCodec "
+            + "FROM ComponentResultDataChunk crdc WHERE crdc.componentResult_id = ? ORDER BY crdc.seq";
+
+    /**
+     * Columns of the result table (as in JsonUtils.componentResultAsJsonNode) that can be used to sort a
+     * ResultTableQuery, mapped to their field in the query
+     */
+    public static final Map<String, String> TABLE_SORT_COLUMNS = ImmutableMap.<String, String>builder()
+            .put("id", "r.id")
+            .put("studyResultId", "sr.id")
+            .put("studyResultUuid", "sr.uuid")
+            .put("studyCode", "sr.studyCode")
+            .put("startDate", "r.startDate")
+            .put("endDate", "r.endDate")
+            .put("batchTitle", "b.title")
+            .put("workerId", "w.id")
+            .put("componentState", "r.componentState")
+            .put("dataSizeHumanReadable", "r.dataSize")
+            .put("message", "r.message")
+            .build();
+
+    /**
+     * Fetch joins for all associations that are used when ComponentResults are serialized (e.g.
+     * JsonUtils.componentResultAsJsonNode and JsonUtils.writeComponentResultMetadata). Without them each
+     * ComponentResult of a page would load its Component, StudyResult, Worker, Batch, and GroupResults in extra
+     * queries (N+1). All are to-one associations, so the fetch joins don't multiply rows and pagination still works in
+     * the database.
+     */
+    private static final String FETCH_ASSOCIATIONS = "LEFT JOIN FETCH cr.component LEFT JOIN FETCH cr.studyResult sr "
+            + "LEFT JOIN FETCH sr.worker LEFT JOIN FETCH sr.batch LEFT JOIN FETCH sr.activeGroupResult "
+            + "LEFT JOIN FETCH sr.historyGroupResult ";
+
     @Inject
     ComponentResultDao(JPAApi jpa) {
         super(jpa);
@@ -44,55 +103,156 @@ public class ComponentResultDao extends AbstractDao {
     }
 
     /**
-     * Overwrite data in 'data' fields (data, dataShort, dataSize)
+     * Overwrite data in 'data' fields (data, dataShort, dataSize). If result data compression is enabled the data are
+     * stored compressed in 'dataCompressed' instead of 'data'.
      */
     public void replaceData(Long id, String data) {
+        removeDataChunks(id);
+        ResultDataCodec codec = Common.getResultDataCodec();
+        if (codec != ResultDataCodec.NONE && data != null) {
+            byte[] compressedData = codec.compress(data);
+            jpa.em().createNativeQuery("UPDATE ComponentResult cr " +
+                            "SET cr.data = NULL, " +
+                            "cr.dataCompressed = :compressedData, " +
+                            "cr.dataCodec = :codec, " +
+                            "cr.dataShort = :dataShort, " +
+                            "cr.dataSize = :dataSize, " +
+                            "cr.dataStoredSize = :dataStoredSize " +
+                            "WHERE cr.id = :id")
+                    .setParameter("id", id)
+                    .setParameter("compressedData", compressedData)
+                    .setParameter("codec", codec.name())
+                    .setParameter("dataShort", StringUtils.substring(data, 0, ComponentResult.DATA_SHORT_MAX_CHARS))
+                    .setParameter("dataSize", Helpers.getStringSize(data))
+                    .setParameter("dataStoredSize", compressedData.length)
+                    .executeUpdate();
+        } else {
+            jpa.em().createNativeQuery("UPDATE ComponentResult cr " +
+                            "SET cr.data = :data, " +
+                            "cr.dataCompressed = NULL, " +
+                            "cr.dataCodec = NULL, " +
+                            "cr.dataShort = SUBSTR(:data, 1, 1000), " +
+                            "cr.dataSize = :dataSize, " +
+                            "cr.dataStoredSize = :dataSize " +
+                            "WHERE cr.id = :id")
+                    .setParameter("id", id)
+                    .setParameter("data", data)
+                    .setParameter("dataSize", Helpers.getStringSize(data))
+                    .executeUpdate();
+        }
+    }
+
+    public void purgeData(Long id) {
+        removeDataChunks(id);
         jpa.em().createNativeQuery("UPDATE ComponentResult cr " +
-                        "SET cr.data = :data, " +
-                        "cr.dataShort = SUBSTR(:data, 1, 1000), " +
-                        "cr.dataSize = LENGTH(:data) " +
+                        "SET cr.data = NULL, cr.dataCompressed = NULL, cr.dataCodec = NULL, " +
+                        "cr.dataShort = NULL, cr.dataSize = 0, cr.dataStoredSize = 0 " +
                         "WHERE cr.id = :id")
                 .setParameter("id", id)
-                .setParameter("data", data)
                 .executeUpdate();
     }
 
-    public void purgeData(Long id) {
+    /**
+     * Append data to 'data' field and replace data in 'dataShort' and 'dataSize'. If chunked result data or result data
+     * compression is enabled the data are stored in a new row in ComponentResultDataChunk instead. This way compressed
+     * data never have to be decompressed and compressed again to append something.
+     *
+     * 'dataSize' and 'dataStoredSize' are always in bytes (UTF-8) - they are calculated in Java since SQL's LENGTH
+     * counts characters in H2 but bytes in MySQL.
+     */
+    public void appendData(Long id, String data) {
+        ResultDataCodec codec = Common.getResultDataCodec();
+        if (Common.isResultDataChunked() || codec != ResultDataCodec.NONE) {
+            appendDataChunk(id, data, codec);
+            return;
+        }
+
+        // In case chunked result data or compression was turned off in the meantime
+        restorePlainData(id);
+        // All right-hand sides only use the old values, so the order of the assignments doesn't matter (MySQL vs H2)
         jpa.em().createNativeQuery("UPDATE ComponentResult cr " +
-                        "SET cr.data = NULL, cr.dataShort = NULL, cr.dataSize = 0 " +
+                        "SET cr.data = CONCAT(COALESCE(cr.data, ''), :data), " +
+                        "cr.dataShort = SUBSTR(CONCAT(COALESCE(cr.dataShort, ''), :data), 1, 1000), " +
+                        "cr.dataSize = COALESCE(cr.dataSize, 0) + :dataSize, " +
+                        "cr.dataStoredSize = COALESCE(cr.dataStoredSize, 0) + :dataSize " +
                         "WHERE cr.id = :id")
                 .setParameter("id", id)
+                .setParameter("data", data)
+                .setParameter("dataSize", Helpers.getStringSize(data))
                 .executeUpdate();
     }
 
     /**
-     * Append data to 'data' field and replace data in 'dataShort' and 'dataSize'
+     * Stores the data as a new chunk in ComponentResultDataChunk with the next sequence number of this component
+     * result. Only the new data are written and 'dataShort' and 'dataSize' are updated incrementally - the existing
+     * data are never read or rewritten. If result data compression is enabled each chunk is compressed on its own.
+     *
+     * The sequence number is taken from the ComponentResult's 'dataChunkCount' that is incremented in the same UPDATE.
+     * This locks the ComponentResult's row until the transaction ends, so concurrent appends to the same component
+     * result are serialised and each one gets its own sequence number.
      */
-    public void appendData(Long id, String data) {
-        if (Common.usesMysql()) {
-            jpa.em().createNativeQuery("UPDATE ComponentResult cr " +
-                            "SET cr.data = CONCAT(COALESCE(cr.data, ''), :data), " +
-                            "cr.dataShort = SUBSTR(cr.data, 1, 1000), " +
-                            "cr.dataSize = LENGTH(cr.data) " +
-                            "WHERE cr.id = :id")
+    private void appendDataChunk(Long id, String data, ResultDataCodec codec) {
+        byte[] compressedData = codec != ResultDataCodec.NONE ? codec.compress(data) : null;
+        // All right-hand sides only use the old values, so the order of the assignments doesn't matter (MySQL vs H2)
+        jpa.em().createNativeQuery("UPDATE ComponentResult cr " +
+                        "SET cr.dataChunkCount = cr.dataChunkCount + 1, " +
+                        "cr.dataShort = SUBSTR(CONCAT(COALESCE(cr.dataShort, ''), :data), 1, 1000), " +
+                        "cr.dataSize = COALESCE(cr.dataSize, 0) + :dataSize, " +
+                        "cr.dataStoredSize = COALESCE(cr.dataStoredSize, 0) + :storedSize " +
+                        "WHERE cr.id = :id")
+                .setParameter("id", id)
+                .setParameter("data", data)
+                .setParameter("dataSize", Helpers.getStringSize(data))
+                .setParameter("storedSize",
+                        compressedData != null ? compressedData.length : Helpers.getStringSize(data))
+                .executeUpdate();
+        Number chunkCount = (Number) jpa.em()
+                .createNativeQuery("SELECT cr.dataChunkCount FROM ComponentResult cr WHERE cr.id = :id")
+                .setParameter("id", id)
+                .getSingleResult();
+        if (compressedData != null) {
+            jpa.em().createNativeQuery("INSERT INTO ComponentResultDataChunk " +
+                            "(componentResult_id, seq, dataCompressed, dataCodec) " +
+                            "VALUES (:id, :seq, :compressedData, :codec)")
                     .setParameter("id", id)
-                    .setParameter("data", data)
+                    .setParameter("seq", chunkCount.intValue() - 1)
+                    .setParameter("compressedData", compressedData)
+                    .setParameter("codec", codec.name())
                     .executeUpdate();
         } else {
-            // H2 can't handle cr.data (it contains the old value)
-            String oldData = getData(id);
-            String newData = oldData != null ? oldData + data : data;
-            jpa.em().createNativeQuery("UPDATE ComponentResult cr " +
-                            "SET cr.data = :newData, " +
-                            "cr.dataShort = SUBSTR(:newData, 1, 1000), " +
-                            "cr.dataSize = LENGTH(:newData) " +
-                            "WHERE cr.id = :id")
+            jpa.em().createNativeQuery("INSERT INTO ComponentResultDataChunk (componentResult_id, seq, data) " +
+                            "VALUES (:id, :seq, :data)")
                     .setParameter("id", id)
-                    .setParameter("newData", newData)
+                    .setParameter("seq", chunkCount.intValue() - 1)
+                    .setParameter("data", data)
                     .executeUpdate();
         }
     }
 
+    /**
+     * Moves compressed data and all data chunks of this component result back into its plain 'data' field. Must only
+     * be called if compression is turned off.
+     */
+    private void restorePlainData(Long id) {
+        Object[] result = (Object[]) jpa.em()
+                .createNativeQuery("SELECT cr.dataCodec, (SELECT COUNT(*) FROM ComponentResultDataChunk crdc " +
+                        "WHERE crdc.componentResult_id = cr.id) FROM ComponentResult cr WHERE cr.id = :id")
+                .setParameter("id", id)
+                .getSingleResult();
+        boolean isCompressed = result[0] != null;
+        boolean hasChunks = result[1] != null && ((Number) result[1]).intValue() > 0;
+        if (isCompressed || hasChunks) replaceData(id, getData(id));
+    }
+
+    private void removeDataChunks(Long id) {
+        jpa.em().createNativeQuery("DELETE FROM ComponentResultDataChunk WHERE componentResult_id = :id")
+                .setParameter("id", id)
+                .executeUpdate();
+        jpa.em().createNativeQuery("UPDATE ComponentResult cr SET cr.dataChunkCount = 0 WHERE cr.id = :id")
+                .setParameter("id", id)
+                .executeUpdate();
+    }
+
     /**
      * Only set the 'dataShort' and 'dataSize' field with data from 'data' (used only during update from an old version
      * of JATOS that didn't have those fields yet).
@@ -101,10 +261,11 @@ public class ComponentResultDao extends AbstractDao {
         String data = getData(id);
         if (data != null) {
             jpa.em().createNativeQuery("UPDATE ComponentResult cr " +
-                            "SET cr.dataShort = SUBSTR(:data, 1, 1000), cr.dataSize = LENGTH(:data) " +
+                            "SET cr.dataShort = SUBSTR(:data, 1, 1000), cr.dataSize = :dataSize " +
                             "WHERE cr.id = :id")
                     .setParameter("id", id)
                     .setParameter("data", data)
+                    .setParameter("dataSize", Helpers.getStringSize(data))
                     .executeUpdate();
         } else {
             jpa.em().createNativeQuery("UPDATE ComponentResult cr " +
@@ -116,13 +277,141 @@ public class ComponentResultDao extends AbstractDao {
     }
 
     /**
-     * Get 'data' field without fetching the whole row. The result is of a different type depending on the database
-     * in use, MySQL or H2. So we have to treat them differently to get the String.
+     * Get 'data' field without fetching the whole row. Compressed data are decompressed. If there are data chunks
+     * (chunked result data) they are appended in the order of their sequence number. This materialises the whole result
+     * data as a String - to export them use streamData instead.
      */
     public String getData(Long id) {
-        Object result = jpa.em().createNativeQuery("SELECT cr.data FROM ComponentResult cr WHERE cr.id = :id")
+        Object[] result = (Object[]) jpa.em()
+                .createNativeQuery("SELECT cr.data, cr.dataCompressed, cr.dataCodec FROM ComponentResult cr " +
+                        "WHERE cr.id = :id")
                 .setParameter("id", id)
                 .getSingleResult();
+        String data = result[2] != null
+                ? decompressData(id, ResultDataCodec.fromName(result[2].toString()), result[1])
+                : dataToString(id, result[0]);
+
+        @SuppressWarnings("unchecked")
+        List<Object[]> chunks = jpa.em()
+                .createNativeQuery("SELECT crdc.data, crdc.dataCompressed, crdc.dataCodec " +
+                        "FROM ComponentResultDataChunk crdc WHERE crdc.componentResult_id = :id ORDER BY crdc.seq")
+                .setParameter("id", id)
+                .getResultList();
+        if (chunks.isEmpty()) return data;
+
+        StringBuilder sb = new StringBuilder(data != null ? data : "");
+        chunks.forEach(chunk -> {
+            String chunkData = chunk[2] != null
+                    ? decompressData(id, ResultDataCodec.fromName(chunk[2].toString()), chunk[1])
+                    : dataToString(id, chunk[0]);
+            if (chunkData != null) sb.append(chunkData);
+        });
+        return sb.toString();
+    }
+
+    /**
+     * Streams the 'data' field (and the data chunks if there are any) directly from the JDBC result set into the given
+     * Writer without materialising the whole data as a String. Compressed data are decompressed on the fly. A
+     * fixed-size buffer is used for copying. The Writer is only written to (and flushed) if there are data.
+     *
+     * @return false if this component result has no data (data field is null and there are no data chunks)
+     */
+    public boolean streamData(Long id, Writer writer) throws IOException {
+        try {
+            return jpa.em().unwrap(Session.class).doReturningWork(connection -> {
+                boolean hasData = false;
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT cr.data, cr.dataCompressed, cr.dataCodec FROM ComponentResult cr WHERE cr.id = ?")) {
+                    statement.setLong(1, id);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        if (resultSet.next()) {
+                            String codecName = resultSet.getString(3);
+                            hasData = codecName != null
+                                    ? copyCompressedData(resultSet, 2, ResultDataCodec.fromName(codecName), writer)
+                                    : copyData(resultSet, 1, writer);
+                        }
+                    }
+                }
+                try (PreparedStatement statement = connection.prepareStatement(SELECT_DATA_CHUNKS)) {
+                    statement.setLong(1, id);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) hasData |= copyDataChunk(resultSet, writer);
+                    }
+                }
+                if (hasData) flush(writer);
+                return hasData;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Copies the (uncompressed) result data in the given column of the current row into the Writer
+     *
+     * @return false if the column is null
+     */
+    static boolean copyData(ResultSet resultSet, int column, Writer writer) throws SQLException {
+        try (Reader reader = resultSet.getCharacterStream(column)) {
+            if (reader == null) return false;
+            copy(reader, writer);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Copies the data chunk of the current row of a result set of SELECT_DATA_CHUNKS into the Writer. Compressed
+     * chunks are decompressed on the fly.
+     *
+     * @return false if the chunk has no data
+     */
+    static boolean copyDataChunk(ResultSet resultSet, Writer writer) throws SQLException {
+        String codecName = resultSet.getString(3);
+        return codecName != null
+                ? copyCompressedData(resultSet, 2, ResultDataCodec.fromName(codecName), writer)
+                : copyData(resultSet, 1, writer);
+    }
+
+    /**
+     * Copies the compressed result data in the given column of the current row into the Writer and decompresses them
+     * on the fly
+     *
+     * @return false if the column is null
+     */
+    static boolean copyCompressedData(ResultSet resultSet, int column, ResultDataCodec codec, Writer writer)
+            throws SQLException {
+        try (InputStream in = resultSet.getBinaryStream(column)) {
+            if (in == null) return false;
+            copy(new InputStreamReader(codec.decompressingStream(in), UTF_8), writer);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void copy(Reader reader, Writer writer) throws IOException {
+        char[] buffer = new char[STREAM_BUFFER_SIZE];
+        int length;
+        while ((length = reader.read(buffer)) != -1) {
+            writer.write(buffer, 0, length);
+        }
+    }
+
+    private static void flush(Writer writer) {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The result of a native query on a longtext field is of a different type depending on the database in use, MySQL
+     * or H2. So we have to treat them differently to get the String.
+     */
+    private String dataToString(Long id, Object result) {
         if (result instanceof String) {
             // Performance-wise it would be better to pass on the stream but MySQL only returns String
             return (String) result;
@@ -130,8 +419,7 @@ public class ComponentResultDao extends AbstractDao {
             // H2 returns Clob
             Clob clob = (Clob) result;
             try {
-                return new BufferedReader(new InputStreamReader(clob.getAsciiStream()))
-                        .lines().collect(Collectors.joining(System.lineSeparator()));
+                return clob.getSubString(1, (int) clob.length());
             } catch (SQLException e) {
                 LOGGER.error(".getData: Couldn't get data from ComponentResult " + id, e);
             }
@@ -139,6 +427,23 @@ public class ComponentResultDao extends AbstractDao {
         return null;
     }
 
+    /**
+     * The result of a native query on a longblob field is either a byte array or a Blob depending on the database
+     */
+    private String decompressData(Long id, ResultDataCodec codec, Object result) {
+        try {
+            if (result instanceof byte[]) {
+                return codec.decompress((byte[]) result);
+            } else if (result instanceof Blob) {
+                Blob blob = (Blob) result;
+                return codec.decompress(blob.getBytes(1, (int) blob.length()));
+            }
+        } catch (SQLException | UncheckedIOException e) {
+            LOGGER.error(".getData: Couldn't decompress data from ComponentResult " + id, e);
+        }
+        return null;
+    }
+
     public void remove(ComponentResult componentResult) {
         super.remove(componentResult);
     }
@@ -151,11 +456,10 @@ public class ComponentResultDao extends AbstractDao {
         return jpa.em().find(ComponentResult.class, id);
     }
 
-    public List<ComponentResult> findByIds(List<Long> ids) {
-        return jpa.em()
-                .createQuery("SELECT cr FROM ComponentResult cr WHERE cr.id IN :ids", ComponentResult.class)
-                .setParameter("ids", ids)
-                .getResultList();
+    public List<ComponentResult> findByIds(IdSet ids) {
+        return findByIdSet(ids, "cr.id", idCondition -> jpa.em()
+                .createQuery("SELECT cr FROM ComponentResult cr " + FETCH_ASSOCIATIONS + "WHERE " + idCondition
+                        + " ORDER BY cr.id", ComponentResult.class));
     }
 
     public int count() {
@@ -165,6 +469,15 @@ public class ComponentResultDao extends AbstractDao {
         return result != null ? result.intValue() : 0;
     }
 
+    /**
+     * Returns the highest ComponentResult ID or 0 if there are none. It can be used as a high-water mark for keyset
+     * pagination.
+     */
+    public long findMaxId() {
+        Number result = (Number) jpa.em().createQuery("SELECT max(cr.id) FROM ComponentResult cr").getSingleResult();
+        return result != null ? result.longValue() : 0L;
+    }
+
     /**
      * Returns the number of ComponentResults belonging to the given Component.
      */
@@ -175,6 +488,37 @@ public class ComponentResultDao extends AbstractDao {
         return result != null ? result.intValue() : 0;
     }
 
+    /**
+     * Returns the number of ComponentResults belonging to the given Component that match the filters of the
+     * ResultTableQuery
+     */
+    public int countByComponent(Component component, ResultTableQuery tableQuery) {
+        Query query = jpa.em().createQuery("SELECT COUNT(r) FROM ComponentResult r JOIN r.studyResult sr "
+                + "JOIN sr.worker w LEFT JOIN sr.batch b WHERE r.component = :component"
+                + tableQuery.conditions("r.componentState"));
+        query.setParameter("component", component);
+        tableQuery.bindParameters(query);
+        Number result = (Number) query.getSingleResult();
+        return result != null ? result.intValue() : 0;
+    }
+
+    /**
+     * Returns one page of ComponentResults belonging to the given Component that match the filters of the
+     * ResultTableQuery and are sorted by it. Used for server-side processing of the result table. The sort column has
+     * to be one of TABLE_SORT_COLUMNS.
+     */
+    public List<ComponentResult> findPageByComponent(Component component, ResultTableQuery tableQuery) {
+        TypedQuery<ComponentResult> query = jpa.em().createQuery("SELECT r FROM ComponentResult r "
+                + "JOIN FETCH r.component c JOIN FETCH r.studyResult sr JOIN FETCH sr.worker w "
+                + "LEFT JOIN FETCH sr.batch b LEFT JOIN FETCH sr.activeGroupResult "
+                + "LEFT JOIN FETCH sr.historyGroupResult "
+                + "WHERE r.component = :component" + tableQuery.conditions("r.componentState")
+                + tableQuery.orderBy(), ComponentResult.class);
+        query.setParameter("component", component);
+        tableQuery.bindParameters(query);
+        return query.setFirstResult(tableQuery.getStart()).setMaxResults(tableQuery.getLength()).getResultList();
+    }
+
     /**
      * Fetches all ComponentResults without 'dataSize' (is null). This is used only during update from an old version of
      * JATOS that didn't have those fields yet.
@@ -197,19 +541,23 @@ public class ComponentResultDao extends AbstractDao {
     /**
      * Returns paginated ComponentResult that belong to the given Component
      *
+     * Uses keyset pagination: only ComponentResults with an ID greater than lastId and not greater than maxId are
+     * returned, ordered by ID. Contrary to an OFFSET this doesn't get slower with each page, and with a fixed maxId
+     * (e.g. the highest ID at the start of the streaming) new results that arrive in the meantime don't shift the
+     * pages.
+     *
      * We can't use ScrollableResults for pagination since the MySQL Hibernate driver doesn't support it
      * (https://stackoverflow.com/a/2826512/1278769)
      */
-    public List<ComponentResult> findAllByComponent(Component component, int first, int max) {
-        // Added 'LEFT JOIN FETCH' for performance (loads LAZY-linked StudyResults and their Workers)
+    public List<ComponentResult> findAllByComponent(Component component, long lastId, long maxId, int max) {
         return jpa.em()
-                .createQuery("SELECT cr FROM ComponentResult cr " +
-                        "LEFT JOIN FETCH cr.studyResult sr " +
-                        "LEFT JOIN FETCH sr.worker " +
-                        "WHERE cr.component=:component", ComponentResult.class)
-                .setFirstResult(first)
+                .createQuery("SELECT cr FROM ComponentResult cr " + FETCH_ASSOCIATIONS +
+                        "WHERE cr.component=:component " +
+                        "AND cr.id > :lastId AND cr.id <= :maxId ORDER BY cr.id", ComponentResult.class)
                 .setMaxResults(max)
                 .setParameter("component", component)
+                .setParameter("lastId", lastId)
+                .setParameter("maxId", maxId)
                 .getResultList();
     }
 
@@ -274,6 +622,19 @@ public class ComponentResultDao extends AbstractDao {
         return results.stream().map(r -> ((Number) r).longValue()).distinct().collect(Collectors.toList());
     }
 
+    /**
+     * Returns all ComponentResults (together with their Components) that belong to the given study result IDs ordered
+     * by their ID. Fetches the ComponentResults of many StudyResults in one query instead of one query per StudyResult.
+     */
+    public List<ComponentResult> findByStudyResultIds(List<Long> srids) {
+        if (srids.isEmpty()) return new ArrayList<>();
+        return jpa.em()
+                .createQuery("SELECT cr FROM ComponentResult cr " + FETCH_ASSOCIATIONS
+                        + "WHERE cr.studyResult.id IN :srids ORDER BY cr.id", ComponentResult.class)
+                .setParameter("srids", srids)
+                .getResultList();
+    }
+
     public List<Long> findIdsByStudyResultId(Long srid) {
         @SuppressWarnings("unchecked")
         List<Object> results = jpa.em()
@@ -289,39 +650,46 @@ public class ComponentResultDao extends AbstractDao {
      * component result IDs of sr1, then all of sr2, and last all of sr3.
      */
     public List<Long> findOrderedIdsByOrderedStudyResultIds(List<Long> orderedSrids) {
-        @SuppressWarnings("unchecked")
-        List<Object[]> unorderedDbResults = jpa.em()
-                .createNativeQuery("SELECT cr.studyResult_id, cr.id FROM ComponentResult cr "
-                        + "WHERE cr.studyResult_id IN :ids")
-                .setParameter("ids", orderedSrids)
-                .getResultList();
+        List<Object[]> unorderedDbResults = findByIdSet(IdSet.of(orderedSrids), "cr.studyResult_id",
+                idCondition -> jpa.em().createNativeQuery("SELECT cr.studyResult_id, cr.id FROM ComponentResult cr "
+                        + "WHERE " + idCondition + " ORDER BY cr.id"));
         // We have to ensure that the order of the srids of the crids that will be returned is the same as the order of
-        // the given srids.
-        // This is a inefficient hack. We could use MySQL's "ORDER BY FIELD" (https://stackoverflow.com/questions/3799935)
-        // - but it's not supported by H2.
+        // the given srids (MySQL's "ORDER BY FIELD" isn't supported by H2). So group the crids by their srid first.
+        Map<Long, List<Long>> cridsBySrid = new HashMap<>();
+        for (Object[] dbResult : unorderedDbResults) {
+            long srid = ((Number) dbResult[0]).longValue();
+            long crid = ((Number) dbResult[1]).longValue();
+            cridsBySrid.computeIfAbsent(srid, k -> new ArrayList<>()).add(crid);
+        }
         List<Long> orderedComponentResultIds = new ArrayList<>();
         for (Long orderedSrid : orderedSrids) {
-            for (Object[] dbResult : unorderedDbResults) {
-                long srid = ((Number) dbResult[0]).longValue();
-                long crid = ((Number) dbResult[1]).longValue();
-                if (srid == orderedSrid) {
-                    orderedComponentResultIds.add(crid);
-                }
-            }
+            orderedComponentResultIds.addAll(cridsBySrid.getOrDefault(orderedSrid, Collections.emptyList()));
         }
         return orderedComponentResultIds;
     }
 
     /**
-     * Takes a list component result IDs and checks if they exist in the database. Returns only the existing ones.
+     * Takes a set of component result IDs and checks if they exist in the database. Returns only the existing ones.
      */
-    public List<Long> findIdsByComponentResultIds(List<Long> crids) {
-        @SuppressWarnings("unchecked")
-        List<Object> results = jpa.em()
-                .createNativeQuery("SELECT cr.id FROM ComponentResult cr WHERE cr.id IN :ids")
-                .setParameter("ids", crids)
-                .getResultList();
+    public List<Long> findIdsByComponentResultIds(IdSet crids) {
+        List<Object> results = findByIdSet(crids, "cr.id",
+                idCondition -> jpa.em().createNativeQuery("SELECT cr.id FROM ComponentResult cr WHERE " + idCondition));
         return results.stream().map(r -> ((Number) r).longValue()).distinct().collect(Collectors.toList());
     }
 
-}
\ No newline at end of file
+    /**
+     * Takes a set of component result IDs and returns only those that were created or changed since the given cursor:
+     * newer than lastId, or finished after the watermark, or still unfinished and their study result was seen
+     * (heartbeat) after the watermark. Ordered by ID.
+     */
+    public List<Long> findIdsChangedSince(IdSet crids, long lastId, Timestamp watermark) {
+        List<Object> results = findByIdSet(crids, "cr.id", idCondition -> jpa.em().createNativeQuery(
+                "SELECT cr.id FROM ComponentResult cr JOIN StudyResult sr ON cr.studyResult_id = sr.id WHERE "
+                        + idCondition + " AND (cr.id > :lastId OR cr.endDate > :watermark "
+                        + "OR (cr.endDate IS NULL AND sr.lastSeenDate > :watermark)) ORDER BY cr.id")
+                .setParameter("lastId", lastId)
+                .setParameter("watermark", watermark));
+        return results.stream().map(r -> ((Number) r).longValue()).collect(Collectors.toList());
+    }
+
+}
@@ -47,6 +47,16 @@ public class GroupResultDao extends AbstractDao {
         return jpa.em().find(GroupResult.class, id);
     }
 
+    /**
+     * Marks the GroupResult as started. It's an update of its own because GroupResult's started isn't written with
+     * the rest of the GroupResult.
+     */
+    public void setStarted(long groupResultId) {
+        jpa.em().createNativeQuery("UPDATE GroupResult SET started = TRUE WHERE id = :id")
+                .setParameter("id", groupResultId)
+                .executeUpdate();
+    }
+
     public List<GroupResult> findAllByBatch(Batch batch) {
         String queryStr = "SELECT gr FROM GroupResult gr WHERE gr.batch=:batch";
         TypedQuery<GroupResult> query = jpa.em().createQuery(queryStr, GroupResult.class);
@@ -60,6 +70,18 @@ public class GroupResultDao extends AbstractDao {
         return result != null ? result.intValue() : 0;
     }
 
+    /**
+     * Returns all GroupResults of the given batch that are in state STARTED. Other than findAllMaxNotReached it doesn't
+     * lock them.
+     */
+    public List<GroupResult> findAllStartedByBatch(Batch batch) {
+        String queryStr = "SELECT gr FROM GroupResult gr WHERE gr.batch=:batch AND gr.groupState=:groupState";
+        TypedQuery<GroupResult> query = jpa.em().createQuery(queryStr, GroupResult.class);
+        query.setParameter("batch", batch);
+        query.setParameter("groupState", GroupState.STARTED);
+        return query.getResultList();
+    }
+
     /**
      * Searches the database for GroupResults that fit the criteria: 1) are in the given batch, 2) are in state STARTED,
      * 3) where the activeMemberCount < Batch's maxActiveMembers, 3) activeMemberCount + historyMemberCount < Batch's
@@ -0,0 +1,147 @@
+package daos.common;
+
+import org.hibernate.jpa.TypedParameterValue;
+import org.hibernate.type.StringType;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.persistence.PersistenceException;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * DAO for the group session. A group session is stored as a snapshot (GroupResult's groupSessionData with its version
+ * in groupSessionSnapshotVersion) plus an append-only log of the patches since then (table GroupSessionPatch, one row
+ * per version). GroupResult's groupSessionVersion is always the current version. This way a change of the group
+ * session only writes the patch and not the whole session data. Every now and then the log is compacted into a new
+ * snapshot.
+ *
+ * It uses native queries since GroupSessionPatch isn't a JPA entity and the session fields of GroupResult aren't
+ * updatable via the entity. The patches of a GroupResult are deleted together with the GroupResult (ON DELETE
+ * CASCADE).
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class GroupSessionDao extends AbstractDao {
+
+    @Inject
+    GroupSessionDao(JPAApi jpa) {
+        super(jpa);
+    }
+
+    /**
+     * Appends the patches to the log as version expectedVersion + 1 and increases the GroupResult's session version -
+     * but only if the stored version is still the expected one. Returns false if the group session was changed in the
+     * meantime somewhere else (e.g. in JATOS' GUI) or the GroupResult doesn't exist.
+     */
+    public boolean appendPatch(long groupResultId, String patches, long expectedVersion) {
+        int updated = jpa.em().createNativeQuery("UPDATE GroupResult SET groupSessionVersion = :version "
+                        + "WHERE id = :id AND groupSessionVersion = :expectedVersion")
+                .setParameter("version", expectedVersion + 1)
+                .setParameter("id", groupResultId)
+                .setParameter("expectedVersion", expectedVersion)
+                .executeUpdate();
+        if (updated == 0) return false;
+
+        jpa.em().createNativeQuery("INSERT INTO GroupSessionPatch (groupResult_id, version, patches) "
+                        + "VALUES (:id, :version, :patches)")
+                .setParameter("id", groupResultId)
+                .setParameter("version", expectedVersion + 1)
+                .setParameter("patches", patches)
+                .executeUpdate();
+        return true;
+    }
+
+    /**
+     * Writes a new snapshot of the group session and removes all patches up to its version from the log - but only
+     * if the stored version is still the expected one. With version == expectedVersion this compacts the log, with a
+     * higher version it replaces the session data (e.g. edited in the GUI). Returns false if the group session was
+     * changed in the meantime or the GroupResult doesn't exist.
+     */
+    public boolean writeSnapshot(long groupResultId, String sessionData, long version, long expectedVersion) {
+        int updated = jpa.em().createNativeQuery("UPDATE GroupResult SET groupSessionData = :data, "
+                        + "groupSessionVersion = :version, groupSessionSnapshotVersion = :version "
+                        + "WHERE id = :id AND groupSessionVersion = :expectedVersion")
+                // Typed since the data can be null
+                .setParameter("data", new TypedParameterValue(StringType.INSTANCE, sessionData))
+                .setParameter("version", version)
+                .setParameter("id", groupResultId)
+                .setParameter("expectedVersion", expectedVersion)
+                .executeUpdate();
+        if (updated == 0) return false;
+
+        removePatchesUpTo(groupResultId, version);
+        return true;
+    }
+
+    /**
+     * Deletes the group session data (snapshot and log) but keeps the version, e.g. when the group is finished
+     */
+    public void clear(long groupResultId) {
+        jpa.em().createNativeQuery("UPDATE GroupResult SET groupSessionData = NULL, "
+                        + "groupSessionSnapshotVersion = groupSessionVersion WHERE id = :id")
+                .setParameter("id", groupResultId)
+                .executeUpdate();
+        jpa.em().createNativeQuery("DELETE FROM GroupSessionPatch WHERE groupResult_id = :id")
+                .setParameter("id", groupResultId)
+                .executeUpdate();
+    }
+
+    /**
+     * Returns the current group session version of the given GroupResult or null if it doesn't exist. It doesn't load
+     * the whole GroupResult.
+     */
+    public Long findVersion(long groupResultId) {
+        List<?> results = jpa.em().createNativeQuery("SELECT gr.groupSessionVersion FROM GroupResult gr "
+                        + "WHERE gr.id = :id")
+                .setParameter("id", groupResultId)
+                .getResultList();
+        return results.isEmpty() ? null : ((Number) results.get(0)).longValue();
+    }
+
+    /**
+     * Returns the patches of the given GroupResult with a version higher than the given one, mapped and sorted by
+     * their version. Applied in this order to the session data of sinceVersion they give the current session data.
+     */
+    public SortedMap<Long, String> findPatchesSince(long groupResultId, long sinceVersion) {
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = jpa.em().createNativeQuery("SELECT gsp.version, gsp.patches FROM GroupSessionPatch gsp "
+                        + "WHERE gsp.groupResult_id = :id AND gsp.version > :sinceVersion ORDER BY gsp.version")
+                .setParameter("id", groupResultId)
+                .setParameter("sinceVersion", sinceVersion)
+                .getResultList();
+        SortedMap<Long, String> patches = new TreeMap<>();
+        for (Object[] row : rows) {
+            patches.put(((Number) row[0]).longValue(), patchesToString(row[1]));
+        }
+        return patches;
+    }
+
+    /**
+     * The result of a native query on a longtext field is a String with MySQL and a Clob with H2
+     */
+    private String patchesToString(Object result) {
+        if (result instanceof Clob) {
+            Clob clob = (Clob) result;
+            try {
+                return clob.getSubString(1, (int) clob.length());
+            } catch (SQLException e) {
+                throw new PersistenceException(e);
+            }
+        }
+        return (String) result;
+    }
+
+    private void removePatchesUpTo(long groupResultId, long version) {
+        jpa.em().createNativeQuery("DELETE FROM GroupSessionPatch WHERE groupResult_id = :id AND version <= :version")
+                .setParameter("id", groupResultId)
+                .setParameter("version", version)
+                .executeUpdate();
+    }
+
+}
@@ -0,0 +1,201 @@
+package daos.common;
+
+import general.common.Common;
+import play.db.Database;
+import utils.common.IdSet;
+import utils.common.ResultDataCodec;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DAO for bulk exports of result data. It reads with plain JDBC and a forward-only cursor directly from the database
+ * connection pool - no entities are created and no persistence context is involved, so the memory usage doesn't grow
+ * with the number of exported results. With MySQL the rows are streamed one by one from the server (fetch size
+ * Integer.MIN_VALUE), with H2 the query is executed lazily (LAZY_QUERY_EXECUTION).
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ResultExportDao {
+
+    /**
+     * Fetch size used for H2 (MySQL streams row by row)
+     */
+    private static final int H2_FETCH_SIZE = 100;
+
+    private final Database db;
+
+    @Inject
+    ResultExportDao(Database db) {
+        this.db = db;
+    }
+
+    /**
+     * Receives the result data of the component results in the order of their IDs
+     */
+    public interface ResultDataHandler {
+
+        /**
+         * Called at the start of each component result. Returns the Writer that this component result's data are
+         * written into.
+         */
+        Writer begin(long studyResultId, long componentResultId) throws IOException;
+
+        /**
+         * Called after all data of the component result were written
+         *
+         * @param hasData false if this component result has no data
+         */
+        void end(long studyResultId, long componentResultId, boolean hasData) throws IOException;
+    }
+
+    /**
+     * Receives the IDs of component results together with the IDs of their study results and the names of their
+     * uploaded files
+     */
+    @FunctionalInterface
+    public interface ResultFilesHandler {
+        void handle(long studyResultId, long componentResultId, List<String> filenames) throws IOException;
+    }
+
+    /**
+     * Streams the IDs of the given component results (ordered by ID) together with their study result IDs and the
+     * names of their uploaded files into the handler. The filenames come from the index of uploaded result files
+     * (table ResultFile) - the upload directories aren't listed. Component results that don't exist are skipped.
+     *
+     * @return Number of component results that were found
+     */
+    public long streamFiles(IdSet componentResultIds, ResultFilesHandler handler) throws IOException {
+        try (Connection connection = db.getConnection()) {
+            long count = 0;
+            for (IdSet part : componentResultIds.partition()) {
+                String sql = "SELECT cr.id, cr.studyResult_id, rf.filename FROM ComponentResult cr "
+                        + "LEFT JOIN ResultFile rf ON rf.componentResult_id = cr.id WHERE "
+                        + part.conditionWithValues("cr.id") + " ORDER BY cr.id, rf.filename";
+                try (PreparedStatement statement = connection.prepareStatement(sql);
+                     ResultSet resultSet = statement.executeQuery()) {
+                    // The rows of one component result (one per file) are consecutive
+                    long componentResultId = -1;
+                    long studyResultId = -1;
+                    List<String> filenames = new ArrayList<>();
+                    while (resultSet.next()) {
+                        if (resultSet.getLong(1) != componentResultId) {
+                            if (componentResultId != -1) handler.handle(studyResultId, componentResultId, filenames);
+                            componentResultId = resultSet.getLong(1);
+                            studyResultId = resultSet.getLong(2);
+                            filenames = new ArrayList<>();
+                            count++;
+                        }
+                        String filename = resultSet.getString(3);
+                        if (filename != null) filenames.add(filename);
+                    }
+                    if (componentResultId != -1) handler.handle(studyResultId, componentResultId, filenames);
+                }
+            }
+            return count;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Streams the result data of the given component results (ordered by ID) into the handler. Compressed data are
+     * decompressed on the fly and data chunks are appended. Component results that don't exist are skipped.
+     *
+     * @return Number of component results that were found
+     */
+    public long streamData(IdSet componentResultIds, ResultDataHandler handler) throws IOException {
+        try (Connection connection = db.getConnection();
+             ChunkReader chunkReader = new ChunkReader()) {
+            long count = 0;
+            for (IdSet part : componentResultIds.partition()) {
+                count += streamData(connection, part, handler, chunkReader);
+            }
+            return count;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private long streamData(Connection connection, IdSet crids, ResultDataHandler handler, ChunkReader chunkReader)
+            throws SQLException, IOException {
+        String sql = "SELECT cr.id, cr.studyResult_id, cr.data, cr.dataCompressed, cr.dataCodec, "
+                + "EXISTS (SELECT 1 FROM ComponentResultDataChunk crdc WHERE crdc.componentResult_id = cr.id) "
+                + "FROM ComponentResult cr WHERE " + crids.conditionWithValues("cr.id") + " ORDER BY cr.id";
+        setLazyQueryExecution(connection, true);
+        try (PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(Common.usesMysql() ? Integer.MIN_VALUE : H2_FETCH_SIZE);
+            long count = 0;
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    long crid = resultSet.getLong(1);
+                    long srid = resultSet.getLong(2);
+                    Writer writer = handler.begin(srid, crid);
+                    String codecName = resultSet.getString(5);
+                    boolean hasData = codecName != null
+                            ? ComponentResultDao.copyCompressedData(resultSet, 4, ResultDataCodec.fromName(codecName),
+                            writer)
+                            : ComponentResultDao.copyData(resultSet, 3, writer);
+                    if (resultSet.getBoolean(6)) hasData |= chunkReader.copyChunks(crid, writer);
+                    handler.end(srid, crid, hasData);
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            setLazyQueryExecution(connection, false);
+        }
+    }
+
+    /**
+     * H2 only: Without lazy query execution H2 reads the whole result into memory (or a temp file) first
+     */
+    private void setLazyQueryExecution(Connection connection, boolean lazy) throws SQLException {
+        if (Common.usesMysql()) return;
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET LAZY_QUERY_EXECUTION " + (lazy ? 1 : 0));
+        }
+    }
+
+    /**
+     * Reads the data chunks of a component result. With MySQL no other query can run on a connection while a result
+     * is streamed, so the chunks are read with a second connection. It is only opened if a component result actually
+     * has chunks.
+     */
+    private class ChunkReader implements AutoCloseable {
+
+        private Connection connection;
+
+        boolean copyChunks(long componentResultId, Writer writer) throws SQLException {
+            if (connection == null) connection = db.getConnection();
+            boolean hasData = false;
+            try (PreparedStatement statement = connection.prepareStatement(ComponentResultDao.SELECT_DATA_CHUNKS)) {
+                statement.setLong(1, componentResultId);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) hasData |= ComponentResultDao.copyDataChunk(resultSet, writer);
+                }
+            }
+            return hasData;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (connection != null) connection.close();
+        }
+    }
+
+}
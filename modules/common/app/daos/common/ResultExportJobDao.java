@@ -0,0 +1,131 @@
+package daos.common;
+
+import models.common.ResultExportJob;
+import models.common.ResultExportJob.State;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * DAO for ResultExportJob entity. The state changes are conditional updates: e.g. a job only starts if it's still
+ * QUEUED. This way the node that runs a job and a node that fails or removes it can't overwrite each other's state.
+ *
+ * @author Kristian Lange
+ */
+@SuppressWarnings("deprecation")
+@Singleton
+public class ResultExportJobDao extends AbstractDao {
+
+    @Inject
+    ResultExportJobDao(JPAApi jpa) {
+        super(jpa);
+    }
+
+    public void create(ResultExportJob job) {
+        persist(job);
+    }
+
+    public void remove(ResultExportJob job) {
+        super.remove(job);
+    }
+
+    public ResultExportJob findById(String id) {
+        return jpa.em().find(ResultExportJob.class, id);
+    }
+
+    /**
+     * Returns the state of the job or null if the job doesn't exist
+     */
+    public State findState(String id) {
+        List<State> states = jpa.em()
+                .createQuery("SELECT j.state FROM ResultExportJob j WHERE j.id = :id", State.class)
+                .setParameter("id", id)
+                .getResultList();
+        return states.isEmpty() ? null : states.get(0);
+    }
+
+    /**
+     * Returns all jobs that ended before the given date, and the ones that were created before it but never ended
+     * (e.g. because the node that ran it was stopped)
+     */
+    public List<ResultExportJob> findExpired(Timestamp date) {
+        return jpa.em()
+                .createQuery("SELECT j FROM ResultExportJob j WHERE j.endDate < :date "
+                        + "OR (j.endDate IS NULL AND j.creationDate < :date)", ResultExportJob.class)
+                .setParameter("date", date)
+                .getResultList();
+    }
+
+    /**
+     * Sets the job to RUNNING. Returns false if the job isn't QUEUED anymore (e.g. it was removed).
+     */
+    public boolean start(String id) {
+        return jpa.em().createQuery("UPDATE ResultExportJob j SET j.state = :running, j.startDate = :now "
+                        + "WHERE j.id = :id AND j.state = :queued")
+                .setParameter("running", State.RUNNING)
+                .setParameter("now", now())
+                .setParameter("id", id)
+                .setParameter("queued", State.QUEUED)
+                .executeUpdate() > 0;
+    }
+
+    /**
+     * Sets the job to FINISHED. Returns false if the job isn't RUNNING anymore (e.g. it was removed).
+     */
+    public boolean finish(String id, long resultsWritten) {
+        return jpa.em().createQuery("UPDATE ResultExportJob j SET j.state = :finished, j.endDate = :now, "
+                        + "j.resultsWritten = :resultsWritten WHERE j.id = :id AND j.state = :running")
+                .setParameter("finished", State.FINISHED)
+                .setParameter("now", now())
+                .setParameter("resultsWritten", resultsWritten)
+                .setParameter("id", id)
+                .setParameter("running", State.RUNNING)
+                .executeUpdate() > 0;
+    }
+
+    /**
+     * Sets the job to FAILED. Returns false if the job isn't RUNNING anymore (e.g. it was removed).
+     */
+    public boolean fail(String id, String error) {
+        return jpa.em().createQuery("UPDATE ResultExportJob j SET j.state = :failed, j.endDate = :now, "
+                        + "j.error = :error WHERE j.id = :id AND j.state = :running")
+                .setParameter("failed", State.FAILED)
+                .setParameter("now", now())
+                .setParameter("error", error)
+                .setParameter("id", id)
+                .setParameter("running", State.RUNNING)
+                .executeUpdate() > 0;
+    }
+
+    /**
+     * Fails all jobs that were created before the given date and are still QUEUED or RUNNING (e.g. they were left over
+     * by a restart). Returns the number of failed jobs.
+     */
+    public int failUnfinishedCreatedBefore(Timestamp date, String error) {
+        return jpa.em().createQuery("UPDATE ResultExportJob j SET j.state = :failed, j.endDate = :now, "
+                        + "j.error = :error WHERE j.state IN :states AND j.creationDate < :date")
+                .setParameter("failed", State.FAILED)
+                .setParameter("now", now())
+                .setParameter("error", error)
+                .setParameter("states", Arrays.asList(State.QUEUED, State.RUNNING))
+                .setParameter("date", date)
+                .executeUpdate();
+    }
+
+    public void updateResultsWritten(String id, long resultsWritten) {
+        jpa.em().createQuery("UPDATE ResultExportJob j SET j.resultsWritten = :resultsWritten WHERE j.id = :id")
+                .setParameter("resultsWritten", resultsWritten)
+                .setParameter("id", id)
+                .executeUpdate();
+    }
+
+    private static Timestamp now() {
+        return new Timestamp(new Date().getTime());
+    }
+
+}
@@ -0,0 +1,144 @@
+package daos.common;
+
+import models.common.ResultFile;
+import models.common.Study;
+import org.hibernate.jpa.TypedParameterValue;
+import org.hibernate.type.StringType;
+import play.db.jpa.JPAApi;
+import utils.common.IdSet;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * DAO for the index of uploaded result files (table ResultFile). It uses native queries since ResultFile isn't a JPA
+ * entity. The rows of a ComponentResult are deleted together with the ComponentResult (ON DELETE CASCADE).
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ResultFileDao extends AbstractDao {
+
+    @Inject
+    ResultFileDao(JPAApi jpa) {
+        super(jpa);
+    }
+
+    /**
+     * Adds the file to the index. If there is already a file with the same name in this ComponentResult (it was
+     * overwritten) its entry is replaced.
+     */
+    public void save(ResultFile resultFile) {
+        jpa.em().createNativeQuery("DELETE FROM ResultFile WHERE componentResult_id = :crid AND filename = :filename")
+                .setParameter("crid", resultFile.getComponentResultId())
+                .setParameter("filename", resultFile.getFilename())
+                .executeUpdate();
+        jpa.em().createNativeQuery("INSERT INTO ResultFile "
+                        + "(componentResult_id, filename, studyResult_id, size, hash, uploadDate) "
+                        + "VALUES (:crid, :filename, :srid, :size, :hash, :uploadDate)")
+                .setParameter("crid", resultFile.getComponentResultId())
+                .setParameter("filename", resultFile.getFilename())
+                .setParameter("srid", resultFile.getStudyResultId())
+                .setParameter("size", resultFile.getSize())
+                // Typed since the hash can be null
+                .setParameter("hash", new TypedParameterValue(StringType.INSTANCE, resultFile.getHash()))
+                .setParameter("uploadDate", resultFile.getUploadDate())
+                .executeUpdate();
+    }
+
+    /**
+     * Sets the hash of the file, but only if it doesn't have one yet
+     */
+    public void setHashIfMissing(long componentResultId, String filename, String hash) {
+        jpa.em().createNativeQuery("UPDATE ResultFile SET hash = :hash "
+                        + "WHERE componentResult_id = :crid AND filename = :filename AND hash IS NULL")
+                .setParameter("hash", hash)
+                .setParameter("crid", componentResultId)
+                .setParameter("filename", filename)
+                .executeUpdate();
+    }
+
+    /**
+     * Removes all entries of the given StudyResult, e.g. if its files were deleted but not the StudyResult itself
+     */
+    public void removeByStudyResultId(long studyResultId) {
+        jpa.em().createNativeQuery("DELETE FROM ResultFile WHERE studyResult_id = :srid")
+                .setParameter("srid", studyResultId)
+                .executeUpdate();
+    }
+
+    /**
+     * Returns the files of the given ComponentResults grouped by ComponentResult ID and sorted by filename.
+     * ComponentResults without files aren't in the map.
+     */
+    public Map<Long, List<ResultFile>> findByComponentResultIds(IdSet crids) {
+        List<Object[]> rows = findByIdSet(crids, "rf.componentResult_id", idCondition -> jpa.em()
+                .createNativeQuery("SELECT rf.studyResult_id, rf.componentResult_id, rf.filename, rf.size, rf.hash, "
+                        + "rf.uploadDate FROM ResultFile rf WHERE " + idCondition + " ORDER BY rf.filename"));
+        Map<Long, List<ResultFile>> resultFiles = new HashMap<>();
+        for (Object[] row : rows) {
+            ResultFile resultFile = toResultFile(row);
+            resultFiles.computeIfAbsent(resultFile.getComponentResultId(), k -> new ArrayList<>()).add(resultFile);
+        }
+        return resultFiles;
+    }
+
+    /**
+     * Returns up to max files that have no hash (e.g. they were indexed by the ResultFileMigration), ordered by
+     * ComponentResult ID and filename and starting after the given one (keyset paging)
+     */
+    public List<ResultFile> findWithoutHash(long afterComponentResultId, String afterFilename, int max) {
+        @SuppressWarnings("unchecked")
+        List<Object[]> rows = jpa.em()
+                .createNativeQuery("SELECT rf.studyResult_id, rf.componentResult_id, rf.filename, rf.size, rf.hash, "
+                        + "rf.uploadDate FROM ResultFile rf WHERE rf.hash IS NULL AND (rf.componentResult_id > :crid "
+                        + "OR (rf.componentResult_id = :crid AND rf.filename > :filename)) "
+                        + "ORDER BY rf.componentResult_id, rf.filename")
+                .setParameter("crid", afterComponentResultId)
+                .setParameter("filename", afterFilename)
+                .setMaxResults(max)
+                .getResultList();
+        return rows.stream().map(ResultFileDao::toResultFile).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the IDs of those of the given StudyResults that have at least one uploaded file
+     */
+    public Set<Long> findStudyResultIdsWithFiles(IdSet srids) {
+        List<Object> results = findByIdSet(srids, "rf.studyResult_id", idCondition -> jpa.em()
+                .createNativeQuery("SELECT DISTINCT rf.studyResult_id FROM ResultFile rf WHERE " + idCondition));
+        return results.stream().map(r -> ((Number) r).longValue()).collect(Collectors.toSet());
+    }
+
+    /**
+     * Returns the size in bytes of all uploaded files of the given StudyResult
+     */
+    public long sizeByStudyResultId(long studyResultId) {
+        Object result = jpa.em()
+                .createNativeQuery("SELECT SUM(rf.size) FROM ResultFile rf WHERE rf.studyResult_id = :srid")
+                .setParameter("srid", studyResultId)
+                .getSingleResult();
+        return result != null ? ((Number) result).longValue() : 0;
+    }
+
+    /**
+     * Returns the size in bytes of all uploaded files of the given Study
+     */
+    public long sizeByStudy(Study study) {
+        Object result = jpa.em()
+                .createNativeQuery("SELECT SUM(rf.size) FROM ResultFile rf "
+                        + "JOIN StudyResult sr ON rf.studyResult_id = sr.id WHERE sr.study_id = :studyId")
+                .setParameter("studyId", study.getId())
+                .getSingleResult();
+        return result != null ? ((Number) result).longValue() : 0;
+    }
+
+    private static ResultFile toResultFile(Object[] row) {
+        return new ResultFile(((Number) row[0]).longValue(), ((Number) row[1]).longValue(), (String) row[2],
+                ((Number) row[3]).longValue(), (String) row[4], (Timestamp) row[5]);
+    }
+
+}
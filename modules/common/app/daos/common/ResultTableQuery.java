@@ -0,0 +1,125 @@
+package daos.common;
+
+import models.common.workers.MTWorker;
+
+import javax.persistence.Query;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of a result table (StudyResults or ComponentResults) with sorting and filters. It's used for server-side
+ * processing of the result tables: the filters and the sorting are done in the database query and only one page is
+ * fetched. All filters are optional (null means no filter). The result's alias in the query is 'r', its StudyResult's
+ * is 'sr', the Worker's is 'w', and the Batch's is 'b'.
+ *
+ * @author Kristian Lange
+ */
+public class ResultTableQuery {
+
+    private final int start;
+    private final int length;
+    private final String sortColumn;
+    private final boolean sortAscending;
+    private Enum<?> state;
+    private String workerType;
+    private Long batchId;
+    private Timestamp fromDate;
+    private Timestamp toDate;
+
+    /**
+     * @param start         Index of the first result of the page
+     * @param length        Max number of results in the page
+     * @param sortColumn    Column (field in the query) to sort by - it's put directly into the query, so it must come
+     *                      from a whitelist
+     * @param sortAscending Sort direction
+     */
+    public ResultTableQuery(int start, int length, String sortColumn, boolean sortAscending) {
+        this.start = start;
+        this.length = length;
+        this.sortColumn = sortColumn;
+        this.sortAscending = sortAscending;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * StudyState or ComponentState
+     */
+    public ResultTableQuery setState(Enum<?> state) {
+        this.state = state;
+        return this;
+    }
+
+    /**
+     * Worker type as in Worker.WORKER_TYPE - 'MT' includes MTSandbox
+     */
+    public ResultTableQuery setWorkerType(String workerType) {
+        this.workerType = workerType;
+        return this;
+    }
+
+    public ResultTableQuery setBatchId(Long batchId) {
+        this.batchId = batchId;
+        return this;
+    }
+
+    /**
+     * Only results that started at or after this date
+     */
+    public ResultTableQuery setFromDate(Timestamp fromDate) {
+        this.fromDate = fromDate;
+        return this;
+    }
+
+    /**
+     * Only results that started before this date
+     */
+    public ResultTableQuery setToDate(Timestamp toDate) {
+        this.toDate = toDate;
+        return this;
+    }
+
+    /**
+     * Returns the filter conditions as JPQL, each starting with ' AND'. The parameters have to be bound with
+     * {@link #bindParameters(Query)}.
+     */
+    String conditions(String stateField) {
+        List<String> conditions = new ArrayList<>();
+        if (state != null) conditions.add(stateField + " = :state");
+        if (workerType != null) {
+            conditions.add(workerType.equals(MTWorker.WORKER_TYPE) ? "w.class LIKE 'MT%'" : "w.class = :workerType");
+        }
+        if (batchId != null) conditions.add("b.id = :batchId");
+        if (fromDate != null) conditions.add("r.startDate >= :fromDate");
+        if (toDate != null) conditions.add("r.startDate < :toDate");
+        StringBuilder sb = new StringBuilder();
+        conditions.forEach(c -> sb.append(" AND ").append(c));
+        return sb.toString();
+    }
+
+    void bindParameters(Query query) {
+        if (state != null) query.setParameter("state", state);
+        if (workerType != null && !workerType.equals(MTWorker.WORKER_TYPE)) {
+            query.setParameter("workerType", workerType);
+        }
+        if (batchId != null) query.setParameter("batchId", batchId);
+        if (fromDate != null) query.setParameter("fromDate", fromDate);
+        if (toDate != null) query.setParameter("toDate", toDate);
+    }
+
+    /**
+     * The ID is used as a tiebreaker, so the pages are stable
+     */
+    String orderBy() {
+        String direction = sortAscending ? " ASC" : " DESC";
+        return " ORDER BY " + sortColumn + direction + ", r.id" + direction;
+    }
+
+}
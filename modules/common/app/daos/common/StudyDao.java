@@ -3,6 +3,7 @@ package daos.common;
 import models.common.Study;
 import models.common.User;
 import play.db.jpa.JPAApi;
+import utils.common.IdSet;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -59,17 +60,17 @@ public class StudyDao extends AbstractDao {
         return query.setParameter("title", title).getResultList();
     }
 
-    public List<Study> findByStudyResultIds(Collection<Long> srids) {
-        return jpa.em().createQuery("SELECT s FROM Study s WHERE s IN (SELECT sr.study FROM StudyResult sr WHERE sr.id IN :srids)", Study.class)
-                .setParameter("srids", srids)
-                .getResultList();
+    public List<Study> findByStudyResultIds(IdSet srids) {
+        List<Study> studies = findByIdSet(srids, "sr.id", idCondition -> jpa.em()
+                .createQuery("SELECT s FROM Study s WHERE s IN (SELECT sr.study FROM StudyResult sr WHERE "
+                        + idCondition + ")", Study.class));
+        // Several parts of the IdSet can return the same study
+        return studies.stream().distinct().collect(Collectors.toList());
     }
 
-    public List<Long> findIdsByStudyResultIds(Collection<Long> srids) {
-        @SuppressWarnings("unchecked")
-        List<Object> results = jpa.em().createNativeQuery("SELECT sr.study_id FROM StudyResult sr WHERE sr.id IN :srids")
-                .setParameter("srids", srids)
-                .getResultList();
+    public List<Long> findIdsByStudyResultIds(IdSet srids) {
+        List<Object> results = findByIdSet(srids, "sr.id", idCondition -> jpa.em()
+                .createNativeQuery("SELECT sr.study_id FROM StudyResult sr WHERE " + idCondition));
         return results.stream().map(r -> ((Number) r).longValue()).distinct().collect(Collectors.toList());
     }
 
@@ -1,26 +1,63 @@
 package daos.common;
 
+import com.google.common.collect.ImmutableMap;
 import models.common.*;
 import models.common.workers.MTWorker;
 import models.common.workers.Worker;
 import play.db.jpa.JPAApi;
+import utils.common.IdSet;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.persistence.Query;
 import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
 import java.util.*;
 import java.util.stream.Collectors;
 
 /**
  * DAO for StudyResult and StudyResultStatus
  *
+ * The paginated finders use keyset pagination: only StudyResults with an ID greater than lastId and not greater than
+ * maxId are returned, ordered by ID. Contrary to an OFFSET this doesn't get slower with each page, and with a fixed
+ * maxId (e.g. the highest ID at the start of the streaming) new results that arrive in the meantime don't shift the
+ * pages. We can't use ScrollableResults for pagination since the MySQL Hibernate driver doesn't support it
+ * (https://stackoverflow.com/a/2826512/1278769).
+ *
  * @author Kristian Lange
  */
 @SuppressWarnings("deprecation")
 @Singleton
 public class StudyResultDao extends AbstractDao {
 
+    /**
+     * Columns of the result table (as in JsonUtils.studyResultAsJsonNode) that can be used to sort a ResultTableQuery,
+     * mapped to their field in the query
+     */
+    public static final Map<String, String> TABLE_SORT_COLUMNS = ImmutableMap.<String, String>builder()
+            .put("id", "r.id")
+            .put("uuid", "r.uuid")
+            .put("studyCode", "r.studyCode")
+            .put("startDate", "r.startDate")
+            .put("endDate", "r.endDate")
+            .put("lastSeenDate", "r.lastSeenDate")
+            .put("batchTitle", "b.title")
+            .put("batchId", "b.id")
+            .put("workerId", "w.id")
+            .put("confirmationCode", "r.confirmationCode")
+            .put("studyState", "r.studyState")
+            .put("message", "r.message")
+            .build();
+
+    /**
+     * Fetch joins for all associations that are used when StudyResults are serialized (e.g.
+     * JsonUtils.studyResultAsJsonNode and JsonUtils.writeStudyResultMetadataFields). Without them each StudyResult of
+     * a page would load its Worker, Study, Batch, and GroupResults in extra queries (N+1). All are to-one
+     * associations, so the fetch joins don't multiply rows and pagination still works in the database.
+     */
+    private static final String FETCH_ASSOCIATIONS = "JOIN FETCH sr.worker LEFT JOIN FETCH sr.study "
+            + "LEFT JOIN FETCH sr.batch LEFT JOIN FETCH sr.activeGroupResult LEFT JOIN FETCH sr.historyGroupResult ";
+
     @Inject
     StudyResultDao(JPAApi jpa) {
         super(jpa);
@@ -56,20 +93,10 @@ public class StudyResultDao extends AbstractDao {
         return jpa.em().find(StudyResult.class, id);
     }
 
-    public List<StudyResult> findByIds(List<Long> ids) {
-        return jpa.em()
-                .createQuery("SELECT sr FROM StudyResult sr WHERE sr.id IN :ids", StudyResult.class)
-                .setParameter("ids", ids)
-                .getResultList();
-    }
-
-    public List<StudyResult> findByIds(List<Long> ids, int first, int max) {
-        return jpa.em()
-                .createQuery("SELECT sr FROM StudyResult sr WHERE sr.id IN :ids", StudyResult.class)
-                .setParameter("ids", ids)
-                .setFirstResult(first)
-                .setMaxResults(max)
-                .getResultList();
+    public List<StudyResult> findByIds(IdSet ids) {
+        return findByIdSet(ids, "sr.id", idCondition -> jpa.em()
+                .createQuery("SELECT sr FROM StudyResult sr " + FETCH_ASSOCIATIONS + "WHERE " + idCondition,
+                        StudyResult.class));
     }
 
     public Optional<StudyResult> findByUuid(String uuid) {
@@ -98,6 +125,15 @@ public class StudyResultDao extends AbstractDao {
         return result != null ? result.intValue() : 0;
     }
 
+    /**
+     * Returns the highest StudyResult ID or 0 if there are none. It can be used as a high-water mark for keyset
+     * pagination.
+     */
+    public long findMaxId() {
+        Number result = (Number) jpa.em().createQuery("SELECT max(sr.id) FROM StudyResult sr").getSingleResult();
+        return result != null ? result.longValue() : 0L;
+    }
+
     /**
      * Returns the total number of StudyResults (including the deleted ones)
      */
@@ -116,6 +152,18 @@ public class StudyResultDao extends AbstractDao {
         return result != null ? result.intValue() : 0;
     }
 
+    /**
+     * Returns the number of StudyResults belonging to the given study that match the filters of the ResultTableQuery
+     */
+    public int countByStudy(Study study, ResultTableQuery tableQuery) {
+        Query query = jpa.em().createQuery("SELECT COUNT(r) FROM StudyResult r JOIN r.worker w LEFT JOIN r.batch b "
+                + "WHERE r.study = :study" + tableQuery.conditions("r.studyState"));
+        query.setParameter("study", study);
+        tableQuery.bindParameters(query);
+        Number result = (Number) query.getSingleResult();
+        return result != null ? result.intValue() : 0;
+    }
+
     /**
      * Returns the number of StudyResults belonging to the given batch but excludes results from the given
      * workerTypeToBeExcluded.
@@ -193,19 +241,32 @@ public class StudyResultDao extends AbstractDao {
 
     /**
      * Returns paginated StudyResults that belong to the given Study
-     *
-     * We can't use ScrollableResults for pagination since the MySQL Hibernate driver doesn't support it
-     * (https://stackoverflow.com/a/2826512/1278769)
      */
-    public List<StudyResult> findAllByStudy(Study study, int first, int max) {
-        // Added 'LEFT JOIN FETCH' for performance (loads LAZY-linked Workers in StudyResults)
-        return jpa.em().createQuery("SELECT sr FROM StudyResult sr LEFT JOIN FETCH sr.worker WHERE sr.study=:study", StudyResult.class)
-                .setFirstResult(first)
+    public List<StudyResult> findAllByStudy(Study study, long lastId, long maxId, int max) {
+        return jpa.em().createQuery("SELECT sr FROM StudyResult sr " + FETCH_ASSOCIATIONS + "WHERE sr.study=:study "
+                        + "AND sr.id > :lastId AND sr.id <= :maxId ORDER BY sr.id", StudyResult.class)
                 .setMaxResults(max)
                 .setParameter("study", study)
+                .setParameter("lastId", lastId)
+                .setParameter("maxId", maxId)
                 .getResultList();
     }
 
+    /**
+     * Returns one page of StudyResults belonging to the given study that match the filters of the ResultTableQuery and
+     * are sorted by it. Used for server-side processing of the result table. The sort column has to be one of
+     * TABLE_SORT_COLUMNS.
+     */
+    public List<StudyResult> findPageByStudy(Study study, ResultTableQuery tableQuery) {
+        TypedQuery<StudyResult> query = jpa.em().createQuery("SELECT r FROM StudyResult r JOIN FETCH r.worker w "
+                + "LEFT JOIN FETCH r.batch b LEFT JOIN FETCH r.study LEFT JOIN FETCH r.activeGroupResult "
+                + "LEFT JOIN FETCH r.historyGroupResult WHERE r.study = :study" + tableQuery.conditions("r.studyState")
+                + tableQuery.orderBy(), StudyResult.class);
+        query.setParameter("study", study);
+        tableQuery.bindParameters(query);
+        return query.setFirstResult(tableQuery.getStart()).setMaxResults(tableQuery.getLength()).getResultList();
+    }
+
     public List<StudyResult> findAllByBatch(Batch batch) {
         return jpa.em().createQuery("SELECT sr FROM StudyResult sr WHERE sr.batch=:batch", StudyResult.class)
                 .setParameter("batch", batch)
@@ -215,42 +276,46 @@ public class StudyResultDao extends AbstractDao {
     /**
      * Returns paginated StudyResults that belong to the given Batch but excludes results from the given
      * workerTypeToBeExcluded.
-     *
-     * We can't use ScrollableResults for pagination since the MySQL Hibernate driver doesn't support it
-     * (https://stackoverflow.com/a/2826512/1278769)
      */
-    public List<StudyResult> findAllByBatch(Batch batch, String workerTypeToBeExcluded, int first, int max) {
-        return jpa.em().createQuery("SELECT sr FROM StudyResult sr WHERE sr.batch=:batch "
-                        + "AND NOT sr.worker IN (SELECT w FROM Worker w WHERE w.class=:workerType)", StudyResult.class)
-                .setFirstResult(first)
+    public List<StudyResult> findAllByBatch(Batch batch, String workerTypeToBeExcluded, long lastId, long maxId,
+            int max) {
+        return jpa.em().createQuery("SELECT sr FROM StudyResult sr " + FETCH_ASSOCIATIONS + "WHERE sr.batch=:batch "
+                        + "AND NOT sr.worker IN (SELECT w FROM Worker w WHERE w.class=:workerType) "
+                        + "AND sr.id > :lastId AND sr.id <= :maxId ORDER BY sr.id", StudyResult.class)
                 .setMaxResults(max)
                 .setParameter("batch", batch)
                 .setParameter("workerType", workerTypeToBeExcluded)
+                .setParameter("lastId", lastId)
+                .setParameter("maxId", maxId)
                 .getResultList();
     }
 
     /**
      * Returns paginated StudyResults that belong to the given Batch and worker type. If the worker type is 'MT' it
      * additionally returns the MTSandbox results.
-     *
-     * We can't use ScrollableResults for pagination since the MySQL Hibernate driver doesn't support it
-     * (https://stackoverflow.com/a/2826512/1278769)
      */
-    public List<StudyResult> findAllByBatchAndWorkerType(Batch batch, String workerType, int first, int max) {
+    public List<StudyResult> findAllByBatchAndWorkerType(Batch batch, String workerType, long lastId, long maxId,
+            int max) {
         if (workerType.equals(MTWorker.WORKER_TYPE)) {
-            return jpa.em().createQuery("SELECT sr FROM StudyResult sr WHERE sr.batch=:batch "
-                            + "AND sr.worker IN (SELECT w FROM Worker w WHERE w.class LIKE 'MT%')", StudyResult.class)
-                    .setFirstResult(first)
+            return jpa.em().createQuery("SELECT sr FROM StudyResult sr " + FETCH_ASSOCIATIONS
+                            + "WHERE sr.batch=:batch "
+                            + "AND sr.worker IN (SELECT w FROM Worker w WHERE w.class LIKE 'MT%') "
+                            + "AND sr.id > :lastId AND sr.id <= :maxId ORDER BY sr.id", StudyResult.class)
                     .setMaxResults(max)
                     .setParameter("batch", batch)
+                    .setParameter("lastId", lastId)
+                    .setParameter("maxId", maxId)
                     .getResultList();
         } else {
-            return jpa.em().createQuery("SELECT sr FROM StudyResult sr WHERE sr.batch=:batch "
-                            + "AND sr.worker IN (SELECT w FROM Worker w WHERE w.class=:workerType)", StudyResult.class)
-                    .setFirstResult(first)
+            return jpa.em().createQuery("SELECT sr FROM StudyResult sr " + FETCH_ASSOCIATIONS
+                            + "WHERE sr.batch=:batch "
+                            + "AND sr.worker IN (SELECT w FROM Worker w WHERE w.class=:workerType) "
+                            + "AND sr.id > :lastId AND sr.id <= :maxId ORDER BY sr.id", StudyResult.class)
                     .setMaxResults(max)
                     .setParameter("batch", batch)
                     .setParameter("workerType", workerType)
+                    .setParameter("lastId", lastId)
+                    .setParameter("maxId", maxId)
                     .getResultList();
         }
     }
@@ -258,30 +323,32 @@ public class StudyResultDao extends AbstractDao {
     /**
      * Returns paginated StudyResults that belong to the given Worker and User. It checks for each StudyResult if its
      * Study has the given User as a member.
-     *
-     * We can't use ScrollableResults for pagination since the MySQL Hibernate driver doesn't support it
-     * (https://stackoverflow.com/a/2826512/1278769)
      */
-    public List<StudyResult> findAllByWorker(Worker worker, User user, int first, int max) {
-        return jpa.em().createQuery("SELECT sr FROM StudyResult sr WHERE sr.worker = :worker AND sr.study IN "
-                        + "(SELECT s FROM Study s JOIN s.userList ul where ul.username = :username)", StudyResult.class)
-                .setFirstResult(first)
+    public List<StudyResult> findAllByWorker(Worker worker, User user, long lastId, long maxId, int max) {
+        return jpa.em().createQuery("SELECT sr FROM StudyResult sr " + FETCH_ASSOCIATIONS
+                        + "WHERE sr.worker = :worker AND sr.study IN "
+                        + "(SELECT s FROM Study s JOIN s.userList ul where ul.username = :username) "
+                        + "AND sr.id > :lastId AND sr.id <= :maxId ORDER BY sr.id", StudyResult.class)
                 .setMaxResults(max)
                 .setParameter("worker", worker)
                 .setParameter("username", user.getUsername())
+                .setParameter("lastId", lastId)
+                .setParameter("maxId", maxId)
                 .getResultList();
     }
 
     /**
-     * We can't use ScrollableResults for pagination since the MySQL Hibernate driver doesn't support it
-     * (https://stackoverflow.com/a/2826512/1278769)
+     * Returns paginated StudyResults that belong to the given group (either as active or as history member).
      */
-    public List<StudyResult> findAllByGroup(GroupResult groupResult, int first, int max) {
-        return jpa.em().createQuery("SELECT sr FROM StudyResult sr WHERE sr.activeGroupResult = :group "
-                        + "OR sr.historyGroupResult = :group", StudyResult.class)
-                .setFirstResult(first)
+    public List<StudyResult> findAllByGroup(GroupResult groupResult, long lastId, long maxId, int max) {
+        return jpa.em().createQuery("SELECT sr FROM StudyResult sr " + FETCH_ASSOCIATIONS
+                        + "WHERE (sr.activeGroupResult = :group "
+                        + "OR sr.historyGroupResult = :group) "
+                        + "AND sr.id > :lastId AND sr.id <= :maxId ORDER BY sr.id", StudyResult.class)
                 .setMaxResults(max)
                 .setParameter("group", groupResult)
+                .setParameter("lastId", lastId)
+                .setParameter("maxId", maxId)
                 .getResultList();
     }
 
@@ -313,25 +380,20 @@ public class StudyResultDao extends AbstractDao {
     }
 
     /**
-     * Returns a list of unique study result IDs that belong to the given list of component result IDs.
+     * Returns a list of unique study result IDs that belong to the given set of component result IDs.
      */
-    public List<Long> findIdsByComponentResultIds(List<Long> crids) {
-        @SuppressWarnings("unchecked")
-        List<Object> results = jpa.em()
-                .createNativeQuery("SELECT cr.studyResult_id FROM ComponentResult cr WHERE cr.id IN :crids")
-                .setParameter("crids", crids)
-                .getResultList();
+    public List<Long> findIdsByComponentResultIds(IdSet crids) {
+        List<Object> results = findByIdSet(crids, "cr.id", idCondition -> jpa.em()
+                .createNativeQuery("SELECT cr.studyResult_id FROM ComponentResult cr WHERE " + idCondition));
         // Filter duplicate srids
         return results.stream().map(r -> ((Number) r).longValue()).distinct().collect(Collectors.toList());
     }
 
-    public List<Long> findIdsFromListThatBelongToStudy(List<Long> srids, Long studyId) {
-        @SuppressWarnings("unchecked")
-        List<Object> results = jpa.em()
-                .createNativeQuery("SELECT sr.id FROM StudyResult sr WHERE sr.id IN :srids AND sr.study_id = :studyId")
-                .setParameter("srids", srids)
-                .setParameter("studyId", studyId)
-                .getResultList();
+    public List<Long> findIdsFromListThatBelongToStudy(IdSet srids, Long studyId) {
+        List<Object> results = findByIdSet(srids, "sr.id", idCondition -> jpa.em()
+                .createNativeQuery("SELECT sr.id FROM StudyResult sr WHERE " + idCondition
+                        + " AND sr.study_id = :studyId")
+                .setParameter("studyId", studyId));
         // Filter duplicate srids
         return results.stream().map(r -> ((Number) r).longValue()).distinct().collect(Collectors.toList());
     }
@@ -0,0 +1,50 @@
+package general.common;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Lets JATOS' GUI read and edit batch sessions. It's implemented in the session module: while a BatchDispatcher runs
+ * its in-memory batch session is the source of truth and the database lags behind (write-behind). The GUI must not
+ * read or change the batch session in the database directly - it would work with an old version and the dispatcher
+ * would afterwards discard its newer changes in favour of the database.
+ *
+ * @author Kristian Lange
+ */
+public interface BatchSessionAccess {
+
+    /**
+     * Batch session data (JSON) together with their version
+     */
+    class Snapshot {
+
+        private final String data;
+        private final long version;
+
+        public Snapshot(String data, long version) {
+            this.data = data;
+            this.version = version;
+        }
+
+        public String getData() {
+            return data;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+    }
+
+    /**
+     * Returns the current batch session of the batch. Completes exceptionally if the batch doesn't exist or its batch
+     * session couldn't be loaded.
+     */
+    CompletionStage<Snapshot> get(long batchId);
+
+    /**
+     * Replaces the batch session data of the batch - but only if the current version is still the expected one. The
+     * answer is false if the batch session was changed in the meantime.
+     */
+    CompletionStage<Boolean> update(long batchId, String data, long expectedVersion);
+
+}
@@ -7,6 +7,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import play.Logger;
 import play.Logger.ALogger;
 import play.mvc.Http;
+import utils.common.ResultDataCodec;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -43,7 +44,22 @@ public class Common {
     private static long resultUploadsMaxFileSize;
     private static long resultUploadsLimitPerStudyRun;
     private static long resultDataMaxSize;
+    private static boolean resultDataChunked;
+    private static ResultDataCodec resultDataCodec;
     private static int maxResultsDbQuerySize;
+    private static int resultsTableServerSideThreshold;
+    private static int resultExportThreads;
+    private static int resultExportMaxJobs;
+    private static int resultExportMaxQueuedJobs;
+    private static int resultExportJobRetention;
+    private static String resultExportJobsPath;
+    private static int batchSessionPersistInterval;
+    private static int batchSessionPersistEveryVersions;
+    private static int groupSessionSnapshotEveryPatches;
+    private static int channelReconnectPatches;
+    private static int channelPatchCoalescingWindow;
+    private static int groupStartTimeout;
+    private static int groupMatchmakerReloadInterval;
     private static int userSessionTimeout;
     private static int userSessionInactivity;
     private static boolean userSessionAllowKeepSignedin;
@@ -122,7 +138,23 @@ public class Common {
         resultUploadsMaxFileSize = config.getBytes("jatos.resultUploads.maxFileSize");
         resultUploadsLimitPerStudyRun = config.getBytes("jatos.resultUploads.limitPerStudyRun");
         resultDataMaxSize = config.getBytes("jatos.resultData.maxSize");
+        resultDataChunked = config.getBoolean("jatos.resultData.chunked");
+        resultDataCodec = ResultDataCodec.fromName(config.getString("jatos.resultData.compression"));
         maxResultsDbQuerySize = config.getInt("jatos.maxResultsDbQuerySize");
+        resultsTableServerSideThreshold = config.getInt("jatos.resultsTable.serverSideThreshold");
+        resultExportThreads = config.getInt("jatos.resultExport.threads") > 0
+                ? config.getInt("jatos.resultExport.threads")
+                : Runtime.getRuntime().availableProcessors();
+        resultExportMaxJobs = config.getInt("jatos.resultExport.jobs.max");
+        resultExportMaxQueuedJobs = config.getInt("jatos.resultExport.jobs.maxQueued");
+        resultExportJobRetention = config.getInt("jatos.resultExport.jobs.retention");
+        batchSessionPersistInterval = config.getInt("jatos.batchSession.persistInterval");
+        batchSessionPersistEveryVersions = config.getInt("jatos.batchSession.persistEveryVersions");
+        groupSessionSnapshotEveryPatches = config.getInt("jatos.groupSession.snapshotEveryPatches");
+        channelReconnectPatches = config.getInt("jatos.channel.reconnectPatches");
+        channelPatchCoalescingWindow = config.getInt("jatos.channel.patchCoalescingWindow");
+        groupStartTimeout = config.getInt("jatos.group.startTimeout");
+        groupMatchmakerReloadInterval = config.getInt("jatos.group.matchmakerReloadInterval");
         userSessionTimeout = config.getInt("jatos.userSession.timeout");
         userSessionInactivity = config.getInt("jatos.userSession.inactivity");
         userSessionAllowKeepSignedin = config.getBoolean("jatos.userSession.allowKeepSignedin");
@@ -184,6 +216,9 @@ public class Common {
                 ? System.getProperty("java.io.tmpdir") + File.separator + "jatos"
                 : obtainPath(config, "jatos.tmpPath");
         LOGGER.info("Path to tmp directory is " + tmpPath);
+        resultExportJobsPath = config.getIsNull("jatos.resultExport.jobs.path")
+                ? tmpPath + File.separator + "resultExports"
+                : obtainPath(config, "jatos.resultExport.jobs.path");
     }
 
     private String obtainPath(Config config, String property) {
@@ -317,6 +352,21 @@ public class Common {
         return resultDataMaxSize;
     }
 
+    /**
+     * If true, appended result data are stored in separate chunks (table ComponentResultDataChunk) instead of being
+     * concatenated with the existing data in the ComponentResult row
+     */
+    public static boolean isResultDataChunked() {
+        return resultDataChunked;
+    }
+
+    /**
+     * Codec used to compress result data before they are stored in the database (NONE means no compression)
+     */
+    public static ResultDataCodec getResultDataCodec() {
+        return resultDataCodec;
+    }
+
     /**
      * Maximal number of results to be fetched from the DB at once
      */
@@ -324,6 +374,100 @@ public class Common {
         return maxResultsDbQuerySize;
     }
 
+    /**
+     * Result tables with more results than this are paged, sorted, and filtered in the database (server-side
+     * processing)
+     */
+    public static int getResultsTableServerSideThreshold() {
+        return resultsTableServerSideThreshold;
+    }
+
+    /**
+     * Number of threads that compress the entries of result exports (zip) in parallel
+     */
+    public static int getResultExportThreads() {
+        return resultExportThreads;
+    }
+
+    /**
+     * Max number of result export jobs that run at the same time
+     */
+    public static int getResultExportMaxJobs() {
+        return resultExportMaxJobs;
+    }
+
+    /**
+     * Max number of result export jobs that wait to be run
+     */
+    public static int getResultExportMaxQueuedJobs() {
+        return resultExportMaxQueuedJobs;
+    }
+
+    /**
+     * Time in hours after which a finished result export job and its file are removed
+     */
+    public static int getResultExportJobRetention() {
+        return resultExportJobRetention;
+    }
+
+    /**
+     * Path to the directory of the files of result export jobs. In a multi-node setup it's shared by all nodes.
+     */
+    public static String getResultExportJobsPath() {
+        return resultExportJobsPath;
+    }
+
+    /**
+     * Time in milliseconds after which changes of a batch session are persisted at the latest
+     */
+    public static int getBatchSessionPersistInterval() {
+        return batchSessionPersistInterval;
+    }
+
+    /**
+     * Number of batch session versions after which the batch session is persisted right away (without waiting for
+     * the interval)
+     */
+    public static int getBatchSessionPersistEveryVersions() {
+        return batchSessionPersistEveryVersions;
+    }
+
+    /**
+     * Number of patches in a group session's patch log after which they are compacted into a new snapshot
+     */
+    public static int getGroupSessionSnapshotEveryPatches() {
+        return groupSessionSnapshotEveryPatches;
+    }
+
+    /**
+     * Number of recent session patches a batch or group session keeps for reconnecting channels
+     */
+    public static int getChannelReconnectPatches() {
+        return channelReconnectPatches;
+    }
+
+    /**
+     * Default time window in ms in which the session patches of a batch or group are merged into one message (0 is
+     * off). Can be overridden per batch.
+     */
+    public static int getChannelPatchCoalescingWindow() {
+        return channelPatchCoalescingWindow;
+    }
+
+    /**
+     * Max time in seconds a new group waits for the batch's min active members before it starts anyway
+     */
+    public static int getGroupStartTimeout() {
+        return groupStartTimeout;
+    }
+
+    /**
+     * Time in seconds after which the groups of a batch are loaded anew from the database by the group matchmaker
+     */
+    public static int getGroupMatchmakerReloadInterval() {
+        return groupMatchmakerReloadInterval;
+    }
+
     /**
      * Time in minutes when the Play session will timeout (defined in
      * application.conf)
@@ -50,9 +50,13 @@ public class MessagesStrings {
             + "to limit it.";
     public static final String BATCH_MAX_TOTAL_MEMBERS = "Group's max total members size must be greater or equal "
             + "than the max active member size.";
+    public static final String BATCH_MIN_ACTIVE_MEMBERS = "Group's min active member size must be at least 1 and "
+            + "can't be greater than the max active member size.";
     public static final String BATCH_MAX_TOTAL_WORKER_SET = "Batch's max total worker size must be set if you want to"
             + " limit it.";
     public static final String BATCH_MAX_TOTAL_WORKERS = "Batch's max total worker size must be at least 1.";
+    public static final String BATCH_PATCH_COALESCING_WINDOW = "Patch coalescing window must be between 0 and "
+            + "1000 ms.";
 
     // User
     public static final String INVALID_USER_OR_PASSWORD = "Invalid user or password";
@@ -0,0 +1,152 @@
+package general.common;
+
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects metrics of the currently running batch and group session dispatchers (Akka actors in the session module)
+ * so they can be shown in the administration's status. Each dispatcher registers when it starts and unregisters when
+ * it stops. Additionally it collects the latency of the lookups in the dispatcher registries.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class SessionDispatcherMetrics {
+
+    /**
+     * Metrics of one dispatcher. They are only written by the dispatcher itself.
+     */
+    public static class DispatcherMetrics {
+
+        private final String type;
+        private final long id;
+
+        private volatile int channels = 0;
+
+        /**
+         * Messages that wait in the dispatcher while it waits for the database
+         */
+        private volatile int queuedMessages = 0;
+        private volatile int maxQueuedMessages = 0;
+
+        private volatile long patchCount = 0;
+        private volatile long patchLatencyTotal = 0;
+        private volatile long patchLatencyMax = 0;
+
+        DispatcherMetrics(String type, long id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        public void setChannels(int channels) {
+            this.channels = channels;
+        }
+
+        public void setQueuedMessages(int queuedMessages) {
+            this.queuedMessages = queuedMessages;
+            if (queuedMessages > maxQueuedMessages) maxQueuedMessages = queuedMessages;
+        }
+
+        /**
+         * Adds the time in ns it took from receiving a session patch until it was handled
+         */
+        public void addPatchLatency(long nanos) {
+            patchCount++;
+            patchLatencyTotal += nanos;
+            if (nanos > patchLatencyMax) patchLatencyMax = nanos;
+        }
+
+        private String key() {
+            return type + "-" + id;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("type", type);
+            map.put("id", id);
+            map.put("channels", channels);
+            map.put("queuedMessages", queuedMessages);
+            map.put("maxQueuedMessages", maxQueuedMessages);
+            map.put("patchCount", patchCount);
+            map.put("patchLatencyAvgMs", patchCount > 0
+                    ? TimeUnit.NANOSECONDS.toMillis(patchLatencyTotal / patchCount) : 0);
+            map.put("patchLatencyMaxMs", TimeUnit.NANOSECONDS.toMillis(patchLatencyMax));
+            return map;
+        }
+    }
+
+    /**
+     * Latency of the lookups in one dispatcher registry (asking it for a dispatcher). They are written concurrently by
+     * all channel openings.
+     */
+    private static class LookupMetrics {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder latencyTotal = new LongAdder();
+        private final AtomicLong latencyMax = new AtomicLong();
+
+        private void add(long nanos) {
+            count.increment();
+            latencyTotal.add(nanos);
+            latencyMax.accumulateAndGet(nanos, Math::max);
+        }
+
+        private Map<String, Object> toMap(String type) {
+            long lookups = count.sum();
+            Map<String, Object> map = new HashMap<>();
+            map.put("type", type);
+            map.put("lookupCount", lookups);
+            map.put("lookupLatencyAvgMs", lookups > 0
+                    ? TimeUnit.NANOSECONDS.toMillis(latencyTotal.sum() / lookups) : 0);
+            map.put("lookupLatencyMaxMs", TimeUnit.NANOSECONDS.toMillis(latencyMax.get()));
+            return map;
+        }
+    }
+
+    private final Map<String, DispatcherMetrics> dispatchers = new ConcurrentHashMap<>();
+
+    private final Map<String, LookupMetrics> registryLookups = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a dispatcher, e.g. type 'batch' and the batch ID, and returns its metrics
+     */
+    public DispatcherMetrics register(String type, long id) {
+        DispatcherMetrics metrics = new DispatcherMetrics(type, id);
+        dispatchers.put(metrics.key(), metrics);
+        return metrics;
+    }
+
+    /**
+     * Unregisters the dispatcher - but only if there isn't already a new one for the same ID
+     */
+    public void unregister(DispatcherMetrics metrics) {
+        dispatchers.remove(metrics.key(), metrics);
+    }
+
+    /**
+     * Adds the time in ns it took to get an answer from the dispatcher registry of the given type (e.g. 'batch')
+     */
+    public void addRegistryLookupLatency(String type, long nanos) {
+        registryLookups.computeIfAbsent(type, t -> new LookupMetrics()).add(nanos);
+    }
+
+    public List<Map<String, Object>> getRegistryLookups() {
+        List<Map<String, Object>> all = new ArrayList<>();
+        registryLookups.forEach((type, metrics) -> all.add(metrics.toMap(type)));
+        return all;
+    }
+
+    public List<Map<String, Object>> getAll() {
+        List<Map<String, Object>> all = new ArrayList<>();
+        dispatchers.values().forEach(metrics -> all.add(metrics.toMap()));
+        return all;
+    }
+
+}
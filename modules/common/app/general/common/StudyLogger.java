@@ -172,13 +172,13 @@ public class StudyLogger {
     /**
      * Adds an entry to the study log: adds the hash of the file, component UUID, and the worker ID
      *
-     * @param file File that will be stored
+     * @param file     File that will be stored
+     * @param fileHash SHA-256 hash of the file
      */
-    public void logResultUploading(Path file, ComponentResult componentResult) throws IOException {
+    public void logResultUploading(Path file, String fileHash, ComponentResult componentResult) {
         if (!Common.isStudyLogsEnabled()) return;
         if (file == null) return;
         StudyResult studyResult = componentResult.getStudyResult();
-        String fileHash = HashUtils.getHash(file, HashUtils.SHA_256);
 
         ObjectNode jsonObj = Json.newObject();
         jsonObj.put(MSG, "Uploaded file");
@@ -6,13 +6,18 @@ import play.db.Database;
 
 import javax.inject.Inject;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 
 /**
  * Similar to {@link play.api.db.evolutions.ApplicationEvolutions} this class handles locking of a MySQL database to
  * prevent parallel access from multiple nodes. Only works with a MySQL database - not H2!
+ *
+ * Migrations that can't tell from the data whether they already ran can record that they finished (table
+ * JatosMigration). This way an interrupted migration is run again with the next start.
  */
 public class JatosMigrations {
 
@@ -30,6 +35,34 @@ public class JatosMigrations {
         else callback.run();
     }
 
+    /**
+     * Returns true if the migration with the given name was marked as finished
+     */
+    public boolean isFinished(String migration) {
+        return db.withConnection(c -> {
+            try (PreparedStatement s = c.prepareStatement("SELECT 1 FROM JatosMigration WHERE name = ?")) {
+                s.setString(1, migration);
+                try (ResultSet r = s.executeQuery()) {
+                    return r.next();
+                }
+            }
+        });
+    }
+
+    /**
+     * Marks the migration with the given name as finished
+     */
+    public void setFinished(String migration) {
+        db.withConnection(c -> {
+            try (PreparedStatement s = c.prepareStatement(
+                    "INSERT INTO JatosMigration (name, finishedDate) VALUES (?, ?)")) {
+                s.setString(1, migration);
+                s.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+                s.executeUpdate();
+            }
+        });
+    }
+
     private void runWithLocks(Runnable callback) throws SQLException {
         Connection c = db.getDataSource().getConnection();
         c.setAutoCommit(false);
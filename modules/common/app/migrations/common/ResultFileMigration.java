@@ -0,0 +1,226 @@
+package migrations.common;
+
+import daos.common.ComponentResultDao;
+import daos.common.ResultFileDao;
+import general.common.Common;
+import models.common.ResultFile;
+import play.Logger;
+import play.db.jpa.JPAApi;
+import play.inject.ApplicationLifecycle;
+import utils.common.HashUtils;
+import utils.common.IOUtils;
+import utils.common.IdSet;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Migrates the database for all <3.9.6. It fills the index of uploaded result files (table ResultFile) with the files
+ * that are already in the result uploads directory. It runs regardless of whether result uploads are currently
+ * enabled, since files might have been uploaded earlier. The files of each study result are saved in one transaction
+ * and the migration is marked as finished (JatosMigrations) only at the end - if it is interrupted it starts again
+ * with the next start of JATOS. Files that are already in the index are just overwritten.
+ *
+ * During start-up only the directories are listed - the files are indexed without their SHA-256 hash. Hashing means
+ * reading every file, so the missing hashes are computed afterwards in the background (fillMissingHashes). Until then
+ * the hash of those files is null.
+ */
+@Singleton
+public class ResultFileMigration {
+
+    private static final Logger.ALogger LOGGER = Logger.of(ResultFileMigration.class);
+
+    private static final String STUDY_RESULT_DIR_PREFIX = "study-result_";
+    private static final String COMPONENT_RESULT_DIR_PREFIX = "comp-result_";
+
+    private static final String MIGRATION_NAME = "ResultFileMigration";
+
+    /**
+     * Number of files that are hashed per database query
+     */
+    private static final int HASH_PAGE_SIZE = 100;
+
+    private final ResultFileDao resultFileDao;
+    private final ComponentResultDao componentResultDao;
+    private final JPAApi jpaApi;
+    private final JatosMigrations jatosMigrations;
+    private final ExecutorService hashExecutor;
+
+    @Inject
+    ResultFileMigration(ResultFileDao resultFileDao, ComponentResultDao componentResultDao, JPAApi jpaApi,
+            JatosMigrations jatosMigrations, ApplicationLifecycle applicationLifecycle) {
+        this.resultFileDao = resultFileDao;
+        this.componentResultDao = componentResultDao;
+        this.jpaApi = jpaApi;
+        this.jatosMigrations = jatosMigrations;
+        this.hashExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "result-file-hashes");
+            thread.setDaemon(true);
+            return thread;
+        });
+        applicationLifecycle.addStopHook(() -> {
+            hashExecutor.shutdownNow();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    public void run() {
+        try {
+            jatosMigrations.start(this::fill);
+        } catch (Exception e) {
+            throw new RuntimeException("ResultFile Migration failed", e);
+        }
+        hashExecutor.execute(this::fillMissingHashes);
+    }
+
+    private void fill() {
+        if (jatosMigrations.isFinished(MIGRATION_NAME)) return;
+
+        Path uploadsDir = Paths.get(Common.getResultUploadsPath());
+        List<Path> studyResultDirs = Files.isDirectory(uploadsDir)
+                ? listDirs(uploadsDir, STUDY_RESULT_DIR_PREFIX)
+                : new ArrayList<>();
+        if (studyResultDirs.isEmpty()) {
+            jatosMigrations.setFinished(MIGRATION_NAME);
+            return;
+        }
+
+        LOGGER.info("Start filling the index of uploaded result files. This is part of the update and can take a " +
+                "while depending on the number of uploaded files.");
+        int fileCount = 0;
+        for (Path studyResultDir : studyResultDirs) {
+            Long srid = parseId(studyResultDir, STUDY_RESULT_DIR_PREFIX);
+            if (srid == null) continue;
+            List<ResultFile> resultFiles = new ArrayList<>();
+            for (Path componentResultDir : listDirs(studyResultDir, COMPONENT_RESULT_DIR_PREFIX)) {
+                Long crid = parseId(componentResultDir, COMPONENT_RESULT_DIR_PREFIX);
+                if (crid != null) resultFiles.addAll(listFiles(srid, crid, componentResultDir));
+            }
+            fileCount += save(resultFiles);
+        }
+        jatosMigrations.setFinished(MIGRATION_NAME);
+        LOGGER.info("Filled the index of uploaded result files with " + fileCount + " files");
+    }
+
+    /**
+     * Computes the hashes that are missing in the index, page by page. A hash is only set if it's still missing, so
+     * it doesn't matter if several nodes do this at the same time or if a file is uploaded again in between. Files
+     * that can't be read keep their null hash.
+     */
+    void fillMissingHashes() {
+        long afterCrid = 0;
+        String afterFilename = "";
+        int count = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long crid = afterCrid;
+                String filename = afterFilename;
+                List<ResultFile> page = jpaApi.withTransaction("default", true, entityManager -> {
+                    return resultFileDao.findWithoutHash(crid, filename, HASH_PAGE_SIZE);
+                });
+                if (page.isEmpty()) break;
+                if (afterCrid == 0) {
+                    LOGGER.info("Start computing the hashes of uploaded result files in the background");
+                }
+                Map<ResultFile, String> hashes = computeHashes(page);
+                jpaApi.withTransaction(entityManager -> {
+                    hashes.forEach((resultFile, hash) -> resultFileDao.setHashIfMissing(
+                            resultFile.getComponentResultId(), resultFile.getFilename(), hash));
+                });
+                count += hashes.size();
+                ResultFile last = page.get(page.size() - 1);
+                afterCrid = last.getComponentResultId();
+                afterFilename = last.getFilename();
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Computing the hashes of uploaded result files stopped", e);
+        }
+        if (count > 0) LOGGER.info("Computed the hashes of " + count + " uploaded result files");
+    }
+
+    /**
+     * Reads the files and computes their hashes. Files that can't be read are left out.
+     */
+    private Map<ResultFile, String> computeHashes(List<ResultFile> resultFiles) {
+        Map<ResultFile, String> hashes = new LinkedHashMap<>();
+        for (ResultFile resultFile : resultFiles) {
+            Path file = Paths.get(IOUtils.getResultUploadsDir(resultFile.getStudyResultId(),
+                    resultFile.getComponentResultId()), resultFile.getFilename());
+            try {
+                hashes.put(resultFile, HashUtils.getHash(file, HashUtils.SHA_256));
+            } catch (IOException e) {
+                LOGGER.warn("Cannot compute the hash of " + file, e);
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Saves the files in one transaction. Files of ComponentResults that don't exist anymore are skipped.
+     */
+    private int save(List<ResultFile> resultFiles) {
+        if (resultFiles.isEmpty()) return 0;
+        return jpaApi.withTransaction(() -> {
+            IdSet crids = IdSet.of(resultFiles.stream().map(ResultFile::getComponentResultId)
+                    .collect(Collectors.toList()));
+            Set<Long> existingCrids = new HashSet<>(componentResultDao.findIdsByComponentResultIds(crids));
+            int count = 0;
+            for (ResultFile resultFile : resultFiles) {
+                if (!existingCrids.contains(resultFile.getComponentResultId())) continue;
+                resultFileDao.save(resultFile);
+                count++;
+            }
+            return count;
+        });
+    }
+
+    private List<ResultFile> listFiles(long srid, long crid, Path dir) {
+        List<ResultFile> resultFiles = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(dir)) {
+            for (Path file : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                // The hash is computed later in the background (fillMissingHashes)
+                resultFiles.add(new ResultFile(srid, crid, file.getFileName().toString(), Files.size(file), null,
+                        new Timestamp(Files.getLastModifiedTime(file).toMillis())));
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read directory " + dir, e);
+        }
+        return resultFiles;
+    }
+
+    private List<Path> listDirs(Path dir, String prefix) {
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.filter(Files::isDirectory)
+                    .filter(p -> p.getFileName().toString().startsWith(prefix))
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read directory " + dir, e);
+            return new ArrayList<>();
+        }
+    }
+
+    private Long parseId(Path dir, String prefix) {
+        try {
+            return Long.parseLong(dir.getFileName().toString().substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
@@ -74,6 +74,15 @@ public class Batch {
     @JsonView({JsonForPublix.class, JsonForIO.class, JsonForApi.class})
     private Integer maxTotalMembers = null;
 
+    /**
+     * Number of members a new group of this batch waits for before it starts:
+     * their group channels are opened together when this number of members
+     * opened one (or after a timeout). If there is no waiting the value is
+     * null. This property is only used if this batch belongs to a group study.
+     */
+    @JsonView({JsonForPublix.class, JsonForIO.class, JsonForApi.class})
+    private Integer minActiveMembers = null;
+
     /**
      * Maximum number of workers in this batch in total independent of its
      * groups. If there is no limit in active members the value is null.
@@ -83,6 +92,14 @@ public class Batch {
     @JsonView({JsonForPublix.class, JsonForIO.class, JsonForApi.class})
     private Integer maxTotalWorkers = null;
 
+    /**
+     * Time window in ms in which the batch and group session patches of this
+     * batch are merged into one message before they are sent to the members.
+     * 0 turns it off. If it's null the default from the config is used.
+     */
+    @JsonView({JsonForIO.class, JsonForApi.class})
+    private Integer patchCoalescingWindow = null;
+
     /**
      * Set of workers that is created in this batch. Workers can be created
      * before the study starts (PersonalMultipleWorker or PersonalSingleWorker)
@@ -209,6 +226,22 @@ public class Batch {
         this.maxTotalWorkers = maxTotalWorkers;
     }
 
+    public Integer getMinActiveMembers() {
+        return minActiveMembers;
+    }
+
+    public void setMinActiveMembers(Integer minActiveMembers) {
+        this.minActiveMembers = minActiveMembers;
+    }
+
+    public Integer getPatchCoalescingWindow() {
+        return patchCoalescingWindow;
+    }
+
+    public void setPatchCoalescingWindow(Integer patchCoalescingWindow) {
+        this.patchCoalescingWindow = patchCoalescingWindow;
+    }
+
     public void setAllowedWorkerTypes(Set<String> allowedWorkerTypes) {
         this.allowedWorkerTypes = allowedWorkerTypes;
     }
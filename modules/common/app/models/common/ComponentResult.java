@@ -103,6 +103,14 @@ public class ComponentResult {
     @Column(insertable = false, updatable = false)
     private Integer dataSize;
 
+    /**
+     * Size of the result data as it is stored in the database. It differs from dataSize if the result data are stored
+     * compressed. Database operations are done via extra methods in ComponentResultDao.
+     */
+    @JsonIgnore
+    @Column(insertable = false, updatable = false)
+    private Long dataStoredSize;
+
     public ComponentResult() {
     }
 
@@ -187,6 +195,14 @@ public class ComponentResult {
         this.dataSize = dataSize;
     }
 
+    public Long getDataStoredSize() {
+        return dataStoredSize != null ? dataStoredSize : 0L;
+    }
+
+    public void setDataStoredSize(Long dataStoredSize) {
+        this.dataStoredSize = dataStoredSize;
+    }
+
     public void setStudyResult(StudyResult studyResult) {
         this.studyResult = studyResult;
     }
@@ -54,18 +54,29 @@ public class GroupResult {
      * study is running. All members of this group share the same groupSessionData. It will be deleted after the group
      * is finished. It's stored as a normal string but jatos.js converts it into JSON. We use versioning to prevent
      * concurrent changes of the data. It's initialised with an empty JSON object.
+     *
+     * The groupSessionData are only a snapshot of the session (at version groupSessionSnapshotVersion). All changes
+     * since then are in the patch log (table GroupSessionPatch). Database operations are done via GroupSessionDao.
      */
     @JsonIgnore
     @Lob
+    @Column(updatable = false)
     private String groupSessionData = "{}";
 
     /**
-     * Current version of the groupSessionData. With each change of the data it is increased by 1. We use versioning to
-     * prevent concurrent changes of the data.
+     * Current version of the group session. With each change of the data it is increased by 1. We use versioning to
+     * prevent concurrent changes of the data. Database operations are done via GroupSessionDao.
      */
-    @Column(nullable = false)
+    @Column(nullable = false, updatable = false)
     private Long groupSessionVersion = 1L;
 
+    /**
+     * Version of the snapshot in groupSessionData. Database operations are done via GroupSessionDao.
+     */
+    @JsonIgnore
+    @Column(nullable = false, updatable = false)
+    private Long groupSessionSnapshotVersion = 1L;
+
     @JsonIgnore
     @OneToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "batch_id")
@@ -103,6 +114,15 @@ public class GroupResult {
      */
     private Integer historyMemberCount = 0;
 
+    /**
+     * Whether the group started, i.e. its members' group channels were opened. If the batch has minActiveMembers a new
+     * group waits for them before it starts. It's only set via GroupResultDao.setStarted and not written with the
+     * rest of the GroupResult - a membership change at the same time would overwrite it otherwise.
+     */
+    @JsonIgnore
+    @Column(nullable = false, updatable = false)
+    private boolean started = false;
+
     /**
      * Time and date when the study was started on the server.
      */
@@ -157,6 +177,14 @@ public class GroupResult {
         this.groupSessionVersion = groupSessionVersion;
     }
 
+    public Long getGroupSessionSnapshotVersion() {
+        return groupSessionSnapshotVersion;
+    }
+
+    public void setGroupSessionSnapshotVersion(Long groupSessionSnapshotVersion) {
+        this.groupSessionSnapshotVersion = groupSessionSnapshotVersion;
+    }
+
     public Batch getBatch() {
         return batch;
     }
@@ -165,6 +193,14 @@ public class GroupResult {
         this.batch = batch;
     }
 
+    public boolean isStarted() {
+        return started;
+    }
+
+    public void setStarted(boolean started) {
+        this.started = started;
+    }
+
     public void setStartDate(Timestamp startDate) {
         this.startDate = startDate;
     }
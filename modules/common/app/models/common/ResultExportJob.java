@@ -0,0 +1,193 @@
+package models.common;
+
+import javax.persistence.*;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * DB entity of an asynchronous result export (see ResultExportJobService). It's kept in the database (and not only in
+ * memory) so every JATOS node of a cluster can tell the state and progress of a job, and can download or remove it.
+ *
+ * @author Kristian Lange
+ */
+@Entity
+@Table(name = "ResultExportJob", indexes = {@Index(name = "IDX_ResultExportJob_username", columnList = "username")})
+public class ResultExportJob {
+
+    public enum State {
+        QUEUED, RUNNING, FINISHED, FAILED
+    }
+
+    /**
+     * UUID of the job
+     */
+    @Id
+    private String id;
+
+    /**
+     * User who created the job - only this user can access it
+     */
+    private String username;
+
+    /**
+     * Name of the ResultStreamer.ResultType
+     */
+    private String type;
+
+    private boolean asPlainText;
+
+    @Enumerated(EnumType.STRING)
+    private State state = State.QUEUED;
+
+    private long resultsTotal;
+
+    /**
+     * Number of results written so far - it's updated by the node that runs the job every few seconds
+     */
+    private long resultsWritten;
+
+    /**
+     * Filename of the export as the user gets it
+     */
+    private String filename;
+
+    /**
+     * Cursor for the next delta export or null if this isn't a delta export
+     */
+    @Lob
+    private String nextCursor;
+
+    @Lob
+    private String error;
+
+    private Timestamp creationDate;
+
+    private Timestamp startDate;
+
+    private Timestamp endDate;
+
+    public ResultExportJob(String id, String username, String type, boolean asPlainText, long resultsTotal,
+            String filename, String nextCursor) {
+        this.id = id;
+        this.username = username;
+        this.type = type;
+        this.asPlainText = asPlainText;
+        this.resultsTotal = resultsTotal;
+        this.filename = filename;
+        this.nextCursor = nextCursor;
+        this.creationDate = new Timestamp(new Date().getTime());
+    }
+
+    public ResultExportJob() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public boolean isAsPlainText() {
+        return asPlainText;
+    }
+
+    public void setAsPlainText(boolean asPlainText) {
+        this.asPlainText = asPlainText;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    public long getResultsTotal() {
+        return resultsTotal;
+    }
+
+    public void setResultsTotal(long resultsTotal) {
+        this.resultsTotal = resultsTotal;
+    }
+
+    public long getResultsWritten() {
+        return resultsWritten;
+    }
+
+    public void setResultsWritten(long resultsWritten) {
+        this.resultsWritten = resultsWritten;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public Timestamp getCreationDate() {
+        return creationDate;
+    }
+
+    public void setCreationDate(Timestamp creationDate) {
+        this.creationDate = creationDate;
+    }
+
+    public Timestamp getStartDate() {
+        return startDate;
+    }
+
+    public void setStartDate(Timestamp startDate) {
+        this.startDate = startDate;
+    }
+
+    public Timestamp getEndDate() {
+        return endDate;
+    }
+
+    public void setEndDate(Timestamp endDate) {
+        this.endDate = endDate;
+    }
+
+    @Override
+    public String toString() {
+        return id + " (" + state + ")";
+    }
+
+}
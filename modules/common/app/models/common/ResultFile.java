@@ -0,0 +1,61 @@
+package models.common;
+
+import java.sql.Timestamp;
+
+/**
+ * Model of an entry in the index of uploaded result files (table ResultFile). It's not a JPA entity - the table is
+ * accessed with native queries in ResultFileDao. The index is used instead of listing the result upload directories,
+ * which is slow, especially on network storage.
+ *
+ * @author Kristian Lange
+ */
+public class ResultFile {
+
+    private final long studyResultId;
+    private final long componentResultId;
+    private final String filename;
+    private final long size;
+
+    /**
+     * SHA-256 of the file's content. Can be null for files that were uploaded before the index existed - their hash is
+     * computed in the background (see ResultFileMigration).
+     */
+    private final String hash;
+
+    private final Timestamp uploadDate;
+
+    public ResultFile(long studyResultId, long componentResultId, String filename, long size, String hash,
+            Timestamp uploadDate) {
+        this.studyResultId = studyResultId;
+        this.componentResultId = componentResultId;
+        this.filename = filename;
+        this.size = size;
+        this.hash = hash;
+        this.uploadDate = uploadDate;
+    }
+
+    public long getStudyResultId() {
+        return studyResultId;
+    }
+
+    public long getComponentResultId() {
+        return componentResultId;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public Timestamp getUploadDate() {
+        return uploadDate;
+    }
+
+}
@@ -19,7 +19,9 @@ import java.util.*;
  * @author Kristian Lange
  */
 @Entity
-@Table(name = "StudyResult", indexes = { @Index(columnList = "uuid") })
+@Table(name = "StudyResult", indexes = { @Index(columnList = "uuid"),
+        @Index(name = "IDX_StudyResult_studyLink", columnList = "studyLink_studyCode"),
+        @Index(name = "IDX_StudyResult_lastSeenDate", columnList = "lastSeenDate") })
 @JsonPropertyOrder(value = { "id", "startDate", "worker", "confirmationCode", "studyState", "errorMsg", "abortMsg" })
 public class StudyResult {
 
@@ -51,11 +51,12 @@ public class HashUtils {
     public static String getHash(Path file, String hashFunction) throws IOException {
         try {
             MessageDigest digest = MessageDigest.getInstance(hashFunction);
+            byte[] buffer = new byte[65536];
             try (InputStream is = Files.newInputStream(file);
                  DigestInputStream dis = new DigestInputStream(is, digest)) {
-                while ((dis.read()) != -1) {
+                //noinspection StatementWithEmptyBody - intentionally empty
+                while ((dis.read(buffer)) != -1) {
                 }
-
             }
             byte[] hashByte = digest.digest();
             return bytesToHex(hashByte);
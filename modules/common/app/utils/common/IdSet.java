@@ -0,0 +1,223 @@
+package utils.common;
+
+import javax.persistence.Query;
+import java.util.*;
+
+/**
+ * Immutable set of IDs (e.g. component result IDs) that is stored as sorted ranges of consecutive IDs. Results are
+ * usually selected in large blocks of consecutive IDs (e.g. all results of a study or a batch), so even hundreds of
+ * thousands of IDs fold into a few ranges.
+ *
+ * An IdSet can be used in database queries instead of a giant IN list: the query condition is built with BETWEEN for
+ * the ranges and a (short) IN list for the single IDs. If an IdSet would need more than MAX_QUERY_PARAMETERS query
+ * parameters it has to be split into parts (see {@link #partition()}) and the query is run once per part. The parts
+ * are in increasing ID order.
+ *
+ * @author Kristian Lange
+ */
+public final class IdSet implements Iterable<Long> {
+
+    public static final IdSet EMPTY = new IdSet(new long[0], new long[0]);
+
+    /**
+     * Max number of query parameters used for one part of an IdSet
+     */
+    static final int MAX_QUERY_PARAMETERS = 1000;
+
+    private static final String PARAM_SINGLES = "idSetSingles";
+    private static final String PARAM_START = "idSetStart";
+    private static final String PARAM_END = "idSetEnd";
+
+    /**
+     * Inclusive start and end of each range - sorted and non-overlapping
+     */
+    private final long[] starts;
+    private final long[] ends;
+    private final long size;
+
+    private IdSet(long[] starts, long[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+        long size = 0;
+        for (int i = 0; i < starts.length; i++) {
+            size += ends[i] - starts[i] + 1;
+        }
+        this.size = size;
+    }
+
+    /**
+     * Creates an IdSet from the given IDs. Order and duplicates don't matter and null is ignored.
+     */
+    public static IdSet of(Collection<Long> ids) {
+        if (ids == null || ids.isEmpty()) return EMPTY;
+        long[] sortedIds = ids.stream().filter(Objects::nonNull).mapToLong(Long::longValue).sorted().distinct()
+                .toArray();
+        if (sortedIds.length == 0) return EMPTY;
+
+        long[] starts = new long[sortedIds.length];
+        long[] ends = new long[sortedIds.length];
+        int rangeCount = 0;
+        starts[0] = sortedIds[0];
+        ends[0] = sortedIds[0];
+        for (int i = 1; i < sortedIds.length; i++) {
+            if (sortedIds[i] == ends[rangeCount] + 1) {
+                ends[rangeCount] = sortedIds[i];
+            } else {
+                rangeCount++;
+                starts[rangeCount] = sortedIds[i];
+                ends[rangeCount] = sortedIds[i];
+            }
+        }
+        rangeCount++;
+        return new IdSet(Arrays.copyOf(starts, rangeCount), Arrays.copyOf(ends, rangeCount));
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Binary search over the ranges
+     */
+    public boolean contains(Long id) {
+        if (id == null) return false;
+        int index = Arrays.binarySearch(starts, id);
+        if (index >= 0) return true;
+        int rangeIndex = -index - 2;
+        return rangeIndex >= 0 && id <= ends[rangeIndex];
+    }
+
+    /**
+     * Returns all IDs in increasing order. Be careful with large IdSets.
+     */
+    public List<Long> toList() {
+        List<Long> ids = new ArrayList<>((int) Math.min(size, Integer.MAX_VALUE));
+        forEach(ids::add);
+        return ids;
+    }
+
+    @Override
+    public Iterator<Long> iterator() {
+        return new Iterator<Long>() {
+            private int rangeIndex = 0;
+            private long next = starts.length > 0 ? starts[0] : 0;
+
+            @Override
+            public boolean hasNext() {
+                return rangeIndex < starts.length;
+            }
+
+            @Override
+            public Long next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                long id = next;
+                if (next == ends[rangeIndex]) {
+                    rangeIndex++;
+                    if (rangeIndex < starts.length) next = starts[rangeIndex];
+                } else {
+                    next++;
+                }
+                return id;
+            }
+        };
+    }
+
+    /**
+     * Splits this IdSet into parts that each need at most MAX_QUERY_PARAMETERS query parameters (a single ID needs
+     * one, a range two). Most of the time there is only one part.
+     */
+    public List<IdSet> partition() {
+        List<IdSet> parts = new ArrayList<>();
+        int partStart = 0;
+        int parameterCount = 0;
+        for (int i = 0; i < starts.length; i++) {
+            int rangeParameterCount = starts[i] == ends[i] ? 1 : 2;
+            if (parameterCount + rangeParameterCount > MAX_QUERY_PARAMETERS) {
+                parts.add(subSet(partStart, i));
+                partStart = i;
+                parameterCount = 0;
+            }
+            parameterCount += rangeParameterCount;
+        }
+        if (partStart < starts.length) parts.add(subSet(partStart, starts.length));
+        return parts;
+    }
+
+    private IdSet subSet(int fromRange, int toRange) {
+        return new IdSet(Arrays.copyOfRange(starts, fromRange, toRange), Arrays.copyOfRange(ends, fromRange, toRange));
+    }
+
+    /**
+     * Returns a query condition (works in SQL and JPQL) that matches the given column against the IDs of this IdSet,
+     * e.g. "(cr.id IN :idSetSingles OR cr.id BETWEEN :idSetStart0 AND :idSetEnd0)". The parameters have to be bound
+     * with {@link #bindParameters(Query)}. Only use it with IdSets that were partitioned before.
+     */
+    public String condition(String column) {
+        if (isEmpty()) return "1 = 0";
+        List<String> conditions = new ArrayList<>();
+        if (hasSingles()) conditions.add(column + " IN :" + PARAM_SINGLES);
+        for (int i = 0; i < starts.length; i++) {
+            if (starts[i] != ends[i]) {
+                conditions.add(column + " BETWEEN :" + PARAM_START + i + " AND :" + PARAM_END + i);
+            }
+        }
+        return "(" + String.join(" OR ", conditions) + ")";
+    }
+
+    /**
+     * Binds the parameters used in the condition returned by {@link #condition(String)}
+     */
+    public void bindParameters(Query query) {
+        List<Long> singles = new ArrayList<>();
+        for (int i = 0; i < starts.length; i++) {
+            if (starts[i] == ends[i]) {
+                singles.add(starts[i]);
+            } else {
+                query.setParameter(PARAM_START + i, starts[i]);
+                query.setParameter(PARAM_END + i, ends[i]);
+            }
+        }
+        if (!singles.isEmpty()) query.setParameter(PARAM_SINGLES, singles);
+    }
+
+    /**
+     * Same as {@link #condition(String)} but with the IDs written directly into the condition, e.g.
+     * "(cr.id IN (1, 5) OR cr.id BETWEEN 10 AND 2000)". Meant for plain JDBC statements. The IDs are numbers, so
+     * nothing has to be escaped. Only use it with IdSets that were partitioned before.
+     */
+    public String conditionWithValues(String column) {
+        if (isEmpty()) return "1 = 0";
+        List<String> conditions = new ArrayList<>();
+        StringJoiner singles = new StringJoiner(", ", column + " IN (", ")");
+        for (int i = 0; i < starts.length; i++) {
+            if (starts[i] == ends[i]) {
+                singles.add(String.valueOf(starts[i]));
+            } else {
+                conditions.add(column + " BETWEEN " + starts[i] + " AND " + ends[i]);
+            }
+        }
+        if (hasSingles()) conditions.add(0, singles.toString());
+        return "(" + String.join(" OR ", conditions) + ")";
+    }
+
+    private boolean hasSingles() {
+        for (int i = 0; i < starts.length; i++) {
+            if (starts[i] == ends[i]) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        for (int i = 0; i < starts.length; i++) {
+            joiner.add(starts[i] == ends[i] ? String.valueOf(starts[i]) : starts[i] + "-" + ends[i]);
+        }
+        return joiner.toString();
+    }
+
+}
@@ -0,0 +1,154 @@
+package utils.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Applies JSON Patches (RFC 6902) to Jackson JSON nodes. The session module patches with gnieh.diffson - this is for
+ * the places that don't have it, e.g. the GUI that replays the group session patch log. It has to give the same
+ * results as diffson: an 'add' or 'replace' of the root path "" replaces the whole data, and 'test' compares numbers
+ * by their value (1 equals 1.0). Like jatos.js it treats a 'remove' of the path "/" in the first patch, and a 'remove'
+ * of the root path "", as 'clear all session data'.
+ *
+ * @author Kristian Lange
+ */
+public class JsonPatcher {
+
+    /**
+     * Compares numbers by their value and everything else with equals
+     */
+    private static final Comparator<JsonNode> NUMERIC_VALUE_COMPARATOR = (node1, node2) -> {
+        if (node1.isNumber() && node2.isNumber()) return node1.decimalValue().compareTo(node2.decimalValue());
+        return node1.equals(node2) ? 0 : 1;
+    };
+
+    /**
+     * Applies the patches (a JSON array of patch operations) to the given data and returns the result. The given data
+     * are left untouched.
+     *
+     * @throws IllegalArgumentException if a patch can't be applied
+     */
+    public static JsonNode apply(JsonNode data, JsonNode patches) {
+        if (!patches.isArray()) throw new IllegalArgumentException("JSON Patch must be an array");
+        if (patches.size() > 0 && "remove".equals(patches.get(0).path("op").asText())
+                && "/".equals(patches.get(0).path("path").asText())) {
+            return JsonNodeFactory.instance.objectNode();
+        }
+
+        JsonNode result = data.deepCopy();
+        for (JsonNode patch : patches) {
+            result = applyOperation(result, patch);
+        }
+        return result;
+    }
+
+    private static JsonNode applyOperation(JsonNode data, JsonNode patch) {
+        String op = patch.path("op").asText();
+        List<String> path = parsePointer(patch.path("path").asText());
+        switch (op) {
+            case "add":
+                return add(data, path, value(patch).deepCopy());
+            case "remove":
+                if (path.isEmpty()) return JsonNodeFactory.instance.objectNode();
+                remove(data, path);
+                return data;
+            case "replace":
+                if (path.isEmpty()) return value(patch).deepCopy();
+                remove(data, path);
+                return add(data, path, value(patch).deepCopy());
+            case "move": {
+                List<String> from = parsePointer(patch.path("from").asText());
+                JsonNode value = get(data, from);
+                remove(data, from);
+                return add(data, path, value);
+            }
+            case "copy":
+                return add(data, path, get(data, parsePointer(patch.path("from").asText())).deepCopy());
+            case "test":
+                if (!get(data, path).equals(NUMERIC_VALUE_COMPARATOR, value(patch))) {
+                    throw new IllegalArgumentException("Test failed: " + patch);
+                }
+                return data;
+            default:
+                throw new IllegalArgumentException("Unknown JSON Patch operation: " + op);
+        }
+    }
+
+    private static JsonNode value(JsonNode patch) {
+        if (!patch.has("value")) throw new IllegalArgumentException("Missing value: " + patch);
+        return patch.get("value");
+    }
+
+    /**
+     * Returns the new root since adding to the root path replaces the whole document
+     */
+    private static JsonNode add(JsonNode data, List<String> path, JsonNode value) {
+        if (path.isEmpty()) return value;
+        JsonNode parent = get(data, path.subList(0, path.size() - 1));
+        String token = path.get(path.size() - 1);
+        if (parent.isObject()) {
+            ((ObjectNode) parent).set(token, value);
+        } else if (parent.isArray()) {
+            ArrayNode array = (ArrayNode) parent;
+            if (token.equals("-")) {
+                array.add(value);
+            } else {
+                int index = arrayIndex(token);
+                if (index > array.size()) throw new IllegalArgumentException("Index out of bounds: " + token);
+                array.insert(index, value);
+            }
+        } else {
+            throw new IllegalArgumentException("Can't add to a value node: " + String.join("/", path));
+        }
+        return data;
+    }
+
+    private static void remove(JsonNode data, List<String> path) {
+        JsonNode parent = get(data, path.subList(0, path.size() - 1));
+        String token = path.get(path.size() - 1);
+        if (parent.isObject() && parent.has(token)) {
+            ((ObjectNode) parent).remove(token);
+        } else if (parent.isArray() && arrayIndex(token) < parent.size()) {
+            ((ArrayNode) parent).remove(arrayIndex(token));
+        } else {
+            throw new IllegalArgumentException("Path doesn't exist: " + String.join("/", path));
+        }
+    }
+
+    private static JsonNode get(JsonNode data, List<String> path) {
+        JsonNode node = data;
+        for (String token : path) {
+            node = node.isArray() ? node.get(arrayIndex(token)) : node.get(token);
+            if (node == null) throw new IllegalArgumentException("Path doesn't exist: " + String.join("/", path));
+        }
+        return node;
+    }
+
+    private static int arrayIndex(String token) {
+        try {
+            return Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid array index: " + token);
+        }
+    }
+
+    /**
+     * Parses a JSON Pointer (RFC 6901) into its unescaped tokens. The empty pointer is the root.
+     */
+    private static List<String> parsePointer(String pointer) {
+        List<String> tokens = new ArrayList<>();
+        if (pointer.isEmpty()) return tokens;
+        if (!pointer.startsWith("/")) throw new IllegalArgumentException("Invalid JSON Pointer: " + pointer);
+        for (String token : pointer.substring(1).split("/", -1)) {
+            tokens.add(token.replace("~1", "/").replace("~0", "~"));
+        }
+        return tokens;
+    }
+
+}
@@ -1,9 +1,12 @@
 package utils.common;
 
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
@@ -20,14 +23,12 @@ import utils.common.JsonUtils.SidebarStudy.SidebarComponent;
 import javax.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Utility class that handles everything around JSON, like marshaling and
@@ -218,69 +219,66 @@ public class JsonUtils {
         }
     }
 
-    public ObjectNode studyResultMetadata(StudyResult sr) throws IOException {
-        Map<String, Object> metadata = new LinkedHashMap<>();
-        metadata.put("id", sr.getId());
-        metadata.put("uuid", sr.getUuid());
-        metadata.put("studyCode", sr.getStudyCode());
+    /**
+     * Writes the metadata fields of the given StudyResult directly into the JsonGenerator (without a tree in between).
+     * The enclosing JSON object has to be started and ended by the caller, e.g. to add the component results.
+     */
+    public void writeStudyResultMetadataFields(JsonGenerator gen, StudyResult sr) throws IOException {
+        gen.writeNumberField("id", sr.getId());
+        gen.writeStringField("uuid", sr.getUuid());
+        gen.writeStringField("studyCode", sr.getStudyCode());
         if (!Strings.isNullOrEmpty(sr.getWorker().getComment())) {
-            metadata.put("comment", sr.getWorker().getComment());
+            gen.writeStringField("comment", sr.getWorker().getComment());
         }
-        metadata.put("startDate", sr.getStartDate());
-        metadata.put("endDate", sr.getEndDate());
-        metadata.put("duration", getDurationPretty(sr.getStartDate(), sr.getEndDate()));
-        metadata.put("lastSeenDate", sr.getLastSeenDate());
-        metadata.put("studyState", sr.getStudyState());
+        gen.writeObjectField("startDate", sr.getStartDate());
+        gen.writeObjectField("endDate", sr.getEndDate());
+        gen.writeStringField("duration", getDurationPretty(sr.getStartDate(), sr.getEndDate()));
+        gen.writeObjectField("lastSeenDate", sr.getLastSeenDate());
+        gen.writeObjectField("studyState", sr.getStudyState());
         if (!Strings.isNullOrEmpty(sr.getMessage())) {
-            metadata.put("message", sr.getMessage());
+            gen.writeStringField("message", sr.getMessage());
         }
         if (!Strings.isNullOrEmpty(sr.getUrlQueryParameters()) && !sr.getUrlQueryParameters().equals("{}")) {
-            Map<String, String> map = Json.mapper().readerFor(Map.class).readValue(sr.getUrlQueryParameters());
-            metadata.put("urlQueryParameters", map);
+            gen.writeObjectField("urlQueryParameters", Json.mapper().readTree(sr.getUrlQueryParameters()));
         }
-        metadata.put("workerId", sr.getWorkerId());
-        metadata.put("workerType", sr.getWorkerType());
-        metadata.put("batchId", sr.getBatch().getId());
-        metadata.put("batchUuid", sr.getBatch().getUuid());
-        metadata.put("batchTitle", sr.getBatch().getTitle());
-        metadata.put("groupId", getGroupResultId(sr));
+        gen.writeObjectField("workerId", sr.getWorkerId());
+        gen.writeStringField("workerType", sr.getWorkerType());
+        gen.writeNumberField("batchId", sr.getBatch().getId());
+        gen.writeStringField("batchUuid", sr.getBatch().getUuid());
+        gen.writeStringField("batchTitle", sr.getBatch().getTitle());
+        gen.writeObjectField("groupId", getGroupResultId(sr));
         if (sr.getConfirmationCode() != null) {
-            metadata.put("confirmationCode", sr.getConfirmationCode());
+            gen.writeStringField("confirmationCode", sr.getConfirmationCode());
         }
-        return Json.mapper().valueToTree(metadata);
     }
 
     /**
      * Returns ObjectNode of the given StudyResult. It contains the worker, study's ID and title
+     *
+     * @param hasResultFiles Whether the StudyResult has uploaded result files (from the index of result files, see
+     *                       ResultFileDao)
      */
-    public ObjectNode studyResultAsJsonNode(StudyResult sr, Integer componentResultCount) {
-        ObjectNode node = Json.mapper().valueToTree(sr);
-
-        // Add extra variables
-        node.put("studyId", sr.getStudy().getId());
-        node.put("studyCode", sr.getStudyCode());
-        node.put("studyTitle", sr.getStudy().getTitle());
-        node.put("batchTitle", sr.getBatch().getTitle());
-        node.put("batchId", sr.getBatch().getId());
-        String duration;
-        if (sr.getEndDate() != null) {
-            duration = getDurationPretty(sr.getStartDate(), sr.getEndDate());
-        } else {
-            duration = getDurationPretty(sr.getStartDate(), sr.getLastSeenDate());
-            duration = duration != null ? duration + " (not finished yet)" : "none";
-        }
-        node.put("duration", duration);
-        node.put("groupId", getGroupResultId(sr));
-        node.put("componentResultCount", componentResultCount != null ? componentResultCount : 0);
-        node.put("hasResultFiles", hasResultUploadFiles(sr));
+    public JsonNode studyResultAsJsonNode(StudyResult sr, Integer componentResultCount, boolean hasResultFiles) {
+        return Json.mapper().valueToTree(new StudyResultRow(sr, componentResultCount, hasResultFiles));
+    }
 
-        return node;
+    /**
+     * Same as {@link #studyResultAsJsonNode} but writes the StudyResult directly into the JsonGenerator - no tree or
+     * String in between. Used to stream large result tables.
+     */
+    public void writeStudyResult(JsonGenerator gen, StudyResult sr, Integer componentResultCount,
+            boolean hasResultFiles) throws IOException {
+        rowWriter().writeValue(gen, new StudyResultRow(sr, componentResultCount, hasResultFiles));
     }
 
-    public JsonNode getComponentResultsByStudyResult(StudyResult studyResult) {
+    /**
+     * @param resultFiles Uploaded result files of the ComponentResults mapped to their ID (see ResultFileDao)
+     */
+    public JsonNode getComponentResultsByStudyResult(StudyResult studyResult, Map<Long, List<ResultFile>> resultFiles) {
         ArrayNode componentResultsNode = Json.mapper().createArrayNode();
         for (ComponentResult componentResult : studyResult.getComponentResultList()) {
-            JsonNode componentResultNode = componentResultAsJsonNode(componentResult);
+            JsonNode componentResultNode = componentResultAsJsonNode(componentResult,
+                    resultFiles.getOrDefault(componentResult.getId(), Collections.emptyList()));
             componentResultsNode.add(componentResultNode);
         }
         return componentResultsNode;
@@ -300,91 +298,152 @@ public class JsonUtils {
         }
     }
 
-    public ObjectNode componentResultMetadata(ComponentResult cr) {
-        Map<String, Object> metadata = new LinkedHashMap<>();
-        metadata.put("id", cr.getId());
-        metadata.put("componentId", cr.getComponent().getId());
-        metadata.put("componentUuid", cr.getComponent().getUuid());
-        metadata.put("startDate", cr.getStartDate());
-        metadata.put("endDate", cr.getEndDate());
-        metadata.put("duration", getDurationPretty(cr.getStartDate(), cr.getEndDate()));
-        metadata.put("componentState", cr.getComponentState());
-        metadata.put("path", IOUtils.getResultsPath(cr.getStudyResult().getId(), cr.getId()));
-        Map<String, Object> dataMap = new LinkedHashMap<>();
-        dataMap.put("size", cr.getDataSize());
-        dataMap.put("sizeHumanReadable", Helpers.humanReadableByteCount(cr.getDataSize()));
-        if (cr.getDataSize() == 0) dataMap.put("filename", "data.txt");
-        metadata.put("data", dataMap);
-        metadata.put("files", getResultUploadFiles(cr));
-        return Json.mapper().valueToTree(metadata);
+    /**
+     * Writes the metadata of the given ComponentResult as a JSON object directly into the JsonGenerator (without a
+     * tree in between)
+     *
+     * @param resultFiles Uploaded result files of this ComponentResult (see ResultFileDao)
+     */
+    public void writeComponentResultMetadata(JsonGenerator gen, ComponentResult cr, List<ResultFile> resultFiles)
+            throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("id", cr.getId());
+        gen.writeNumberField("componentId", cr.getComponent().getId());
+        gen.writeStringField("componentUuid", cr.getComponent().getUuid());
+        gen.writeObjectField("startDate", cr.getStartDate());
+        gen.writeObjectField("endDate", cr.getEndDate());
+        gen.writeStringField("duration", getDurationPretty(cr.getStartDate(), cr.getEndDate()));
+        gen.writeObjectField("componentState", cr.getComponentState());
+        gen.writeStringField("path", IOUtils.getResultsPath(cr.getStudyResult().getId(), cr.getId()));
+        gen.writeObjectFieldStart("data");
+        gen.writeObjectField("size", cr.getDataSize());
+        gen.writeStringField("sizeHumanReadable", Helpers.humanReadableByteCount(cr.getDataSize()));
+        if (cr.getDataSize() == 0) gen.writeStringField("filename", "data.txt");
+        gen.writeEndObject();
+        gen.writeArrayFieldStart("files");
+        for (ResultFile resultFile : resultFiles) {
+            writeResultUploadFile(gen, resultFile);
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
     }
 
     /**
      * Returns an ObjectNode of the given ComponentResult.
+     *
+     * @param resultFiles Uploaded result files of this ComponentResult (see ResultFileDao)
      */
-    public JsonNode componentResultAsJsonNode(ComponentResult cr) {
-        ObjectNode node = Json.mapper().valueToTree(cr);
+    public JsonNode componentResultAsJsonNode(ComponentResult cr, List<ResultFile> resultFiles) {
+        return Json.mapper().valueToTree(new ComponentResultRow(cr, resultFiles));
+    }
 
-        // Add extra variables
-        node.put("studyId", cr.getComponent().getStudy().getId());
-        node.put("componentId", cr.getComponent().getId());
-        node.put("componentTitle", cr.getComponent().getTitle());
-        node.put("duration", getDurationPretty(cr.getStartDate(), cr.getEndDate()));
-        node.put("studyResultId", cr.getStudyResult().getId());
-        node.put("studyCode", cr.getStudyResult().getStudyCode());
-        node.put("studyResultUuid", cr.getStudyResult().getUuid());
-        node.put("groupId", getGroupResultId(cr.getStudyResult()));
-        node.put("batchTitle", cr.getStudyResult().getBatch().getTitle());
+    /**
+     * Same as {@link #componentResultAsJsonNode} but writes the ComponentResult directly into the JsonGenerator - no
+     * tree or String in between. Used to stream large result tables.
+     */
+    public void writeComponentResult(JsonGenerator gen, ComponentResult cr, List<ResultFile> resultFiles)
+            throws IOException {
+        rowWriter().writeValue(gen, new ComponentResultRow(cr, resultFiles));
+    }
 
-        // Add componentResult's data
-        node.put("dataShort", componentResultDataShortForUI(cr));
-        node.put("dataSizeHumanReadable", Helpers.humanReadableByteCount(cr.getDataSize()));
+    private List<Map<String, Object>> getResultUploadFiles(List<ResultFile> resultFiles) {
+        return resultFiles.stream().map(this::getResultUploadFileNode).collect(Collectors.toList());
+    }
 
-        // Add uploaded result files
-        node.set("files", asJsonNode(getResultUploadFiles(cr)));
+    private Map<String, Object> getResultUploadFileNode(ResultFile resultFile) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("filename", resultFile.getFilename());
+        data.put("size", resultFile.getSize());
+        data.put("sizeHumanReadable", Helpers.humanReadableByteCount(resultFile.getSize()));
+        return data;
+    }
 
-        return node;
+    /**
+     * Writes a row into a JsonGenerator. The generator isn't flushed after each row - that's up to the caller.
+     */
+    private ObjectWriter rowWriter() {
+        return Json.mapper().writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
     }
 
-    private List<Map<String, Object>> getResultUploadFiles(ComponentResult componentResult) {
-        Path dir = Paths.get(
-                IOUtils.getResultUploadsDir(componentResult.getStudyResult().getId(), componentResult.getId()));
-        if (Files.isDirectory(dir)) {
-            try (Stream<Path> paths = Files.list(dir)) {
-                return paths.map(this::getResultUploadFileNode).collect(Collectors.toList());
-            } catch (IOException e) {
-                LOGGER.warn("Cannot open directory " + dir);
-            }
-        }
-        return new ArrayList<>();
+    private void writeResultUploadFile(JsonGenerator gen, ResultFile resultFile) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("filename", resultFile.getFilename());
+        gen.writeNumberField("size", resultFile.getSize());
+        gen.writeStringField("sizeHumanReadable", Helpers.humanReadableByteCount(resultFile.getSize()));
+        gen.writeEndObject();
     }
 
-    private Map<String, Object> getResultUploadFileNode(Path filePath) {
-        String fileSizeHumanReadable = null;
-        long fileSize = 0;
-        try (FileChannel fileChannel = FileChannel.open(filePath)) {
-            fileSize = fileChannel.size();
-            fileSizeHumanReadable = Helpers.humanReadableByteCount(fileChannel.size());
-        } catch (IOException e) {
-            LOGGER.warn("Cannot open file " + filePath);
+    /**
+     * Little model class of a row in the StudyResult table: the StudyResult's own fields plus some extra ones. It can
+     * be turned into a tree or be written into a stream directly.
+     */
+    private class StudyResultRow {
+        @JsonUnwrapped
+        public final StudyResult studyResult;
+        public final Long studyId;
+        public final String studyCode;
+        public final String studyTitle;
+        public final String batchTitle;
+        public final Long batchId;
+        public final String duration;
+        public final Long groupId;
+        public final int componentResultCount;
+        public final boolean hasResultFiles;
+
+        StudyResultRow(StudyResult sr, Integer componentResultCount, boolean hasResultFiles) {
+            this.studyResult = sr;
+            this.studyId = sr.getStudy().getId();
+            this.studyCode = sr.getStudyCode();
+            this.studyTitle = sr.getStudy().getTitle();
+            this.batchTitle = sr.getBatch().getTitle();
+            this.batchId = sr.getBatch().getId();
+            if (sr.getEndDate() != null) {
+                this.duration = getDurationPretty(sr.getStartDate(), sr.getEndDate());
+            } else {
+                String duration = getDurationPretty(sr.getStartDate(), sr.getLastSeenDate());
+                this.duration = duration != null ? duration + " (not finished yet)" : "none";
+            }
+            this.groupId = getGroupResultId(sr);
+            this.componentResultCount = componentResultCount != null ? componentResultCount : 0;
+            this.hasResultFiles = hasResultFiles;
         }
-        Map<String, Object> data = new HashMap<>();
-        data.put("filename", filePath.getFileName().toString());
-        data.put("size", fileSize);
-        data.put("sizeHumanReadable", fileSizeHumanReadable);
-        return data;
     }
 
-    private boolean hasResultUploadFiles(StudyResult studyResult) {
-        Path dir = Paths.get(IOUtils.getResultUploadsDir(studyResult.getId()));
-        if (Files.isDirectory(dir)) {
-            try (Stream<Path> entries = Files.list(dir)) {
-                return entries.findFirst().isPresent();
-            } catch (IOException e) {
-                LOGGER.warn("Cannot open directory " + dir);
-            }
+    /**
+     * Little model class of a row in the ComponentResult table: the ComponentResult's own fields plus some extra ones
+     * (including its uploaded files). It can be turned into a tree or be written into a stream directly.
+     */
+    private class ComponentResultRow {
+        @JsonUnwrapped
+        public final ComponentResult componentResult;
+        public final Long studyId;
+        public final Long componentId;
+        public final String componentTitle;
+        public final String duration;
+        public final Long studyResultId;
+        public final String studyCode;
+        public final String studyResultUuid;
+        public final Long groupId;
+        public final String batchTitle;
+        public final String dataShort;
+        public final String dataSizeHumanReadable;
+        public final List<Map<String, Object>> files;
+
+        ComponentResultRow(ComponentResult cr, List<ResultFile> resultFiles) {
+            this.componentResult = cr;
+            this.studyId = cr.getComponent().getStudy().getId();
+            this.componentId = cr.getComponent().getId();
+            this.componentTitle = cr.getComponent().getTitle();
+            this.duration = getDurationPretty(cr.getStartDate(), cr.getEndDate());
+            this.studyResultId = cr.getStudyResult().getId();
+            this.studyCode = cr.getStudyResult().getStudyCode();
+            this.studyResultUuid = cr.getStudyResult().getUuid();
+            this.groupId = getGroupResultId(cr.getStudyResult());
+            this.batchTitle = cr.getStudyResult().getBatch().getTitle();
+            this.dataShort = componentResultDataShortForUI(cr);
+            this.dataSizeHumanReadable = Helpers.humanReadableByteCount(cr.getDataSize());
+            this.files = getResultUploadFiles(resultFiles);
         }
-        return false;
     }
 
     private static String getDurationPretty(Timestamp startDate, Timestamp endDate) {
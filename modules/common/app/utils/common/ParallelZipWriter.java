@@ -0,0 +1,603 @@
+package utils.common;
+
+import play.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes a zip archive with entries that are compressed in parallel. It's a pipeline with three stages:
+ * 1) the caller adds entries (e.g. while it fetches the next page of results from the database), 2) the entries are
+ * deflated concurrently by the given ExecutorService into buffers (or temporary files if they are large), and 3) a
+ * dedicated writer thread writes the compressed entries in the order they were added into the OutputStream. The
+ * number of entries that are in-flight is bounded: adding an entry blocks if the writer falls behind.
+ *
+ * Files that are already compressed (see ZipUtil.isIncompressible), or all files if storeAllFiles is set, are not
+ * deflated but written as STORED entries. Small ones are read into memory in the background. Large ones are copied by
+ * the writer with a large buffer straight from the file system and their CRC is calculated during this single pass -
+ * it follows the data in a data descriptor (general purpose flag bit 3), since the local header is already written.
+ *
+ * Since the entries are compressed before they are written, java.util.zip.ZipOutputStream can't be used and the zip
+ * structures (local file headers, central directory, ZIP64 records for archives with more than 4 GB or 65535 entries)
+ * are written here directly.
+ *
+ * @author Kristian Lange
+ */
+public class ParallelZipWriter implements Closeable {
+
+    private static final Logger.ALogger LOGGER = Logger.of(ParallelZipWriter.class);
+
+    /**
+     * Files larger than this are compressed into a temporary file instead of memory
+     */
+    private static final long MAX_IN_MEMORY_SIZE = 4 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final Future<PreparedEntry> END_OF_ENTRIES = CompletableFuture.completedFuture(null);
+
+    private final CountingOutputStream out;
+    private final ExecutorService executor;
+    private final boolean storeAllFiles;
+    private final BlockingQueue<Future<PreparedEntry>> queue;
+    private final Thread writerThread;
+    private final List<CentralDirectoryEntry> centralDirectory = new ArrayList<>();
+    private final int dosTime;
+    private final int dosDate;
+    private volatile Throwable writerError;
+    private boolean closed = false;
+
+    /**
+     * @param out               The zip is written into this OutputStream. It's closed together with this writer.
+     * @param executor          The entries are compressed with this ExecutorService.
+     * @param maxPendingEntries Max number of compressed entries that wait to be written
+     * @param storeAllFiles     If true all files added with addFile are stored without compression
+     */
+    public ParallelZipWriter(OutputStream out, ExecutorService executor, int maxPendingEntries,
+            boolean storeAllFiles) {
+        this.out = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE * 8));
+        this.executor = executor;
+        this.storeAllFiles = storeAllFiles;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, maxPendingEntries));
+        // All entries get the time of the export - same as ZipOutputStream does it
+        LocalDateTime now = LocalDateTime.now();
+        this.dosTime = (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() >> 1);
+        this.dosDate = ((now.getYear() - 1980) << 9) | (now.getMonthValue() << 5) | now.getDayOfMonth();
+        this.writerThread = new Thread(this::writeEntries, "zip-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Adds an entry with the given data. The data are compressed in the background.
+     */
+    public void addData(String pathInZip, byte[] data) throws IOException {
+        String entryName = toEntryName(pathInZip);
+        enqueue(() -> compress(entryName, new ByteArrayInputStream(data), data.length));
+    }
+
+    /**
+     * Opens a new entry whose data are written into the returned EntryOutputStream. The data are kept in memory, or in
+     * a temporary file as soon as they get larger than MAX_IN_MEMORY_SIZE. Closing the EntryOutputStream adds the
+     * entry to the zip and the data are compressed in the background. Discarding it instead doesn't add the entry.
+     */
+    public EntryOutputStream newEntry(String pathInZip) throws IOException {
+        if (closed) throw new IOException("Zip writer is already closed");
+        return new EntryOutputStream(toEntryName(pathInZip));
+    }
+
+    /**
+     * Adds the file under the given path in the zip. The file is read and compressed (or only stored if it's already
+     * compressed) in the background.
+     */
+    public void addFile(String pathInZip, Path file) throws IOException {
+        String entryName = toEntryName(pathInZip);
+        if (storeAllFiles || ZipUtil.isIncompressible(file)) {
+            enqueue(() -> store(entryName, file));
+        } else {
+            enqueue(() -> {
+                try (InputStream in = Files.newInputStream(file)) {
+                    return compress(entryName, in, Files.size(file));
+                }
+            });
+        }
+    }
+
+    /**
+     * Same as addFile but the file is deleted after it was compressed
+     */
+    public void addTemporaryFile(String pathInZip, Path file) throws IOException {
+        addTemporaryFileEntry(toEntryName(pathInZip), file);
+    }
+
+    private void addTemporaryFileEntry(String entryName, Path file) throws IOException {
+        enqueue(() -> {
+            try (InputStream in = Files.newInputStream(file)) {
+                return compress(entryName, in, Files.size(file));
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        });
+    }
+
+    private void enqueue(Callable<PreparedEntry> task) throws IOException {
+        if (closed) throw new IOException("Zip writer is already closed");
+        checkWriterError();
+        try {
+            queue.put(executor.submit(task));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while adding an entry to the zip");
+        }
+    }
+
+    /**
+     * Waits until all entries are written, writes the central directory and closes the OutputStream. The OutputStream
+     * is closed in any case, even if the waiting is interrupted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            try {
+                queue.put(END_OF_ENTRIES);
+                writerThread.join();
+            } catch (InterruptedException e) {
+                writerThread.interrupt();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while finishing the zip");
+            }
+            checkWriterError();
+            writeCentralDirectory();
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void checkWriterError() throws IOException {
+        if (writerError == null) return;
+        if (writerError instanceof IOException) throw (IOException) writerError;
+        throw new IOException(writerError);
+    }
+
+    /**
+     * Runs in the writer thread: takes the compressed entries in order and writes them. After an error it only
+     * discards the remaining entries so the producer isn't blocked.
+     */
+    private void writeEntries() {
+        while (true) {
+            Future<PreparedEntry> future;
+            try {
+                future = queue.take();
+            } catch (InterruptedException e) {
+                writerError = e;
+                return;
+            }
+            if (future == END_OF_ENTRIES) return;
+            PreparedEntry entry = null;
+            try {
+                entry = future.get();
+                if (writerError == null) writeEntry(entry);
+            } catch (ExecutionException e) {
+                if (writerError == null) writerError = e.getCause();
+            } catch (Throwable e) {
+                if (writerError == null) writerError = e;
+            } finally {
+                if (entry != null) entry.discard();
+            }
+        }
+    }
+
+    private PreparedEntry compress(String entryName, InputStream in, long expectedSize) throws IOException {
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        Path tmpFile = expectedSize > MAX_IN_MEMORY_SIZE
+                ? Files.createTempFile("zipentry", ".tmp") : null;
+        ByteArrayOutputStream buffer = tmpFile == null
+                ? new ByteArrayOutputStream((int) Math.max(64, expectedSize / 2)) : null;
+        long size = 0;
+        try (OutputStream target = tmpFile != null ? Files.newOutputStream(tmpFile) : buffer;
+             DeflaterOutputStream deflaterOut = new DeflaterOutputStream(target, deflater, BUFFER_SIZE)) {
+            byte[] bytes = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = in.read(bytes)) != -1) {
+                crc.update(bytes, 0, length);
+                deflaterOut.write(bytes, 0, length);
+                size += length;
+            }
+            deflaterOut.finish();
+        } catch (IOException | RuntimeException e) {
+            if (tmpFile != null) Files.deleteIfExists(tmpFile);
+            throw e;
+        } finally {
+            deflater.end();
+        }
+        return tmpFile != null
+                ? new PreparedEntry(entryName, METHOD_DEFLATED, crc.getValue(), size, Files.size(tmpFile), null,
+                tmpFile, true)
+                : new PreparedEntry(entryName, METHOD_DEFLATED, crc.getValue(), size, buffer.size(),
+                buffer.toByteArray(), null, false);
+    }
+
+    /**
+     * Prepares a STORED entry: small files are read into memory, large ones are copied later on by the writer which
+     * calculates their CRC on the way.
+     */
+    private PreparedEntry store(String entryName, Path file) throws IOException {
+        long size = Files.size(file);
+        if (size <= MAX_IN_MEMORY_SIZE) {
+            byte[] data = Files.readAllBytes(file);
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            return new PreparedEntry(entryName, METHOD_STORED, crc.getValue(), data.length, data.length, data, null,
+                    false);
+        } else {
+            return new PreparedEntry(entryName, METHOD_STORED, PreparedEntry.CRC_UNKNOWN, size, size, null, file,
+                    false);
+        }
+    }
+
+    private void writeEntry(PreparedEntry entry) throws IOException {
+        long offset = out.getCount();
+        byte[] name = entry.name.getBytes(UTF_8);
+        boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+        // The CRC of large STORED files is calculated while they are copied and written in a data descriptor
+        boolean dataDescriptor = entry.crc == PreparedEntry.CRC_UNKNOWN;
+
+        writeInt(0x04034b50);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(dataDescriptor ? FLAG_UTF8 | FLAG_DATA_DESCRIPTOR : FLAG_UTF8);
+        writeShort(entry.method);
+        writeShort(dosTime);
+        writeShort(dosDate);
+        writeInt(dataDescriptor ? 0 : entry.crc);
+        writeInt(zip64 ? ZIP64_MAGIC : entry.compressedSize);
+        writeInt(zip64 ? ZIP64_MAGIC : entry.size);
+        writeShort(name.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(name);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(entry.size);
+            writeLong(entry.compressedSize);
+        }
+
+        long crc = entry.crc;
+        if (entry.data != null) {
+            out.write(entry.data);
+        } else if (dataDescriptor) {
+            crc = copyFile(entry.file, entry.compressedSize, new CRC32());
+            writeInt(0x08074b50);
+            writeInt(crc);
+            if (zip64) {
+                writeLong(entry.compressedSize);
+                writeLong(entry.size);
+            } else {
+                writeInt(entry.compressedSize);
+                writeInt(entry.size);
+            }
+        } else {
+            copyFile(entry.file, entry.compressedSize, null);
+        }
+        centralDirectory.add(new CentralDirectoryEntry(name, entry.method, crc, entry.size, entry.compressedSize,
+                offset, dataDescriptor));
+    }
+
+    /**
+     * Copies the file with a large buffer and updates the CRC (if given) on the way. Checks that the file still has the
+     * size that was written into the header.
+     *
+     * @return The CRC value or -1 if no CRC was given
+     */
+    private long copyFile(Path file, long expectedSize, CRC32 crc) throws IOException {
+        long copied = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            int length;
+            while ((length = channel.read(buffer)) != -1) {
+                if (crc != null) crc.update(buffer.array(), 0, length);
+                out.write(buffer.array(), 0, length);
+                copied += length;
+                buffer.clear();
+            }
+        }
+        if (copied != expectedSize) throw new IOException("File " + file + " changed while it was added to the zip");
+        return crc != null ? crc.getValue() : -1;
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralDirectoryOffset = out.getCount();
+        for (CentralDirectoryEntry entry : centralDirectory) {
+            boolean sizeZip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+            boolean offsetZip64 = entry.offset >= ZIP64_MAGIC;
+            int extraLength = (sizeZip64 ? 16 : 0) + (offsetZip64 ? 8 : 0);
+
+            writeInt(0x02014b50);
+            writeShort(VERSION_ZIP64);
+            writeShort(sizeZip64 || offsetZip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+            writeShort(entry.dataDescriptor ? FLAG_UTF8 | FLAG_DATA_DESCRIPTOR : FLAG_UTF8);
+            writeShort(entry.method);
+            writeShort(dosTime);
+            writeShort(dosDate);
+            writeInt(entry.crc);
+            writeInt(sizeZip64 ? ZIP64_MAGIC : entry.compressedSize);
+            writeInt(sizeZip64 ? ZIP64_MAGIC : entry.size);
+            writeShort(entry.name.length);
+            writeShort(extraLength > 0 ? extraLength + 4 : 0);
+            writeShort(0); // comment length
+            writeShort(0); // disk number start
+            writeShort(0); // internal file attributes
+            writeInt(0); // external file attributes
+            writeInt(offsetZip64 ? ZIP64_MAGIC : entry.offset);
+            out.write(entry.name);
+            if (extraLength > 0) {
+                writeShort(0x0001);
+                writeShort(extraLength);
+                if (sizeZip64) {
+                    writeLong(entry.size);
+                    writeLong(entry.compressedSize);
+                }
+                if (offsetZip64) writeLong(entry.offset);
+            }
+        }
+        long centralDirectorySize = out.getCount() - centralDirectoryOffset;
+        int entryCount = centralDirectory.size();
+
+        boolean zip64 = entryCount >= ZIP64_MAGIC_COUNT || centralDirectorySize >= ZIP64_MAGIC
+                || centralDirectoryOffset >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = out.getCount();
+            // ZIP64 end of central directory record
+            writeInt(0x06064b50);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entryCount);
+            writeLong(entryCount);
+            writeLong(centralDirectorySize);
+            writeLong(centralDirectoryOffset);
+            // ZIP64 end of central directory locator
+            writeInt(0x07064b50);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+        // End of central directory record
+        writeInt(0x06054b50);
+        writeShort(0);
+        writeShort(0);
+        writeShort(zip64 ? ZIP64_MAGIC_COUNT : entryCount);
+        writeShort(zip64 ? ZIP64_MAGIC_COUNT : entryCount);
+        writeInt(zip64 ? ZIP64_MAGIC : centralDirectorySize);
+        writeInt(zip64 ? ZIP64_MAGIC : centralDirectoryOffset);
+        writeShort(0);
+    }
+
+    private static String toEntryName(String pathInZip) {
+        return pathInZip.replace("\\", "/");
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value & ZIP64_MAGIC);
+        writeInt(value >>> 32);
+    }
+
+    /**
+     * Collects the data of an entry that is added with newEntry. Once the data exceed MAX_IN_MEMORY_SIZE they are
+     * moved into a temporary file, so large entries don't have to fit into memory.
+     */
+    public class EntryOutputStream extends OutputStream {
+
+        private final String entryName;
+        private InMemoryBuffer memory = new InMemoryBuffer();
+        private Path tmpFile;
+        private OutputStream fileOut;
+        private boolean done = false;
+
+        private EntryOutputStream(String entryName) {
+            this.entryName = entryName;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (done) throw new IOException("Zip entry " + entryName + " is already closed");
+            if (fileOut == null && memory.size() + len > MAX_IN_MEMORY_SIZE) spillToFile();
+            if (fileOut != null) {
+                fileOut.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+        }
+
+        private void spillToFile() throws IOException {
+            tmpFile = Files.createTempFile("zipentry", ".tmp");
+            fileOut = new BufferedOutputStream(Files.newOutputStream(tmpFile), COPY_BUFFER_SIZE);
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (fileOut != null) fileOut.flush();
+        }
+
+        /**
+         * Adds the entry to the zip
+         */
+        @Override
+        public void close() throws IOException {
+            if (done) return;
+            done = true;
+            if (fileOut != null) {
+                try {
+                    fileOut.close();
+                } catch (IOException e) {
+                    Files.deleteIfExists(tmpFile);
+                    throw e;
+                }
+                addTemporaryFileEntry(entryName, tmpFile);
+            } else {
+                InMemoryBuffer data = memory;
+                enqueue(() -> compress(entryName, data.toInputStream(), data.size()));
+            }
+        }
+
+        /**
+         * Drops the entry without adding it to the zip. Does nothing if the entry was already closed.
+         */
+        public void discard() {
+            if (done) return;
+            done = true;
+            memory = null;
+            if (fileOut == null) return;
+            try {
+                fileOut.close();
+                Files.deleteIfExists(tmpFile);
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't delete temporary zip entry file " + tmpFile);
+            }
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream that can be read without copying its buffer
+     */
+    private static class InMemoryBuffer extends ByteArrayOutputStream {
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * An entry that is ready to be written: either its (compressed) data are in memory or in a file
+     */
+    private static class PreparedEntry {
+
+        /**
+         * The CRC isn't known yet - it's calculated while the entry's file is written
+         */
+        static final long CRC_UNKNOWN = -1;
+
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final byte[] data;
+        private final Path file;
+        private final boolean temporaryFile;
+
+        PreparedEntry(String name, int method, long crc, long size, long compressedSize, byte[] data, Path file,
+                boolean temporaryFile) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.data = data;
+            this.file = file;
+            this.temporaryFile = temporaryFile;
+        }
+
+        void discard() {
+            if (file == null || !temporaryFile) return;
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't delete temporary zip entry file " + file);
+            }
+        }
+    }
+
+    private static class CentralDirectoryEntry {
+
+        private final byte[] name;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final long offset;
+        private final boolean dataDescriptor;
+
+        CentralDirectoryEntry(byte[] name, int method, long crc, long size, long compressedSize, long offset,
+                boolean dataDescriptor) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.offset = offset;
+            this.dataDescriptor = dataDescriptor;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
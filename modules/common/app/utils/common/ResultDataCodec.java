@@ -0,0 +1,100 @@
+package utils.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Codecs that can be used to store result data compressed in the database (configured by
+ * jatos.resultData.compression). NONE means the result data are stored as plain text. The name of the codec is stored
+ * together with the compressed data, so data compressed with one codec can still be read after the configuration
+ * changed.
+ *
+ * @author Kristian Lange
+ */
+public enum ResultDataCodec {
+
+    NONE, DEFLATE, GZIP;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Returns the codec with the given name (case-insensitive). Null or an empty String is NONE.
+     */
+    public static ResultDataCodec fromName(String name) {
+        if (name == null || name.trim().isEmpty()) return NONE;
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown result data compression '" + name
+                    + "' (allowed are 'none', 'deflate' and 'gzip')");
+        }
+    }
+
+    /**
+     * Encodes the String in UTF-8 and compresses it
+     */
+    public byte[] compress(String data) {
+        if (this == NONE) return data.getBytes(UTF_8);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (OutputStream out = compressingStream(baos)) {
+            out.write(data.getBytes(UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Decompresses the bytes and decodes them in UTF-8
+     */
+    public String decompress(byte[] data) {
+        if (this == NONE) return new String(data, UTF_8);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InputStream in = decompressingStream(new ByteArrayInputStream(data))) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                baos.write(buffer, 0, length);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(baos.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Wraps the given InputStream so that reading from it returns the decompressed bytes
+     */
+    public InputStream decompressingStream(InputStream in) throws IOException {
+        switch (this) {
+            case DEFLATE:
+                return new InflaterInputStream(in);
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            default:
+                return in;
+        }
+    }
+
+    private OutputStream compressingStream(OutputStream out) throws IOException {
+        switch (this) {
+            case DEFLATE:
+                return new DeflaterOutputStream(out);
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            default:
+                return out;
+        }
+    }
+
+}
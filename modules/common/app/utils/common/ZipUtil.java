@@ -8,8 +8,12 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -31,6 +35,17 @@ public class ZipUtil {
      */
     private static final String ZIP_FILE_SEPARATOR = "/";
 
+    /**
+     * Extensions of files that are already compressed (images, audio, video, archives). Deflating them again costs CPU
+     * and gains nothing, so result exports (ParallelZipWriter) store them in the zip as they are.
+     */
+    private static final Set<String> INCOMPRESSIBLE_FILE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+            "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac", "weba",
+            "mp4", "m4v", "webm", "mov", "mkv", "avi", "ogv",
+            "zip", "jzip", "jrzip", "gz", "tgz", "bz2", "xz", "7z", "rar",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp"));
+
     /**
      * Unzips the given File. Creates a new directory in the system's temp directory and writes the
      * zip's content in there. The method can handle recursive unzipping of sub-directories.
@@ -149,21 +164,13 @@ public class ZipUtil {
     }
 
     /**
-     * Writes the given data as a file to the zip stream using pathInZip as the path in the zip package
+     * Returns true if the file is of a type that is already compressed (decided by the file's extension)
      */
-    public static void addDataToZip(ZipOutputStream zipOut, String data, String pathInZip) throws IOException {
-        if (data != null) {
-            ByteArrayInputStream bais = new ByteArrayInputStream(data.getBytes());
-            ZipEntry zipEntry = new ZipEntry(pathInZip.replace("\\", ZIP_FILE_SEPARATOR));
-            zipOut.putNextEntry(zipEntry);
-
-            byte[] bytes = new byte[1024];
-            int length;
-            while ((length = bais.read(bytes)) >= 0) {
-                zipOut.write(bytes, 0, length);
-            }
-            bais.close();
-        }
+    public static boolean isIncompressible(Path file) {
+        String filename = file.getFileName().toString();
+        int dotIndex = filename.lastIndexOf('.');
+        if (dotIndex < 0) return false;
+        return INCOMPRESSIBLE_FILE_EXTENSIONS.contains(filename.substring(dotIndex + 1).toLowerCase(Locale.ROOT));
     }
 
 }
@@ -0,0 +1,15 @@
+# --- Add table ComponentResultDataChunk for chunked (append-only) storage of result data
+
+# --- !Ups
+CREATE TABLE `ComponentResultDataChunk` (
+  `componentResult_id` bigint(20) NOT NULL,
+  `seq` int(11) NOT NULL,
+  `data` longtext,
+  PRIMARY KEY (`componentResult_id`, `seq`)
+) DEFAULT CHARSET=utf8;
+
+ALTER TABLE `ComponentResultDataChunk` ADD CONSTRAINT `FK_crdc_componentResult_id` FOREIGN KEY (`componentResult_id`)
+    REFERENCES `ComponentResult` (`id`) ON DELETE CASCADE;
+
+# --- !Downs
+# --- not supported
@@ -0,0 +1,10 @@
+# --- Add dataCompressed, dataCodec and dataStoredSize to ComponentResult table (compressed result data)
+
+# --- !Ups
+ALTER TABLE `ComponentResult` ADD `dataCompressed` longblob DEFAULT NULL;
+ALTER TABLE `ComponentResult` ADD `dataCodec` varchar(31) DEFAULT NULL;
+ALTER TABLE `ComponentResult` ADD `dataStoredSize` bigint(20) DEFAULT NULL;
+UPDATE `ComponentResult` SET `dataStoredSize` = `dataSize`;
+
+# --- !Downs
+# --- not supported
@@ -0,0 +1,19 @@
+# --- Add table ResultFile: index of the uploaded result files (avoids directory listings of the result uploads)
+
+# --- !Ups
+CREATE TABLE `ResultFile` (
+  `componentResult_id` bigint(20) NOT NULL,
+  `filename` varchar(255) NOT NULL,
+  `studyResult_id` bigint(20) NOT NULL,
+  `size` bigint(20) NOT NULL,
+  `hash` varchar(64) DEFAULT NULL,
+  `uploadDate` datetime NOT NULL,
+  PRIMARY KEY (`componentResult_id`, `filename`)
+) DEFAULT CHARSET=utf8;
+
+ALTER TABLE `ResultFile` ADD KEY `IDX_rf_studyResult_id` (`studyResult_id`);
+ALTER TABLE `ResultFile` ADD CONSTRAINT `FK_rf_componentResult_id` FOREIGN KEY (`componentResult_id`)
+    REFERENCES `ComponentResult` (`id`) ON DELETE CASCADE;
+
+# --- !Downs
+# --- not supported
@@ -0,0 +1,18 @@
+# --- Add table GroupSessionPatch (append-only log of group session patches) and GroupResult.groupSessionSnapshotVersion
+
+# --- !Ups
+ALTER TABLE `GroupResult` ADD `groupSessionSnapshotVersion` bigint(20) NOT NULL DEFAULT 1;
+UPDATE `GroupResult` SET `groupSessionSnapshotVersion` = `groupSessionVersion`;
+
+CREATE TABLE `GroupSessionPatch` (
+  `groupResult_id` bigint(20) NOT NULL,
+  `version` bigint(20) NOT NULL,
+  `patches` longtext NOT NULL,
+  PRIMARY KEY (`groupResult_id`, `version`)
+) DEFAULT CHARSET=utf8;
+
+ALTER TABLE `GroupSessionPatch` ADD CONSTRAINT `FK_gsp_groupResult_id` FOREIGN KEY (`groupResult_id`)
+    REFERENCES `GroupResult` (`id`) ON DELETE CASCADE;
+
+# --- !Downs
+# --- not supported
@@ -0,0 +1,7 @@
+# --- Add Batch.patchCoalescingWindow
+
+# --- !Ups
+ALTER TABLE `Batch` ADD `patchCoalescingWindow` int(11) DEFAULT NULL;
+
+# --- !Downs
+# --- not supported
@@ -0,0 +1,7 @@
+# --- Add Batch.minActiveMembers
+
+# --- !Ups
+ALTER TABLE `Batch` ADD `minActiveMembers` int(11) DEFAULT NULL;
+
+# --- !Downs
+# --- not supported
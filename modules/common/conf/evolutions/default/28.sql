@@ -0,0 +1,10 @@
+# --- Add dataChunkCount to ComponentResult to get the sequence number of a new data chunk atomically
+
+# --- !Ups
+ALTER TABLE `ComponentResult` ADD `dataChunkCount` int(11) NOT NULL DEFAULT 0;
+
+UPDATE `ComponentResult` cr SET cr.`dataChunkCount` = (SELECT COALESCE(MAX(crdc.`seq`) + 1, 0)
+    FROM `ComponentResultDataChunk` crdc WHERE crdc.`componentResult_id` = cr.`id`);
+
+# --- !Downs
+# --- not supported
@@ -0,0 +1,8 @@
+# --- Add dataCompressed and dataCodec to ComponentResultDataChunk (compressed appended result data)
+
+# --- !Ups
+ALTER TABLE `ComponentResultDataChunk` ADD `dataCompressed` longblob DEFAULT NULL;
+ALTER TABLE `ComponentResultDataChunk` ADD `dataCodec` varchar(31) DEFAULT NULL;
+
+# --- !Downs
+# --- not supported
@@ -0,0 +1,11 @@
+# --- Add table JatosMigration that records which JATOS migrations (not evolutions) are finished
+
+# --- !Ups
+CREATE TABLE `JatosMigration` (
+  `name` varchar(255) NOT NULL,
+  `finishedDate` datetime DEFAULT NULL,
+  PRIMARY KEY (`name`)
+) DEFAULT CHARSET=utf8;
+
+# --- !Downs
+# --- not supported
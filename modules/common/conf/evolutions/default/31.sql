@@ -0,0 +1,8 @@
+# --- Add indexes on StudyResult's study code and last seen date (the foreign keys are already indexed)
+
+# --- !Ups
+CREATE INDEX `IDX_StudyResult_studyLink` ON `StudyResult` (`studyLink_studyCode`);
+CREATE INDEX `IDX_StudyResult_lastSeenDate` ON `StudyResult` (`lastSeenDate`);
+
+# --- !Downs
+# --- not supported
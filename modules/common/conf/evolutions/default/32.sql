@@ -0,0 +1,23 @@
+# --- Add table ResultExportJob that keeps the asynchronous result exports (shared by all nodes of a cluster)
+
+# --- !Ups
+CREATE TABLE `ResultExportJob` (
+  `id` varchar(255) NOT NULL,
+  `username` varchar(255) DEFAULT NULL,
+  `type` varchar(255) DEFAULT NULL,
+  `asPlainText` bit(1) NOT NULL,
+  `state` varchar(255) DEFAULT NULL,
+  `resultsTotal` bigint(20) NOT NULL,
+  `resultsWritten` bigint(20) NOT NULL,
+  `filename` varchar(255) DEFAULT NULL,
+  `nextCursor` longtext,
+  `error` longtext,
+  `creationDate` datetime DEFAULT NULL,
+  `startDate` datetime DEFAULT NULL,
+  `endDate` datetime DEFAULT NULL,
+  PRIMARY KEY (`id`),
+  KEY `IDX_ResultExportJob_username` (`username`)
+) DEFAULT CHARSET=utf8;
+
+# --- !Downs
+# --- not supported
@@ -0,0 +1,7 @@
+# --- Add GroupResult.started - existing groups already started
+
+# --- !Ups
+ALTER TABLE `GroupResult` ADD COLUMN `started` tinyint(1) DEFAULT 1 NOT NULL;
+
+# --- !Downs
+# --- not supported
@@ -6,12 +6,17 @@ import * as WaitingModal from "../waitingModal.js";
 
 /*
  * Handles toolbars in the result pages (study, component, worker). Draws two rows (upper and lower) with buttons for
- * refresh, export, delete, select, filter, filter builder, customization of the table and page size
+ * refresh, export, delete, select, filter, filter builder, customization of the table and page size. With server-side
+ * processing only the current page is loaded: the filter and filter builder are replaced by the server filter (state
+ * and start date) and only the visible results can be selected.
  */
 class Toolbars {
 
-    constructor({ dataTable, type, exportResultsCallback, deleteSelectedResultsCallback }) {
+    constructor({ dataTable, type, serverSide = false, states = [], exportResultsCallback,
+                    deleteSelectedResultsCallback }) {
         this.dataTable = dataTable;
+        this.serverSide = serverSide;
+        this.states = states;
         this.btnClass = `btn-${type}`;
         this.dropdownClass = `dropdown-item-${type}`;
         this.exportResultsCallback = exportResultsCallback;
@@ -24,7 +29,11 @@ class Toolbars {
         this.generateUpper();
         this.generateLower();
         this.listenToSelects();
-        this.listenToSearch();
+        if (this.serverSide) {
+            this.listenToServerFilter();
+        } else {
+            this.listenToSearch();
+        }
 
         this.dataTable.on('draw', () => {
             this.drawAllSelectCheckboxes();
@@ -197,52 +206,56 @@ class Toolbars {
     // Lower toolbar contains select buttons, filter/search, SearchBuilder, customization button, and table length
     generateLower = () => {
         const dataTable = this.dataTable;
-        new $.fn.dataTable.Buttons(dataTable, {
-            "name": "selectButtonGroup",
-            "buttons": [
-                {
-                    "extend": "selectAll",
-                    "text": "All",
-                    "attr": {
-                        "data-bs-tooltip": "Select all results (including the ones on different table pages)"
-                    }
+        const selectButtons = [
+            {
+                "extend": "selectAll",
+                "text": "All",
+                "attr": {
+                    "data-bs-tooltip": "Select all results (including the ones on different table pages)"
+                }
+            },
+            {
+                "extends": "selectAll",
+                "text": "Visible",
+                "attr": {
+                    "data-bs-tooltip": "Select only the currently visible results on this page"
                 },
-                {
-                    "extends": "selectAll",
-                    "text": "Visible",
-                    "attr": {
-                        "data-bs-tooltip": "Select only the currently visible results on this page"
-                    },
-                    "action": (e, dt, node, config) => {
-                        $(node).tooltip("dispose");
-                        dt.rows().deselect();
-                        dt.rows({ page: 'current' }).select();
-                    },
+                "action": (e, dt, node, config) => {
+                    $(node).tooltip("dispose");
+                    dt.rows().deselect();
+                    dt.rows({ page: 'current' }).select();
                 },
-                {
-                    "extends": "selectAll",
-                    "text": "Filtered",
-                    "attr": {
-                        "data-bs-tooltip": "Select only the filtered results (including the ones on different table pages)"
-                    },
-                    "action": (e, dt, node, config) => {
-                        $(node).tooltip("dispose");
-                        dt.rows().deselect();
-                        dt.rows({ search: 'applied' }).select();
-                    },
+            },
+            {
+                "extends": "selectAll",
+                "text": "Filtered",
+                "attr": {
+                    "data-bs-tooltip": "Select only the filtered results (including the ones on different table pages)"
                 },
-                {
-                    "extend": "selectNone",
-                    "text": "Deselect",
-                    "attr": {
-                        "data-bs-tooltip": "Deselect all results"
-                    },
-                    "action": (e, dt, node, config) => {
-                        $(node).tooltip("dispose");
-                        dt.rows().deselect();
-                    },
-                }
-            ]
+                "action": (e, dt, node, config) => {
+                    $(node).tooltip("dispose");
+                    dt.rows().deselect();
+                    dt.rows({ search: 'applied' }).select();
+                },
+            },
+            {
+                "extend": "selectNone",
+                "text": "Deselect",
+                "attr": {
+                    "data-bs-tooltip": "Deselect all results"
+                },
+                "action": (e, dt, node, config) => {
+                    $(node).tooltip("dispose");
+                    dt.rows().deselect();
+                },
+            }
+        ];
+        new $.fn.dataTable.Buttons(dataTable, {
+            "name": "selectButtonGroup",
+            // With server-side processing we can't select results on other table pages
+            "buttons": this.serverSide
+                ? selectButtons.filter(button => button.text === "Visible" || button.text === "Deselect")
+                : selectButtons
         });
         new $.fn.dataTable.Buttons(dataTable, {
             "name": "customizeButton",
@@ -269,9 +282,16 @@ class Toolbars {
         // Filter - swap dataTables filter field with our own
         $(".dt-search").remove();
 
-        // Search Builder
-        $("#resultsTableLowerToolbar").after(dataTable.searchBuilder.container());
-        $(".dtsb-searchBuilder").addClass("collapse card card-body ms-2 my-2");
+        if (this.serverSide) {
+            // Server filter instead of filter and Search Builder
+            $('#resultsTableSearch').remove();
+            this.states.forEach(state => $('#resultsTableServerFilter .state').append(new Option(state, state)));
+            $('#resultsTableServerFilter').removeClass("d-none");
+        } else {
+            // Search Builder
+            $("#resultsTableLowerToolbar").after(dataTable.searchBuilder.container());
+            $(".dtsb-searchBuilder").addClass("collapse card card-body ms-2 my-2");
+        }
 
         // Customize button
         dataTable.buttons('customizeButton', null).containers().appendTo('#resultsTableCustomize');
@@ -325,6 +345,11 @@ class Toolbars {
         $('#resultsTableSearch button.regex, button.case-sensitive').on('click', searchCallback);
     }
 
+    // The server filter's values are read in the ajax request (see utils.js) - we only have to reload the table
+    listenToServerFilter = () => {
+        $('#resultsTableServerFilter').on('change', 'select, input', () => this.dataTable.ajax.reload());
+    }
+
     toggleDeselectAllButton = () => {
         if (this.dataTable.rows('.selected').any()) {
             this.dataTable.buttons(['.buttons-select-none']).enable();
@@ -1,6 +1,82 @@
-export { isAllSelected }
+export { isAllSelected, getServerSideOptions, restrictOrderable }
+
+import * as Alerts from '../alerts.js';
 
 const isAllSelected = () => {
     const dataTable = $("#resultsTable").DataTable();
+    // With server-side processing only the current page is loaded - one can never select all results
+    if (dataTable.page.info().serverSide) return false;
     return dataTable.rows({selected: true}).count() == dataTable.rows().count();
-}
\ No newline at end of file
+}
+
+/*
+ * DataTables options for server-side processing: used if a table has too many results to load them all at once into
+ * the browser. Paging, sorting, and filtering are then done in the database (see ResultTableService). They override
+ * the table's options for client-side processing.
+ *
+ * @param {string} url - URL of the table data page endpoint
+ * @param {string[]} sortColumns - Columns (their 'data' property) the database can sort by
+ * @param {number} maxPageLength - Max number of results JATOS fetches from the database at once
+ */
+const getServerSideOptions = (url, sortColumns, maxPageLength) => {
+    const pageLengths = [10, 25, 50, 100, 250, 500, 1000].filter(length => length < maxPageLength);
+    pageLengths.push(maxPageLength);
+    return {
+        "serverSide": true,
+        "processing": true,
+        "ajax": {
+            "url": url,
+            "data": (d) => getServerSideParams(d, sortColumns),
+            "error": () => Alerts.error("Error reading result data")
+        },
+        "lengthMenu": [pageLengths, pageLengths],
+        "pageLength": pageLengths[0],
+        // Filtering is done by the server filter in the toolbar
+        "searchBuilder": false,
+        "stateLoadParams": function (settings, data) {
+            // The saved state might be from client-side processing
+            if (!pageLengths.includes(data.length)) data.length = pageLengths[0];
+        }
+    };
+}
+
+/*
+ * Translates the DataTables request into the query parameters of the table data page endpoint
+ */
+const getServerSideParams = (d, sortColumns) => {
+    const order = d.order.length > 0 ? d.order[0] : null;
+    const sortBy = order ? d.columns[order.column].data : null;
+    const isSortable = sortColumns.includes(sortBy);
+    const params = {
+        "draw": d.draw,
+        "start": d.start,
+        "length": d.length,
+        "sortBy": isSortable ? sortBy : "id",
+        "sortDir": isSortable ? order.dir : "desc"
+    };
+    const state = $('#resultsTableServerFilter .state').val();
+    if (state) params.state = state;
+    // Dates are days in local time - 'toDate' is exclusive, so we take the beginning of the next day
+    const fromDate = $('#resultsTableServerFilter .from-date').val();
+    if (fromDate) params.fromDate = new Date(`${fromDate}T00:00`).getTime();
+    const toDate = $('#resultsTableServerFilter .to-date').val();
+    if (toDate) {
+        const nextDay = new Date(`${toDate}T00:00`);
+        nextDay.setDate(nextDay.getDate() + 1);
+        params.toDate = nextDay.getTime();
+    }
+    return params;
+}
+
+/*
+ * With server-side processing only the columns that the database can sort by are orderable
+ *
+ * @param {object[]} columns - DataTables column definitions
+ * @param {string[]} sortColumns - Columns (their 'data' property) the database can sort by or null for client-side
+ *                                 processing
+ */
+const restrictOrderable = (columns, sortColumns) => {
+    if (!sortColumns) return columns;
+    columns.filter(column => !sortColumns.includes(column.data)).forEach(column => column.orderable = false);
+    return columns;
+}
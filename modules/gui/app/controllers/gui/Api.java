@@ -16,6 +16,7 @@ import general.common.Common;
 import general.common.RequestScope;
 import general.common.StudyLogger;
 import models.common.ComponentResult;
+import models.common.ResultExportJob;
 import models.common.Study;
 import models.common.User;
 import play.Logger;
@@ -25,6 +26,7 @@ import play.http.HttpEntity;
 import play.libs.Json;
 import play.mvc.Controller;
 import play.mvc.Http;
+import play.mvc.RangeResults;
 import play.mvc.ResponseHeader;
 import play.mvc.Result;
 import scala.Option;
@@ -43,6 +45,7 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -75,6 +78,7 @@ public class Api extends Controller {
     private final ImportExport importExport;
     private final ResultRemover resultRemover;
     private final ResultStreamer resultStreamer;
+    private final ResultExportJobService resultExportJobService;
     private final Checker checker;
     private final JsonUtils jsonUtils;
     private final StudyLogger studyLogger;
@@ -86,7 +90,8 @@ public class Api extends Controller {
             StudyDao studyDao, ComponentResultDao componentResultDao, StudyService studyService,
             StudyLinkService studyLinkService,
             ImportExport importExport, ResultRemover resultRemover,
-            ResultStreamer resultStreamer, Checker checker, JsonUtils jsonUtils,
+            ResultStreamer resultStreamer, ResultExportJobService resultExportJobService, Checker checker,
+            JsonUtils jsonUtils,
             StudyLogger studyLogger, IOUtils ioUtils) {
         this.admin = admin;
         this.adminService = adminService;
@@ -99,6 +104,7 @@ public class Api extends Controller {
         this.importExport = importExport;
         this.resultRemover = resultRemover;
         this.resultStreamer = resultStreamer;
+        this.resultExportJobService = resultExportJobService;
         this.checker = checker;
         this.jsonUtils = jsonUtils;
         this.studyLogger = studyLogger;
@@ -402,20 +408,22 @@ public class Api extends Controller {
      * Returns results (including metadata, data, and files) in a zip file. The results are specified by IDs (can be
      * nearly any kind) in the request's body or as query parameters. Streaming is used to reduce memory and disk usage.
      *
-     * @param isApiCall If true the response JSON gets an additional 'apiVersion' field
+     * @param isApiCall         If true the response JSON gets an additional 'apiVersion' field
+     * @param uncompressedFiles If true all result files are stored in the zip without compression (already compressed
+     *                          files like images or videos are always stored without compression)
      */
     @Transactional
     @Auth
-    public Result exportResults(Http.Request request, Boolean isApiCall) throws BadRequestException {
-        Map<String, Object> wrapperObject = isApiCall
-                ? Collections.singletonMap("apiVersion", Common.getJatosApiVersion())
-                : Collections.emptyMap();
+    public Result exportResults(Http.Request request, Boolean isApiCall, Boolean uncompressedFiles)
+            throws BadRequestException {
+        Map<String, Object> wrapperObject = new LinkedHashMap<>();
+        if (isApiCall) wrapperObject.put("apiVersion", Common.getJatosApiVersion());
         Source<ByteString, ?> dataSource = resultStreamer.streamResults(request, ResultStreamer.ResultType.COMBINED,
-                wrapperObject);
+                wrapperObject, uncompressedFiles);
         String filename = HttpHeaderParameterEncoding.encode("filename", "jatos_results_"
                 + Helpers.getDateTimeYyyyMMddHHmmss() + ".jrzip");
-        return ok().chunked(dataSource).as("application/zip")
-                .withHeader(Http.HeaderNames.CONTENT_DISPOSITION, "attachment; " + filename);
+        return withNextCursor(ok().chunked(dataSource).as("application/zip")
+                .withHeader(Http.HeaderNames.CONTENT_DISPOSITION, "attachment; " + filename), wrapperObject);
     }
 
     /**
@@ -428,18 +436,17 @@ public class Api extends Controller {
     @Auth
     public Result exportResultMetadata(Http.Request request, Boolean isApiCall)
             throws ForbiddenException, BadRequestException, NotFoundException, IOException {
-        Map<String, Object> wrapperObject = isApiCall
-                ? Collections.singletonMap("apiVersion", Common.getJatosApiVersion())
-                : Collections.emptyMap();
+        Map<String, Object> wrapperObject = new LinkedHashMap<>();
+        if (isApiCall) wrapperObject.put("apiVersion", Common.getJatosApiVersion());
         File file = resultStreamer.writeResultMetadata(request, wrapperObject);
         String filename = HttpHeaderParameterEncoding.encode("filename", "jatos_results_metadata_"
                 + Helpers.getDateTimeYyyyMMddHHmmss() + ".json");
         //noinspection ResultOfMethodCallIgnored
-        return ok().streamed(
+        return withNextCursor(ok().streamed(
                         Helpers.okFileStreamed(file, file::delete),
                         Optional.of(file.length()),
                         Optional.of("application/json"))
-                .withHeader(Http.HeaderNames.CONTENT_DISPOSITION, "attachment; " + filename);
+                .withHeader(Http.HeaderNames.CONTENT_DISPOSITION, "attachment; " + filename), wrapperObject);
     }
 
     /**
@@ -455,22 +462,21 @@ public class Api extends Controller {
     @Auth
     public Result exportResultData(Http.Request request, boolean asPlainText, boolean isApiCall)
             throws ForbiddenException, BadRequestException, NotFoundException {
+        Map<String, Object> wrapperObject = new LinkedHashMap<>();
         if (asPlainText) {
-            Source<ByteString, ?> dataSource = resultStreamer.streamComponentResultData(request);
+            Source<ByteString, ?> dataSource = resultStreamer.streamComponentResultData(request, wrapperObject);
             String filename = HttpHeaderParameterEncoding.encode("filename", "jatos_results_data_"
                     + Helpers.getDateTimeYyyyMMddHHmmss() + ".txt");
-            return ok().chunked(dataSource).as("application/octet-stream")
-                    .withHeader(Http.HeaderNames.CONTENT_DISPOSITION, "attachment; " + filename);
+            return withNextCursor(ok().chunked(dataSource).as("application/octet-stream")
+                    .withHeader(Http.HeaderNames.CONTENT_DISPOSITION, "attachment; " + filename), wrapperObject);
         } else {
-            Map<String, Object> wrapperObject = isApiCall
-                    ? Collections.singletonMap("apiVersion", Common.getJatosApiVersion())
-                    : Collections.emptyMap();
+            if (isApiCall) wrapperObject.put("apiVersion", Common.getJatosApiVersion());
             Source<ByteString, ?> dataSource = resultStreamer.streamResults(request, ResultStreamer.ResultType.DATA_ONLY,
                     wrapperObject);
             String filename = HttpHeaderParameterEncoding.encode("filename", "jatos_results_data_"
                     + Helpers.getDateTimeYyyyMMddHHmmss() + ".zip");
-            return ok().chunked(dataSource).as("application/zip")
-                    .withHeader(Http.HeaderNames.CONTENT_DISPOSITION, "attachment; " + filename);
+            return withNextCursor(ok().chunked(dataSource).as("application/zip")
+                    .withHeader(Http.HeaderNames.CONTENT_DISPOSITION, "attachment; " + filename), wrapperObject);
         }
     }
 
@@ -478,16 +484,105 @@ public class Api extends Controller {
      * Returns all result files (not result data and not metadata) belonging to results in a zip. The results are
      * specified by IDs (can be any kind) in the request's body or as query parameters. Streaming is used to reduce
      * memory and disk usage.
+     *
+     * @param uncompressedFiles If true all result files are stored in the zip without compression (already compressed
+     *                          files like images or videos are always stored without compression)
      */
     @Transactional
     @Auth
-    public Result exportResultFiles(Http.Request request)
+    public Result exportResultFiles(Http.Request request, Boolean uncompressedFiles)
             throws IOException, ForbiddenException, BadRequestException, NotFoundException {
-        Source<ByteString, ?> dataSource = resultStreamer.streamResults(request, ResultStreamer.ResultType.FILES_ONLY);
+        Map<String, Object> wrapperObject = new LinkedHashMap<>();
+        Source<ByteString, ?> dataSource = resultStreamer.streamResults(request, ResultStreamer.ResultType.FILES_ONLY,
+                wrapperObject, uncompressedFiles);
         String filename = HttpHeaderParameterEncoding.encode("filename", "jatos_results_files_"
                 + Helpers.getDateTimeYyyyMMddHHmmss() + ".zip");
-        return ok().chunked(dataSource).as("application/zip")
-                .withHeader(Http.HeaderNames.CONTENT_DISPOSITION, "attachment; " + filename);
+        return withNextCursor(ok().chunked(dataSource).as("application/zip")
+                .withHeader(Http.HeaderNames.CONTENT_DISPOSITION, "attachment; " + filename), wrapperObject);
+    }
+
+    /**
+     * Delta export (request with a cursor): adds the cursor for the next export as a header. Not every export format
+     * has metadata that could carry it.
+     */
+    private static Result withNextCursor(Result result, Map<String, Object> wrapperObject) {
+        Object nextCursor = wrapperObject.get(ResultCursor.METADATA_FIELD);
+        return nextCursor != null ? result.withHeader(ResultCursor.HEADER, nextCursor.toString()) : result;
+    }
+
+    /**
+     * Creates an asynchronous export job for results that are specified by IDs (can be nearly any kind) in the
+     * request's body or as query parameters. Instead of streaming the results directly the export is written into a
+     * file. The job's progress can be polled with getResultExportJob and the finished file can be downloaded (with
+     * support for resuming) with downloadResultExportJobFile. Returns the job in JSON.
+     *
+     * @param type              What to export: COMBINED (metadata, data, and files), DATA_ONLY, FILES_ONLY, or
+     *                          METADATA_ONLY
+     * @param asPlainText       Only with DATA_ONLY: if true the result data are exported in one text file
+     * @param uncompressedFiles If true all result files are stored in the zip without compression
+     * @param isApiCall         If true the metadata JSON gets an additional 'apiVersion' field
+     */
+    @Transactional
+    @Auth
+    public Result createResultExportJob(Http.Request request, String type, Boolean asPlainText,
+            Boolean uncompressedFiles, Boolean isApiCall)
+            throws BadRequestException, IOException, ForbiddenException, NotFoundException {
+        ResultStreamer.ResultType resultType;
+        try {
+            resultType = ResultStreamer.ResultType.valueOf(type.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Unknown export type " + type);
+        }
+        User signedinUser = authService.getSignedinUser();
+        Map<String, Object> wrapperObject = new LinkedHashMap<>();
+        if (isApiCall) wrapperObject.put("apiVersion", Common.getJatosApiVersion());
+        List<Long> crids = resultStreamer.extractComponentResultIds(request, wrapperObject);
+        boolean dataAsPlainText = asPlainText && resultType == ResultStreamer.ResultType.DATA_ONLY;
+        Optional<ResultExportJob> job = resultExportJobService.create(crids, signedinUser, resultType,
+                dataAsPlainText, uncompressedFiles, wrapperObject);
+        if (!job.isPresent()) {
+            return status(SERVICE_UNAVAILABLE, "Too many result export jobs. Try again later.")
+                    .withHeader(RETRY_AFTER, "60");
+        }
+        return status(ACCEPTED, JsonUtils.wrapForApi(resultExportJobService.asJsonNode(job.get())));
+    }
+
+    /**
+     * Returns the state and progress of a result export job in JSON
+     */
+    @Auth
+    public Result getResultExportJob(String id) throws NotFoundException {
+        ResultExportJob job = resultExportJobService.get(id, authService.getSignedinUser())
+                .orElseThrow(() -> new NotFoundException("Result export job " + id + " doesn't exist"));
+        return ok(JsonUtils.wrapForApi(resultExportJobService.asJsonNode(job)));
+    }
+
+    /**
+     * Downloads the file of a finished result export job. Range requests are supported, so an interrupted download can
+     * be resumed.
+     */
+    @Auth
+    public Result downloadResultExportJobFile(Http.Request request, String id)
+            throws NotFoundException, BadRequestException {
+        ResultExportJob job = resultExportJobService.get(id, authService.getSignedinUser())
+                .orElseThrow(() -> new NotFoundException("Result export job " + id + " doesn't exist"));
+        if (job.getState() != ResultExportJob.State.FINISHED) {
+            throw new BadRequestException("Result export job " + id + " isn't finished");
+        }
+        Result result = RangeResults.ofFile(request, resultExportJobService.getFile(job).toFile(), job.getFilename())
+                .as(resultExportJobService.getContentType(job));
+        return job.getNextCursor() != null ? result.withHeader(ResultCursor.HEADER, job.getNextCursor()) : result;
+    }
+
+    /**
+     * Removes a result export job and its file. If the job is still queued or running it's canceled.
+     */
+    @Auth
+    public Result removeResultExportJob(String id) throws NotFoundException {
+        ResultExportJob job = resultExportJobService.get(id, authService.getSignedinUser())
+                .orElseThrow(() -> new NotFoundException("Result export job " + id + " doesn't exist"));
+        resultExportJobService.remove(job);
+        return ok();
     }
 
     /**
@@ -12,6 +12,7 @@ import exceptions.gui.BadRequestException;
 import exceptions.gui.ForbiddenException;
 import exceptions.gui.JatosGuiException;
 import exceptions.gui.NotFoundException;
+import general.common.Common;
 import models.common.Component;
 import models.common.ComponentResult;
 import models.common.Study;
@@ -26,6 +27,7 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 
 import static controllers.gui.actionannotations.SaveLastVisitedPageUrlAction.SaveLastVisitedPageUrl;
 
@@ -45,6 +47,7 @@ public class ComponentResults extends Controller {
     private final BreadcrumbsService breadcrumbsService;
     private final ResultRemover resultRemover;
     private final ResultStreamer resultStreamer;
+    private final ResultTableService resultTableService;
     private final StudyDao studyDao;
     private final ComponentDao componentDao;
     private final ComponentResultDao componentResultDao;
@@ -52,7 +55,8 @@ public class ComponentResults extends Controller {
     @Inject
     ComponentResults(JatosGuiExceptionThrower jatosGuiExceptionThrower, Checker checker,
             AuthService authService, BreadcrumbsService breadcrumbsService,
-            ResultRemover resultRemover, ResultStreamer resultStreamer, StudyDao studyDao,
+            ResultRemover resultRemover, ResultStreamer resultStreamer, ResultTableService resultTableService,
+            StudyDao studyDao,
             ComponentDao componentDao, ComponentResultDao componentResultDao) {
         this.jatosGuiExceptionThrower = jatosGuiExceptionThrower;
         this.checker = checker;
@@ -60,6 +64,7 @@ public class ComponentResults extends Controller {
         this.breadcrumbsService = breadcrumbsService;
         this.resultRemover = resultRemover;
         this.resultStreamer = resultStreamer;
+        this.resultTableService = resultTableService;
         this.studyDao = studyDao;
         this.componentDao = componentDao;
         this.componentResultDao = componentResultDao;
@@ -83,7 +88,13 @@ public class ComponentResults extends Controller {
         }
 
         String breadcrumbs = breadcrumbsService.generateForComponent(study, component, BreadcrumbsService.COMPONENT_RESULTS);
-        return ok(views.html.gui.results.componentResults.render(request, signedinUser, breadcrumbs, study, component));
+        boolean serverSide =
+                componentResultDao.countByComponent(component) > Common.getResultsTableServerSideThreshold();
+        Optional<String> pageUrl = serverSide
+                ? Optional.of(controllers.gui.routes.ComponentResults.tableDataPageByComponent(componentId).url())
+                : Optional.empty();
+        return ok(views.html.gui.results.componentResults.render(request, signedinUser, breadcrumbs, study, component,
+                pageUrl));
     }
 
     /**
@@ -118,6 +129,21 @@ public class ComponentResults extends Controller {
         return ok().chunked(dataSource).as("application/json");
     }
 
+    /**
+     * GET request that returns one page of the ComponentResults of a component in JSON format. Filtering, sorting, and
+     * pagination are done in the database (server-side processing, see ResultTableService).
+     */
+    @Transactional
+    @Auth
+    public Result tableDataPageByComponent(Http.Request request, Long componentId)
+            throws ForbiddenException, NotFoundException, BadRequestException {
+        User signedinUser = authService.getSignedinUser();
+        Component component = componentDao.findById(componentId);
+        checker.checkStandardForComponent(componentId, component, signedinUser);
+
+        return ok(resultTableService.componentResultsPage(component, request.queryString()));
+    }
+
     /**
      * GET result data of one component result
      */
@@ -127,7 +153,8 @@ public class ComponentResults extends Controller {
         ComponentResult componentResult = componentResultDao.findById(componentResultId);
         User signedinUser = authService.getSignedinUser();
         checker.checkComponentResult(componentResult, signedinUser, false);
-        return ok(componentResultDao.getData(componentResultId));
+        return ok().chunked(resultStreamer.streamSingleComponentResultData(componentResultId))
+                .as("text/plain; charset=utf-8");
     }
 
 }
@@ -35,6 +35,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import static controllers.gui.actionannotations.SaveLastVisitedPageUrlAction.SaveLastVisitedPageUrl;
 
@@ -185,15 +187,16 @@ public class StudyLinks extends Controller {
      */
     @Transactional
     @Auth
-    public Result batchSessionData(Long studyId, Long batchId) throws ForbiddenException, NotFoundException {
+    public CompletionStage<Result> batchSessionData(Long studyId, Long batchId)
+            throws ForbiddenException, NotFoundException {
         Study study = studyDao.findById(studyId);
         Batch batch = batchDao.findById(batchId);
         User signedinUser = authService.getSignedinUser();
         checker.checkStandardForStudy(study, studyId, signedinUser);
         checker.checkStandardForBatch(batch, study, batchId);
 
-        BatchSession batchSession = batchService.bindToBatchSession(batch);
-        return ok(JsonUtils.asJsonNode(batchSession));
+        return batchService.fetchBatchSession(batch.getId())
+                .thenApply(batchSession -> ok(JsonUtils.asJsonNode(batchSession)));
     }
 
     /**
@@ -217,7 +220,7 @@ public class StudyLinks extends Controller {
      */
     @Transactional
     @Auth
-    public Result submitEditedBatchSessionData(Http.Request request, Long studyId, Long batchId)
+    public CompletionStage<Result> submitEditedBatchSessionData(Http.Request request, Long studyId, Long batchId)
             throws ForbiddenException, NotFoundException {
         Study study = studyDao.findById(studyId);
         User signedinUser = authService.getSignedinUser();
@@ -227,15 +230,16 @@ public class StudyLinks extends Controller {
         checker.checkStandardForBatch(batch, study, batchId);
 
         Form<BatchSession> form = formFactory.form(BatchSession.class).bindFromRequest(request);
-        if (form.hasErrors()) return badRequest(form.errorsAsJson());
+        if (form.hasErrors()) return CompletableFuture.completedFuture(badRequest(form.errorsAsJson()));
 
         BatchSession batchSession = form.get();
-        boolean success = batchService.updateBatchSession(batch.getId(), batchSession);
-        if (!success) {
-            return forbidden("The Batch Session has been updated since you " +
-                    "loaded this page. Reload before trying to save again.");
-        }
-        return ok();
+        return batchService.updateBatchSession(batch.getId(), batchSession).thenApply(success -> {
+            if (!success) {
+                return forbidden("The Batch Session has been updated since you " +
+                        "loaded this page. Reload before trying to save again.");
+            }
+            return ok();
+        });
     }
 
     /**
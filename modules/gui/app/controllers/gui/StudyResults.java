@@ -8,6 +8,8 @@ import com.google.common.base.Strings;
 import controllers.gui.actionannotations.GuiAccessLoggingAction.GuiAccessLogging;
 import daos.common.BatchDao;
 import daos.common.GroupResultDao;
+import daos.common.ResultFileDao;
+import daos.common.ResultTableQuery;
 import daos.common.StudyDao;
 import daos.common.StudyResultDao;
 import daos.common.worker.WorkerDao;
@@ -15,6 +17,7 @@ import exceptions.gui.BadRequestException;
 import exceptions.gui.ForbiddenException;
 import exceptions.gui.JatosGuiException;
 import exceptions.gui.NotFoundException;
+import general.common.Common;
 import models.common.*;
 import models.common.workers.Worker;
 import play.db.jpa.Transactional;
@@ -22,12 +25,16 @@ import play.mvc.Controller;
 import play.mvc.Http;
 import play.mvc.Result;
 import services.gui.*;
+import utils.common.IdSet;
 import utils.common.JsonUtils;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 import static controllers.gui.actionannotations.SaveLastVisitedPageUrlAction.SaveLastVisitedPageUrl;
 
@@ -47,31 +54,37 @@ public class StudyResults extends Controller {
     private final BreadcrumbsService breadcrumbsService;
     private final ResultRemover resultRemover;
     private final ResultStreamer resultStreamer;
+    private final ResultTableService resultTableService;
     private final WorkerService workerService;
     private final StudyDao studyDao;
     private final BatchDao batchDao;
     private final StudyResultDao studyResultDao;
     private final GroupResultDao groupResultDao;
     private final WorkerDao workerDao;
+    private final ResultFileDao resultFileDao;
     private final JsonUtils jsonUtils;
 
     @Inject
     StudyResults(JatosGuiExceptionThrower jatosGuiExceptionThrower, Checker checker, AuthService authService,
             BreadcrumbsService breadcrumbsService, ResultRemover resultRemover,
-            ResultStreamer resultStreamer, WorkerService workerService, StudyDao studyDao, BatchDao batchDao,
-            StudyResultDao studyResultDao, GroupResultDao groupResultDao, WorkerDao workerDao, JsonUtils jsonUtils) {
+            ResultStreamer resultStreamer, ResultTableService resultTableService, WorkerService workerService,
+            StudyDao studyDao, BatchDao batchDao,
+            StudyResultDao studyResultDao, GroupResultDao groupResultDao, WorkerDao workerDao,
+            ResultFileDao resultFileDao, JsonUtils jsonUtils) {
         this.jatosGuiExceptionThrower = jatosGuiExceptionThrower;
         this.checker = checker;
         this.authService = authService;
         this.breadcrumbsService = breadcrumbsService;
         this.resultRemover = resultRemover;
         this.resultStreamer = resultStreamer;
+        this.resultTableService = resultTableService;
         this.workerService = workerService;
         this.studyDao = studyDao;
         this.batchDao = batchDao;
         this.studyResultDao = studyResultDao;
         this.groupResultDao = groupResultDao;
         this.workerDao = workerDao;
+        this.resultFileDao = resultFileDao;
         this.jsonUtils = jsonUtils;
     }
 
@@ -92,7 +105,11 @@ public class StudyResults extends Controller {
 
         String breadcrumbs = breadcrumbsService.generateForStudy(study, BreadcrumbsService.RESULTS);
         String dataUrl = controllers.gui.routes.StudyResults.tableDataByStudy(study.getId()).url();
-        return ok(views.html.gui.results.studyResults.render(request, signedinUser, breadcrumbs, study, dataUrl));
+        Optional<String> pageUrl = studyResultDao.countByStudy(study) > Common.getResultsTableServerSideThreshold()
+                ? Optional.of(controllers.gui.routes.StudyResults.tableDataPageByStudy(study.getId()).url())
+                : Optional.empty();
+        return ok(views.html.gui.results.studyResults.render(request, signedinUser, breadcrumbs, study, dataUrl,
+                pageUrl));
     }
 
     /**
@@ -116,7 +133,23 @@ public class StudyResults extends Controller {
                 : BreadcrumbsService.RESULTS + " of type " + Worker.getUIWorkerType(workerType);
         String breadcrumbs = breadcrumbsService.generateForBatch(study, batch, breadcrumbsTitle);
         String dataUrl = controllers.gui.routes.StudyResults.tableDataByBatch(batchId, workerType).url();
-        return ok(views.html.gui.results.studyResults.render(request, signedinUser, breadcrumbs, study, dataUrl));
+        Optional<String> pageUrl = Optional.empty();
+        try {
+            String extractedWorkerType = workerService.extractWorkerType(workerType);
+            ResultTableQuery batchQuery = new ResultTableQuery(0, 0, "r.id", true)
+                    .setBatchId(batchId)
+                    .setWorkerType(extractedWorkerType);
+            if (studyResultDao.countByStudy(study, batchQuery) > Common.getResultsTableServerSideThreshold()) {
+                String url = controllers.gui.routes.StudyResults.tableDataPageByStudy(studyId).url()
+                        + "?batchId=" + batchId;
+                if (extractedWorkerType != null) url += "&workerType=" + extractedWorkerType;
+                pageUrl = Optional.of(url);
+            }
+        } catch (BadRequestException e) {
+            jatosGuiExceptionThrower.throwStudy(request, e, studyId);
+        }
+        return ok(views.html.gui.results.studyResults.render(request, signedinUser, breadcrumbs, study, dataUrl,
+                pageUrl));
     }
 
     /**
@@ -140,7 +173,9 @@ public class StudyResults extends Controller {
         String breadcrumbs = breadcrumbsService.generateForGroup(study, groupResult.getBatch(), groupResult,
                 breadcrumbsTitle);
         String dataUrl = controllers.gui.routes.StudyResults.tableDataByGroup(groupId).url();
-        return ok(views.html.gui.results.studyResults.render(request, signedinUser, breadcrumbs, study, dataUrl));
+        // Groups are small - their results are always loaded into the browser at once
+        return ok(views.html.gui.results.studyResults.render(request, signedinUser, breadcrumbs, study, dataUrl,
+                Optional.empty()));
     }
 
     /**
@@ -195,6 +230,21 @@ public class StudyResults extends Controller {
         return ok().chunked(source).as("text/plain; charset=utf-8");
     }
 
+    /**
+     * GET request that returns one page of the StudyResults of a study in JSON format. Filtering, sorting, and
+     * pagination are done in the database (server-side processing, see ResultTableService).
+     */
+    @Transactional
+    @Auth
+    public Result tableDataPageByStudy(Http.Request request, Long studyId)
+            throws ForbiddenException, NotFoundException, BadRequestException {
+        Study study = studyDao.findById(studyId);
+        User signedinUser = authService.getSignedinUser();
+        checker.checkStandardForStudy(study, studyId, signedinUser);
+
+        return ok(resultTableService.studyResultsPage(study, request.queryString()));
+    }
+
     /**
      * GET that returns all StudyResults of a Batch in JSON format. As an additional parameter the worker type can
      * be specified and the results will only be of this type. It streams in chunks (reduces memory usage)
@@ -249,7 +299,10 @@ public class StudyResults extends Controller {
         User signedinUser = authService.getSignedinUser();
         checker.checkStudyResult(studyResult, signedinUser, false);
 
-        return ok(jsonUtils.getComponentResultsByStudyResult(studyResult));
+        List<Long> crids = studyResult.getComponentResultList().stream().map(ComponentResult::getId)
+                .collect(Collectors.toList());
+        Map<Long, List<ResultFile>> resultFiles = resultFileDao.findByComponentResultIds(IdSet.of(crids));
+        return ok(jsonUtils.getComponentResultsByStudyResult(studyResult, resultFiles));
     }
 
 }
@@ -33,10 +33,13 @@ public class BatchProperties implements Constraints.Validatable<List<ValidationE
 	public static final String ACTIVE = "active";
 	public static final String MAX_ACTIVE_MEMBERS = "maxActiveMembers";
 	public static final String MAX_ACTIVE_MEMBER_LIMITED = "maxActiveMemberLimited";
+	public static final String MIN_ACTIVE_MEMBERS = "minActiveMembers";
 	public static final String MAX_TOTAL_MEMBERS = "maxTotalMembers";
 	public static final String MAX_TOTAL_MEMBER_LIMITED = "maxTotalMemberLimited";
 	public static final String MAX_TOTAL_WORKERS = "maxTotalWorkers";
 	public static final String MAX_TOTAL_WORKER_LIMITED = "maxTotalWorkerLimited";
+	public static final String PATCH_COALESCING_WINDOW = "patchCoalescingWindow";
+	public static final int MAX_PATCH_COALESCING_WINDOW = 1000;
 	public static final String ALLOWED_WORKER_TYPES = "allowedWorkerTypes";
 	public static final String WORKERS = "workers";
 	public static final String COMMENTS = "comments";
@@ -73,6 +76,12 @@ public class BatchProperties implements Constraints.Validatable<List<ValidationE
 	 */
 	private Integer maxActiveMembers = null;
 
+	/**
+	 * Number of members a new group waits for before it starts. If null the
+	 * groups start right away.
+	 */
+	private Integer minActiveMembers = null;
+
 	/**
 	 * Set to true if the maxTotalMembers are limited (= groups have a limited
 	 * number of members). False otherwise.
@@ -97,6 +106,12 @@ public class BatchProperties implements Constraints.Validatable<List<ValidationE
 	 */
 	private Integer maxTotalWorkers = null;
 
+	/**
+	 * Time window in ms in which session patches are merged into one message.
+	 * If null the default from the config is used.
+	 */
+	private Integer patchCoalescingWindow = null;
+
 	/**
 	 * Set of worker types that are allowed to run in this batch. If the worker
 	 * type is not in this list, it has no permission to run this study.
@@ -164,6 +179,14 @@ public class BatchProperties implements Constraints.Validatable<List<ValidationE
 		this.maxActiveMembers = maxActiveMembers;
 	}
 
+	public Integer getMinActiveMembers() {
+		return minActiveMembers;
+	}
+
+	public void setMinActiveMembers(Integer minActiveMembers) {
+		this.minActiveMembers = minActiveMembers;
+	}
+
 	public boolean isMaxTotalMemberLimited() {
 		return maxTotalMemberLimited;
 	}
@@ -196,6 +219,14 @@ public class BatchProperties implements Constraints.Validatable<List<ValidationE
 		this.maxTotalWorkers = maxTotalWorkers;
 	}
 
+	public Integer getPatchCoalescingWindow() {
+		return patchCoalescingWindow;
+	}
+
+	public void setPatchCoalescingWindow(Integer patchCoalescingWindow) {
+		this.patchCoalescingWindow = patchCoalescingWindow;
+	}
+
 	public void setAllowedWorkerTypes(Set<String> allowedWorkerTypes) {
 		this.allowedWorkerTypes = allowedWorkerTypes;
 	}
@@ -260,6 +291,12 @@ public class BatchProperties implements Constraints.Validatable<List<ValidationE
 			errorList.add(new ValidationError(MAX_ACTIVE_MEMBERS,
 					MessagesStrings.BATCH_MAX_ACTIVE_MEMBERS_SET));
 		}
+		if (minActiveMembers != null && (minActiveMembers < 1
+				|| (maxActiveMemberLimited && maxActiveMembers != null
+				&& minActiveMembers > maxActiveMembers))) {
+			errorList.add(new ValidationError(MIN_ACTIVE_MEMBERS,
+					MessagesStrings.BATCH_MIN_ACTIVE_MEMBERS));
+		}
 		if (maxTotalMemberLimited && maxTotalMembers == null) {
 			errorList.add(new ValidationError(MAX_TOTAL_MEMBERS,
 					MessagesStrings.BATCH_MAX_TOTAL_MEMBERS_SET));
@@ -278,6 +315,11 @@ public class BatchProperties implements Constraints.Validatable<List<ValidationE
 			errorList.add(new ValidationError(MAX_TOTAL_WORKERS,
 					MessagesStrings.BATCH_MAX_TOTAL_WORKER_SET));
 		}
+		if (patchCoalescingWindow != null && (patchCoalescingWindow < 0
+				|| patchCoalescingWindow > MAX_PATCH_COALESCING_WINDOW)) {
+			errorList.add(new ValidationError(PATCH_COALESCING_WINDOW,
+					MessagesStrings.BATCH_PATCH_COALESCING_WINDOW));
+		}
 		if (comments != null && !Jsoup.isValid(comments, Safelist.none())) {
 			errorList.add(new ValidationError(COMMENTS,
 					MessagesStrings.NO_HTML_ALLOWED));
@@ -4,10 +4,12 @@ import auth.gui.AuthService;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableMap;
 import daos.common.ComponentResultDao;
+import daos.common.ResultFileDao;
 import daos.common.StudyDao;
 import daos.common.StudyResultDao;
 import daos.common.UserDao;
 import daos.common.worker.WorkerDao;
+import general.common.SessionDispatcherMetrics;
 import models.common.Study;
 import models.common.StudyResultStatus;
 import utils.common.Helpers;
@@ -32,19 +34,24 @@ public class AdminService {
     private final WorkerDao workerDao;
     private final StudyResultDao studyResultDao;
     private final ComponentResultDao componentResultDao;
+    private final ResultFileDao resultFileDao;
     private final AuthService authService;
     private final IOUtils ioUtils;
+    private final SessionDispatcherMetrics sessionDispatcherMetrics;
 
     @Inject
     AdminService(UserDao userDao, StudyDao studyDao, WorkerDao workerDao, StudyResultDao studyResultDao,
-            ComponentResultDao componentResultDao, AuthService authService, IOUtils ioUtils) {
+            ComponentResultDao componentResultDao, ResultFileDao resultFileDao, AuthService authService,
+            IOUtils ioUtils, SessionDispatcherMetrics sessionDispatcherMetrics) {
         this.userDao = userDao;
         this.studyDao = studyDao;
         this.workerDao = workerDao;
         this.studyResultDao = studyResultDao;
         this.componentResultDao = componentResultDao;
+        this.resultFileDao = resultFileDao;
         this.authService = authService;
         this.ioUtils = ioUtils;
+        this.sessionDispatcherMetrics = sessionDispatcherMetrics;
     }
 
     public List<Map<String, Object>> getStudiesData(Collection<Study> studyList,
@@ -110,8 +117,7 @@ public class AdminService {
     }
 
     public ImmutableMap<String, Object> getResultFileSize(Study study, int studyResultCount) {
-        long size = studyResultDao.findIdsByStudyId(study.getId()).stream()
-                .mapToLong(ioUtils::getResultUploadDirSize).sum();
+        long size = resultFileDao.sizeByStudy(study);
         long averagePerResult = studyResultCount != 0 ? size / studyResultCount : 0;
         String resultFileSizePerStudyResultCount = studyResultCount != 0 ?
                 Helpers.humanReadableByteCount(averagePerResult) : "0 B";
@@ -165,6 +171,8 @@ public class AdminService {
         statusMap.put("serverTime", System.currentTimeMillis());
         statusMap.put("latestUsers", getLatestUsers(10));
         statusMap.put("latestStudyRuns", getLatestStudyRuns(10));
+        statusMap.put("sessionDispatchers", sessionDispatcherMetrics.getAll());
+        statusMap.put("sessionRegistryLookups", sessionDispatcherMetrics.getRegistryLookups());
         return JsonUtils.asJsonNode(statusMap);
     }
 
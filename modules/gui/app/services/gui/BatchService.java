@@ -7,6 +7,7 @@ import daos.common.StudyDao;
 import daos.common.StudyLinkDao;
 import daos.common.worker.WorkerDao;
 import exceptions.gui.NotFoundException;
+import general.common.BatchSessionAccess;
 import general.common.StudyLogger;
 import models.common.Batch;
 import models.common.Study;
@@ -24,6 +25,7 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.validation.ValidationException;
 import java.util.UUID;
+import java.util.concurrent.CompletionStage;
 import java.util.stream.Collectors;
 
 /**
@@ -43,10 +45,12 @@ public class BatchService {
     private final GroupResultDao groupResultDao;
     private final StudyLinkDao studyLinkDao;
     private final StudyLogger studyLogger;
+    private final BatchSessionAccess batchSessionAccess;
 
     @Inject
     BatchService(ResultRemover resultRemover, BatchDao batchDao, StudyDao studyDao, WorkerDao workerDao,
-            GroupResultDao groupResultDao, StudyLinkDao studyLinkDao, StudyLogger studyLogger) {
+            GroupResultDao groupResultDao, StudyLinkDao studyLinkDao, StudyLogger studyLogger,
+            BatchSessionAccess batchSessionAccess) {
         this.resultRemover = resultRemover;
         this.batchDao = batchDao;
         this.studyDao = studyDao;
@@ -54,6 +58,7 @@ public class BatchService {
         this.groupResultDao = groupResultDao;
         this.studyLinkDao = studyLinkDao;
         this.studyLogger = studyLogger;
+        this.batchSessionAccess = batchSessionAccess;
     }
 
     /**
@@ -68,7 +73,9 @@ public class BatchService {
         clone.setActive(batch.isActive());
         clone.setMaxActiveMembers(batch.getMaxActiveMembers());
         clone.setMaxTotalMembers(batch.getMaxTotalMembers());
+        clone.setMinActiveMembers(batch.getMinActiveMembers());
         clone.setMaxTotalWorkers(batch.getMaxTotalWorkers());
+        clone.setPatchCoalescingWindow(batch.getPatchCoalescingWindow());
         batch.getWorkerList().forEach(clone::addWorker);
         batch.getAllowedWorkerTypes().forEach(clone::addAllowedWorkerType);
         clone.setJsonData(batch.getJsonData());
@@ -134,7 +141,9 @@ public class BatchService {
         batch.setActive(updatedBatchProps.isActive());
         batch.setMaxActiveMembers(updatedBatchProps.getMaxActiveMembers());
         batch.setMaxTotalMembers(updatedBatchProps.getMaxTotalMembers());
+        batch.setMinActiveMembers(updatedBatchProps.getMinActiveMembers());
         batch.setMaxTotalWorkers(updatedBatchProps.getMaxTotalWorkers());
+        batch.setPatchCoalescingWindow(updatedBatchProps.getPatchCoalescingWindow());
         batch.getAllowedWorkerTypes().clear();
         updatedBatchProps.getAllowedWorkerTypes()
                 .forEach(batch::addAllowedWorkerType);
@@ -151,10 +160,12 @@ public class BatchService {
         props.setActive(batch.isActive());
         props.setMaxActiveMembers(batch.getMaxActiveMembers());
         props.setMaxActiveMemberLimited(batch.getMaxActiveMembers() != null);
+        props.setMinActiveMembers(batch.getMinActiveMembers());
         props.setMaxTotalMembers(batch.getMaxTotalMembers());
         props.setMaxTotalMemberLimited(batch.getMaxTotalMembers() != null);
         props.setMaxTotalWorkerLimited(batch.getMaxTotalWorkers() != null);
         props.setMaxTotalWorkers(batch.getMaxTotalWorkers());
+        props.setPatchCoalescingWindow(batch.getPatchCoalescingWindow());
         if (batch.getAllowedWorkerTypes() != null) {
             batch.getAllowedWorkerTypes().forEach(props::addAllowedWorkerType);
         } else {
@@ -179,40 +190,39 @@ public class BatchService {
         } else {
             batch.setMaxTotalMembers(null);
         }
+        batch.setMinActiveMembers(props.getMinActiveMembers());
         if (props.isMaxTotalWorkerLimited()) {
             batch.setMaxTotalWorkers(props.getMaxTotalWorkers());
         } else {
             batch.setMaxTotalWorkers(null);
         }
+        batch.setPatchCoalescingWindow(props.getPatchCoalescingWindow());
         props.getAllowedWorkerTypes().forEach(batch::addAllowedWorkerType);
         batch.setComments(props.getComments());
         batch.setJsonData(props.getJsonData());
         return batch;
     }
 
-    public BatchSession bindToBatchSession(Batch batch) {
-        BatchSession batchSession = new BatchSession();
-        batchSession.setVersion(batch.getBatchSessionVersion());
-        batchSession.setData(batch.getBatchSessionData());
-        return batchSession;
+    /**
+     * Gets the current batch session of the batch. It doesn't come from the database - while members of the batch
+     * are active the database lags behind.
+     */
+    public CompletionStage<BatchSession> fetchBatchSession(long batchId) {
+        return batchSessionAccess.get(batchId).thenApply(snapshot -> {
+            BatchSession batchSession = new BatchSession();
+            batchSession.setVersion(snapshot.getVersion());
+            batchSession.setData(snapshot.getData());
+            return batchSession;
+        });
     }
 
-    public boolean updateBatchSession(long batchId, BatchSession batchSession) {
-        Batch currentBatch = batchDao.findById(batchId);
-        if (currentBatch == null ||
-                !batchSession.getVersion().equals(currentBatch.getBatchSessionVersion())) {
-            return false;
-        }
-
-        currentBatch.setBatchSessionVersion(
-                currentBatch.getBatchSessionVersion() + 1);
-        if (Strings.isNullOrEmpty(batchSession.getData())) {
-            currentBatch.setBatchSessionData("{}");
-        } else {
-            currentBatch.setBatchSessionData(batchSession.getData());
-        }
-        batchDao.update(currentBatch);
-        return true;
+    /**
+     * Replaces the batch session data, but only if the batch session's version is still the one of the given
+     * BatchSession. Returns false if the batch session was changed in the meantime.
+     */
+    public CompletionStage<Boolean> updateBatchSession(long batchId, BatchSession batchSession) {
+        String data = Strings.isNullOrEmpty(batchSession.getData()) ? "{}" : batchSession.getData();
+        return batchSessionAccess.update(batchId, data, batchSession.getVersion());
     }
 
     /**
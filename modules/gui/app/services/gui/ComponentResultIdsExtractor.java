@@ -5,6 +5,7 @@ import daos.common.ComponentResultDao;
 import daos.common.StudyResultDao;
 import exceptions.gui.BadRequestException;
 import org.apache.commons.lang3.StringUtils;
+import utils.common.IdSet;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -73,7 +74,7 @@ public class ComponentResultIdsExtractor {
                     List<Long> crids = Arrays.stream(map.get("componentResultId"))
                             .map(Long::parseLong)
                             .collect(Collectors.toList());
-                    componentResultIds.addAll(componentResultDao.findIdsByComponentResultIds(crids));
+                    componentResultIds.addAll(componentResultDao.findIdsByComponentResultIds(IdSet.of(crids)));
                     break;
                 }
                 case "studyResultId": {
@@ -142,7 +143,7 @@ public class ComponentResultIdsExtractor {
                 }
                 case "componentResultIds": {
                     List<Long> crids = extractIds(json.get("componentResultIds"));
-                    componentResultIds.addAll(componentResultDao.findIdsByComponentResultIds(crids));
+                    componentResultIds.addAll(componentResultDao.findIdsByComponentResultIds(IdSet.of(crids)));
                     break;
                 }
                 case "studyResultIds": {
@@ -1,13 +1,19 @@
 package services.gui;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Strings;
 import daos.common.GroupResultDao;
+import daos.common.GroupSessionDao;
 import models.common.GroupResult;
 import models.common.GroupResult.GroupState;
 import models.gui.GroupSession;
+import play.Logger;
+import play.libs.Json;
+import utils.common.JsonPatcher;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.util.SortedMap;
 
 /**
  * Service class for JATOS Controllers (not Publix).
@@ -17,35 +23,56 @@ import javax.inject.Singleton;
 @Singleton
 public class GroupService {
 
+    private static final Logger.ALogger LOGGER = Logger.of(GroupService.class);
+
     private final GroupResultDao groupResultDao;
+    private final GroupSessionDao groupSessionDao;
 
     @Inject
-    GroupService(GroupResultDao groupResultDao) {
+    GroupService(GroupResultDao groupResultDao, GroupSessionDao groupSessionDao) {
         this.groupResultDao = groupResultDao;
+        this.groupSessionDao = groupSessionDao;
     }
 
+    /**
+     * The group session is stored as a snapshot plus the patches since then - so the patches are applied to the
+     * snapshot to get the current session data. Like the session module (GroupActionHandler.loadSession) invalid
+     * session data or patches are only logged and the session data that could be restored so far are used.
+     */
     public GroupSession bindToGroupSession(GroupResult groupResult) {
         GroupSession groupSession = new GroupSession();
         groupSession.setVersion(groupResult.getGroupSessionVersion());
-        groupSession.setData(groupResult.getGroupSessionData());
+        SortedMap<Long, String> patches = groupSessionDao.findPatchesSince(groupResult.getId(),
+                groupResult.getGroupSessionSnapshotVersion());
+        if (patches.isEmpty()) {
+            groupSession.setData(groupResult.getGroupSessionData());
+        } else {
+            JsonNode sessionData = Json.newObject();
+            try {
+                if (!Strings.isNullOrEmpty(groupResult.getGroupSessionData())) {
+                    sessionData = Json.parse(groupResult.getGroupSessionData());
+                }
+                for (String patch : patches.values()) {
+                    sessionData = JsonPatcher.apply(sessionData, Json.parse(patch));
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error(".bindToGroupSession: invalid group session in DB - groupResultId "
+                        + groupResult.getId() + ", groupSessionVersion " + groupResult.getGroupSessionVersion()
+                        + ", snapshotVersion " + groupResult.getGroupSessionSnapshotVersion() + ", error: "
+                        + e.getMessage());
+            }
+            groupSession.setData(sessionData.toString());
+        }
         return groupSession;
     }
 
+    /**
+     * Writes the edited session data as a new snapshot (replaces the patch log)
+     */
     public boolean updateGroupSession(long groupResultId, GroupSession groupSession) {
-        GroupResult currentGroupResult = groupResultDao.findById(groupResultId);
-        if (currentGroupResult == null ||
-                !groupSession.getVersion().equals(currentGroupResult.getGroupSessionVersion())) {
-            return false;
-        }
-
-        currentGroupResult.setGroupSessionVersion(currentGroupResult.getGroupSessionVersion() + 1);
-        if (Strings.isNullOrEmpty(groupSession.getData())) {
-            currentGroupResult.setGroupSessionData("{}");
-        } else {
-            currentGroupResult.setGroupSessionData(groupSession.getData());
-        }
-        groupResultDao.update(currentGroupResult);
-        return true;
+        String sessionData = Strings.isNullOrEmpty(groupSession.getData()) ? "{}" : groupSession.getData();
+        return groupSessionDao.writeSnapshot(groupResultId, sessionData, groupSession.getVersion() + 1,
+                groupSession.getVersion());
     }
 
     public GroupState toggleGroupFixed(GroupResult groupResult, boolean fixed) {
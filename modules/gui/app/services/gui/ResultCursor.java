@@ -0,0 +1,84 @@
+package services.gui;
+
+import exceptions.gui.BadRequestException;
+import play.mvc.Http;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Cursor for delta result exports. It marks what was already exported: all component results up to the
+ * lastComponentResultId and all changes up to the watermark. An export with a cursor only contains component results
+ * that were created or changed since (see ComponentResultDao.findIdsChangedSince). The cursor of the next export is
+ * written into the metadata ('nextCursor') and, since not every export format has metadata, into the response header
+ * 'X-JATOS-Next-Cursor'.
+ *
+ * In text form a cursor is '<lastComponentResultId>_<watermark in epoch millis>'. Delta exports are 'at least once':
+ * the watermark is set a bit back to be safe from rounding of the database's datetime columns, so a component result
+ * that finished right at the time of an export can be in the next export again.
+ *
+ * @author Kristian Lange
+ */
+public class ResultCursor {
+
+    public static final String QUERY_PARAMETER = "cursor";
+    public static final String METADATA_FIELD = "nextCursor";
+    public static final String HEADER = "X-JATOS-Next-Cursor";
+
+    private final long lastComponentResultId;
+    private final Timestamp watermark;
+
+    private ResultCursor(long lastComponentResultId, Timestamp watermark) {
+        this.lastComponentResultId = lastComponentResultId;
+        this.watermark = watermark;
+    }
+
+    /**
+     * Returns the cursor from the request's query string or an empty Optional if there is none
+     */
+    public static Optional<ResultCursor> fromRequest(Http.Request request) throws BadRequestException {
+        String cursor = request.getQueryString(QUERY_PARAMETER);
+        if (cursor == null || cursor.trim().isEmpty()) return Optional.empty();
+        return Optional.of(parse(cursor.trim()));
+    }
+
+    public static ResultCursor parse(String cursor) throws BadRequestException {
+        String[] parts = cursor.split("_");
+        try {
+            if (parts.length != 2) throw new NumberFormatException();
+            long lastComponentResultId = Long.parseLong(parts[0]);
+            long watermark = Long.parseLong(parts[1]);
+            if (lastComponentResultId < 0 || watermark < 0) throw new NumberFormatException();
+            return new ResultCursor(lastComponentResultId, new Timestamp(watermark));
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Malformed cursor " + cursor);
+        }
+    }
+
+    /**
+     * Returns the cursor for the next export. The exportStart has to be taken before the component results were
+     * selected.
+     */
+    public ResultCursor next(List<Long> exportedComponentResultIds, Instant exportStart) {
+        long last = exportedComponentResultIds.stream().mapToLong(Long::longValue).max().orElse(0);
+        Instant nextWatermark = exportStart.truncatedTo(ChronoUnit.SECONDS).minusSeconds(1);
+        return new ResultCursor(Math.max(lastComponentResultId, last), Timestamp.from(nextWatermark));
+    }
+
+    public long getLastComponentResultId() {
+        return lastComponentResultId;
+    }
+
+    public Timestamp getWatermark() {
+        return watermark;
+    }
+
+    @Override
+    public String toString() {
+        return lastComponentResultId + "_" + watermark.getTime();
+    }
+
+}
@@ -0,0 +1,405 @@
+package services.gui;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import com.fasterxml.jackson.databind.JsonNode;
+import daos.common.ResultExportJobDao;
+import exceptions.gui.ForbiddenException;
+import exceptions.gui.NotFoundException;
+import general.common.Common;
+import models.common.ResultExportJob;
+import models.common.ResultExportJob.State;
+import models.common.User;
+import play.Logger;
+import play.db.jpa.JPAApi;
+import play.inject.ApplicationLifecycle;
+import play.libs.Json;
+import services.gui.ResultStreamer.ResultType;
+import utils.common.Helpers;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Manages asynchronous result exports (ResultExportJob). Instead of streaming the results directly in the HTTP
+ * response the export is written into a file in the jobs directory. This way the client can poll the progress and
+ * download (and resume the download of) the finished file.
+ *
+ * The jobs are kept in the database and their files in a directory that is shared by all nodes of a cluster, so each
+ * node can answer for every job. Only the running of a job is local: the jobs run on a bounded thread pool with a
+ * bounded queue, so several large exports can't starve the node. A running job writes its progress into the database
+ * every few seconds and stops if its job was removed in the meantime (maybe by another node). It's never interrupted -
+ * an interrupt could hit the JDBC driver in the middle of a query.
+ *
+ * Expired jobs and their files are removed by a scheduled cleanup. The thread pool is shut down when JATOS stops.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ResultExportJobService {
+
+    private static final Logger.ALogger LOGGER = Logger.of(ResultExportJobService.class);
+
+    /**
+     * Interval in which expired jobs are removed
+     */
+    private static final Duration EXPIRY_CHECK_INTERVAL = Duration.ofMinutes(10);
+
+    /**
+     * Interval in milliseconds in which a running job writes its progress into the database and checks whether it was
+     * removed
+     */
+    private static final long PROGRESS_UPDATE_INTERVAL = 2000;
+
+    private final ResultStreamer resultStreamer;
+    private final ResultExportJobDao resultExportJobDao;
+    private final JPAApi jpaApi;
+    private final Path jobsDir = Paths.get(Common.getResultExportJobsPath());
+    private final ThreadPoolExecutor executor;
+    private final Timestamp startDate = new Timestamp(new Date().getTime());
+
+    /**
+     * Jobs that are queued or running on this node
+     */
+    private final Map<String, LocalJob> localJobs = new ConcurrentHashMap<>();
+
+    private volatile boolean jobsOfPreviousRunFailed = false;
+
+    @Inject
+    ResultExportJobService(ResultStreamer resultStreamer, ResultExportJobDao resultExportJobDao, JPAApi jpaApi,
+            ActorSystem actorSystem, ApplicationLifecycle applicationLifecycle) {
+        this.resultStreamer = resultStreamer;
+        this.resultExportJobDao = resultExportJobDao;
+        this.jpaApi = jpaApi;
+        this.executor = new ThreadPoolExecutor(Common.getResultExportMaxJobs(), Common.getResultExportMaxJobs(),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Common.getResultExportMaxQueuedJobs()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "result-export-job");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // The first cleanup runs shortly after the start - the database might not be ready yet
+        Cancellable expiryCheck = actorSystem.scheduler().schedule(Duration.ofMinutes(1), EXPIRY_CHECK_INTERVAL,
+                this::removeExpiredJobs, actorSystem.dispatcher());
+        applicationLifecycle.addStopHook(() -> {
+            expiryCheck.cancel();
+            executor.shutdownNow();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Checks that the user is allowed to access the results, then creates a new export job and queues it. Returns an
+     * empty Optional if the queue is full.
+     */
+    public Optional<ResultExportJob> create(List<Long> componentResultIds, User user, ResultType resultType,
+            boolean asPlainText, boolean uncompressedFiles, Map<String, Object> wrapObject)
+            throws IOException, ForbiddenException, NotFoundException {
+        resultStreamer.checkComponentResults(componentResultIds, user);
+        Files.createDirectories(jobsDir);
+        purgeRemovedJobs();
+
+        String id = UUID.randomUUID().toString();
+        ResultExportJob job = new ResultExportJob(id, user.getUsername(), resultType.name(), asPlainText,
+                componentResultIds.size(), getFilename(resultType, asPlainText),
+                (String) wrapObject.get(ResultCursor.METADATA_FIELD));
+        jpaApi.withTransaction(entityManager -> {
+            resultExportJobDao.create(job);
+        });
+        LocalJob localJob = new LocalJob(id);
+        localJobs.put(id, localJob);
+        try {
+            localJob.future = executor.submit(() -> run(job, localJob, componentResultIds, user, uncompressedFiles,
+                    wrapObject));
+        } catch (RejectedExecutionException e) {
+            localJobs.remove(id);
+            jpaApi.withTransaction(entityManager -> {
+                resultExportJobDao.remove(resultExportJobDao.findById(id));
+            });
+            return Optional.empty();
+        }
+        LOGGER.info("Created result export job " + id + " of user " + user.getUsername() + " with "
+                + componentResultIds.size() + " component results");
+        return Optional.of(job);
+    }
+
+    /**
+     * Returns the job with the given ID if it belongs to the given user
+     */
+    public Optional<ResultExportJob> get(String id, User user) {
+        ResultExportJob job = jpaApi.withTransaction("default", true, entityManager -> {
+            return resultExportJobDao.findById(id);
+        });
+        if (job == null || !job.getUsername().equals(user.getUsername())) return Optional.empty();
+        return Optional.of(job);
+    }
+
+    /**
+     * Removes the job and deletes its file. If the job is still queued on this node it's taken out of the queue. If
+     * it's running it stops with its next written result (or on another node with its next progress update).
+     */
+    public void remove(ResultExportJob job) {
+        jpaApi.withTransaction(entityManager -> {
+            ResultExportJob persisted = resultExportJobDao.findById(job.getId());
+            if (persisted != null) resultExportJobDao.remove(persisted);
+        });
+        LocalJob localJob = localJobs.get(job.getId());
+        if (localJob != null) cancel(localJob);
+        deleteFile(job);
+    }
+
+    /**
+     * Path of the job's file in the jobs directory
+     */
+    public Path getFile(ResultExportJob job) {
+        String filename = job.getFilename();
+        return jobsDir.resolve(job.getId() + filename.substring(filename.lastIndexOf('.')));
+    }
+
+    public String getContentType(ResultExportJob job) {
+        if (ResultType.valueOf(job.getType()) == ResultType.METADATA_ONLY) return "application/json";
+        if (job.isAsPlainText()) return "application/octet-stream";
+        return "application/zip";
+    }
+
+    public JsonNode asJsonNode(ResultExportJob job) {
+        Map<String, Object> node = new LinkedHashMap<>();
+        node.put("id", job.getId());
+        node.put("type", job.getType());
+        node.put("asPlainText", job.isAsPlainText());
+        node.put("state", job.getState().name());
+        node.put("resultsTotal", job.getResultsTotal());
+        node.put("resultsWritten", job.getResultsWritten());
+        node.put("bytesWritten", getBytesWritten(job));
+        node.put("etaSeconds", getEtaSeconds(job));
+        node.put("creationDate", job.getCreationDate().getTime());
+        node.put("startDate", job.getStartDate() != null ? job.getStartDate().getTime() : null);
+        node.put("endDate", job.getEndDate() != null ? job.getEndDate().getTime() : null);
+        node.put("filename", job.getFilename());
+        if (job.getNextCursor() != null) node.put("nextCursor", job.getNextCursor());
+        if (job.getError() != null) node.put("error", job.getError());
+        return Json.mapper().valueToTree(node);
+    }
+
+    private long getBytesWritten(ResultExportJob job) {
+        try {
+            Path file = getFile(job);
+            return Files.exists(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Estimated seconds until the job is finished - linear extrapolation of the results written so far
+     */
+    private static Long getEtaSeconds(ResultExportJob job) {
+        long written = job.getResultsWritten();
+        if (job.getState() != State.RUNNING || written == 0) return null;
+        long elapsedMillis = Duration.between(job.getStartDate().toInstant(), Instant.now()).toMillis();
+        return Math.max(0, elapsedMillis * (job.getResultsTotal() - written) / written / 1000);
+    }
+
+    private void run(ResultExportJob job, LocalJob localJob, List<Long> componentResultIds, User user,
+            boolean uncompressedFiles, Map<String, Object> wrapObject) {
+        String id = job.getId();
+        Path file = getFile(job);
+        try {
+            boolean started = jpaApi.withTransaction(entityManager -> {
+                return resultExportJobDao.start(id);
+            });
+            if (!started) return;
+
+            Runnable resultWritten = () -> resultWritten(localJob);
+            ResultType resultType = ResultType.valueOf(job.getType());
+            if (resultType == ResultType.METADATA_ONLY) {
+                File metadataFile = resultStreamer.writeResultMetadata(componentResultIds, user, wrapObject,
+                        resultWritten);
+                Files.move(metadataFile.toPath(), file, REPLACE_EXISTING);
+            } else {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                    if (job.isAsPlainText()) {
+                        resultStreamer.writeResultDataAsPlainText(componentResultIds, user, out, resultWritten);
+                    } else {
+                        resultStreamer.writeResultsZip(componentResultIds, user, resultType, wrapObject,
+                                uncompressedFiles, out, resultWritten);
+                    }
+                }
+            }
+            boolean finished = jpaApi.withTransaction(entityManager -> {
+                return resultExportJobDao.finish(id, localJob.resultsWritten.get());
+            });
+            if (finished) {
+                LOGGER.info("Finished result export job " + id);
+            } else {
+                // The job was removed while its file was written - remove() might have deleted the file before
+                deleteFile(job);
+            }
+        } catch (JobRemovedException e) {
+            LOGGER.info("Stopped result export job " + id + " since it was removed");
+            deleteFile(job);
+        } catch (Exception e) {
+            Throwable cause = e instanceof RuntimeException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof JobRemovedException) {
+                LOGGER.info("Stopped result export job " + id + " since it was removed");
+            } else {
+                boolean failed = jpaApi.withTransaction(entityManager -> {
+                    return resultExportJobDao.fail(id, cause.getMessage());
+                });
+                if (failed) LOGGER.warn("Result export job " + id + " failed: " + cause.getMessage());
+            }
+            deleteFile(job);
+        } finally {
+            localJobs.remove(id);
+        }
+    }
+
+    /**
+     * Called after each written result. Stops the job (by throwing a JobRemovedException) if it was removed locally.
+     * Every PROGRESS_UPDATE_INTERVAL it writes the progress into the database and checks whether the job was removed
+     * by another node.
+     */
+    private void resultWritten(LocalJob localJob) {
+        long resultsWritten = localJob.resultsWritten.incrementAndGet();
+        if (localJob.removed) throw new JobRemovedException();
+        long now = System.currentTimeMillis();
+        if (now - localJob.lastProgressUpdate < PROGRESS_UPDATE_INTERVAL) return;
+        localJob.lastProgressUpdate = now;
+        State state = jpaApi.withTransaction(entityManager -> {
+            resultExportJobDao.updateResultsWritten(localJob.id, resultsWritten);
+            return resultExportJobDao.findState(localJob.id);
+        });
+        if (state != State.RUNNING) {
+            localJob.removed = true;
+            throw new JobRemovedException();
+        }
+    }
+
+    /**
+     * Takes the job out of the queue if it didn't start yet - this way it doesn't count against the queue limit
+     * anymore. A running job is stopped with its next written result.
+     */
+    private void cancel(LocalJob localJob) {
+        localJob.removed = true;
+        if (localJob.future != null && executor.remove((Runnable) localJob.future)) {
+            localJobs.remove(localJob.id);
+        }
+    }
+
+    /**
+     * Jobs that are queued on this node might have been removed by another node: takes them out of the queue
+     */
+    private void purgeRemovedJobs() {
+        List<LocalJob> queued = new ArrayList<>();
+        for (LocalJob localJob : localJobs.values()) {
+            if (localJob.future != null && executor.getQueue().contains(localJob.future)) queued.add(localJob);
+        }
+        if (queued.isEmpty()) return;
+        jpaApi.withTransaction("default", true, entityManager -> {
+            for (LocalJob localJob : queued) {
+                if (resultExportJobDao.findState(localJob.id) == null) cancel(localJob);
+            }
+        });
+    }
+
+    /**
+     * Removes all jobs (and their files) that ended longer ago than the retention time. Files in the jobs directory
+     * that belong to no job anymore are only deleted if they are expired too - another node might have just created
+     * their job. After a restart of a single JATOS the unfinished jobs of the previous run are failed.
+     */
+    void removeExpiredJobs() {
+        try {
+            Timestamp expiry = Timestamp.from(Instant.now().minus(
+                    Duration.ofHours(Common.getResultExportJobRetention())));
+            if (!Common.isMultiNode() && !jobsOfPreviousRunFailed) {
+                jpaApi.withTransaction(entityManager -> {
+                    resultExportJobDao.failUnfinishedCreatedBefore(startDate, "JATOS was restarted");
+                });
+                jobsOfPreviousRunFailed = true;
+            }
+            List<ResultExportJob> expiredJobs = jpaApi.withTransaction("default", true, entityManager -> {
+                return resultExportJobDao.findExpired(expiry);
+            });
+            expiredJobs.forEach(this::remove);
+            deleteExpiredFiles(expiry);
+        } catch (Exception e) {
+            LOGGER.warn("Couldn't remove expired result export jobs: " + e.getMessage());
+        }
+    }
+
+    private void deleteExpiredFiles(Timestamp expiry) throws IOException {
+        if (!Files.isDirectory(jobsDir)) return;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(jobsDir)) {
+            for (Path file : stream) {
+                if (Files.getLastModifiedTime(file).toMillis() >= expiry.getTime()) continue;
+                String filename = file.getFileName().toString();
+                String id = filename.contains(".") ? filename.substring(0, filename.indexOf('.')) : filename;
+                State state = jpaApi.withTransaction("default", true, entityManager -> {
+                    return resultExportJobDao.findState(id);
+                });
+                if (state == null) Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void deleteFile(ResultExportJob job) {
+        try {
+            Files.deleteIfExists(getFile(job));
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't delete file of result export job " + job.getId());
+        }
+    }
+
+    private static String getFilename(ResultType resultType, boolean asPlainText) {
+        String date = Helpers.getDateTimeYyyyMMddHHmmss();
+        switch (resultType) {
+            case DATA_ONLY:
+                return "jatos_results_data_" + date + (asPlainText ? ".txt" : ".zip");
+            case FILES_ONLY:
+                return "jatos_results_files_" + date + ".zip";
+            case METADATA_ONLY:
+                return "jatos_results_metadata_" + date + ".json";
+            default:
+                return "jatos_results_" + date + ".jrzip";
+        }
+    }
+
+    /**
+     * A job that is queued or running on this node
+     */
+    private static class LocalJob {
+
+        private final String id;
+        private final AtomicLong resultsWritten = new AtomicLong();
+        private volatile Future<?> future;
+        private volatile boolean removed = false;
+        private volatile long lastProgressUpdate = System.currentTimeMillis();
+
+        LocalJob(String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Thrown within a running job to stop it after the job was removed
+     */
+    private static class JobRemovedException extends RuntimeException {
+    }
+
+}
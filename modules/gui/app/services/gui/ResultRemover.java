@@ -13,6 +13,7 @@ import models.common.workers.Worker;
 import play.Logger;
 import play.Logger.ALogger;
 import utils.common.IOUtils;
+import utils.common.IdSet;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -64,7 +65,7 @@ public class ResultRemover {
      */
     public void removeComponentResults(List<Long> componentResultIdList, User user, boolean removeEmptyStudyResults)
             throws BadRequestException, NotFoundException, ForbiddenException {
-        List<ComponentResult> componentResultList = componentResultDao.findByIds(componentResultIdList);
+        List<ComponentResult> componentResultList = componentResultDao.findByIds(IdSet.of(componentResultIdList));
         checker.checkComponentResults(componentResultList, user, true);
         for (ComponentResult componentResult : componentResultList) {
             removeComponentResult(componentResult.getId());
@@ -89,7 +90,7 @@ public class ResultRemover {
      */
     public void removeStudyResults(List<Long> studyResultIdList, User user)
             throws BadRequestException, NotFoundException, ForbiddenException {
-        List<StudyResult> studyResultList = studyResultDao.findByIds(studyResultIdList);
+        List<StudyResult> studyResultList = studyResultDao.findByIds(IdSet.of(studyResultIdList));
         Set<Study> studies = new HashSet<>();
         checker.checkStudyResults(studyResultList, user, true);
         for (StudyResult studyResult : studyResultList) {
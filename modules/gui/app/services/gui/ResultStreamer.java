@@ -7,11 +7,10 @@ import auth.gui.AuthService;
 import com.diffplug.common.base.Errors;
 import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
 import daos.common.ComponentResultDao;
+import daos.common.ResultExportDao;
+import daos.common.ResultFileDao;
 import daos.common.StudyDao;
 import daos.common.StudyResultDao;
 import exceptions.gui.BadRequestException;
@@ -24,11 +23,13 @@ import models.common.workers.JatosWorker;
 import models.common.workers.Worker;
 import play.Logger;
 import play.db.jpa.JPAApi;
+import play.inject.ApplicationLifecycle;
 import play.libs.Json;
 import play.mvc.Http;
 import utils.common.IOUtils;
+import utils.common.IdSet;
 import utils.common.JsonUtils;
-import utils.common.ZipUtil;
+import utils.common.ParallelZipWriter;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -37,10 +38,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
-import java.util.zip.ZipOutputStream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -57,6 +61,8 @@ public class ResultStreamer {
     private final AuthService authService;
     private final ComponentResultDao componentResultDao;
     private final StudyResultDao studyResultDao;
+    private final ResultFileDao resultFileDao;
+    private final ResultExportDao resultExportDao;
     private final StudyDao studyDao;
     private final JsonUtils jsonUtils;
     private final Checker checker;
@@ -64,19 +70,37 @@ public class ResultStreamer {
     private final ComponentResultIdsExtractor componentResultIdsExtractor;
     private final JPAApi jpaApi;
 
+    /**
+     * Thread pool that compresses the entries of all result exports (zip)
+     */
+    private final ExecutorService zipExecutor;
+
     @Inject
     ResultStreamer(AuthService authService, ComponentResultDao componentResultDao,
-            StudyResultDao studyResultDao, StudyDao studyDao, JsonUtils jsonUtils, Checker checker,
-            StudyLogger studyLogger, ComponentResultIdsExtractor componentResultIdsExtractor, JPAApi jpaApi) {
+            StudyResultDao studyResultDao, ResultFileDao resultFileDao, ResultExportDao resultExportDao,
+            StudyDao studyDao, JsonUtils jsonUtils, Checker checker, StudyLogger studyLogger,
+            ComponentResultIdsExtractor componentResultIdsExtractor, JPAApi jpaApi,
+            ApplicationLifecycle applicationLifecycle) {
         this.authService = authService;
         this.componentResultDao = componentResultDao;
         this.studyResultDao = studyResultDao;
+        this.resultFileDao = resultFileDao;
+        this.resultExportDao = resultExportDao;
         this.studyDao = studyDao;
         this.jsonUtils = jsonUtils;
         this.checker = checker;
         this.studyLogger = studyLogger;
         this.componentResultIdsExtractor = componentResultIdsExtractor;
         this.jpaApi = jpaApi;
+        this.zipExecutor = Executors.newFixedThreadPool(Common.getResultExportThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "result-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        applicationLifecycle.addStopHook(() -> {
+            zipExecutor.shutdownNow();
+            return CompletableFuture.completedFuture(null);
+        });
     }
 
     /**
@@ -87,31 +111,19 @@ public class ResultStreamer {
         return StreamConverters.asOutputStream()
                 .keepAlive(Duration.ofSeconds(30), () -> ByteString.fromString(" "))
                 .mapMaterializedValue(outputStream -> CompletableFuture.runAsync(() -> {
-                    try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream))) {
-                        writer.write("[");
-                        fetchStudyResultsByStudyPaginated(writer, study);
-                        writer.write("]");
-                        writer.flush();
+                    try (JsonGenerator gen = createTableGenerator(outputStream)) {
+                        gen.writeStartArray();
+                        fetchStudyResultsByStudyPaginated(gen, study);
+                        gen.writeEndArray();
                     } catch (Exception e) {
                         LOGGER.error(".streamStudyResultsByStudy: ", e);
                     }
                 }));
     }
 
-    private void fetchStudyResultsByStudyPaginated(Writer writer, Study study) {
-        int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return studyResultDao.countByStudy(study);
-        });
-
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (first + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                List<StudyResult> resultList = studyResultDao.findAllByStudy(study, first, maxDbQuerySize);
-                Errors.rethrow().run(() -> writeStudyResults(writer, isLastPage, resultList));
-            });
-        }
+    private void fetchStudyResultsByStudyPaginated(JsonGenerator gen, Study study) {
+        fetchStudyResultsPaginated(gen, (lastId, maxId, max) ->
+                studyResultDao.findAllByStudy(study, lastId, maxId, max));
     }
 
     /**
@@ -123,11 +135,10 @@ public class ResultStreamer {
             return StreamConverters.asOutputStream()
                     .keepAlive(Duration.ofSeconds(30), () -> ByteString.fromString(" "))
                     .mapMaterializedValue(outputStream -> CompletableFuture.runAsync(() -> {
-                        try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream))) {
-                            writer.write("[");
-                            fetchStudyResultsByBatchPaginated(writer, batch);
-                            writer.write("]");
-                            writer.flush();
+                        try (JsonGenerator gen = createTableGenerator(outputStream)) {
+                            gen.writeStartArray();
+                            fetchStudyResultsByBatchPaginated(gen, batch);
+                            gen.writeEndArray();
                         } catch (Exception e) {
                             LOGGER.error(".streamStudyResultsByBatch: ", e);
                         }
@@ -136,11 +147,10 @@ public class ResultStreamer {
             return StreamConverters.asOutputStream()
                     .keepAlive(Duration.ofSeconds(30), () -> ByteString.fromString(" "))
                     .mapMaterializedValue(outputStream -> CompletableFuture.runAsync(() -> {
-                        try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream))) {
-                            writer.write("[");
-                            fetchStudyResultsByBatchAndWorkerTypePaginated(writer, batch, workerType);
-                            writer.write("]");
-                            writer.flush();
+                        try (JsonGenerator gen = createTableGenerator(outputStream)) {
+                            gen.writeStartArray();
+                            fetchStudyResultsByBatchAndWorkerTypePaginated(gen, batch, workerType);
+                            gen.writeEndArray();
                         } catch (Exception e) {
                             LOGGER.error(".streamStudyResultsByBatch: ", e);
                         }
@@ -148,37 +158,14 @@ public class ResultStreamer {
         }
     }
 
-    private void fetchStudyResultsByBatchPaginated(Writer writer, Batch batch) {
-        int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return studyResultDao.countByBatch(batch, JatosWorker.WORKER_TYPE);
-        });
-
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (first + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                List<StudyResult> resultList = studyResultDao.findAllByBatch(batch, JatosWorker.WORKER_TYPE, first, maxDbQuerySize);
-                Errors.rethrow().run(() -> writeStudyResults(writer, isLastPage, resultList));
-            });
-        }
+    private void fetchStudyResultsByBatchPaginated(JsonGenerator gen, Batch batch) {
+        fetchStudyResultsPaginated(gen, (lastId, maxId, max) ->
+                studyResultDao.findAllByBatch(batch, JatosWorker.WORKER_TYPE, lastId, maxId, max));
     }
 
-    private void fetchStudyResultsByBatchAndWorkerTypePaginated(Writer writer, Batch batch, String workerType) {
-        int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return studyResultDao.countByBatchAndWorkerType(batch, workerType);
-        });
-
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (i + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                List<StudyResult> resultList = studyResultDao
-                        .findAllByBatchAndWorkerType(batch, workerType, first, maxDbQuerySize);
-                Errors.rethrow().run(() -> writeStudyResults(writer, isLastPage, resultList));
-            });
-        }
+    private void fetchStudyResultsByBatchAndWorkerTypePaginated(JsonGenerator gen, Batch batch, String workerType) {
+        fetchStudyResultsPaginated(gen, (lastId, maxId, max) ->
+                studyResultDao.findAllByBatchAndWorkerType(batch, workerType, lastId, maxId, max));
     }
 
     /**
@@ -189,31 +176,19 @@ public class ResultStreamer {
         return StreamConverters.asOutputStream()
                 .keepAlive(Duration.ofSeconds(30), () -> ByteString.fromString(" "))
                 .mapMaterializedValue(outputStream -> CompletableFuture.runAsync(() -> {
-                    try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream))) {
-                        writer.write("[");
-                        fetchStudyResultsByGroupPaginated(writer, groupResult);
-                        writer.write("]");
-                        writer.flush();
+                    try (JsonGenerator gen = createTableGenerator(outputStream)) {
+                        gen.writeStartArray();
+                        fetchStudyResultsByGroupPaginated(gen, groupResult);
+                        gen.writeEndArray();
                     } catch (Exception e) {
                         LOGGER.error(".streamStudyResultsByGroup: ", e);
                     }
                 }));
     }
 
-    private void fetchStudyResultsByGroupPaginated(Writer writer, GroupResult group) {
-        int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return studyResultDao.countByGroup(group);
-        });
-
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (i + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                List<StudyResult> resultList = studyResultDao.findAllByGroup(group, first, maxDbQuerySize);
-                Errors.rethrow().run(() -> writeStudyResults(writer, isLastPage, resultList));
-            });
-        }
+    private void fetchStudyResultsByGroupPaginated(JsonGenerator gen, GroupResult group) {
+        fetchStudyResultsPaginated(gen, (lastId, maxId, max) ->
+                studyResultDao.findAllByGroup(group, lastId, maxId, max));
     }
 
     /**
@@ -224,31 +199,43 @@ public class ResultStreamer {
         return StreamConverters.asOutputStream()
                 .keepAlive(Duration.ofSeconds(30), () -> ByteString.fromString(" "))
                 .mapMaterializedValue(outputStream -> CompletableFuture.runAsync(() -> {
-                    try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream))) {
-                        writer.write("[");
-                        fetchStudyResultsByWorkerPaginated(writer, worker, signedinUser);
-                        writer.write("]");
-                        writer.flush();
+                    try (JsonGenerator gen = createTableGenerator(outputStream)) {
+                        gen.writeStartArray();
+                        fetchStudyResultsByWorkerPaginated(gen, worker, signedinUser);
+                        gen.writeEndArray();
                     } catch (Exception e) {
                         LOGGER.error(".streamStudyResultsByWorker: ", e);
                     }
                 }));
     }
 
-    private void fetchStudyResultsByWorkerPaginated(Writer writer, Worker worker, User user) {
+    private void fetchStudyResultsByWorkerPaginated(JsonGenerator gen, Worker worker, User user) {
+        fetchStudyResultsPaginated(gen, (lastId, maxId, max) ->
+                studyResultDao.findAllByWorker(worker, user, lastId, maxId, max));
+    }
+
+    /**
+     * Fetches StudyResults page by page with keyset pagination and writes them into the Writer. Only StudyResults
+     * that already exist at the start (ID not greater than the current highest ID) are fetched, so the stream stays
+     * consistent while new results arrive. No count query is necessary: the last page is the first one that isn't
+     * full.
+     */
+    private void fetchStudyResultsPaginated(JsonGenerator gen, PageFetcher<StudyResult> pageFetcher) {
         int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return studyResultDao.countByWorker(worker, user);
+        long maxId = jpaApi.withTransaction(entityManager -> {
+            return studyResultDao.findMaxId();
         });
 
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (i + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                List<StudyResult> resultList = studyResultDao.findAllByWorker(worker, user, first, maxDbQuerySize);
-                Errors.rethrow().run(() -> writeStudyResults(writer, isLastPage, resultList));
+        AtomicLong lastId = new AtomicLong(0);
+        int pageSize;
+        do {
+            pageSize = jpaApi.withTransaction(entityManager -> {
+                List<StudyResult> resultList = pageFetcher.fetch(lastId.get(), maxId, maxDbQuerySize);
+                Errors.rethrow().run(() -> writeStudyResultRows(gen, resultList));
+                if (!resultList.isEmpty()) lastId.set(resultList.get(resultList.size() - 1).getId());
+                return resultList.size();
             });
-        }
+        } while (pageSize == maxDbQuerySize);
     }
 
     /**
@@ -259,44 +246,58 @@ public class ResultStreamer {
         return StreamConverters.asOutputStream()
                 .keepAlive(Duration.ofSeconds(30), () -> ByteString.fromString(" "))
                 .mapMaterializedValue(outputStream -> CompletableFuture.runAsync(() -> {
-                    try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream))) {
-                        writer.write("[");
-                        fetchComponentResultsPaginated(writer, component);
-                        writer.write("]");
-                        writer.flush();
+                    try (JsonGenerator gen = createTableGenerator(outputStream)) {
+                        gen.writeStartArray();
+                        fetchComponentResultsPaginated(gen, component);
+                        gen.writeEndArray();
                     } catch (Exception e) {
                         LOGGER.error(".streamComponentResults: ", e);
                     }
                 }));
     }
 
-    private void fetchComponentResultsPaginated(Writer writer, Component component) {
+    /**
+     * Fetches ComponentResults page by page with keyset pagination and writes them into the Writer. Same as with
+     * StudyResults only the ComponentResults that already exist at the start are fetched.
+     */
+    private void fetchComponentResultsPaginated(JsonGenerator gen, Component component) {
         int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return componentResultDao.countByComponent(component);
+        long maxId = jpaApi.withTransaction(entityManager -> {
+            return componentResultDao.findMaxId();
         });
 
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (i + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                Errors.rethrow().run(() -> {
-                    List<ComponentResult> resultList = componentResultDao.findAllByComponent(component, first,
-                            maxDbQuerySize);
-                    writeComponentResult(writer, isLastPage, resultList);
-                });
+        AtomicLong lastId = new AtomicLong(0);
+        int pageSize;
+        do {
+            pageSize = jpaApi.withTransaction(entityManager -> {
+                List<ComponentResult> resultList = componentResultDao.findAllByComponent(component, lastId.get(),
+                        maxId, maxDbQuerySize);
+                Errors.rethrow().run(() -> writeComponentResultRows(gen, resultList));
+                if (!resultList.isEmpty()) lastId.set(resultList.get(resultList.size() - 1).getId());
+                return resultList.size();
             });
-        }
+        } while (pageSize == maxDbQuerySize);
     }
 
-    public Source<ByteString, ?> streamComponentResultData(Http.Request request)
+    /**
+     * Fetches one page of results with keyset pagination: at most max results with an ID greater than lastId and not
+     * greater than maxId, ordered by ID
+     */
+    @FunctionalInterface
+    private interface PageFetcher<T> {
+        List<T> fetch(long lastId, long maxId, int max);
+    }
+
+    /**
+     * Streams the result data of the component results specified in the request as plain text. With a cursor (delta
+     * export) the next cursor is put into the given nextCursorHolder.
+     */
+    public Source<ByteString, ?> streamComponentResultData(Http.Request request, Map<String, Object> nextCursorHolder)
             throws BadRequestException, ForbiddenException, NotFoundException {
         User signedinUser = authService.getSignedinUser();
-        List<Long> componentResultIdList = componentResultIdsExtractor.extract(request.body().asJson());
-        componentResultIdList.addAll(componentResultIdsExtractor.extract(request.queryString()));
-        Collections.sort(componentResultIdList);
-        List<Long> studyResultIdList = studyResultDao.findIdsByComponentResultIds(componentResultIdList);
-        List<Study> studyList = studyDao.findByStudyResultIds(studyResultIdList);
+        List<Long> componentResultIdList = extractComponentResultIds(request, nextCursorHolder);
+        IdSet studyResultIds = IdSet.of(studyResultDao.findIdsByComponentResultIds(IdSet.of(componentResultIdList)));
+        List<Study> studyList = studyDao.findByStudyResultIds(studyResultIds);
         for (Study study : studyList) {
             checker.checkStandardForStudy(study, study.getId(), signedinUser);
         }
@@ -312,7 +313,7 @@ public class ResultStreamer {
                 .keepAlive(Duration.ofSeconds(30), () -> ByteString.fromString(" "))
                 .mapMaterializedValue(outputStream -> CompletableFuture.runAsync(() -> {
                     try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream))) {
-                        fetchComponentResultDataByIds(writer, componentResultIdList, signedinUser);
+                        fetchComponentResultDataByIds(writer, componentResultIdList, signedinUser, () -> {});
                         writer.flush();
                     } catch (Exception e) {
                         LOGGER.error(".streamComponentResult: ", e);
@@ -321,58 +322,147 @@ public class ResultStreamer {
     }
 
     /**
-     * Fetches the ComponentResults that correspond to the IDs, checks them and writes their result data into the given
-     * Writer. Fetches them one by one to reduce memory usages.
+     * Returns an Akka Source that streams the result data of a single component result straight from the database (see
+     * ComponentResultDao.streamData) - they are never materialised as a whole String.
      */
-    private void fetchComponentResultDataByIds(Writer writer, List<Long> componentResultIdList, User user) {
-        Set<Study> studies = new HashSet<>();
-        for (Long componentResultId : componentResultIdList) {
-            jpaApi.withTransaction(entityManager -> {
-                ComponentResult componentResult = componentResultDao.findById(componentResultId);
-                if (componentResult != null) {
-                    Errors.rethrow().run(() -> checker.checkComponentResult(componentResult, user, false));
-                    studies.add(componentResult.getStudyResult().getStudy());
-                    Errors.rethrow().run(() -> writeComponentResultData(writer, componentResult));
-                } else {
-                    LOGGER.warn("A component result with ID " + componentResultId + " doesn't exist.");
-                }
-            });
+    public Source<ByteString, ?> streamSingleComponentResultData(Long componentResultId) {
+        return StreamConverters.asOutputStream()
+                .keepAlive(Duration.ofSeconds(30), () -> ByteString.fromString(" "))
+                .mapMaterializedValue(outputStream -> CompletableFuture.runAsync(() -> {
+                    try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, UTF_8))) {
+                        jpaApi.withTransaction(entityManager -> {
+                            Errors.rethrow().run(() -> componentResultDao.streamData(componentResultId, writer));
+                            return null;
+                        });
+                    } catch (Exception e) {
+                        LOGGER.error(".streamSingleComponentResultData: ", e);
+                    }
+                }));
+    }
+
+    /**
+     * Writes the result data of the given component results as plain text (each result data in a new line) into the
+     * OutputStream. Used by export jobs - resultWritten is called after each component result.
+     */
+    public void writeResultDataAsPlainText(List<Long> componentResultIdList, User user, OutputStream out,
+            Runnable resultWritten) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8))) {
+            fetchComponentResultDataByIds(writer, componentResultIdList, user, resultWritten);
+        }
+    }
+
+    /**
+     * Checks the studies of the ComponentResults that correspond to the IDs and writes their result data into the
+     * given Writer. The result data are read with a single forward-only JDBC cursor (see ResultExportDao) - no entities
+     * are loaded, so the memory usage doesn't grow with the number of results.
+     */
+    private void fetchComponentResultDataByIds(Writer writer, List<Long> componentResultIdList, User user,
+            Runnable resultWritten) throws IOException {
+        IdSet crids = IdSet.of(componentResultIdList);
+        List<Study> studies = checkStudies(crids, user);
+
+        long count = resultExportDao.streamData(crids, new ResultExportDao.ResultDataHandler() {
+            @Override
+            public Writer begin(long studyResultId, long componentResultId) {
+                return writer;
+            }
+
+            @Override
+            public void end(long studyResultId, long componentResultId, boolean hasData) throws IOException {
+                if (hasData) writer.write(System.lineSeparator());
+                resultWritten.run();
+            }
+        });
+        if (count < crids.size()) {
+            LOGGER.warn((crids.size() - count) + " of the requested component results don't exist.");
         }
         studies.forEach(study -> studyLogger.log(study, user, "Exported result data to file"));
     }
 
-    private void writeStudyResults(Writer writer, boolean isLastPage, List<StudyResult> resultList) throws IOException {
+    /**
+     * Checks that the user is allowed to access the studies of the given ComponentResults, e.g. before an export job is
+     * queued
+     */
+    public void checkComponentResults(List<Long> componentResultIds, User user)
+            throws ForbiddenException, NotFoundException {
+        try {
+            checkStudies(IdSet.of(componentResultIds), user);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof ForbiddenException) throw (ForbiddenException) e.getCause();
+            if (e.getCause() instanceof NotFoundException) throw (NotFoundException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks that the user is allowed to access the studies of the given ComponentResults and returns the studies
+     */
+    private List<Study> checkStudies(IdSet crids, User user) {
+        return jpaApi.withTransaction("default", true, entityManager -> {
+            IdSet studyResultIds = IdSet.of(studyResultDao.findIdsByComponentResultIds(crids));
+            List<Study> studyList = studyDao.findByStudyResultIds(studyResultIds);
+            for (Study study : studyList) {
+                Errors.rethrow().run(() -> checker.checkStandardForStudy(study, study.getId(), user));
+            }
+            return studyList;
+        });
+    }
+
+    /**
+     * Returns a JsonGenerator for the result tables that writes into the given OutputStream. The rows are written
+     * directly into the generator - there is no JSON tree or String per row in between.
+     */
+    private JsonGenerator createTableGenerator(OutputStream outputStream) throws IOException {
+        return Json.mapper().getFactory().createGenerator(outputStream, JsonEncoding.UTF8);
+    }
+
+    /**
+     * Writes the StudyResults as JSON array elements
+     */
+    private void writeStudyResultRows(JsonGenerator gen, List<StudyResult> resultList) throws IOException {
+        if (resultList.isEmpty()) return;
         List<Long> srids = resultList.stream().map(StudyResult::getId).collect(Collectors.toList());
         Map<Long, Integer> componentResultCounts = studyResultDao.countComponentResultsForStudyResultIds(srids);
-        for (int i = 0; i < resultList.size(); i++) {
-            StudyResult result = resultList.get(i);
-            Integer componentResultCount = componentResultCounts.get(result.getId());
-            JsonNode resultNode = jsonUtils.studyResultAsJsonNode(result, componentResultCount);
-            writer.write(resultNode.toString());
-            boolean isLastResult = (i + 1) >= resultList.size();
-            if (!isLastPage || !isLastResult) {
-                writer.write(",\n");
-            }
+        Set<Long> sridsWithFiles = resultFileDao.findStudyResultIdsWithFiles(IdSet.of(srids));
+        for (StudyResult result : resultList) {
+            jsonUtils.writeStudyResult(gen, result, componentResultCounts.get(result.getId()),
+                    sridsWithFiles.contains(result.getId()));
         }
     }
 
-    private void writeComponentResult(Writer writer, boolean isLastPage, List<ComponentResult> resultList)
-            throws IOException {
-        for (int j = 0; j < resultList.size(); j++) {
-            ComponentResult result = resultList.get(j);
-            JsonNode resultNode = jsonUtils.componentResultAsJsonNode(result);
-            writer.write(resultNode.toString());
-            boolean isLastResult = (j + 1) >= resultList.size();
-            if (!isLastPage || !isLastResult) {
-                writer.write(",\n");
-            }
+    /**
+     * Writes the ComponentResults as JSON array elements
+     */
+    private void writeComponentResultRows(JsonGenerator gen, List<ComponentResult> resultList) throws IOException {
+        if (resultList.isEmpty()) return;
+        List<Long> crids = resultList.stream().map(ComponentResult::getId).collect(Collectors.toList());
+        Map<Long, List<ResultFile>> resultFiles = resultFileDao.findByComponentResultIds(IdSet.of(crids));
+        for (ComponentResult result : resultList) {
+            jsonUtils.writeComponentResult(gen, result,
+                    resultFiles.getOrDefault(result.getId(), Collections.emptyList()));
         }
     }
 
-    private void writeComponentResultData(Writer writer, ComponentResult componentResult) throws IOException {
-        String resultData = componentResultDao.getData(componentResult.getId());
-        if (resultData == null) return;
-        writer.write(resultData + System.lineSeparator());
+    /**
+     * Extracts the component result IDs (sorted) from the request's JSON body and query string. If the query string has
+     * a cursor (delta export) only the component results that were created or changed since the cursor are kept, and
+     * the next cursor is put into the given wrapObject - this way it ends up in the metadata.
+     */
+    public List<Long> extractComponentResultIds(Http.Request request, Map<String, Object> wrapObject)
+            throws BadRequestException {
+        // Take the time before the selection - everything that changes afterwards belongs to the next delta export
+        Instant exportStart = Instant.now();
+        List<Long> crids = componentResultIdsExtractor.extract(request.body().asJson());
+        crids.addAll(componentResultIdsExtractor.extract(request.queryString()));
+        Collections.sort(crids);
+
+        Optional<ResultCursor> cursor = ResultCursor.fromRequest(request);
+        if (cursor.isPresent()) {
+            crids = componentResultDao.findIdsChangedSince(IdSet.of(crids), cursor.get().getLastComponentResultId(),
+                    cursor.get().getWatermark());
+            wrapObject.put(ResultCursor.METADATA_FIELD, cursor.get().next(crids, exportStart).toString());
+        }
+        return crids;
     }
 
     public enum ResultType {
@@ -382,17 +472,22 @@ public class ResultStreamer {
         METADATA_ONLY
     }
 
-    public Source<ByteString, ?> streamResults(Http.Request request, ResultType resultType) throws BadRequestException {
-        return streamResults(request, resultType, Collections.emptyMap());
+    public Source<ByteString, ?> streamResults(Http.Request request, ResultType resultType,
+            Map<String, Object> wrapObject) throws BadRequestException {
+        return streamResults(request, resultType, wrapObject, false);
     }
 
+    /**
+     * @param wrapObject        Is written into the metadata. With a cursor (delta export) the next cursor is put into
+     *                          it, so it has to be mutable.
+     * @param uncompressedFiles If true all result files are stored in the zip without compression. Otherwise only the
+     *                          already compressed ones (e.g. images, videos) are stored and the rest is compressed.
+     */
     public Source<ByteString, ?> streamResults(Http.Request request, ResultType resultType,
-            Map<String, Object> wrapObject) throws BadRequestException {
+            Map<String, Object> wrapObject, boolean uncompressedFiles) throws BadRequestException {
         User signedinUser = authService.getSignedinUser();
-        List<Long> crids = componentResultIdsExtractor.extract(request.body().asJson());
-        crids.addAll(componentResultIdsExtractor.extract(request.queryString()));
-        Collections.sort(crids);
-        return streamResults(crids, signedinUser, resultType, wrapObject);
+        List<Long> crids = extractComponentResultIds(request, wrapObject);
+        return streamResults(crids, signedinUser, resultType, wrapObject, uncompressedFiles);
     }
 
     /**
@@ -400,15 +495,13 @@ public class ResultStreamer {
      * specified by a ResultsType.
      */
     private Source<ByteString, ?> streamResults(List<Long> componentResultIds, User signedinUser, ResultType resultsType,
-            Map<String, Object> wrapObject) {
+            Map<String, Object> wrapObject, boolean uncompressedFiles) {
         return StreamConverters.asOutputStream()
                 .keepAlive(Duration.ofSeconds(30), () -> ByteString.fromString(" "))
                 .mapMaterializedValue(outputStream -> CompletableFuture.runAsync(() -> {
-                    try (ZipOutputStream zipOut = new ZipOutputStream(outputStream, UTF_8)) {
-                        jpaApi.withTransaction(entityManager -> {
-                            Errors.rethrow().run(() -> writeResults(componentResultIds, signedinUser, zipOut, resultsType, wrapObject));
-                        });
-                        zipOut.flush();
+                    try {
+                        writeResultsZip(componentResultIds, signedinUser, resultsType, wrapObject, uncompressedFiles,
+                                outputStream, () -> {});
                     } catch (Exception e) {
                         LOGGER.error(".streamResults: " + e.getMessage());
                     }
@@ -416,24 +509,89 @@ public class ResultStreamer {
     }
 
     /**
-     * Returns a file with metadata
+     * Writes the ComponentResults as a zip into the given OutputStream and closes it. The content of the zip can be
+     * specified by a ResultsType. resultWritten is called after each component result (e.g. to track the progress of
+     * an export job). There is no transaction around the whole export - each page of results is read in its own short
+     * transaction, so no database connection is held for the duration of the export.
+     */
+    public void writeResultsZip(List<Long> componentResultIds, User signedinUser, ResultType resultsType,
+            Map<String, Object> wrapObject, boolean uncompressedFiles, OutputStream out, Runnable resultWritten)
+            throws IOException, ForbiddenException, NotFoundException {
+        // Entries are compressed in parallel while the next results are fetched from the database
+        int maxPendingEntries = Common.getResultExportThreads() * 4;
+        try (ParallelZipWriter zipWriter = new ParallelZipWriter(out, zipExecutor, maxPendingEntries,
+                uncompressedFiles)) {
+            if (resultsType == ResultType.DATA_ONLY || resultsType == ResultType.FILES_ONLY) {
+                writeResultsWithoutMetadata(componentResultIds, signedinUser, zipWriter, resultsType, resultWritten);
+                return;
+            }
+            writeResults(componentResultIds, signedinUser, zipWriter, resultsType, wrapObject, resultWritten);
+        }
+    }
+
+    /**
+     * Writes the data (DATA_ONLY) or the files (FILES_ONLY) of the ComponentResults into the zip. Without metadata no
+     * entities are needed: like the plain text export the results are read with a single forward-only JDBC cursor (see
+     * ResultExportDao) and the data are streamed straight into the zip entries.
+     */
+    private void writeResultsWithoutMetadata(List<Long> componentResultIds, User user, ParallelZipWriter zipWriter,
+            ResultType resultsType, Runnable resultWritten) throws IOException {
+        IdSet crids = IdSet.of(componentResultIds);
+        List<Study> studies = checkStudies(crids, user);
+
+        long count;
+        if (resultsType == ResultType.DATA_ONLY) {
+            DataEntryHandler handler = new DataEntryHandler(zipWriter, resultWritten);
+            try {
+                count = resultExportDao.streamData(crids, handler);
+            } finally {
+                handler.discardOpenEntry();
+            }
+        } else {
+            count = resultExportDao.streamFiles(crids, (studyResultId, componentResultId, filenames) -> {
+                addFilesToZip(zipWriter, studyResultId, componentResultId, filenames);
+                resultWritten.run();
+            });
+        }
+        if (count < crids.size()) {
+            LOGGER.warn((crids.size() - count) + " of the requested component results don't exist.");
+        }
+        studies.forEach(study -> studyLogger.log(study, user, "Exported results (files and/or data)"));
+    }
+
+    /**
+     * Returns a file with metadata. With a cursor (delta export) the next cursor is put into the wrapObject, so it has
+     * to be mutable.
      */
     public File writeResultMetadata(Http.Request request, Map<String, Object> wrapObject)
             throws ForbiddenException, NotFoundException, IOException, BadRequestException {
         User signedinUser = authService.getSignedinUser();
-        List<Long> crids = componentResultIdsExtractor.extract(request.body().asJson());
-        crids.addAll(componentResultIdsExtractor.extract(request.queryString()));
-        Collections.sort(crids);
-        return writeResults(crids, signedinUser, null, ResultType.METADATA_ONLY, wrapObject);
+        List<Long> crids = extractComponentResultIds(request, wrapObject);
+        return writeResultMetadata(crids, signedinUser, wrapObject, () -> {});
+    }
+
+    /**
+     * Returns a file with the metadata of the given component results. resultWritten is called after each component
+     * result.
+     */
+    public File writeResultMetadata(List<Long> componentResultIds, User signedinUser, Map<String, Object> wrapObject,
+            Runnable resultWritten) throws ForbiddenException, NotFoundException, IOException {
+        return writeResults(componentResultIds, signedinUser, null, ResultType.METADATA_ONLY, wrapObject,
+                resultWritten);
     }
 
     /**
-     * Allows streaming of ComponentResults into a ZipOutputStream and on the same side can return a File containing all
-     * metadata in JSON format. The content of what is written into the ZipOutputStream can be specified by a ResultsType.
+     * Allows streaming of ComponentResults into a zip and on the same side can return a File containing all metadata in
+     * JSON format. The content of what is written into the zip can be specified by a ResultsType. Only the metadata
+     * types (METADATA_ONLY and COMBINED) are handled here. It opens its own short read-only transactions.
      */
-    private File writeResults(List<Long> componentResultIds, User signedinUser, ZipOutputStream zipOut,
-            ResultType resultsType, Map<String, Object> wrapObject) throws IOException, NotFoundException, ForbiddenException {
-        List<Long> studyResultIds = studyResultDao.findIdsByComponentResultIds(componentResultIds);
+    private File writeResults(List<Long> componentResultIds, User signedinUser, ParallelZipWriter zipWriter,
+            ResultType resultsType, Map<String, Object> wrapObject, Runnable resultWritten)
+            throws IOException, NotFoundException, ForbiddenException {
+        IdSet crids = IdSet.of(componentResultIds);
+        IdSet studyResultIds = jpaApi.withTransaction("default", true, entityManager -> {
+            return IdSet.of(studyResultDao.findIdsByComponentResultIds(crids));
+        });
 
         Path metadataFile = null;
         JsonGenerator jGenerator;
@@ -451,10 +609,15 @@ public class ResultStreamer {
             jGenerator = null;
         }
 
-        List<Long> studyIds = studyDao.findIdsByStudyResultIds(studyResultIds);
+        List<Long> studyIds = jpaApi.withTransaction("default", true, entityManager -> {
+            return studyDao.findIdsByStudyResultIds(studyResultIds);
+        });
         for (Long studyId : studyIds) {
-            Study study = studyDao.findById(studyId);
-            checker.checkStandardForStudy(study, studyId, signedinUser);
+            Study study = jpaApi.withTransaction("default", true, entityManager -> {
+                Study s = studyDao.findById(studyId);
+                Errors.rethrow().run(() -> checker.checkStandardForStudy(s, studyId, signedinUser));
+                return s;
+            });
 
             if (resultsType == ResultType.METADATA_ONLY || resultsType == ResultType.COMBINED) {
                 jGenerator.writeStartObject();
@@ -464,14 +627,16 @@ public class ResultStreamer {
                 jGenerator.writeArrayFieldStart("studyResults");
             }
 
-            List<Long> sridsByStudy = studyResultDao.findIdsFromListThatBelongToStudy(studyResultIds, study.getId());
-            writeStudyResults(componentResultIds, sridsByStudy, zipOut, jGenerator, resultsType);
+            List<Long> sridsByStudy = jpaApi.withTransaction("default", true, entityManager -> {
+                return studyResultDao.findIdsFromListThatBelongToStudy(studyResultIds, study.getId());
+            });
+            writeStudyResults(crids, sridsByStudy, zipWriter, jGenerator, resultsType, resultWritten);
 
             if (resultsType == ResultType.METADATA_ONLY || resultsType == ResultType.COMBINED) {
                 jGenerator.writeEndArray();
                 jGenerator.writeEndObject();
             }
-            if (resultsType == ResultType.COMBINED || resultsType == ResultType.DATA_ONLY || resultsType == ResultType.FILES_ONLY) {
+            if (resultsType == ResultType.COMBINED) {
                 studyLogger.log(study, signedinUser, "Exported results (files and/or data)");
             }
         }
@@ -483,80 +648,144 @@ public class ResultStreamer {
         }
 
         if (resultsType == ResultType.COMBINED) {
-            ZipUtil.addFileToZip(zipOut, Paths.get(""), Paths.get("metadata.json"), metadataFile);
-            Files.delete(metadataFile);
+            // The metadata file is deleted by the zip writer after it was compressed
+            zipWriter.addTemporaryFile("metadata.json", metadataFile);
         }
         return resultsType == ResultType.METADATA_ONLY ? metadataFile.toFile(): null;
     }
 
-    private void writeStudyResults(List<Long> crids, List<Long> srids, ZipOutputStream zipOut,
-            JsonGenerator jGenerator, ResultType resultsType) throws IOException {
+    /**
+     * Streams each ComponentResult's data into its own 'data.txt' entry of the zip. Entries of ComponentResults without
+     * data are discarded.
+     */
+    private static class DataEntryHandler implements ResultExportDao.ResultDataHandler {
+
+        private final ParallelZipWriter zipWriter;
+        private final Runnable resultWritten;
+        private ParallelZipWriter.EntryOutputStream entry;
+        private Writer entryWriter;
+
+        DataEntryHandler(ParallelZipWriter zipWriter, Runnable resultWritten) {
+            this.zipWriter = zipWriter;
+            this.resultWritten = resultWritten;
+        }
+
+        @Override
+        public Writer begin(long studyResultId, long componentResultId) throws IOException {
+            String path = IOUtils.getResultsPathForZip(studyResultId, componentResultId) + "/data.txt";
+            entry = zipWriter.newEntry(path);
+            entryWriter = new OutputStreamWriter(entry, UTF_8);
+            return entryWriter;
+        }
+
+        @Override
+        public void end(long studyResultId, long componentResultId, boolean hasData) throws IOException {
+            // Closing the Writer closes the entry which adds it to the zip
+            if (hasData) entryWriter.close();
+            else entry.discard();
+            resultWritten.run();
+        }
+
+        /**
+         * Drops the entry that is still open after an error (e.g. to delete its temporary file)
+         */
+        void discardOpenEntry() {
+            if (entry != null) entry.discard();
+        }
+    }
+
+    /**
+     * Writes the StudyResults with the given IDs and their ComponentResults (only those that are in the given crids)
+     * into the metadata JSON and (COMBINED) the zip. The results are fetched page-wise: per page there is one short
+     * read-only transaction with one query for the StudyResults and one for all their ComponentResults. The result
+     * data of a page are afterwards streamed into the zip with one query (ResultExportDao) and never loaded into the
+     * persistence context, so the memory usage stays bounded by the page size. Since the metadata are serialized from
+     * the entities (JsonUtils) this path still uses entity pages - exports without metadata use ResultExportDao's JDBC
+     * cursor for everything (writeResultsWithoutMetadata).
+     */
+    private void writeStudyResults(IdSet crids, List<Long> srids, ParallelZipWriter zipWriter,
+            JsonGenerator jGenerator, ResultType resultsType, Runnable resultWritten) throws IOException {
         int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
 
         for (int i = 0; i < srids.size(); i += maxDbQuerySize) {
-            List<StudyResult> studyResultList = studyResultDao.findByIds(srids, i, maxDbQuerySize);
+            // Page through the ID list itself instead of using an OFFSET
+            List<Long> sridsPage = srids.subList(i, Math.min(i + maxDbQuerySize, srids.size()));
+            List<Long> cridsPage = jpaApi.withTransaction("default", true, entityManager -> {
+                List<StudyResult> studyResultList = studyResultDao.findByIds(IdSet.of(sridsPage));
 
-            for (StudyResult studyResult : studyResultList) {
                 // Filter: Keep only the crids that are in the original request's crids (StudyResult can have more)
-                List<Long> someCrids = componentResultDao.findIdsByStudyResultId(studyResult.getId())
-                        .stream().filter(crids::contains).collect(Collectors.toList());
-                ArrayNode componentResultArrayNode = writeComponentResults(studyResult.getId(), someCrids, zipOut, resultsType);
-
-                if (resultsType == ResultType.METADATA_ONLY || resultsType == ResultType.COMBINED) {
-                    ObjectNode studyResultNode = jsonUtils.studyResultMetadata(studyResult);
-                    studyResultNode.set("componentResults", componentResultArrayNode);
-                    jGenerator.writeTree(studyResultNode);
+                Map<Long, List<ComponentResult>> componentResultsBySrid = new HashMap<>();
+                List<Long> pageCrids = new ArrayList<>();
+                for (ComponentResult cr : componentResultDao.findByStudyResultIds(sridsPage)) {
+                    if (!crids.contains(cr.getId())) continue;
+                    componentResultsBySrid.computeIfAbsent(cr.getStudyResult().getId(), k -> new ArrayList<>()).add(cr);
+                    pageCrids.add(cr.getId());
+                }
+                // The uploaded files' metadata come from the index and not from listing the upload directories
+                Map<Long, List<ResultFile>> resultFiles = resultFileDao.findByComponentResultIds(IdSet.of(pageCrids));
+
+                for (StudyResult studyResult : studyResultList) {
+                    List<ComponentResult> componentResultList = componentResultsBySrid
+                            .getOrDefault(studyResult.getId(), Collections.emptyList());
+                    // The metadata are written directly into the generator - no JSON tree in between
+                    Errors.rethrow().run(() -> {
+                        jGenerator.writeStartObject();
+                        jsonUtils.writeStudyResultMetadataFields(jGenerator, studyResult);
+                        jGenerator.writeArrayFieldStart("componentResults");
+                    });
+                    writeComponentResults(studyResult.getId(), componentResultList, resultFiles, zipWriter,
+                            jGenerator, resultsType, resultWritten);
+                    Errors.rethrow().run(() -> {
+                        jGenerator.writeEndArray();
+                        jGenerator.writeEndObject();
+                    });
+                }
+                // Nothing is changed - keep the persistence context small
+                entityManager.clear();
+                return pageCrids;
+            });
+
+            if (resultsType == ResultType.COMBINED && !cridsPage.isEmpty()) {
+                DataEntryHandler handler = new DataEntryHandler(zipWriter, () -> {});
+                try {
+                    resultExportDao.streamData(IdSet.of(cridsPage), handler);
+                } finally {
+                    handler.discardOpenEntry();
                 }
             }
         }
     }
 
-    private ArrayNode writeComponentResults(Long studyResultId, List<Long> componentResultList, ZipOutputStream zipOut,
-            ResultType resultsType) {
-        ArrayNode componentResultArrayNode = Json.mapper().createArrayNode();
-        for (Long componentResultId : componentResultList) {
-            // We have to do it one by one to save memory in case of large result data
-            jpaApi.withTransaction(entityManager -> {
-                switch (resultsType) {
-                    case METADATA_ONLY: {
-                        ComponentResult componentResult = componentResultDao.findById(componentResultId);
-                        componentResultArrayNode.add(jsonUtils.componentResultMetadata(componentResult));
-                        break;
-                    }
-                    case FILES_ONLY: {
-                        Errors.rethrow().run(() -> addFilesToZip(zipOut, studyResultId, componentResultId));
-                        break;
-                    }
-                    case DATA_ONLY: {
-                        Errors.rethrow().run(() -> {
-                            String data = componentResultDao.getData(componentResultId);
-                            String path = IOUtils.getResultsPathForZip(studyResultId, componentResultId) + "/data.txt";
-                            ZipUtil.addDataToZip(zipOut, data, path);
-                        });
-                        break;
-                    }
-                    case COMBINED: {
-                        ComponentResult componentResult = componentResultDao.findById(componentResultId);
-                        componentResultArrayNode.add(jsonUtils.componentResultMetadata(componentResult));
-                        Errors.rethrow().run(() -> addFilesToZip(zipOut, studyResultId, componentResultId));
-                        Errors.rethrow().run(() -> {
-                            String data = componentResultDao.getData(componentResultId);
-                            String path = IOUtils.getResultsPathForZip(studyResultId, componentResultId) + "/data.txt";
-                            ZipUtil.addDataToZip(zipOut, data, path);
-                        });
-                        break;
-                    }
-                }
-            });
+    /**
+     * Writes the metadata of the ComponentResults and (COMBINED) adds their files to the zip. Their data are added to
+     * the zip afterwards for the whole page (writeStudyResults).
+     */
+    private void writeComponentResults(Long studyResultId, List<ComponentResult> componentResultList,
+            Map<Long, List<ResultFile>> resultFiles, ParallelZipWriter zipWriter, JsonGenerator jGenerator,
+            ResultType resultsType, Runnable resultWritten) {
+        for (ComponentResult componentResult : componentResultList) {
+            Long componentResultId = componentResult.getId();
+            List<ResultFile> files = resultFiles.getOrDefault(componentResultId, Collections.emptyList());
+            Errors.rethrow().run(() -> jsonUtils.writeComponentResultMetadata(jGenerator, componentResult, files));
+            if (resultsType == ResultType.COMBINED) {
+                List<String> filenames = files.stream().map(ResultFile::getFilename).collect(Collectors.toList());
+                Errors.rethrow().run(() -> addFilesToZip(zipWriter, studyResultId, componentResultId, filenames));
+            }
+            resultWritten.run();
         }
-        return componentResultArrayNode;
     }
 
-    private void addFilesToZip(ZipOutputStream zipOut, Long studyResultId, Long componentResultId) throws IOException {
-        Path pathInFileSystem = Paths.get(IOUtils.getResultUploadsDir(studyResultId, componentResultId));
-        if (Files.exists(pathInFileSystem)) {
-            Path pathInZip = Paths.get(IOUtils.getResultsPathForZip(studyResultId, componentResultId), "files");
-            ZipUtil.addToZip(zipOut, pathInZip, pathInFileSystem);
+    /**
+     * Adds the given uploaded files of the ComponentResult to the zip. The filenames come from the index of uploaded
+     * result files (ResultFile), so the upload directories are never listed or checked.
+     */
+    private void addFilesToZip(ParallelZipWriter zipWriter, long studyResultId, long componentResultId,
+            List<String> filenames) throws IOException {
+        if (filenames.isEmpty()) return;
+        Path dir = Paths.get(IOUtils.getResultUploadsDir(studyResultId, componentResultId));
+        Path pathInZip = Paths.get(IOUtils.getResultsPathForZip(studyResultId, componentResultId), "files");
+        for (String filename : filenames) {
+            zipWriter.addFile(pathInZip.resolve(filename).toString(), dir.resolve(filename));
         }
     }
 
@@ -0,0 +1,177 @@
+package services.gui;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import daos.common.ComponentResultDao;
+import daos.common.ResultFileDao;
+import daos.common.ResultTableQuery;
+import daos.common.StudyResultDao;
+import exceptions.gui.BadRequestException;
+import general.common.Common;
+import models.common.Component;
+import models.common.ComponentResult;
+import models.common.ResultFile;
+import models.common.Study;
+import models.common.StudyResult;
+import play.libs.Json;
+import utils.common.IdSet;
+import utils.common.JsonUtils;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Server-side processing of the result tables: instead of streaming all results of a study or component to the
+ * browser, only one page is fetched from the database. Filtering and sorting are done in the database query.
+ *
+ * The query parameters are: draw (is just returned), start, length, sortBy (a column of the table), sortDir ('asc' or
+ * 'desc'), state (StudyState or ComponentState), workerType, batchId, fromDate and toDate (both in epoch millis,
+ * compared with the result's start date). The returned JSON has the format that DataTables uses for server-side
+ * processing: draw, recordsTotal, recordsFiltered, and data (the page's results).
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ResultTableService {
+
+    private final StudyResultDao studyResultDao;
+    private final ComponentResultDao componentResultDao;
+    private final ResultFileDao resultFileDao;
+    private final WorkerService workerService;
+    private final JsonUtils jsonUtils;
+
+    @Inject
+    ResultTableService(StudyResultDao studyResultDao, ComponentResultDao componentResultDao,
+            ResultFileDao resultFileDao, WorkerService workerService, JsonUtils jsonUtils) {
+        this.studyResultDao = studyResultDao;
+        this.componentResultDao = componentResultDao;
+        this.resultFileDao = resultFileDao;
+        this.workerService = workerService;
+        this.jsonUtils = jsonUtils;
+    }
+
+    /**
+     * Returns one page of the StudyResults of the given study
+     */
+    public JsonNode studyResultsPage(Study study, Map<String, String[]> queryString) throws BadRequestException {
+        ResultTableQuery tableQuery = parse(queryString, StudyResultDao.TABLE_SORT_COLUMNS);
+        String state = getParameter(queryString, "state");
+        if (state != null) tableQuery.setState(parseEnum(StudyResult.StudyState.class, state));
+
+        int recordsTotal = studyResultDao.countByStudy(study);
+        int recordsFiltered = studyResultDao.countByStudy(study, tableQuery);
+        List<StudyResult> resultList = studyResultDao.findPageByStudy(study, tableQuery);
+        ArrayNode data = Json.mapper().createArrayNode();
+        if (!resultList.isEmpty()) {
+            List<Long> srids = resultList.stream().map(StudyResult::getId).collect(Collectors.toList());
+            Map<Long, Integer> componentResultCounts = studyResultDao.countComponentResultsForStudyResultIds(srids);
+            Set<Long> sridsWithFiles = resultFileDao.findStudyResultIdsWithFiles(IdSet.of(srids));
+            resultList.forEach(sr -> data.add(jsonUtils.studyResultAsJsonNode(sr, componentResultCounts.get(sr.getId()),
+                    sridsWithFiles.contains(sr.getId()))));
+        }
+        return pageAsJsonNode(queryString, recordsTotal, recordsFiltered, data);
+    }
+
+    /**
+     * Returns one page of the ComponentResults of the given component
+     */
+    public JsonNode componentResultsPage(Component component, Map<String, String[]> queryString)
+            throws BadRequestException {
+        ResultTableQuery tableQuery = parse(queryString, ComponentResultDao.TABLE_SORT_COLUMNS);
+        String state = getParameter(queryString, "state");
+        if (state != null) tableQuery.setState(parseEnum(ComponentResult.ComponentState.class, state));
+
+        int recordsTotal = componentResultDao.countByComponent(component);
+        int recordsFiltered = componentResultDao.countByComponent(component, tableQuery);
+        List<ComponentResult> resultList = componentResultDao.findPageByComponent(component, tableQuery);
+        ArrayNode data = Json.mapper().createArrayNode();
+        if (!resultList.isEmpty()) {
+            List<Long> crids = resultList.stream().map(ComponentResult::getId).collect(Collectors.toList());
+            Map<Long, List<ResultFile>> resultFiles = resultFileDao.findByComponentResultIds(IdSet.of(crids));
+            resultList.forEach(cr -> data.add(jsonUtils.componentResultAsJsonNode(cr,
+                    resultFiles.getOrDefault(cr.getId(), Collections.emptyList()))));
+        }
+        return pageAsJsonNode(queryString, recordsTotal, recordsFiltered, data);
+    }
+
+    private ResultTableQuery parse(Map<String, String[]> queryString, Map<String, String> sortColumns)
+            throws BadRequestException {
+        int start = parseInt(queryString, "start", 0);
+        if (start < 0) throw new BadRequestException("Parameter start must not be negative");
+        // DataTables uses -1 for 'All' - we restrict it to what we fetch from the DB at once
+        int maxLength = Common.getMaxResultsDbQuerySize();
+        int length = parseInt(queryString, "length", 10);
+        if (length <= 0 || length > maxLength) length = maxLength;
+
+        String sortBy = getParameter(queryString, "sortBy");
+        if (sortBy == null) sortBy = "id";
+        String sortColumn = sortColumns.get(sortBy);
+        if (sortColumn == null) throw new BadRequestException("Unknown sort column " + sortBy);
+        boolean sortAscending = "asc".equalsIgnoreCase(getParameter(queryString, "sortDir"));
+        ResultTableQuery tableQuery = new ResultTableQuery(start, length, sortColumn, sortAscending);
+
+        String workerType = getParameter(queryString, "workerType");
+        if (workerType != null) tableQuery.setWorkerType(workerService.extractWorkerType(workerType));
+        String batchId = getParameter(queryString, "batchId");
+        if (batchId != null) tableQuery.setBatchId(parseLong("batchId", batchId));
+        String fromDate = getParameter(queryString, "fromDate");
+        if (fromDate != null) tableQuery.setFromDate(new Timestamp(parseLong("fromDate", fromDate)));
+        String toDate = getParameter(queryString, "toDate");
+        if (toDate != null) tableQuery.setToDate(new Timestamp(parseLong("toDate", toDate)));
+        return tableQuery;
+    }
+
+    private JsonNode pageAsJsonNode(Map<String, String[]> queryString, int recordsTotal, int recordsFiltered,
+            ArrayNode data) throws BadRequestException {
+        ObjectNode node = Json.mapper().createObjectNode();
+        node.put("draw", parseInt(queryString, "draw", 0));
+        node.put("recordsTotal", recordsTotal);
+        node.put("recordsFiltered", recordsFiltered);
+        node.set("data", data);
+        return node;
+    }
+
+    /**
+     * Returns the first value of the parameter or null if it doesn't exist or is empty
+     */
+    private static String getParameter(Map<String, String[]> queryString, String name) {
+        String[] values = queryString.get(name);
+        if (values == null || values.length == 0 || values[0].trim().isEmpty()) return null;
+        return values[0].trim();
+    }
+
+    private static int parseInt(Map<String, String[]> queryString, String name, int defaultValue)
+            throws BadRequestException {
+        String value = getParameter(queryString, name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Parameter " + name + " must be a number");
+        }
+    }
+
+    private static long parseLong(String name, String value) throws BadRequestException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Parameter " + name + " must be a number");
+        }
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> enumType, String value) throws BadRequestException {
+        try {
+            return Enum.valueOf(enumType, value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Unknown state " + value);
+        }
+    }
+
+}
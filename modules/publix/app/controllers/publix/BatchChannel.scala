@@ -9,6 +9,7 @@ import batch.BatchChannelActor
 import batch.BatchDispatcher.PoisonChannel
 import batch.BatchDispatcherRegistry.{GetOrCreate, ItsThisOne}
 import exceptions.publix.PublixException
+import general.common.SessionDispatcherMetrics
 import models.common.StudyResult
 import models.common.workers._
 import play.api.Logger
@@ -19,8 +20,9 @@ import services.publix.idcookie.IdCookieService
 import services.publix.workers._
 
 import javax.inject.{Inject, Named, Singleton}
-import scala.concurrent.Await
 import scala.concurrent.duration._
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.Try
 
 /**
   * Abstract class that handles opening of the batch channel. It has concrete implementations for
@@ -45,50 +47,66 @@ abstract class BatchChannel[A <: Worker](components: ControllerComponents,
   @Named("batch-dispatcher-registry-actor")
   var batchDispatcherRegistry: ActorRef = _
 
+  @Inject
+  var sessionDispatcherMetrics: SessionDispatcherMetrics = _
+
   /**
     * Time to wait for an answer after asking an Akka actor
     */
   implicit val timeout: Timeout = 30.seconds
 
+  private implicit lazy val executionContext: ExecutionContext = defaultExecutionContext
+
   /**
     * HTTP endpoint that opens a batch channel and returns a Akka stream Flow that will be turned
-    * into WebSocket. In case of an error/problem an PublixException is thrown.
+    * into WebSocket. The authorisation is checked right away and in case of an error/problem an
+    * PublixException is thrown. Everything that involves the batch's dispatcher is done
+    * asynchronously without blocking the request's thread - the returned Future fails if the
+    * dispatcher doesn't answer.
     */
   @throws(classOf[PublixException])
-  def open(studyResult: StudyResult)(implicit request: RequestHeader): Flow[Any, Nothing, _] = {
+  def open(studyResult: StudyResult)(implicit request: RequestHeader): Future[Flow[Any, Nothing, _]] = {
     logger.info(s".open: studyResult ${studyResult.getId}")
     val worker = studyResult.getWorker.asInstanceOf[A]
     val study = studyResult.getStudy
     val batch = studyResult.getBatch
     studyAuthorisation.checkWorkerAllowedToDoStudy(request.withBody().session.asJava, worker, study, batch)
 
-    // Get the BatchDispatcher that will handle this batch.
-    val batchDispatcher = getOrCreateBatchDispatcher(batch.getId)
-    // If this BatchDispatcher already has a batch channel for this
-    // StudyResult, close the old one before opening a new one.
-    closeBatchChannel(studyResult.getId, batchDispatcher)
-    ActorFlow.actorRef { out => BatchChannelActor.props(out, studyResult.getId, batchDispatcher) }
+    val studyResultId = studyResult.getId
+    // A reconnecting client sends the batch session version it knows
+    val knownSessionVersion = request.getQueryString("sessionVersion").flatMap(v => Try(v.toLong).toOption)
+    for {
+      // Get the BatchDispatcher that will handle this batch.
+      batchDispatcher <- getOrCreateBatchDispatcher(batch.getId)
+      // If this BatchDispatcher already has a batch channel for this
+      // StudyResult, close the old one before opening a new one.
+      _ <- closeBatchChannel(studyResultId, batchDispatcher)
+    } yield ActorFlow.actorRef { out =>
+      BatchChannelActor.props(out, studyResultId, batchDispatcher, knownSessionVersion)
+    }
   }
 
   /**
-    * Asks the BatchDispatcherRegistry to get or create a batch dispatcher for the given ID. It
-    * waits until it receives an answer. The answer is an ActorRef (to a BatchDispatcher).
+    * Asks the BatchDispatcherRegistry to get or create a batch dispatcher for the given ID. The
+    * answer is an ActorRef (to a BatchDispatcher). The time until the answer goes into the
+    * registry lookup metrics.
     */
-  private def getOrCreateBatchDispatcher(batchId: Long): ActorRef = {
-    val future = batchDispatcherRegistry ? GetOrCreate(batchId)
-    Await.result(future, timeout.duration).asInstanceOf[ItsThisOne].dispatcher
+  private def getOrCreateBatchDispatcher(batchId: Long): Future[ActorRef] = {
+    val start = System.nanoTime()
+    (batchDispatcherRegistry ? GetOrCreate(batchId)).mapTo[ItsThisOne].map { answer =>
+      sessionDispatcherMetrics.addRegistryLookupLatency("batch", System.nanoTime() - start)
+      answer.dispatcher
+    }
   }
 
   /**
     * Closes the batch channel that belongs to the given study result ID and is managed by the
-    * given BatchDispatcher. Waits until it receives a result from the BatchDispatcher actor. It
-    * returns true if the BatchChannel was managed by the BatchDispatcher and was successfully
-    * removed from the BatchDispatcher, false otherwise (it was probably never managed by the
-    * dispatcher).
+    * given BatchDispatcher. The answer is true if the BatchChannel was managed by the
+    * BatchDispatcher and was successfully removed from the BatchDispatcher, false otherwise (it
+    * was probably never managed by the dispatcher).
     */
-  private def closeBatchChannel(studyResultId: Long, batchDispatcher: ActorRef) = {
-    val future = batchDispatcher ? PoisonChannel(studyResultId)
-    Await.result(future, timeout.duration).asInstanceOf[Boolean]
+  private def closeBatchChannel(studyResultId: Long, batchDispatcher: ActorRef): Future[Boolean] = {
+    (batchDispatcher ? PoisonChannel(studyResultId)).mapTo[Boolean]
   }
 
 }
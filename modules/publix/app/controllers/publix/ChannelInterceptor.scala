@@ -1,11 +1,12 @@
 package controllers.publix
 
+import akka.stream.scaladsl.Flow
 import controllers.publix.actionannotation.PublixAccessLoggingAction.PublixAccessLogging
 import daos.common.StudyResultDao
 import exceptions.publix.{BadRequestPublixException, ForbiddenPublixException, NotFoundPublixException, PublixException}
+import models.common.StudyResult
 import models.common.workers._
 import play.api.Logger
-import play.api.libs.json.JsValue
 import play.api.mvc._
 import play.core.j.JavaHelpers
 import play.db.jpa.JPAApi
@@ -13,7 +14,7 @@ import utils.common.Helpers
 
 import javax.inject.{Inject, Singleton}
 import scala.compat.java8.FunctionConverters.asJavaSupplier
-import scala.concurrent.Future
+import scala.concurrent.{ExecutionContext, Future}
 
 /**
   * This class intercepts a request before it gets to the BatchChannel or GroupChannel. It has
@@ -42,54 +43,64 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
 
   private val logger: Logger = Logger(this.getClass)
 
+  private implicit val executionContext: ExecutionContext = defaultExecutionContext
+
+  private type ChannelOpening = Future[Either[Result, Flow[String, String, _]]]
+
   /**
     * HTTP type: WebSocket
     *
     * Endpoint that opens a WebSocket for the batch channel that is used to exchange data (batch
     * session data) between study runs of a batch. All batch session data are stored in a Batch
-    * model and the batch channels will be handled by a BatchDispatcher which uses Akka.
+    * model and the batch channels will be handled by a BatchDispatcher which uses Akka. Waiting
+    * for the BatchDispatcher doesn't block the request's thread.
+    *
+    * The WebSocket transports JSON as plain strings: the channel actors parse the incoming ones and the outgoing
+    * ones are serialized only once per message, even if it goes to many members.
     *
     * @param studyResultUuid Study reslt's UUID
     * @return WebSocket that transports JSON strings.
     */
   def openBatch(studyResultUuid: String): WebSocket =
-    WebSocket.acceptOrResult[JsValue, JsValue] { implicit request =>
+    WebSocket.acceptOrResult[String, String] { implicit request =>
 
-      Future.successful({
-        // Set Http.Context used in Play with Java. Needed by IdCookieService
-        play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
+      // Set Http.Context used in Play with Java. Needed by IdCookieService
+      play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
 
-        jpa.withTransaction(asJavaSupplier(() => {
-          try {
-            val studyResult = fetchStudyResult(studyResultUuid)
-            studyResult.getWorkerType match {
-              case JatosWorker.WORKER_TYPE => Right(jatosBatchChannel.open(studyResult))
-              case PersonalSingleWorker.WORKER_TYPE => Right(personalSingleBatchChannel.open(studyResult))
-              case PersonalMultipleWorker.WORKER_TYPE => Right(personalMultipleBatchChannel.open(studyResult))
-              case GeneralSingleWorker.WORKER_TYPE => Right(generalSingleBatchChannel.open(studyResult))
-              case GeneralMultipleWorker.WORKER_TYPE => Right(generalMultipleBatchChannel.open(studyResult))
-              case MTSandboxWorker.WORKER_TYPE => Right(mTBatchChannel.open(studyResult))
-              case MTWorker.WORKER_TYPE => Right(mTBatchChannel.open(studyResult))
-              case _ => Left(Results.BadRequest)
-            }
-          } catch {
-            // Due to returning a WebSocket we can't throw a PublixExceptions like with other publix endpoints
-            case e: NotFoundPublixException =>
-              logger.info(s".open: ${e.getMessage}")
-              Left(Results.NotFound)
-            case e: ForbiddenPublixException =>
-              logger.info(s".open: ${e.getMessage}")
-              Left(Results.Forbidden)
-            case e: BadRequestPublixException =>
-              logger.info(s".open: ${e.getMessage}")
-              Left(Results.BadRequest)
-            case e: Exception =>
-              logger.error(".open: Exception during opening of batch channel", e)
-              Left(Results.InternalServerError)
+      val opening: ChannelOpening = jpa.withTransaction(asJavaSupplier(() => {
+        try {
+          val studyResult = fetchStudyResult(studyResultUuid)
+          studyResult.getWorkerType match {
+            case JatosWorker.WORKER_TYPE => accept(jatosBatchChannel.open(studyResult))
+            case PersonalSingleWorker.WORKER_TYPE => accept(personalSingleBatchChannel.open(studyResult))
+            case PersonalMultipleWorker.WORKER_TYPE => accept(personalMultipleBatchChannel.open(studyResult))
+            case GeneralSingleWorker.WORKER_TYPE => accept(generalSingleBatchChannel.open(studyResult))
+            case GeneralMultipleWorker.WORKER_TYPE => accept(generalMultipleBatchChannel.open(studyResult))
+            case MTSandboxWorker.WORKER_TYPE => accept(mTBatchChannel.open(studyResult))
+            case MTWorker.WORKER_TYPE => accept(mTBatchChannel.open(studyResult))
+            case _ => reject(Results.BadRequest)
           }
+        } catch {
+          // Due to returning a WebSocket we can't throw a PublixExceptions like with other publix endpoints
+          case e: NotFoundPublixException =>
+            logger.info(s".open: ${e.getMessage}")
+            reject(Results.NotFound)
+          case e: ForbiddenPublixException =>
+            logger.info(s".open: ${e.getMessage}")
+            reject(Results.Forbidden)
+          case e: BadRequestPublixException =>
+            logger.info(s".open: ${e.getMessage}")
+            reject(Results.BadRequest)
+          case e: Exception =>
+            logger.error(".open: Exception during opening of batch channel", e)
+            reject(Results.InternalServerError)
         }
-        ))
-      })
+      }
+      ))
+      opening.recover { case e: Exception =>
+        logger.error(".open: Exception during opening of batch channel", e)
+        Left(Results.InternalServerError)
+      }
     }
 
   /**
@@ -98,62 +109,59 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
     * Let the worker (actually it's StudyResult) join a group (actually a GroupResult) and open a
     * WebSocket (group channel). Only works if this study is a group study. All group data are
     * stored in a GroupResult and the group channels will be handled by a GroupDispatcher which
-    * uses Akka.
+    * uses Akka. Neither joining (batch lock and database) nor waiting for the GroupDispatcher
+    * blocks the request's thread.
     *
     * @param studyResultUuid Study reslt's UUID
     * @return WebSocket that transfers JSON
     */
   def joinGroup(studyResultUuid: String): WebSocket =
-    WebSocket.acceptOrResult[JsValue, JsValue] { implicit request =>
+    WebSocket.acceptOrResult[String, String] { implicit request =>
 
-      Future.successful({
-        // Set Http.Context used in Play with Java. Needed by IdCookieService
-        play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
+      // Set Http.Context used in Play with Java. Needed by IdCookieService
+      play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
 
-        try {
-          val studyResult = fetchStudyResultAndInitLazy(studyResultUuid)
-          studyResult.getWorkerType match {
-            case JatosWorker.WORKER_TYPE =>
-              jatosGroupChannel.join(studyResult)
-              Right(jatosGroupChannel.open(studyResult))
-            case PersonalSingleWorker.WORKER_TYPE =>
-              personalSingleGroupChannel.join(studyResult)
-              Right(personalSingleGroupChannel.open(studyResult))
-            case PersonalMultipleWorker.WORKER_TYPE =>
-              personalMultipleGroupChannel.join(studyResult)
-              Right(personalMultipleGroupChannel.open(studyResult))
-            case GeneralSingleWorker.WORKER_TYPE =>
-              generalSingleGroupChannel.join(studyResult)
-              Right(generalSingleGroupChannel.open(studyResult))
-            case GeneralMultipleWorker.WORKER_TYPE =>
-              generalMultipleGroupChannel.join(studyResult)
-              Right(generalMultipleGroupChannel.open(studyResult))
-            case MTSandboxWorker.WORKER_TYPE =>
-              mTGroupChannel.join(studyResult)
-              Right(mTGroupChannel.open(studyResult))
-            case MTWorker.WORKER_TYPE =>
-              mTGroupChannel.join(studyResult)
-              Right(mTGroupChannel.open(studyResult))
-            case _ => Left(Results.BadRequest)
-          }
-        } catch {
-          // Due to returning a WebSocket we can't throw a PublixExceptions like with other publix endpoints
-          case e: NotFoundPublixException =>
-            logger.info(s".join: ${e.getMessage}")
-            Left(Results.NotFound)
-          case e: ForbiddenPublixException =>
-            logger.info(s".join: ${e.getMessage}")
-            Left(Results.Forbidden)
-          case e: BadRequestPublixException =>
-            logger.info(s".join: ${e.getMessage}")
-            Left(Results.BadRequest)
-          case e: Exception =>
-            logger.error(".join: Exception during opening of group channel", e)
-            Left(Results.InternalServerError)
+      val opening: ChannelOpening = try {
+        val studyResult = fetchStudyResultAndInitLazy(studyResultUuid)
+        studyResult.getWorkerType match {
+          case JatosWorker.WORKER_TYPE => joinAndOpen(jatosGroupChannel, studyResult)
+          case PersonalSingleWorker.WORKER_TYPE => joinAndOpen(personalSingleGroupChannel, studyResult)
+          case PersonalMultipleWorker.WORKER_TYPE => joinAndOpen(personalMultipleGroupChannel, studyResult)
+          case GeneralSingleWorker.WORKER_TYPE => joinAndOpen(generalSingleGroupChannel, studyResult)
+          case GeneralMultipleWorker.WORKER_TYPE => joinAndOpen(generalMultipleGroupChannel, studyResult)
+          case MTSandboxWorker.WORKER_TYPE => joinAndOpen(mTGroupChannel, studyResult)
+          case MTWorker.WORKER_TYPE => joinAndOpen(mTGroupChannel, studyResult)
+          case _ => reject(Results.BadRequest)
         }
-      })
+      } catch joinFailure.andThen(Future.successful(_))
+      // The join itself runs asynchronously and its PublixExceptions come with the future
+      opening.recover(joinFailure)
     }
 
+  /**
+    * Joins the group and afterwards opens the group channel - without blocking the request's thread. The channel is
+    * opened with the study result as the join left it.
+    */
+  private def joinAndOpen(groupChannel: GroupChannel[_ <: Worker], studyResult: StudyResult)
+                         (implicit request: RequestHeader): ChannelOpening =
+    accept(groupChannel.join(studyResult).flatMap(joined => groupChannel.open(joined)))
+
+  // Due to returning a WebSocket we can't throw a PublixExceptions like with other publix endpoints
+  private val joinFailure: PartialFunction[Throwable, Either[Result, Flow[String, String, _]]] = {
+    case e: NotFoundPublixException =>
+      logger.info(s".join: ${e.getMessage}")
+      Left(Results.NotFound)
+    case e: ForbiddenPublixException =>
+      logger.info(s".join: ${e.getMessage}")
+      Left(Results.Forbidden)
+    case e: BadRequestPublixException =>
+      logger.info(s".join: ${e.getMessage}")
+      Left(Results.BadRequest)
+    case e: Exception =>
+      logger.error(".join: Exception during opening of group channel", e)
+      Left(Results.InternalServerError)
+  }
+
   /**
     * HTTP type: Ajax GET request
     *
@@ -161,17 +169,18 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
     * channel and just reassigns it to a different group (or in more detail to a different
     * GroupResult and GroupDispatcher). If it is successful it returns an 200 (OK) HTTP status
     * code. If it can't find any other group it returns a 204 (NO CONTENT) HTTP status code.
+    * Reassigning (batch lock and database) doesn't block the request's thread.
     *
     * @param studyResultUuid Study reslt's UUID
     * @return Result
     * @throws PublixException will be handled in the global ErrorHandler
     */
   @throws(classOf[PublixException])
-  def reassignGroup(studyResultUuid: String): Action[AnyContent] = Action { implicit request =>
+  def reassignGroup(studyResultUuid: String): Action[AnyContent] = Action.async { implicit request =>
     // Set Http.Context used in Play with Java. Needed by IdCookieService
     play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
 
-    try {
+    val reassigning: Future[Result] = try {
       val studyResult = fetchStudyResultAndInitLazy(studyResultUuid)
       studyResult.getWorkerType match {
         case JatosWorker.WORKER_TYPE => jatosGroupChannel.reassign(studyResult)
@@ -181,63 +190,75 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
         case GeneralMultipleWorker.WORKER_TYPE => generalMultipleGroupChannel.reassign(studyResult)
         case MTSandboxWorker.WORKER_TYPE => mTGroupChannel.reassign(studyResult)
         case MTWorker.WORKER_TYPE => mTGroupChannel.reassign(studyResult)
-        case _ => Results.BadRequest
+        case _ => Future.successful(Results.BadRequest)
       }
-    } catch {
-      case e: ForbiddenPublixException =>
-        logger.info(s".reassignGroup: ${e.getMessage}")
-        Forbidden
-      case e: BadRequestPublixException =>
-        logger.info(s".reassignGroup: ${e.getMessage}")
-        BadRequest
-      case e: Exception =>
-        logger.error(".reassignGroup: Exception during reassigning a group channel", e)
-        InternalServerError
-    }
+    } catch reassignFailure.andThen(Future.successful(_))
+    reassigning.recover(reassignFailure)
+  }
+
+  private val reassignFailure: PartialFunction[Throwable, Result] = {
+    case e: ForbiddenPublixException =>
+      logger.info(s".reassignGroup: ${e.getMessage}")
+      Forbidden
+    case e: BadRequestPublixException =>
+      logger.info(s".reassignGroup: ${e.getMessage}")
+      BadRequest
+    case e: Exception =>
+      logger.error(".reassignGroup: Exception during reassigning a group channel", e)
+      InternalServerError
   }
 
   /**
     * HTTP type: Ajax GET request
     *
     * Let the worker leave the group (actually a GroupResult) he joined before and closes the
-    * group channel. Only works if this study is a group study.
+    * group channel. Only works if this study is a group study. Leaving (batch lock and database)
+    * doesn't block the request's thread.
     *
     * @param studyResultUuid Study reslt's UUID
     * @return Result
     * @throws PublixException will be handled in the global ErrorHandler
     */
   @throws(classOf[PublixException])
-  def leaveGroup(studyResultUuid: String): Action[AnyContent] = Action { implicit request =>
+  def leaveGroup(studyResultUuid: String): Action[AnyContent] = Action.async { implicit request =>
     // Set Http.Context used in Play with Java. Needed by IdCookieService
     play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
 
-    jpa.withTransaction(asJavaSupplier(() => {
-      try {
-        val studyResult = fetchStudyResult(studyResultUuid)
-        studyResult.getWorkerType match {
-          case JatosWorker.WORKER_TYPE => jatosGroupChannel.leave(studyResult)
-          case PersonalSingleWorker.WORKER_TYPE => personalSingleGroupChannel.leave(studyResult)
-          case PersonalMultipleWorker.WORKER_TYPE => personalMultipleGroupChannel.leave(studyResult)
-          case GeneralSingleWorker.WORKER_TYPE => generalSingleGroupChannel.leave(studyResult)
-          case GeneralMultipleWorker.WORKER_TYPE => generalMultipleGroupChannel.leave(studyResult)
-          case MTSandboxWorker.WORKER_TYPE => mTGroupChannel.leave(studyResult)
-          case MTWorker.WORKER_TYPE => mTGroupChannel.leave(studyResult)
-          case _ => Results.BadRequest
-        }
-      } catch {
-        case e: ForbiddenPublixException =>
-          logger.info(s".leaveGroup: ${e.getMessage}")
-          Forbidden
-        case e: BadRequestPublixException =>
-          logger.info(s".leaveGroup: ${e.getMessage}")
-          BadRequest
-        case e: Exception =>
-          logger.error(".leaveGroup: Exception during leaving a group channel", e)
-          InternalServerError
+    val leaving: Future[Result] = try {
+      val studyResult = fetchStudyResultAndInitLazy(studyResultUuid)
+      studyResult.getWorkerType match {
+        case JatosWorker.WORKER_TYPE => jatosGroupChannel.leave(studyResult)
+        case PersonalSingleWorker.WORKER_TYPE => personalSingleGroupChannel.leave(studyResult)
+        case PersonalMultipleWorker.WORKER_TYPE => personalMultipleGroupChannel.leave(studyResult)
+        case GeneralSingleWorker.WORKER_TYPE => generalSingleGroupChannel.leave(studyResult)
+        case GeneralMultipleWorker.WORKER_TYPE => generalMultipleGroupChannel.leave(studyResult)
+        case MTSandboxWorker.WORKER_TYPE => mTGroupChannel.leave(studyResult)
+        case MTWorker.WORKER_TYPE => mTGroupChannel.leave(studyResult)
+        case _ => Future.successful(Results.BadRequest)
       }
-    }))
+    } catch leaveFailure.andThen(Future.successful(_))
+    leaving.recover(leaveFailure)
+  }
+
+  private val leaveFailure: PartialFunction[Throwable, Result] = {
+    case e: ForbiddenPublixException =>
+      logger.info(s".leaveGroup: ${e.getMessage}")
+      Forbidden
+    case e: BadRequestPublixException =>
+      logger.info(s".leaveGroup: ${e.getMessage}")
+      BadRequest
+    case e: Exception =>
+      logger.error(".leaveGroup: Exception during leaving a group channel", e)
+      InternalServerError
   }
 
+  /**
+    * The channel's Flow is created asynchronously after its dispatcher answered
+    */
+  private def accept(flow: Future[Flow[Any, Nothing, _]]): ChannelOpening = flow.map(Right(_))
+
+  private def reject(result: Result): ChannelOpening = Future.successful(Left(result))
+
   @throws[ForbiddenPublixException]
   @throws[BadRequestPublixException]
   private def fetchStudyResult(uuid: String) = {
@@ -5,27 +5,34 @@ import akka.pattern.ask
 import akka.stream.Materializer
 import akka.stream.scaladsl.Flow
 import akka.util.Timeout
+import controllers.publix.GroupChannel.MembershipDispatcherId
+import daos.common.StudyResultDao
 import exceptions.publix.{ForbiddenPublixException, PublixException}
+import general.common.SessionDispatcherMetrics
 import group.GroupDispatcher.{JoinedGroup, LeftGroup, PoisonChannel, PoisonEmptyDispatcher, ReassignChannel}
-import group.GroupDispatcherRegistry.{Get, GetOrCreate, ItsThisOne}
+import group.GroupDispatcherRegistry.{Get, GetOrCreate, ItsThisOne, RegistryProtocol}
 import group.{GroupAdministration, GroupChannelActor, GroupDispatcher}
 import models.common.workers._
 import models.common.{GroupResult, StudyResult}
 import play.api.Logger
 import play.api.libs.streams.ActorFlow
 import play.api.mvc._
+import play.db.jpa.JPAApi
 import services.publix.idcookie.IdCookieService
 import services.publix.workers._
 import services.publix.{PublixUtils, StudyAuthorisation}
 
 import javax.inject.{Inject, Named, Singleton}
-import scala.concurrent.Await
+import scala.compat.java8.FunctionConverters.asJavaSupplier
 import scala.concurrent.duration._
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.Try
 
 /**
   * Abstract class that handles opening of the group channel. It has concrete implementations for
   * each worker type.
   */
+//noinspection ScalaDeprecation
 abstract class GroupChannel[A <: Worker](components: ControllerComponents,
                                          publixUtils: PublixUtils,
                                          studyAuthorisation:
@@ -49,72 +56,122 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
   @Inject
   var groupAdministration: GroupAdministration = _
 
+  @Inject
+  var sessionDispatcherMetrics: SessionDispatcherMetrics = _
+
+  @Inject
+  var jpa: JPAApi = _
+
+  @Inject
+  var studyResultDao: StudyResultDao = _
+
   /**
     * Time to wait for an answer after asking an Akka actor
     */
   implicit val timeout: Timeout = 30.seconds
 
+  private implicit lazy val executionContext: ExecutionContext = defaultExecutionContext
+
+  /**
+    * Bounded execution context for the blocking work (batch lock and database) of joining, reassigning, and leaving a
+    * group. It's a dispatcher of its own: membership changes of a busy batch wait for the batch's lock and mustn't
+    * hold up the database access of the batch and group sessions.
+    */
+  private lazy val membershipExecutionContext: ExecutionContext = system.dispatchers.lookup(MembershipDispatcherId)
+
   /**
     * Joins a group but doesn't open the group channel. In case of an error/problem an PublixException is thrown.
-    * Synchronized to prevent race conditions with group members joining, leaving, reassigning.
+    * Holds the batch's lock to prevent race conditions with group members joining, leaving, reassigning. Waiting for
+    * the lock and the database happens on the group membership dispatcher and not on the request's thread - the
+    * returned Future fails with the PublixException if the join isn't allowed. The study result is loaded again under
+    * the lock and in the join's own transaction: the returned one is member of the group.
     */
   @throws(classOf[PublixException])
-  def join(studyResult: StudyResult)(implicit request: RequestHeader): Unit = synchronized {
+  def join(studyResult: StudyResult)(implicit request: RequestHeader): Future[StudyResult] = {
     logger.info(s".join: studyResult ${studyResult.getId}")
     val worker = studyResult.getWorker.asInstanceOf[A]
     val study = studyResult.getStudy
     val batch = studyResult.getBatch
     studyAuthorisation.checkWorkerAllowedToDoStudy(request.withBody().session.asJava, worker, study, batch)
     publixUtils.checkStudyIsGroupStudy(study)
+    Future(groupAdministration.withBatchLock(batch) {
+      val (current, joined) = jpa.withTransaction(asJavaSupplier(() => {
+        val current = studyResultDao.findById(studyResult.getId)
+        (current, joinLocked(current, worker))
+      }))
+      // Only after the commit: the other members might look up the new member
+      if (joined) sendJoinedMsg(current)
+      current
+    })(membershipExecutionContext)
+  }
 
+  /**
+    * Returns true if the study result joined a group and false if it was already member of one
+    */
+  private def joinLocked(studyResult: StudyResult, worker: A): Boolean = {
     if (studyResult.getHistoryGroupResult != null) {
       logger.info(s".join: It's not allowed to join a group after it was explicitly left " +
         s"(studyResult ${studyResult.getId}).")
       throw new ForbiddenPublixException("It's not allowed to join a group after it was explicitly left.")
     }
 
-    if (studyResult.getActiveGroupResult != null)
+    if (studyResult.getActiveGroupResult != null) {
       logger.info(s".join: studyResult ${studyResult.getId}, workerId ${worker.getId}" +
         s" already member of group ${studyResult.getActiveGroupResult.getId}")
-    else {
-      val groupResult = groupAdministration.join(studyResult, batch)
-      sendJoinedMsg(studyResult)
+      false
+    } else {
+      val groupResult = groupAdministration.join(studyResult, studyResult.getBatch)
       logger.info(s".join: studyResult ${studyResult.getId}, workerId ${worker.getId} " +
         s"joined group ${groupResult.getId}")
+      true
     }
   }
 
   /**
-    * Opens a group channel and returns a Akka stream Flow that will be turned into WebSocket. In
-    * case of an error/problem an PublixException is thrown.
+    * Opens a group channel and returns a Akka stream Flow that will be turned into WebSocket. It
+    * doesn't block the request's thread while it waits for the GroupDispatcher - the returned
+    * Future fails if the dispatcher doesn't answer. A reconnecting client sends the group session
+    * version it knows together with the group result ID it was in - if it's still the same group
+    * it only gets the patches it missed.
     */
-  @throws(classOf[PublixException])
-  def open(studyResult: StudyResult): Flow[Any, Nothing, _] = {
+  def open(studyResult: StudyResult)(implicit request: RequestHeader): Future[Flow[Any, Nothing, _]] = {
     logger.info(s".open: studyResultId ${studyResult.getId}")
-    val groupResult: GroupResult = studyResult.getActiveGroupResult
-    // Get the GroupDispatcher that will handle this GroupResult.
-    val groupDispatcher = getOrCreateDispatcher(groupResult.getId)
-    // If this GroupDispatcher already has a group channel for this
-    // StudyResult, close the old one before opening a new one.
-    closeGroupChannelBlocking(studyResult.getId, groupDispatcher)
-    ActorFlow.actorRef { out => GroupChannelActor.props(out, studyResult.getId, groupDispatcher) }
+    val studyResultId = studyResult.getId
+    val groupResultId = studyResult.getActiveGroupResult.getId
+    val knownSessionVersion = request.getQueryString("sessionVersion").flatMap(v => Try(v.toLong).toOption)
+      .filter(_ => request.getQueryString("groupResultId").contains(groupResultId.toString))
+    for {
+      // Get the GroupDispatcher that will handle this GroupResult.
+      groupDispatcher <- getOrCreateDispatcher(groupResultId)
+      // If this GroupDispatcher already has a group channel for this
+      // StudyResult, close the old one before opening a new one.
+      _ <- askToCloseGroupChannel(studyResultId, groupDispatcher)
+    } yield ActorFlow.actorRef { out =>
+      GroupChannelActor.props(out, studyResultId, groupDispatcher, knownSessionVersion)
+    }
   }
 
   /**
     * Tries to reassign this study run (specified by study result ID) to a different group. If the
     * reassignment was successful an Ok is returned. If it was unsuccessful a Forbidden is returned.
-    * In case of an error/problem an PublixException is thrown. Synchronized to prevent race conditions with group
-    * members joining, leaving, reassigning.
+    * In case of an error/problem an PublixException is thrown. Holds the batch's lock to prevent race conditions with
+    * group members joining, leaving, reassigning - like a join it happens on the group membership dispatcher. The
+    * study result is loaded again under the lock and in the reassign's own transaction.
     */
   @throws(classOf[PublixException])
-  def reassign(studyResult: StudyResult)(implicit request: Request[_]): Result = synchronized {
+  def reassign(studyResult: StudyResult)(implicit request: Request[_]): Future[Result] = {
     logger.info(s".reassign: studyResultId ${studyResult.getId}")
     val worker = studyResult.getWorker.asInstanceOf[A]
     val study = studyResult.getStudy
     val batch = studyResult.getBatch
     studyAuthorisation.checkWorkerAllowedToDoStudy(request.session.asJava, worker, study, batch)
     publixUtils.checkStudyIsGroupStudy(study)
+    Future(groupAdministration.withBatchLock(batch) {
+      jpa.withTransaction(asJavaSupplier(() => reassignLocked(studyResultDao.findById(studyResult.getId), worker)))
+    })(membershipExecutionContext)
+  }
 
+  private def reassignLocked(studyResult: StudyResult, worker: A): Result = {
     if (studyResult.getHistoryGroupResult != null) {
       logger.info(s".reassign: It's not allowed to run a group study twice in the same study run " +
         s"(studyResult ${studyResult.getId}).")
@@ -122,7 +179,7 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
     }
 
     val currentGroupResult = studyResult.getActiveGroupResult
-    groupAdministration.reassign(studyResult, batch) match {
+    groupAdministration.reassign(studyResult, studyResult.getBatch) match {
       case Left(msg) =>
         logger.info(s".reassign: $msg")
         return NoContent
@@ -135,17 +192,24 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
   }
 
   /**
-    * Let this study run (specified by the study result ID) leave the group that it joined before. Synchronized to
-    * prevent race conditions with group members joining, leaving, reassigning.
+    * Let this study run (specified by the study result ID) leave the group that it joined before. Holds the batch's
+    * lock to prevent race conditions with group members joining, leaving, reassigning - like a join it happens on the
+    * group membership dispatcher. The study result is loaded again under the lock and in the leave's own transaction.
     */
   @throws(classOf[PublixException])
-  def leave(studyResult: StudyResult)(implicit request: Request[_]): Result = synchronized {
+  def leave(studyResult: StudyResult)(implicit request: Request[_]): Future[Result] = {
     logger.info(s".leave: studyResultId ${studyResult.getId}")
     val worker = studyResult.getWorker.asInstanceOf[A]
     val study = studyResult.getStudy
     val batch = studyResult.getBatch
     studyAuthorisation.checkWorkerAllowedToDoStudy(request.session.asJava, worker, study, batch)
     publixUtils.checkStudyIsGroupStudy(study)
+    Future(groupAdministration.withBatchLock(batch) {
+      jpa.withTransaction(asJavaSupplier(() => leaveLocked(studyResultDao.findById(studyResult.getId), worker)))
+    })(membershipExecutionContext)
+  }
+
+  private def leaveLocked(studyResult: StudyResult, worker: A): Result = {
     val groupResult = studyResult.getActiveGroupResult
     if (groupResult == null) {
       logger.info(s".leave: studyResult ${studyResult.getId}, workerId ${worker.getId} " +
@@ -178,83 +242,94 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
     * the process of leaving a GroupResult.
     */
   private def closeGroupChannel(studyResult: StudyResult, groupResult: GroupResult): Unit = {
-    val groupDispatcherOption = getDispatcher(groupResult.getId)
-    if (groupDispatcherOption.isDefined) {
-      groupDispatcherOption.get ! PoisonChannel(studyResult.getId)
-      groupDispatcherOption.get ! PoisonEmptyDispatcher
-      sendLeftMsg(studyResult, groupResult)
+    val studyResultId = studyResult.getId
+    logFailure("closeGroupChannel") {
+      getDispatcher(groupResult.getId).map(_.foreach { groupDispatcher =>
+        groupDispatcher ! PoisonChannel(studyResultId)
+        groupDispatcher ! PoisonEmptyDispatcher
+        // Tell the other members that this member left
+        groupDispatcher ! LeftGroup(studyResultId)
+      })
     }
   }
 
   /**
-    * Closes the group channel that belongs to the given StudyResult and is managed by the given
-    * GroupDispatcher. Waits (and blocks) until it receives a result from the GroupDispatcher actor.
-    * It returns true if the GroupChannelActor was managed by the GroupDispatcher and was
-    * successfully removed from the GroupDispatcher - false otherwise (it was probably never managed
-    * by the dispatcher).
+    * Asks the given GroupDispatcher to close the group channel that belongs to the given
+    * StudyResult. The answer is true if the GroupChannelActor was managed by the GroupDispatcher
+    * and was successfully removed from the GroupDispatcher - false otherwise (it was probably never
+    * managed by the dispatcher).
     */
-  private def closeGroupChannelBlocking(studyResultId: Long, groupDispatcher: ActorRef): Boolean = {
-    val future = groupDispatcher ? PoisonChannel(studyResultId)
-    Await.result(future, timeout.duration).asInstanceOf[Boolean]
+  private def askToCloseGroupChannel(studyResultId: Long, groupDispatcher: ActorRef): Future[Boolean] = {
+    (groupDispatcher ? PoisonChannel(studyResultId)).mapTo[Boolean]
   }
 
   /**
     * Sends a message to each member of the group (the GroupResult this studyResult is in). This
-    * message tells that this member has joined the GroupResult.
+    * message tells that this member has joined the GroupResult. It doesn't wait for the
+    * GroupDispatcher.
     */
   private def sendJoinedMsg(studyResult: StudyResult): Unit = {
     val groupResult = studyResult.getActiveGroupResult
     if (groupResult != null) {
-      val groupDispatcherOption = getDispatcher(groupResult.getId)
-      if (groupDispatcherOption.isDefined)
-        groupDispatcherOption.get ! JoinedGroup(studyResult.getId)
+      val studyResultId = studyResult.getId
+      logFailure("sendJoinedMsg") {
+        getDispatcher(groupResult.getId).map(_.foreach(_ ! JoinedGroup(studyResultId)))
+      }
     }
   }
 
   /**
-    * Sends a message to each member of the GroupResult that this member (specified by StudyResult)
-    * has left the GroupResult.
+    * Get the GroupDispatcher to this GroupResult. The answer is an ActorRef (to a GroupDispatcher).
     */
-  private def sendLeftMsg(studyResult: StudyResult, groupResult: GroupResult): Unit = {
-    if (groupResult != null) {
-      val groupDispatcherOption = getDispatcher(groupResult.getId)
-      if (groupDispatcherOption.isDefined)
-        groupDispatcherOption.get ! LeftGroup(studyResult.getId)
-    }
+  private def getDispatcher(groupResultId: Long): Future[Option[ActorRef]] = {
+    askRegistry(Get(groupResultId)).map(_.groupDispatcherOption)
   }
 
   /**
-    * Get the GroupDispatcher to this GroupResult. The answer is an ActorRef (to a GroupDispatcher).
+    * Asks the GroupDispatcherRegistry to get or create a group dispatcher for the given ID. The
+    * answer is an ActorRef (to a GroupDispatcher).
     */
-  private def getDispatcher(groupResultId: Long): Option[ActorRef] = {
-    val future = groupDispatcherRegistry ? Get(groupResultId)
-    Await.result(future, timeout.duration).asInstanceOf[ItsThisOne]
-      .groupDispatcherOption
+  private def getOrCreateDispatcher(groupResultId: Long): Future[ActorRef] = {
+    askRegistry(GetOrCreate(groupResultId)).map(_.groupDispatcherOption.get)
   }
 
   /**
-    * Asks the GroupDispatcherRegistry to get or create a group dispatcher for the given ID. It
-    * waits until it receives an answer. The answer is an ActorRef (to a GroupDispatcher).
+    * Asks the GroupDispatcherRegistry. The time until the answer goes into the registry lookup metrics.
     */
-  private def getOrCreateDispatcher(groupResultId: Long): ActorRef = {
-    val future = groupDispatcherRegistry ? GetOrCreate(groupResultId)
-    Await.result(future, timeout.duration).asInstanceOf[ItsThisOne]
-      .groupDispatcherOption.get
+  private def askRegistry(msg: RegistryProtocol): Future[ItsThisOne] = {
+    val start = System.nanoTime()
+    (groupDispatcherRegistry ? msg).mapTo[ItsThisOne].map { answer =>
+      sessionDispatcherMetrics.addRegistryLookupLatency("group", System.nanoTime() - start)
+      answer
+    }
   }
 
   /**
     * Reassigns the given group channel that is associated with the given StudyResult. It moves the group channel from
-    * the current GroupDispatcher to a different one that is associated with the given GroupResult.
+    * the current GroupDispatcher to a different one that is associated with the given GroupResult. It doesn't wait
+    * for the GroupDispatchers.
     */
   private def reassignGroupChannel(studyResult: StudyResult,
                            currentGroupResult: GroupResult,
                            differentGroupResult: GroupResult): Unit = {
-    val currentDispatcher = getDispatcher(currentGroupResult.getId).get
-    // Get or create, because if the dispatcher was empty it was shutdown and has to be recreated
-    val differentDispatcher = getOrCreateDispatcher(differentGroupResult.getId)
-    currentDispatcher ! ReassignChannel(studyResult.getId, differentDispatcher)
-    currentDispatcher ! GroupDispatcher.LeftGroup(studyResult.getId())
-    differentDispatcher ! JoinedGroup(studyResult.getId)
+    val studyResultId = studyResult.getId
+    logFailure("reassignGroupChannel") {
+      for {
+        currentDispatcherOption <- getDispatcher(currentGroupResult.getId)
+        // Get or create, because if the dispatcher was empty it was shutdown and has to be recreated
+        differentDispatcher <- getOrCreateDispatcher(differentGroupResult.getId)
+      } yield {
+        currentDispatcherOption.foreach { currentDispatcher =>
+          currentDispatcher ! ReassignChannel(studyResultId, differentDispatcher)
+          currentDispatcher ! GroupDispatcher.LeftGroup(studyResultId)
+        }
+        differentDispatcher ! JoinedGroup(studyResultId)
+      }
+    }
+  }
+
+  private def logFailure(method: String)(future: Future[_]): Unit = {
+    future.failed.foreach(e => logger.error(s".$method: couldn't reach the group dispatcher", e))
   }
 
 }
@@ -297,3 +372,12 @@ class MTGroupChannel @Inject()(components: ControllerComponents,
                                publixUtils: PublixUtils,
                                studyAuthorisation: MTStudyAuthorisation)
   extends GroupChannel[MTWorker](components, publixUtils, studyAuthorisation)
+
+object GroupChannel {
+
+  /**
+    * ID of the group membership dispatcher (configured in jatos.groupMembershipDispatcher)
+    */
+  val MembershipDispatcherId = "jatos.groupMembershipDispatcher"
+
+}
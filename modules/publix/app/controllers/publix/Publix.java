@@ -23,6 +23,7 @@ import services.publix.PublixHelpers;
 import services.publix.PublixUtils;
 import services.publix.StudyAuthorisation;
 import services.publix.idcookie.IdCookieService;
+import utils.common.HashUtils;
 import utils.common.Helpers;
 import utils.common.IOUtils;
 import utils.common.JsonUtils;
@@ -213,7 +214,7 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
                 LOGGER.info(getLogForUploadResultFile(studyResult, component, filename, "File size too large"));
                 return badRequest("File size too large");
             }
-            if (ioUtils.getResultUploadDirSize(studyResult.getId()) > Common.getResultUploadsLimitPerStudyRun()) {
+            if (publixUtils.getResultFilesSize(studyResult) > Common.getResultUploadsLimitPerStudyRun()) {
                 LOGGER.info(getLogForUploadResultFile(studyResult, component, filename,
                         "Reached max file size limit per study run"));
                 return badRequest("Reached max file size limit per study run");
@@ -225,8 +226,10 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
 
             Path destFile = ioUtils.getResultUploadFileSecurely(
                     studyResult.getId(), componentResult.get().getId(), filename).toPath();
+            String fileHash = HashUtils.getHash(tmpFile.path(), HashUtils.SHA_256);
             tmpFile.moveFileTo(destFile, true);
-            studyLogger.logResultUploading(destFile, componentResult.get());
+            publixUtils.indexResultFile(componentResult.get(), destFile, fileHash);
+            studyLogger.logResultUploading(destFile, fileHash, componentResult.get());
         } catch (IOException e) {
             LOGGER.info(getLogForUploadResultFile(studyResult, component, filename, "File upload failed"));
             return badRequest("File upload failed");
@@ -1,10 +1,16 @@
 package general.publix;
 
+import akka.actor.SupervisorStrategy;
+import akka.routing.ConsistentHashingPool;
 import batch.BatchDispatcher;
 import batch.BatchDispatcherRegistry;
+import batch.DispatcherBatchSessionAccess;
 import com.google.inject.AbstractModule;
+import com.typesafe.config.Config;
+import general.common.BatchSessionAccess;
 import group.GroupDispatcher;
 import group.GroupDispatcherRegistry;
+import play.Environment;
 import play.libs.akka.AkkaGuiceSupport;
 
 /**
@@ -14,13 +20,28 @@ import play.libs.akka.AkkaGuiceSupport;
  */
 public class PublixGuiceModule extends AbstractModule implements AkkaGuiceSupport {
 
+	private final Config config;
+
+	public PublixGuiceModule(Environment environment, Config config) {
+		this.config = config;
+	}
+
 	@Override
 	protected void configure() {
-		// Config which Akka actors should be handled by Guice
-		bindActor(GroupDispatcherRegistry.class, "group-dispatcher-registry-actor");
-		bindActor(BatchDispatcherRegistry.class, "batch-dispatcher-registry-actor");
+		// Config which Akka actors should be handled by Guice. The dispatcher
+		// registries are sharded: a router passes each message to the registry
+		// actor that is responsible for its batch or group result ID.
+		int registryShards = config.getInt("jatos.channel.registryShards");
+		bindActor(GroupDispatcherRegistry.class, "group-dispatcher-registry-actor",
+				props -> new ConsistentHashingPool(registryShards)
+						.withSupervisorStrategy(SupervisorStrategy.defaultStrategy()).props(props));
+		bindActor(BatchDispatcherRegistry.class, "batch-dispatcher-registry-actor",
+				props -> new ConsistentHashingPool(registryShards)
+						.withSupervisorStrategy(SupervisorStrategy.defaultStrategy()).props(props));
 		bindActorFactory(BatchDispatcher.class, BatchDispatcher.Factory.class);
 		bindActorFactory(GroupDispatcher.class, GroupDispatcher.Factory.class);
+		// JATOS' GUI reads and edits batch sessions through the BatchDispatchers
+		bind(BatchSessionAccess.class).to(DispatcherBatchSessionAccess.class);
 	}
 
 }
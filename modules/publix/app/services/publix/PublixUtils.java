@@ -3,6 +3,7 @@ package services.publix;
 import controllers.publix.workers.JatosPublix;
 import daos.common.ComponentDao;
 import daos.common.ComponentResultDao;
+import daos.common.ResultFileDao;
 import daos.common.StudyResultDao;
 import daos.common.UserDao;
 import daos.common.worker.WorkerDao;
@@ -22,6 +23,8 @@ import utils.common.JsonUtils;
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -42,6 +45,7 @@ public class PublixUtils {
     private final StudyResultDao studyResultDao;
     private final ComponentDao componentDao;
     private final ComponentResultDao componentResultDao;
+    private final ResultFileDao resultFileDao;
     private final WorkerDao workerDao;
     private final UserDao userDao;
     private final StudyLogger studyLogger;
@@ -52,7 +56,7 @@ public class PublixUtils {
             IdCookieService idCookieService,
             GroupAdministration groupAdministration,
             StudyResultDao studyResultDao, ComponentDao componentDao,
-            ComponentResultDao componentResultDao, WorkerDao workerDao,
+            ComponentResultDao componentResultDao, ResultFileDao resultFileDao, WorkerDao workerDao,
             UserDao userDao, StudyLogger studyLogger, IOUtils ioUtils) {
         this.resultCreator = resultCreator;
         this.idCookieService = idCookieService;
@@ -60,6 +64,7 @@ public class PublixUtils {
         this.studyResultDao = studyResultDao;
         this.componentDao = componentDao;
         this.componentResultDao = componentResultDao;
+        this.resultFileDao = resultFileDao;
         this.workerDao = workerDao;
         this.userDao = userDao;
         this.studyLogger = studyLogger;
@@ -156,6 +161,7 @@ public class PublixUtils {
 
         // Remove all uploaded result files
         try {
+            resultFileDao.removeByStudyResultId(studyResult.getId());
             ioUtils.removeResultUploadsDir(studyResult.getId());
         } catch (IOException e) {
             LOGGER.error("Cannot delete result upload files (srid " + studyResult.getId() + "): " + e.getMessage());
@@ -377,6 +383,22 @@ public class PublixUtils {
         studyResult.setUrlQueryParameters(parameter);
     }
 
+    /**
+     * Adds an uploaded result file to the index of result files
+     */
+    public void indexResultFile(ComponentResult componentResult, Path file, String fileHash) throws IOException {
+        resultFileDao.save(new ResultFile(componentResult.getStudyResult().getId(), componentResult.getId(),
+                file.getFileName().toString(), Files.size(file), fileHash, new Timestamp(new Date().getTime())));
+    }
+
+    /**
+     * Returns the size in bytes of all uploaded result files of the given StudyResult (taken from the index of
+     * result files)
+     */
+    public long getResultFilesSize(StudyResult studyResult) {
+        return resultFileDao.sizeByStudyResultId(studyResult.getId());
+    }
+
     /**
      * Gets an uploaded result file with the given filename. If component is given (not null) it only tries to get the
      * file from component results belonging to this component. In case of several possible files (can happen with
@@ -172,6 +172,13 @@ var jatos = {};
 	 */
 	var batchSessionVersion;
 	var groupSessionVersion;
+	/**
+	 * Group/batch session data and version of the last channel before it was
+	 * closed. When the channel reopens the server only sends the patches that
+	 * were missed since this version (if it still has them).
+	 */
+	var lastBatchSession = null;
+	var lastGroupSession = null;
 	/**
 	 * Number of batch/group session updates so far. Used to generate the
 	 * sessionActionId.
@@ -608,7 +615,8 @@ var jatos = {};
 
 		batchChannel = new WebSocket(
 			((window.location.protocol === "https:") ? "wss://" : "ws://") +
-			window.location.host + jatos.urlBasePath + "publix/" + jatos.studyResultUuid + "/batch/open");
+			window.location.host + jatos.urlBasePath + "publix/" + jatos.studyResultUuid + "/batch/open" +
+			(lastBatchSession ? "?sessionVersion=" + lastBatchSession.version : ""));
 		batchChannel.onopen = function () {
 			batchChannelHeartbeat();
 			batchChannelClosedCheck();
@@ -695,6 +703,9 @@ var jatos = {};
 	}
 
 	function clearBatchChannel() {
+		if (batchSessionVersion != null) {
+			lastBatchSession = { data: batchSessionData, version: batchSessionVersion };
+		}
 		batchSessionData = {};
 		batchSessionVersion = null;
 		clearBatchChannelHeartbeatTimeoutTimers();
@@ -730,6 +741,13 @@ var jatos = {};
             }
 			return;
 		}
+		if (batchMsg.action == "OPENED" && isDeferredPending(openingBatchChannelDeferred)) {
+			// After a reconnect the server sends only the missed patches (if any) instead of the whole session data
+			if (lastBatchSession && typeof batchMsg.data == 'undefined') {
+				batchSessionData = lastBatchSession.data;
+			}
+			lastBatchSession = null;
+		}
 		if (typeof batchMsg.patches != 'undefined') {
 			// Add to JSON-Patch for "remove" and "/" - clear all session data
 			// Assumes the 'remove' operation is in the first JSON patch
@@ -1593,7 +1611,9 @@ var jatos = {};
 		openingGroupChannelDeferred = jatos.jQuery.Deferred();
 		groupChannel = new WebSocket(
 			((window.location.protocol === "https:") ? "wss://" : "ws://") +
-			window.location.host + jatos.urlBasePath + "publix/" + jatos.studyResultUuid + "/group/join");
+			window.location.host + jatos.urlBasePath + "publix/" + jatos.studyResultUuid + "/group/join" +
+			(lastGroupSession ? "?sessionVersion=" + lastGroupSession.version +
+				"&groupResultId=" + lastGroupSession.groupResultId : ""));
 		groupChannel.onopen = function () {
 			groupChannelHeartbeat();
 			groupChannelClosedCheck();
@@ -1693,6 +1713,13 @@ var jatos = {};
 	}
 
 	function clearGroupChannel() {
+		if (groupSessionVersion != null && jatos.groupResultId != null) {
+			lastGroupSession = {
+				data: groupSessionData,
+				version: groupSessionVersion,
+				groupResultId: jatos.groupResultId
+			};
+		}
 		jatos.groupMemberId = null;
 		jatos.groupResultId = null;
 		jatos.groupMembers = [];
@@ -1737,6 +1764,14 @@ var jatos = {};
 	 * Update the group variables that usually come with an group action
 	 */
 	function updateGroupVars(groupMsg) {
+		if (groupMsg.action == "OPENED" && isDeferredPending(openingGroupChannelDeferred)) {
+			// After a reconnect the server sends only the missed patches (if any) instead of the whole session data
+			if (lastGroupSession && typeof groupMsg.sessionData == 'undefined' &&
+				groupMsg.groupResultId == lastGroupSession.groupResultId) {
+				groupSessionData = lastGroupSession.data;
+			}
+			lastGroupSession = null;
+		}
 		if (typeof groupMsg.groupResultId != 'undefined') {
 			jatos.groupResultId = groupMsg.groupResultId.toString();
 			// Group member ID is equal to study result ID
@@ -5,10 +5,10 @@ import cats.implicits._
 import com.google.common.base.Strings
 import daos.common.BatchDao
 import diffson.jsonpatch._
+import general.PatchCoalescer
 import diffson.playJson.DiffsonProtocol._
 
 import scala.util.Try
-import models.common.Batch
 import play.api.Logger
 import play.api.libs.json.Reads._
 import play.api.libs.json.{JsObject, JsValue, Json}
@@ -20,6 +20,9 @@ import scala.compat.java8.FunctionConverters.asJavaSupplier
 /**
   * Handles batch action messages received by a BatchDispatcher from a client via a batch channel.
   *
+  * The patches are applied to the in-memory BatchSession of the BatchDispatcher. Loading and persisting the batch
+  * session is done separately (loadSession and persistSession) so the BatchDispatcher can decide when to do it.
+  *
   * @author Kristian Lange
   */
 //noinspection ScalaDeprecation
@@ -35,86 +38,109 @@ class BatchActionHandler @Inject()(jpa: JPAApi,
     * 'action' in their JSON. The only action handled here is the a patch for the batch session.
     * The function returns BatchMsges that will be send out to the batch members.
     */
-  def handleActionMsg(actionMsg: BatchMsg, batchId: Long): List[BatchMsg] = {
+  def handleActionMsg(actionMsg: BatchMsg, batchId: Long, session: BatchSession): List[BatchMsg] = {
     val actionValue = (actionMsg.json \ BatchActionJsonKey.Action.toString).as[String]
     val action = BatchAction.withName(actionValue)
     action match {
-      case BatchAction.Session => handlePatch(actionMsg.json, batchId)
+      case BatchAction.Session => handlePatch(actionMsg.json, batchId, session)
       case _ =>
         List(msgBuilder.buildError(s"Unknown action $action", TellWhom.SenderOnly))
     }
   }
 
   /**
-    * Applies JSON Patch for the batch session and tells everyone in the batch
+    * Applies JSON Patch to the in-memory batch session and tells everyone in the batch
     */
-  private def handlePatch(json: JsObject, batchId: Long): List[BatchMsg] = {
-    jpa.withTransaction(asJavaSupplier(() => {
-      val batch = batchDao.findById(batchId)
-      if (batch == null) {
-        val errorMsg = s"Couldn't find batch with ID $batchId in database."
-        List(msgBuilder.buildError(errorMsg, TellWhom.SenderOnly))
+  private def handlePatch(json: JsObject, batchId: Long, session: BatchSession): List[BatchMsg] = {
+    val sessionActionId = (json \ BatchActionJsonKey.SessionActionId.toString).as[Long]
+    val clientsVersion = (json \ BatchActionJsonKey.SessionVersion.toString).as[Long]
+    val versioning = (json \ BatchActionJsonKey.SessionVersioning.toString).as[Boolean]
+    try {
+      val patches = (json \ BatchActionJsonKey.SessionPatches.toString).get
+      if (versioning && session.version != clientsVersion) {
+        return List(msgBuilder.buildSimple(session.version, BatchAction.SessionFail, sessionActionId,
+          TellWhom.SenderOnly))
       }
 
-      val sessionActionId = (json \ BatchActionJsonKey.SessionActionId.toString).as[Long]
-      val clientsVersion = (json \ BatchActionJsonKey.SessionVersion.toString).as[Long]
-      val versioning = (json \ BatchActionJsonKey.SessionVersioning.toString).as[Boolean]
-      try {
-        val patches = (json \ BatchActionJsonKey.SessionPatches.toString).get
-        val patchedSessionData = patchSessionData(patches, batch)
-        logger.debug(s".handlePatch: batchId $batchId, " +
-          s"clientsVersion $clientsVersion, versioning $versioning, batchSessionPatch ${Json.stringify(patches)}, " +
-          s"updatedSessionData ${Json.stringify(patchedSessionData)}")
-
-        val success = checkVersionAndPersistSessionData(patchedSessionData, batch, clientsVersion, versioning)
-        if (success) {
-          val msg1 = msgBuilder.buildSessionPatch(batch, patches, TellWhom.All)
-          val msg2 = msgBuilder.buildSimple(batch, BatchAction.SessionAck, sessionActionId, TellWhom.SenderOnly)
-          List(msg1, msg2)
-        } else {
-          List(msgBuilder.buildSimple(batch, BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly))
-        }
+      session.data = patchSessionData(patches, session.data)
+      session.version += 1L
+      session.recentPatches.add(session.version, patches)
+      logger.debug(s".handlePatch: batchId $batchId, " +
+        s"clientsVersion $clientsVersion, versioning $versioning, batchSessionPatch ${Json.stringify(patches)}, " +
+        s"version ${session.version}")
 
-      } catch {
-        case e: Exception =>
-          logger.warn(s".handlePatch: batchId $batchId, json ${Json.stringify(json)}, " +
-            s"${e.getClass.getName}: ${e.getMessage}")
-          List(msgBuilder.buildSimple(batch, BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly))
-      }
-    }))
+      val msg1 = msgBuilder.buildSessionPatch(session.version, patches, TellWhom.All)
+      val msg2 = msgBuilder.buildSimple(session.version, BatchAction.SessionAck, sessionActionId,
+        TellWhom.SenderOnly)
+      List(msg1, msg2)
+    } catch {
+      case e: Exception =>
+        logger.warn(s".handlePatch: batchId $batchId, json ${Json.stringify(json)}, " +
+          s"${e.getClass.getName}: ${e.getMessage}")
+        List(msgBuilder.buildSimple(session.version, BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly))
+    }
   }
 
-  private def patchSessionData(patches: JsValue, batch: Batch): JsValue = {
-    val currentSessionData =
-      if (!Strings.isNullOrEmpty(batch.getBatchSessionData))
-        Json.parse(batch.getBatchSessionData)
-      else Json.obj()
-
+  /**
+    * Applies the patches on the session data. The session data are immutable JSON, so the returned value is a new
+    * one and the old one is untouched if a patch fails.
+    */
+  private def patchSessionData(patches: JsValue, sessionData: JsValue): JsValue = {
     // Fix for gnieh.diffson JsonPatch for "remove" and "/" - clear all session data
     // Assumes the 'remove' operation is in the first JSON patch
     if ((patches \ 0 \ "op").as[String] == "remove" && (patches \ 0 \ "path").as[String] == "/") {
       return Json.obj()
     }
 
-    val patch = Json.parse(patches.toString()).as[JsonPatch[JsValue]]
-    patch[Try](currentSessionData).get
+    val patch = patches.as[JsonPatch[JsValue]]
+    patch[Try](sessionData).get
   }
 
   /**
-    * Persists the given sessionData in the Batch and increases the batchSessionVersion by 1 - but only if the stored
-    * version is equal to the received one or versioning is turned off. Returns true if this was successful -
-    * otherwise false.
+    * Loads the batch session from the database. Returns None if the batch doesn't exist.
     */
-  private def checkVersionAndPersistSessionData(sessionData: JsValue, batch: Batch,
-                                                version: Long,
-                                                versioning: Boolean): Boolean = {
-    if (batch != null && sessionData != null && (!versioning || batch.getBatchSessionVersion == version)) {
-      batch.setBatchSessionData(sessionData.toString)
-      batch.setBatchSessionVersion(batch.getBatchSessionVersion + 1L)
-      batchDao.update(batch)
-      return true
-    }
-    false
+  def loadSession(batchId: Long): Option[BatchSession] = {
+    jpa.withTransaction("default", true, asJavaSupplier(() => {
+      val batch = batchDao.findById(batchId)
+      if (batch == null) None
+      else {
+        val sessionData =
+          try {
+            if (Strings.isNullOrEmpty(batch.getBatchSessionData)) Json.obj()
+            else Json.parse(batch.getBatchSessionData)
+          } catch {
+            case e: Exception =>
+              logger.error(s".loadSession: invalid session data in DB - batchId $batchId, " +
+                s"batchSessionVersion ${batch.getBatchSessionVersion}, " +
+                s"batchSessionData ${batch.getBatchSessionData}, error: ${e.getMessage}")
+              Json.obj()
+          }
+        Some(new BatchSession(sessionData, batch.getBatchSessionVersion, batch.getBatchSessionVersion,
+          PatchCoalescer.window(batch)))
+      }
+    }))
+  }
+
+  /**
+    * Returns the batch session version that is stored in the database or None if the batch doesn't exist. It doesn't
+    * load the batch session data.
+    */
+  def findStoredVersion(batchId: Long): Option[Long] = {
+    jpa.withTransaction("default", true, asJavaSupplier(() => {
+      Option(batchDao.findBatchSessionVersion(batchId)).map(_.longValue)
+    }))
+  }
+
+  /**
+    * Persists a snapshot of the batch session data with its version - but only if the stored version is still the
+    * expected one (the version of the last snapshot). Returns false if the batch session was changed in the meantime
+    * somewhere else (e.g. by another node) or the batch doesn't exist anymore.
+    */
+  def persistSession(batchId: Long, sessionData: JsValue, version: Long, expectedVersion: Long): Boolean = {
+    val sessionDataStr = Json.stringify(sessionData)
+    jpa.withTransaction(asJavaSupplier(() => {
+      batchDao.updateBatchSession(batchId, sessionDataStr, version, expectedVersion)
+    }))
   }
 
 }
@@ -5,6 +5,8 @@ import batch.BatchDispatcher._
 import javax.inject.Inject
 import play.api.libs.json.{JsObject, Json}
 
+import scala.util.{Success, Try}
+
 /**
   * BatchChannelActor is an Akka Actor that represents the batch channel's WebSocket.
   * A batch channel is a WebSocket connecting a client who's running a study with
@@ -18,37 +20,44 @@ import play.api.libs.json.{JsObject, Json}
   * BatchDispatcher. It closes down after receiving a PoisonChannel message or if the WebSocket
   * is closed. While closing down it unregisters from the BatchDispatcher by sending a
   * UnregisterChannel message. A BatchChannelActor can, if it's told to, reassign itself to a
-  * different BatchDispatcher.
+  * different BatchDispatcher. A reconnecting client can tell the batch session version it knows
+  * (knownSessionVersion) so it only gets the patches it missed.
   *
   * @author Kristian Lange (2017)
   */
 object BatchChannelActor {
-  def props(out: ActorRef, studyResultId: Long, batchDispatcher: ActorRef): Props =
-    Props(new BatchChannelActor(out, studyResultId, batchDispatcher))
+  def props(out: ActorRef, studyResultId: Long, batchDispatcher: ActorRef, knownSessionVersion: Option[Long]): Props =
+    Props(new BatchChannelActor(out, studyResultId, batchDispatcher, knownSessionVersion))
 }
 
 class BatchChannelActor @Inject()(out: ActorRef,
                                   studyResultId: Long,
-                                  batchDispatcher: ActorRef) extends Actor {
+                                  batchDispatcher: ActorRef,
+                                  knownSessionVersion: Option[Long]) extends Actor {
 
-  override def preStart(): Unit = batchDispatcher ! RegisterChannel(studyResultId)
+  override def preStart(): Unit = batchDispatcher ! RegisterChannel(studyResultId, knownSessionVersion)
 
   override def postStop(): Unit = batchDispatcher ! UnregisterChannel(studyResultId)
 
-  val pong: JsObject = Json.obj("heartbeat" -> "pong")
+  val pong: String = Json.stringify(Json.obj("heartbeat" -> "pong"))
 
   def receive: Receive = {
-    case msg: JsObject if msg.keys.contains("heartbeat") =>
-      // If we receive a heartbeat ping, answer directly with a pong
-      out ! pong
-    case msg: JsObject =>
-      // If we receive an JSON object (can only come from the client), wrap it in a
-      // BatchMsg and forward it to the BatchDispatcher
-      batchDispatcher ! BatchMsg(msg)
+    case text: String =>
+      // A text message can only come from the client
+      Try(Json.parse(text)) match {
+        case Success(msg: JsObject) if msg.keys.contains("heartbeat") =>
+          // If we receive a heartbeat ping, answer directly with a pong
+          out ! pong
+        case Success(msg: JsObject) =>
+          // If we receive an JSON object, wrap it in a BatchMsg and forward it to the BatchDispatcher
+          batchDispatcher ! BatchMsg(msg)
+        case _ =>
+          // Ignore everything else
+      }
     case msg: BatchMsg =>
       // If we receive a BatchMsg (can only come from the BatchDispatcher),
-      // send the unwrapped JSON to the client
-      out ! msg.json
+      // send the JSON to the client - it's serialized only once for all batch members
+      out ! msg.text
     case _: PoisonChannel =>
       // Kill this batch channel
       self ! PoisonPill
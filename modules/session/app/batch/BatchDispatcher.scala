@@ -1,15 +1,23 @@
 package batch
 
-import akka.actor.{Actor, ActorRef}
+import akka.Done
+import akka.actor.{Actor, ActorRef, Cancellable, Status}
+import akka.pattern.pipe
 import batch.BatchDispatcher.TellWhom.TellWhom
 import batch.BatchDispatcher._
 import batch.BatchDispatcherRegistry.Unregister
 import com.google.inject.assistedinject.Assisted
-import general.ChannelRegistry
+import general.common.BatchSessionAccess.Snapshot
+import general.common.SessionDispatcherMetrics.DispatcherMetrics
+import general.common.{Common, SessionDispatcherMetrics}
+import general.{ChannelRegistry, PatchCoalescer, SessionDbWork}
 import play.api.Logger
-import play.api.libs.json.{JsObject, Json}
+import play.api.libs.json.{JsObject, JsValue, Json}
 
 import javax.inject.Inject
+import scala.concurrent.ExecutionContext
+import scala.concurrent.duration._
+import scala.util.{Failure, Success, Try}
 
 /**
   * A BatchDispatcher is an Akka Actor responsible for distributing messages (BatchMsg) within a
@@ -28,6 +36,24 @@ import javax.inject.Inject
   * batch. These messages are essentially JSON Patches after RFC 6902 and used to describe
   * changes in the batch session data. The session data are stored and persisted with the Batch.
   *
+  * While a BatchDispatcher runs its in-memory BatchSession is the source of truth for the batch session: patches are
+  * applied in memory and snapshots are persisted asynchronously (write-behind) - at the latest after the persist
+  * interval, right away after a number of versions, and when the dispatcher stops. A snapshot is only stored if the
+  * batch session in the database wasn't changed in the meantime (e.g. by hand). If it was, the dispatcher
+  * reloads the batch session from the database and sends it to all members. Since a clean batch session is never
+  * persisted, its version is additionally compared with the stored one when a channel registers and with every
+  * persist tick - this way changes in the database are noticed even if nobody patches the batch session. In a
+  * multi-node setup the batch session is loaded before and persisted after each patch, since several nodes can have a
+  * BatchDispatcher for the same batch.
+  * All database access runs on the dedicated session database dispatcher (SessionDbWork) and never blocks a thread of
+  * Akka's default dispatcher.
+  *
+  * JATOS' GUI reads and edits the batch session through the dispatcher as well (see DispatcherBatchSessionAccess) -
+  * this way a GUI edit is checked against the in-memory version and never causes the dispatcher to reload.
+  *
+  * If the batch has a patch coalescing window, the session patches within this window are merged into one message
+  * before they are sent to the members. Every other message to all members first flushes the pending patches.
+  *
   * @author Kristian Lange (2017)
   */
 object BatchDispatcher {
@@ -40,9 +66,10 @@ object BatchDispatcher {
   }
 
   /**
-    * Message a BatchChannelActor can send to register in a BatchDispatcher.
+    * Message a BatchChannelActor can send to register in a BatchDispatcher. A reconnecting channel can tell the batch
+    * session version it knows - then it only gets the patches it missed.
     */
-  case class RegisterChannel(studyResultId: Long)
+  case class RegisterChannel(studyResultId: Long, knownSessionVersion: Option[Long] = None)
 
   /**
     * Message an BatchChannelActor can send to its BatchDispatcher to indicate it's
@@ -93,6 +120,7 @@ object BatchDispatcher {
     val Opened = Value("OPENED") // Signals the opening of a batch channel
     val Closed = Value("CLOSED") // Signals the closing of a batch channel
     val Session = Value("SESSION") // Signals this message contains a batch session update
+    val SessionData = Value("SESSION_DATA") // Signals this message contains the whole batch session (after a reload)
     val SessionAck = Value("SESSION_ACK") // Signals that the session update was successful
     val SessionFail = Value("SESSION_FAIL") // Signals that the session update failed
     val Error = Value("ERROR") // Used to send an error back to the sender
@@ -102,47 +130,400 @@ object BatchDispatcher {
     * Message used for an action message. It has a JSON string and the JSON
     * contains an 'action' field. Additionally it can be addressed with TellWhom.
     */
-  case class BatchMsg(json: JsObject, tellWhom: TellWhom = TellWhom.Unknown)
+  case class BatchMsg(json: JsObject, tellWhom: TellWhom = TellWhom.Unknown) {
+    /**
+      * Creation time (System.nanoTime) - for messages from a client it's when the batch channel received it
+      */
+    val created: Long = System.nanoTime()
+
+    /**
+      * The serialized JSON - it's done only once, even if the same message is sent to all members
+      */
+    lazy val text: String = Json.stringify(json)
+  }
+
+  /**
+    * Message a BatchDispatcher sends to itself to persist the batch session (if there are changes)
+    */
+  case object PersistSession
+
+  /**
+    * Message a BatchDispatcher sends to itself after it tried to persist the batch session with the given version.
+    * The result is false if the batch session was changed in the database in the meantime.
+    */
+  case class SessionPersisted(version: Long, result: Try[Boolean])
+
+  /**
+    * Message a BatchDispatcher sends to itself after it compared the version of its clean batch session (expected
+    * version) with the one stored in the database (None if the batch doesn't exist anymore)
+    */
+  case class SessionChecked(expectedVersion: Long, storedVersion: Try[Option[Long]])
+
+  /**
+    * Message that makes a BatchDispatcher persist its batch session right away (e.g. during shutdown). It answers
+    * with Done.
+    */
+  case object FlushSession
+
+  /**
+    * Message a BatchDispatcher sends to itself at the end of a patch coalescing window
+    */
+  case object FlushPatches
+
+  /**
+    * Message from JATOS' GUI to get the current batch session. It's answered with a Snapshot.
+    */
+  case object GetSession
+
+  /**
+    * Message from JATOS' GUI to replace the batch session data - but only if the current version is still the
+    * expected one. It's answered with true if the batch session was changed, false otherwise.
+    */
+  case class EditSession(data: JsValue, expectedVersion: Long)
 
 }
 
 class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
                                 @Assisted actionHandler: BatchActionHandler,
                                 @Assisted actionMsgBuilder: BatchActionMsgBuilder,
-                                @Assisted batchId: Long) extends Actor {
+                                @Assisted batchId: Long,
+                                sessionDispatcherMetrics: SessionDispatcherMetrics) extends Actor with SessionDbWork {
 
   private val logger: Logger = Logger(this.getClass)
 
   private val channelRegistry = new ChannelRegistry
 
-  override def postStop(): Unit = dispatcherRegistry ! Unregister(batchId)
+  protected val dispatcherMetrics: DispatcherMetrics = sessionDispatcherMetrics.register("batch", batchId)
+
+  /**
+    * The batch session - loaded from the database when it's needed the first time
+    */
+  private var session: Option[BatchSession] = None
+
+  /**
+    * True while a snapshot of the batch session is persisted (or its version is checked) asynchronously
+    */
+  private var persisting = false
+
+  private val patchCoalescer = new PatchCoalescer[BatchMsg](BatchActionJsonKey.SessionPatches.toString)
+
+  /**
+    * Scheduled end of the current patch coalescing window
+    */
+  private var flushPatchesTimer: Option[Cancellable] = None
+
+  private implicit val executionContext: ExecutionContext = context.dispatcher
+
+  private val persistTimer: Cancellable = {
+    val interval = Common.getBatchSessionPersistInterval.millis
+    context.system.scheduler.schedule(interval, interval, self, PersistSession)
+  }
+
+  override def postStop(): Unit = {
+    persistTimer.cancel()
+    flushPatches()
+    persistSessionOnStop()
+    sessionDispatcherMetrics.unregister(dispatcherMetrics)
+    dispatcherRegistry ! Unregister(batchId)
+  }
 
   def receive: Receive = {
     case actionMsg: BatchMsg => handleActionMsg(actionMsg)
-    case RegisterChannel(studyResultId: Long) => registerChannel(studyResultId)
+    case RegisterChannel(studyResultId: Long, knownSessionVersion) => registerChannel(studyResultId, knownSessionVersion)
     case UnregisterChannel(studyResultId: Long) => unregisterChannel(studyResultId)
     case p: PoisonChannel => poisonChannel(p)
+    case PersistSession => persistSession()
+    case SessionPersisted(version, result) => sessionPersisted(version, result)
+    case SessionChecked(expectedVersion, storedVersion) => sessionChecked(expectedVersion, storedVersion)
+    case FlushSession => flushSession()
+    case FlushPatches => flushPatches()
+    case GetSession => getSession()
+    case EditSession(data, expectedVersion) => editSession(data, expectedVersion)
   }
 
   /**
-    * Handles batch actions originating from a client
+    * Handles batch actions originating from a client. They are applied to the in-memory batch session.
     */
   private def handleActionMsg(actionMsg: BatchMsg): Unit = {
     logger.debug(s".handleActionMsg: batchId $batchId, " +
         s"studyResultId ${channelRegistry.getStudyResult(sender).get}, " +
         s"actionMsg ${Json.stringify(actionMsg.json)}")
-    val msgList = actionHandler.handleActionMsg(actionMsg, batchId)
-    tellActionMsg(msgList)
+    val channel = sender
+    withSession(tellChannel(channel), reload = Common.isMultiNode) { s =>
+      val msgList = actionHandler.handleActionMsg(actionMsg, batchId, s)
+      if (Common.isMultiNode) persistPatch(actionMsg, s, msgList, channel)
+      else {
+        if (s.version - s.persistedVersion >= Common.getBatchSessionPersistEveryVersions) persistSession()
+        tellActionMsg(msgList, channel)
+        dispatcherMetrics.addPatchLatency(System.nanoTime() - actionMsg.created)
+      }
+    }
+  }
+
+  /**
+    * Multi-node only: persists the batch session right after the patch. Only if this succeeds everyone is told about
+    * the patch. Otherwise another node changed the batch session in the meantime and this patch is lost.
+    */
+  private def persistPatch(actionMsg: BatchMsg, s: BatchSession, msgList: List[BatchMsg], channel: ActorRef): Unit = {
+    if (!s.isDirty) {
+      tellActionMsg(msgList, channel)
+      return
+    }
+    val sessionActionId = (actionMsg.json \ BatchActionJsonKey.SessionActionId.toString).as[Long]
+    val (data, version, expectedVersion) = (s.data, s.version, s.persistedVersion)
+    runDbWork(actionHandler.persistSession(batchId, data, version, expectedVersion)) {
+      case Success(true) =>
+        s.persistedVersion = version
+        tellActionMsg(msgList, channel)
+        dispatcherMetrics.addPatchLatency(System.nanoTime() - actionMsg.created)
+      case Success(false) =>
+        reloadSession(reloaded => tellActionMsg(List(actionMsgBuilder.buildSimple(reloaded.version,
+          BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly)), channel))
+      case Failure(e) =>
+        logger.error(s".persistPatch: couldn't persist batch session of batch $batchId, version $version", e)
+        tellActionMsg(List(actionMsgBuilder.buildSimple(expectedVersion, BatchAction.SessionFail, sessionActionId,
+          TellWhom.SenderOnly)), channel)
+    }
+  }
+
+  /**
+    * Registers the given channel in the channelRegistry and send an OPENED msg back to the sender. The OPENED msg has
+    * the whole batch session data - or only the missed patches if the channel reconnects with a known version.
+    */
+  private def registerChannel(studyResultId: Long, knownSessionVersion: Option[Long]): Unit = {
+    logger.debug(s".registerChannel: batchId $batchId, studyResultId $studyResultId, " +
+        s"knownSessionVersion $knownSessionVersion")
+    // The OPENED msg already contains all pending patches
+    flushPatches()
+    val channel = sender
+    channelRegistry.register(studyResultId, channel)
+    dispatcherMetrics.setChannels(channelRegistry.getAllChannels.size)
+    val opened: BatchSession => Unit = s => {
+      val msg = actionMsgBuilder.buildSessionCatchUp(s, knownSessionVersion, BatchAction.Opened, TellWhom.SenderOnly)
+      tellActionMsg(List(msg), channel)
+    }
+    if (Common.isMultiNode) withSession(tellChannel(channel), reload = true)(opened)
+    else withCheckedSession(tellChannel(channel))(opened)
+  }
+
+  /**
+    * Single node: calls f with the batch session after its version was compared with the one stored in the database.
+    * If the batch session was changed there in the meantime (e.g. by hand) the database wins: it's
+    * reloaded and sent to all members first. While a snapshot is persisted the check is skipped - the persisting
+    * notices a changed batch session anyway. Errors go to fail.
+    */
+  private def withCheckedSession(fail: BatchMsg => Unit)(f: BatchSession => Unit): Unit = session match {
+    case Some(s) if !persisting =>
+      runDbWork(actionHandler.findStoredVersion(batchId)) {
+        case Success(Some(storedVersion)) if storedVersion == s.persistedVersion => f(s)
+        case Success(Some(_)) => reloadSession(f)
+        case Success(None) =>
+          session = None
+          fail(batchNotFound)
+        case Failure(e) =>
+          // Go on with the in-memory batch session - persisting it would still notice a changed one
+          logger.error(s".withCheckedSession: couldn't check batch session version of batch $batchId", e)
+          f(s)
+      }
+    case _ => withSession(fail, reload = false)(f)
+  }
+
+  /**
+    * Calls f with the batch session. If it isn't loaded yet (or reload is true) it's loaded from the database
+    * first. If the batch doesn't exist (anymore) or can't be loaded, fail gets an error message.
+    */
+  private def withSession(fail: BatchMsg => Unit, reload: Boolean)(f: BatchSession => Unit): Unit = {
+    if (session.isDefined && !reload) f(session.get)
+    else runDbWork(actionHandler.loadSession(batchId)) {
+      case Success(loaded) =>
+        session = loaded
+        if (loaded.isDefined) f(loaded.get)
+        else fail(batchNotFound)
+      case Failure(e) =>
+        logger.error(s".withSession: couldn't load batch session of batch $batchId", e)
+        fail(actionMsgBuilder.buildError(s"Couldn't load batch session of batch $batchId.", TellWhom.SenderOnly))
+    }
+  }
+
+  private def batchNotFound: BatchMsg =
+    actionMsgBuilder.buildError(s"Couldn't find batch with ID $batchId in database.", TellWhom.SenderOnly)
+
+  /**
+    * Error handling for a channel: the error message goes to the channel
+    */
+  private def tellChannel(channel: ActorRef): BatchMsg => Unit = msg => tellActionMsg(List(msg), channel)
+
+  /**
+    * Error handling for JATOS' GUI: the ask fails with the error message
+    */
+  private def failAsk(replyTo: ActorRef): BatchMsg => Unit = msg =>
+    replyTo ! Status.Failure(new IllegalStateException((msg.json \ BatchActionJsonKey.ErrorMsg.toString).as[String]))
+
+  /**
+    * Answers JATOS' GUI with the current batch session
+    */
+  private def getSession(): Unit = {
+    val replyTo = sender
+    val reply: BatchSession => Unit = s => replyTo ! new Snapshot(Json.stringify(s.data), s.version)
+    if (Common.isMultiNode) withSession(failAsk(replyTo), reload = true)(reply)
+    else withCheckedSession(failAsk(replyTo))(reply)
+  }
+
+  /**
+    * Replaces the batch session data with the ones edited in JATOS' GUI if the GUI knew the current version. All
+    * members get the new batch session data. Like a patch it's applied in memory and persisted with the next snapshot
+    * (single node) or persisted right away (multi-node).
+    */
+  private def editSession(data: JsValue, expectedVersion: Long): Unit = {
+    val replyTo = sender
+    val edit: BatchSession => Unit = s =>
+      if (s.version != expectedVersion) replyTo ! false
+      else if (Common.isMultiNode) persistEdit(s, data, replyTo)
+      else {
+        applyEdit(s, data, s.version + 1)
+        replyTo ! true
+        if (s.version - s.persistedVersion >= Common.getBatchSessionPersistEveryVersions) persistSession()
+      }
+    if (Common.isMultiNode) withSession(failAsk(replyTo), reload = true)(edit)
+    else withCheckedSession(failAsk(replyTo))(edit)
+  }
+
+  /**
+    * Multi-node only: persists the edited batch session data right away. Only if this succeeds the members get them.
+    */
+  private def persistEdit(s: BatchSession, data: JsValue, replyTo: ActorRef): Unit = {
+    val (version, expectedVersion) = (s.version + 1, s.persistedVersion)
+    runDbWork(actionHandler.persistSession(batchId, data, version, expectedVersion)) {
+      case Success(true) =>
+        applyEdit(s, data, version)
+        s.persistedVersion = version
+        replyTo ! true
+      case Success(false) =>
+        reloadSession()
+        replyTo ! false
+      case Failure(e) =>
+        logger.error(s".persistEdit: couldn't persist batch session of batch $batchId, version $version", e)
+        replyTo ! Status.Failure(e)
+    }
+  }
+
+  /**
+    * Replaces the batch session data and sends them to all members. The edit isn't a patch - a reconnecting channel
+    * that knows an older version gets the whole batch session data.
+    */
+  private def applyEdit(s: BatchSession, data: JsValue, version: Long): Unit = {
+    s.data = data
+    s.version = version
+    s.recentPatches.clear()
+    tellAll(actionMsgBuilder.buildSessionData(s, BatchAction.SessionData, TellWhom.All))
+  }
+
+  /**
+    * Persists a snapshot of the batch session asynchronously if there are unpersisted changes. The session data are
+    * immutable JSON, so the snapshot can be serialized outside of this actor while new patches are applied. Only one
+    * snapshot is persisted at a time - changes that happen meanwhile go into the next one.
+    */
+  private def persistSession(): Unit = {
+    if (persisting) return
+    session.foreach { s =>
+      if (s.isDirty) {
+        persisting = true
+        val (data, version, expectedVersion) = (s.data, s.version, s.persistedVersion)
+        dbFuture(actionHandler.persistSession(batchId, data, version, expectedVersion))
+          .transform(result => Success(SessionPersisted(version, result)))
+          .pipeTo(self)
+      } else if (!Common.isMultiNode) checkSession(s)
+    }
+  }
+
+  /**
+    * Single node: compares the version of the clean batch session with the one stored in the database asynchronously
+    * (see sessionChecked)
+    */
+  private def checkSession(s: BatchSession): Unit = {
+    persisting = true
+    val expectedVersion = s.persistedVersion
+    dbFuture(actionHandler.findStoredVersion(batchId))
+      .transform(result => Success(SessionChecked(expectedVersion, result)))
+      .pipeTo(self)
+  }
+
+  /**
+    * If the stored batch session version differs from the one the in-memory batch session is based on, the batch
+    * session was changed in the database (e.g. by hand): it's reloaded and sent to all members.
+    */
+  private def sessionChecked(expectedVersion: Long, storedVersion: Try[Option[Long]]): Unit = {
+    persisting = false
+    storedVersion match {
+      case Success(Some(version)) if version != expectedVersion &&
+        session.exists(_.persistedVersion == expectedVersion) => reloadSession()
+      case Success(_) =>
+      case Failure(e) =>
+        logger.error(s".sessionChecked: couldn't check batch session version of batch $batchId", e)
+    }
+  }
+
+  private def sessionPersisted(version: Long, result: Try[Boolean]): Unit = {
+    persisting = false
+    result match {
+      case Success(true) =>
+        session.foreach(s => s.persistedVersion = version)
+      case Success(false) =>
+        reloadSession()
+      case Failure(e) =>
+        // Keep the changes - they are persisted with the next snapshot
+        logger.error(s".sessionPersisted: couldn't persist batch session of batch $batchId, version $version", e)
+    }
   }
 
   /**
-    * Registers the given channel in the channelRegistry and send an OPENED msg back to the sender
+    * Persists the batch session right away and answers with Done afterwards
     */
-  private def registerChannel(studyResultId: Long): Unit = {
-    logger.debug(s".registerChannel: batchId $batchId, studyResultId $studyResultId")
-    channelRegistry.register(studyResultId, sender)
-    tellActionMsg(List(actionMsgBuilder.buildSessionData(
-      batchId, BatchAction.Opened, TellWhom.SenderOnly)))
+  private def flushSession(): Unit = {
+    val replyTo = sender
+    session.filter(_.isDirty) match {
+      case Some(s) =>
+        val (data, version, expectedVersion) = (s.data, s.version, s.persistedVersion)
+        runDbWork(actionHandler.persistSession(batchId, data, version, expectedVersion)) { result =>
+          sessionPersisted(version, result)
+          replyTo ! Done
+        }
+      case None =>
+        replyTo ! Done
+    }
+  }
+
+  /**
+    * Persists the last changes when the dispatcher stops - in the background since the actor is gone afterwards. If
+    * the batch session was changed in the database in the meantime the database wins.
+    */
+  private def persistSessionOnStop(): Unit = {
+    session.filter(_.isDirty).foreach { s =>
+      val (data, version, expectedVersion) = (s.data, s.version, s.persistedVersion)
+      dbFuture(actionHandler.persistSession(batchId, data, version, expectedVersion)).failed.foreach(e =>
+        logger.error(s".persistSessionOnStop: couldn't persist batch session of batch $batchId, version $version", e))
+    }
+  }
+
+  /**
+    * The batch session was changed in the database (e.g. by another node) since the last snapshot:
+    * the database wins. The batch session is reloaded and sent to all members. Afterwards andThen is called with the
+    * reloaded session.
+    */
+  private def reloadSession(andThen: BatchSession => Unit = _ => ()): Unit = {
+    logger.info(s".reloadSession: batch session of batch $batchId was changed in the database - reloading it")
+    runDbWork(actionHandler.loadSession(batchId)) {
+      case Success(loaded) =>
+        session = loaded
+        loaded.foreach { s =>
+          tellAll(actionMsgBuilder.buildSessionData(s, BatchAction.SessionData, TellWhom.All))
+          andThen(s)
+        }
+      case Failure(e) =>
+        // Load it again with the next use
+        logger.error(s".reloadSession: couldn't load batch session of batch $batchId", e)
+        session = None
+    }
   }
 
   /**
@@ -155,8 +536,10 @@ class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     // Only unregister BatchChannelActor if it's the one from the sender (there
     // might be a new BatchChannelActor for the same StudyResult after a reload)
     val channelOption = channelRegistry.getChannel(studyResultId)
-    if (channelOption.isDefined && channelOption.get == sender)
+    if (channelOption.isDefined && channelOption.get == sender) {
       channelRegistry.unregister(studyResultId)
+      dispatcherMetrics.setChannels(channelRegistry.getAllChannels.size)
+    }
   }
 
   /**
@@ -178,32 +561,73 @@ class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     else tellSenderOnly(false)
   }
 
-  private def tellActionMsg(msgList: List[BatchMsg]): Unit = {
+  /**
+    * Sends the messages according to their TellWhom. SenderOnly means the given channel - the sender of the message
+    * that caused them (which isn't necessarily the current sender after waiting for the database).
+    */
+  private def tellActionMsg(msgList: List[BatchMsg], channel: ActorRef): Unit = {
     msgList.foreach(msg =>
       msg.tellWhom match {
+        case TellWhom.All if isSessionPatch(msg) && patchCoalescingWindow > 0 => coalescePatch(msg)
         case TellWhom.All => tellAll(msg)
-        case TellWhom.SenderOnly => tellSenderOnly(msg)
+        case TellWhom.SenderOnly if !patchCoalescer.isEmpty => patchCoalescer.holdBack(channel, msg)
+        case TellWhom.SenderOnly => tellChannelOnly(msg, channel)
         case _ => logger.warn(s".tellActionMsg: no TellWhom specified")
       }
     )
   }
 
+  private def isSessionPatch(msg: BatchMsg): Boolean =
+    (msg.json \ BatchActionJsonKey.Action.toString).asOpt[String].contains(BatchAction.Session.toString)
+
+  private def patchCoalescingWindow: Int = session.map(_.patchCoalescingWindow).getOrElse(0)
+
+  /**
+    * Adds the session patch message to the pending ones. The first one starts the coalescing window.
+    */
+  private def coalescePatch(msg: BatchMsg): Unit = {
+    if (!patchCoalescer.addPatchMsg(msg.json)) {
+      flushPatches()
+      patchCoalescer.addPatchMsg(msg.json)
+    }
+    if (flushPatchesTimer.isEmpty) {
+      flushPatchesTimer = Some(context.system.scheduler.scheduleOnce(patchCoalescingWindow.millis, self, FlushPatches))
+    }
+  }
+
   /**
-    * Sends the message to everyone in batch channelRegistry.
+    * Sends the pending session patches as one message to everyone and afterwards the held back messages
+    */
+  private def flushPatches(): Unit = {
+    flushPatchesTimer.foreach(_.cancel())
+    flushPatchesTimer = None
+    if (patchCoalescer.isEmpty) return
+    val (mergedPatchMsg, heldBack) = patchCoalescer.drain()
+    mergedPatchMsg.foreach(json => sendToAll(BatchMsg(json, TellWhom.All)))
+    heldBack.foreach { case (recipient, msg) => recipient ! msg }
+  }
+
+  /**
+    * Sends the message to everyone in batch channelRegistry - after the pending session patches.
     */
   private def tellAll(msg: BatchMsg): Unit = {
-    logger.debug(s".tellAll: batchId $batchId, msg ${Json.stringify(msg.json)}")
+    flushPatches()
+    sendToAll(msg)
+  }
+
+  private def sendToAll(msg: BatchMsg): Unit = {
+    logger.debug(s".tellAll: batchId $batchId, msg ${msg.text}")
     for (actorRef <- channelRegistry.getAllChannels) {
       actorRef ! msg
     }
   }
 
   /**
-    * Sends the message only to the sender.
+    * Sends the message only to the given channel.
     */
-  private def tellSenderOnly(msg: BatchMsg): Unit = {
-    logger.debug(s".tellSenderOnly: batchId $batchId, msg ${Json.stringify(msg.json)}")
-    sender ! msg
+  private def tellChannelOnly(msg: BatchMsg, channel: ActorRef): Unit = {
+    logger.debug(s".tellChannelOnly: batchId $batchId, msg ${msg.text}")
+    channel ! msg
   }
 
   /**
@@ -1,19 +1,30 @@
 package batch
 
+import akka.Done
 import akka.actor.SupervisorStrategy.Resume
-import akka.actor.{Actor, ActorRef, ActorSystem, OneForOneStrategy}
-import batch.BatchDispatcherRegistry.{GetOrCreate, ItsThisOne, Unregister}
+import akka.actor.{Actor, ActorRef, ActorSystem, CoordinatedShutdown, OneForOneStrategy}
+import akka.pattern.{ask, pipe}
+import akka.routing.ConsistentHashingRouter.ConsistentHashable
+import akka.util.Timeout
+import batch.BatchDispatcher.FlushSession
+import batch.BatchDispatcherRegistry.{FlushSessions, GetOrCreate, ItsThisOne, Unregister}
 
-import javax.inject.{Inject, Singleton}
+import javax.inject.Inject
 import play.api.Logger
 import play.api.libs.concurrent.InjectedActorSupport
 
 import scala.collection.mutable
+import scala.concurrent.{ExecutionContext, Future}
 import scala.concurrent.duration._
 import scala.language.postfixOps
 
 /**
-  * A BatchDispatcherRegistry is an Akka Actor that keeps track of all BatchDispatcher Actors.
+  * A BatchDispatcherRegistry is an Akka Actor that keeps track of BatchDispatcher Actors.
+  *
+  * The registry is sharded: there are several BatchDispatcherRegistry actors behind a consistent hashing router
+  * (configured in jatos.channel.registryShards). The router passes each message with a batch ID always to the same
+  * registry actor and this one creates and keeps the BatchDispatcher of this batch. This way not all channel openings
+  * of the whole server go through a single mailbox.
   *
   * @author Kristian Lange (2017)
   */
@@ -25,7 +36,9 @@ object BatchDispatcherRegistry {
     * Used by the BatchChannel service to ask which BatchDispatcher actor manages a particular
     * batch. If it doesn't exist, create a new one.
     */
-  case class GetOrCreate(batchId: Long) extends RegistryProtocol
+  case class GetOrCreate(batchId: Long) extends RegistryProtocol with ConsistentHashable {
+    override def consistentHashKey: Any = batchId
+  }
 
   /**
     * Used to answer the BatchChannel service which BatchDispatcher actor manages a particular
@@ -36,11 +49,17 @@ object BatchDispatcherRegistry {
   /**
     * Used by a BatchDispatcher to unregister itself from this registry
     */
-  case class Unregister(batchId: Long) extends RegistryProtocol
+  case class Unregister(batchId: Long) extends RegistryProtocol with ConsistentHashable {
+    override def consistentHashKey: Any = batchId
+  }
+
+  /**
+    * Used during shutdown: all BatchDispatchers of this registry persist their batch sessions. Answered with Done.
+    */
+  case object FlushSessions extends RegistryProtocol
 
 }
 
-@Singleton
 class BatchDispatcherRegistry @Inject()(actorSystem: ActorSystem,
                                         dispatcherFactory: BatchDispatcher.Factory,
                                         actionHandler: BatchActionHandler,
@@ -64,6 +83,19 @@ class BatchDispatcherRegistry @Inject()(actorSystem: ActorSystem,
     */
   private val dispatcherMap = mutable.HashMap[Long, ActorRef]()
 
+  private implicit val executionContext: ExecutionContext = context.dispatcher
+
+  private implicit val flushTimeout: Timeout = Timeout(10 seconds)
+
+  /**
+    * The BatchDispatchers keep the batch sessions in memory and persist them in the background. Persist them before
+    * the application (and the database) stops.
+    */
+  CoordinatedShutdown(context.system).addTask(
+    CoordinatedShutdown.PhaseServiceRequestsDone, s"flush-batch-sessions-${self.path.name}") { () =>
+    (self ? FlushSessions).map(_ => Done).recover { case _ => Done }
+  }
+
   def receive: Receive = {
     case GetOrCreate(batchId: Long) =>
       // Someone wants to know the Dispatcher to a particular ID
@@ -78,6 +110,8 @@ class BatchDispatcherRegistry @Inject()(actorSystem: ActorSystem,
     case Unregister(batchId: Long) =>
       dispatcherMap -= batchId
       logger.debug(s".receive: unregistered dispatcher for batch ID $batchId")
+    case FlushSessions =>
+      Future.sequence(dispatcherMap.values.map(_ ? FlushSession)).map(_ => Done).pipeTo(sender)
   }
 
 }
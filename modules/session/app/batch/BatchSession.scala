@@ -0,0 +1,26 @@
+package batch
+
+import general.PatchBuffer
+import general.common.Common
+import play.api.libs.json.JsValue
+
+/**
+  * In-memory state of a batch session. It's kept by the BatchDispatcher and is the source of truth for the batch
+  * session while the dispatcher is running - patches are applied to it in memory. The session data are persisted
+  * asynchronously as snapshots (write-behind): persistedVersion is the version that is currently stored in the
+  * database. The most recent patches are kept for reconnecting channels. Patches within patchCoalescingWindow (in ms,
+  * from the batch's properties) are sent to the members as one message.
+  *
+  * @author Kristian Lange
+  */
+class BatchSession(var data: JsValue, var version: Long, var persistedVersion: Long,
+                   val patchCoalescingWindow: Int = 0) {
+
+  val recentPatches = new PatchBuffer(Common.getChannelReconnectPatches)
+
+  /**
+    * True if there are changes that aren't persisted yet
+    */
+  def isDirty: Boolean = version != persistedVersion
+
+}
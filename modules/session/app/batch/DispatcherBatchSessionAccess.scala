@@ -0,0 +1,48 @@
+package batch
+
+import akka.actor.ActorRef
+import akka.pattern.ask
+import akka.util.Timeout
+import batch.BatchDispatcher.{EditSession, GetSession}
+import batch.BatchDispatcherRegistry.{GetOrCreate, ItsThisOne}
+import general.common.BatchSessionAccess
+import general.common.BatchSessionAccess.Snapshot
+import play.api.libs.json.Json
+
+import java.util.concurrent.CompletionStage
+import javax.inject.{Inject, Named, Singleton}
+import scala.compat.java8.FutureConverters._
+import scala.concurrent.duration._
+import scala.concurrent.{ExecutionContext, Future}
+
+/**
+  * Reads and edits batch sessions for JATOS' GUI through the BatchDispatcher of the batch - the same way the members'
+  * patches go. This way a GUI edit is checked against the current (in-memory) version of the batch session and
+  * reaches the members right away.
+  *
+  * @author Kristian Lange
+  */
+@Singleton
+class DispatcherBatchSessionAccess @Inject()(
+    @Named("batch-dispatcher-registry-actor") batchDispatcherRegistry: ActorRef)
+    (implicit executionContext: ExecutionContext) extends BatchSessionAccess {
+
+  /**
+    * Time to wait for an answer after asking an Akka actor
+    */
+  private implicit val timeout: Timeout = 30.seconds
+
+  override def get(batchId: Long): CompletionStage[Snapshot] =
+    getBatchDispatcher(batchId).flatMap(_ ? GetSession).mapTo[Snapshot].toJava
+
+  override def update(batchId: Long, data: String, expectedVersion: Long): CompletionStage[java.lang.Boolean] =
+    getBatchDispatcher(batchId)
+      .flatMap(_ ? EditSession(Json.parse(data), expectedVersion))
+      .mapTo[Boolean]
+      .map(Boolean.box)
+      .toJava
+
+  private def getBatchDispatcher(batchId: Long): Future[ActorRef] =
+    (batchDispatcherRegistry ? GetOrCreate(batchId)).mapTo[ItsThisOne].map(_.dispatcher)
+
+}
@@ -0,0 +1,75 @@
+package general
+
+import play.api.libs.json.{JsArray, JsValue}
+
+/**
+  * Bounded ring buffer of the most recent session patches together with the session version they led to. A batch or
+  * group session keeps one so a reconnecting channel only gets the patches it missed instead of the whole session
+  * data. The buffer only holds consecutive versions - if a version is skipped (e.g. the session was reloaded from the
+  * database) it starts anew.
+  *
+  * @author Kristian Lange
+  */
+class PatchBuffer(capacity: Int) {
+
+  private val versions = new Array[Long](capacity)
+  private val patches = new Array[JsValue](capacity)
+
+  /**
+    * Index of the oldest patch
+    */
+  private var start = 0
+  private var count = 0
+
+  /**
+    * Adds the patches (a JSON Patch array) that led to the given version. If the buffer is full the oldest ones are
+    * dropped.
+    */
+  def add(version: Long, sessionPatches: JsValue): Unit = {
+    if (capacity <= 0) return
+    if (count > 0 && version != lastVersion + 1) clear()
+    val index = (start + count) % capacity
+    versions(index) = version
+    patches(index) = sessionPatches
+    if (count < capacity) count += 1
+    else start = (start + 1) % capacity
+  }
+
+  def clear(): Unit = {
+    start = 0
+    count = 0
+  }
+
+  /**
+    * Returns all patches after the given version up to the current session version merged into one JSON Patch array
+    * (empty if the version is the current one). Returns None if the buffer doesn't have all of them (the gap is too
+    * large) or one of them clears the whole session data (can't be merged) - then the whole session data have to be
+    * sent. The buffer is only trusted if it leads up to the current version: an empty buffer (e.g. right after the
+    * session was (re)loaded from the database) can't tell whether the given version belongs to the same session data,
+    * not even if it's the current one.
+    */
+  def patchesSince(version: Long, currentVersion: Long): Option[JsArray] = {
+    if (count == 0 || lastVersion != currentVersion || version < versions(start) - 1 || version > currentVersion)
+      return None
+    if (version == currentVersion) return Some(JsArray())
+
+    val missing = ((version - versions(start) + 1).toInt until count).map(i => patches((start + i) % capacity))
+    if (missing.exists(PatchBuffer.clearsSessionData)) None
+    else Some(JsArray(missing.flatMap(_.as[JsArray].value)))
+  }
+
+  private def lastVersion: Long = versions((start + count - 1) % capacity)
+
+}
+
+object PatchBuffer {
+
+  /**
+    * A 'remove' of the path "/" in the first patch clears all session data (special case in jatos.js). Such patches
+    * can't be merged with others.
+    */
+  def clearsSessionData(sessionPatches: JsValue): Boolean =
+    (sessionPatches \ 0 \ "op").asOpt[String].contains("remove") &&
+      (sessionPatches \ 0 \ "path").asOpt[String].contains("/")
+
+}
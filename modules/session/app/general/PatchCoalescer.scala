@@ -0,0 +1,62 @@
+package general
+
+import akka.actor.ActorRef
+import general.common.Common
+import models.common.Batch
+import play.api.libs.json.{JsArray, JsObject, JsValue}
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Collects the session patch messages a batch or group dispatcher sends to all its members within a short time window
+  * and merges them into one message: the last patch message with the patches of all of them. Messages that go only to
+  * one member (e.g. SESSION_ACK) while patches are pending are held back and sent after the merged message - this
+  * way a member never gets an answer to a patch before the patch itself.
+  *
+  * @author Kristian Lange
+  */
+class PatchCoalescer[M](patchesKey: String) {
+
+  private var patchMsgJson: Option[JsObject] = None
+  private val patches = ArrayBuffer.empty[JsValue]
+  private val heldBack = ArrayBuffer.empty[(ActorRef, M)]
+
+  def isEmpty: Boolean = patchMsgJson.isEmpty && heldBack.isEmpty
+
+  /**
+    * Adds the session patch message. Returns false if it can't be merged with the pending ones because it clears the
+    * whole session data - then the pending ones have to be drained first.
+    */
+  def addPatchMsg(json: JsObject): Boolean = {
+    val msgPatches = (json \ patchesKey).as[JsArray]
+    if (patchMsgJson.isDefined && PatchBuffer.clearsSessionData(msgPatches)) return false
+    patches ++= msgPatches.value
+    patchMsgJson = Some(json)
+    true
+  }
+
+  def holdBack(recipient: ActorRef, msg: M): Unit = heldBack += (recipient -> msg)
+
+  /**
+    * Returns the merged patch message (if there were patches) and the held back messages and starts anew
+    */
+  def drain(): (Option[JsObject], List[(ActorRef, M)]) = {
+    val merged = patchMsgJson.map(_ + (patchesKey -> JsArray(patches.toVector)))
+    val held = heldBack.toList
+    patchMsgJson = None
+    patches.clear()
+    heldBack.clear()
+    (merged, held)
+  }
+
+}
+
+object PatchCoalescer {
+
+  /**
+    * Returns the batch's coalescing window in ms or the default from the config if the batch doesn't set one
+    */
+  def window(batch: Batch): Int =
+    Option(batch.getPatchCoalescingWindow).map(_.intValue).getOrElse(Common.getChannelPatchCoalescingWindow)
+
+}
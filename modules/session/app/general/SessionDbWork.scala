@@ -0,0 +1,75 @@
+package general
+
+import akka.actor.Stash
+import akka.pattern.pipe
+import general.SessionDbWork.DbWorkDone
+import general.common.SessionDispatcherMetrics.DispatcherMetrics
+
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.{Success, Try}
+
+/**
+  * Lets a batch or group dispatcher (an Akka actor) run its blocking database work on the dedicated session database
+  * dispatcher (configured in jatos.sessionDbDispatcher) instead of blocking a thread of Akka's default dispatcher.
+  *
+  * The result of the work is piped back to the actor as a message and handed to the continuation - on the actor's
+  * thread. Meanwhile the actor stashes all other messages and handles them afterwards in the same order. This way the
+  * messages are still handled one after another like before, and the work can use the actor's state. The number of
+  * stashed messages is the dispatcher's queue that is exposed in its metrics.
+  *
+  * @author Kristian Lange
+  */
+trait SessionDbWork extends Stash {
+
+  protected def dispatcherMetrics: DispatcherMetrics
+
+  private var working = false
+
+  private var queued = 0
+
+  private lazy val dbExecutionContext: ExecutionContext =
+    context.system.dispatchers.lookup(SessionDbWork.DispatcherId)
+
+  /**
+    * Runs the work on the session database dispatcher and afterwards the continuation with its result on the actor's
+    * thread. All messages that arrive in between are handled after the continuation.
+    */
+  protected def runDbWork[T](work: => T)(continuation: Try[T] => Unit): Unit = {
+    working = true
+    context.become(waitingForDbWork, discardOld = false)
+    implicit val executionContext: ExecutionContext = dbExecutionContext
+    Future(work).transform(result => Success(DbWorkDone(result, continuation))).pipeTo(self)
+  }
+
+  /**
+    * Runs the work on the session database dispatcher without waiting for it, e.g. when the dispatcher stops
+    */
+  protected def dbFuture[T](work: => T): Future[T] = Future(work)(dbExecutionContext)
+
+  private def waitingForDbWork: Receive = {
+    case done: DbWorkDone[_] =>
+      context.unbecome()
+      working = false
+      try done.continue()
+      finally if (!working) {
+        unstashAll()
+        queued = 0
+        dispatcherMetrics.setQueuedMessages(queued)
+      }
+    case _ =>
+      stash()
+      queued += 1
+      dispatcherMetrics.setQueuedMessages(queued)
+  }
+
+}
+
+object SessionDbWork {
+
+  val DispatcherId = "jatos.sessionDbDispatcher"
+
+  private case class DbWorkDone[T](result: Try[T], continuation: Try[T] => Unit) {
+    def continue(): Unit = continuation(result)
+  }
+
+}
@@ -1,17 +1,19 @@
 package group
 
 import com.google.common.base.Strings
-import daos.common.GroupResultDao
+import daos.common.{GroupResultDao, GroupSessionDao}
 import diffson.jsonpatch._
 import diffson.playJson.DiffsonProtocol._
+import general.PatchCoalescer
+import general.common.Common
 import group.GroupDispatcher.{GroupAction, GroupActionJsonKey, GroupMsg, TellWhom}
-import models.common.GroupResult
 import models.common.GroupResult.GroupState
 import play.api.Logger
 import play.api.libs.json.{JsObject, JsValue, Json}
 import play.db.jpa.JPAApi
 
 import javax.inject.{Inject, Singleton}
+import scala.collection.JavaConverters._
 import scala.compat.java8.FunctionConverters.asJavaSupplier
 import scala.util.Try
 
@@ -26,6 +28,7 @@ import scala.util.Try
 @Singleton
 class GroupActionHandler @Inject()(jpa: JPAApi,
                                    groupResultDao: GroupResultDao,
+                                   groupSessionDao: GroupSessionDao,
                                    msgBuilder: GroupActionMsgBuilder) {
 
   private val logger: Logger = Logger(this.getClass)
@@ -34,15 +37,16 @@ class GroupActionHandler @Inject()(jpa: JPAApi,
     * Handles group actions originating from a client: Gets a GroupMsg that contains a field
     * 'action' in their JSON. The only action handled here are 1) the a patch for the group
     * session, or 2) the msg to fix the group. The function returns GroupMsges that will be send
-    * out to the group members.
+    * out to the group members. The group session is only evaluated if it's needed.
     */
-  def handleActionMsg(msg: GroupMsg, groupResultId: Long, studyResultId: Long): List[GroupMsg] = {
+  def handleActionMsg(msg: GroupMsg, groupResultId: Long, studyResultId: Long,
+                      session: => Option[GroupSession]): List[GroupMsg] = {
     logger.debug(s".handleActionMsg: groupResultId $groupResultId, studyResultId $studyResultId, " +
       s"jsonNode ${Json.stringify(msg.json)}")
     val actionValue = (msg.json \ GroupActionJsonKey.Action.toString).as[String]
     val action = GroupAction.withName(actionValue)
     action match {
-      case GroupAction.Session => handlePatch(msg.json, groupResultId, studyResultId)
+      case GroupAction.Session => handlePatch(msg.json, groupResultId, studyResultId, session)
       case GroupAction.Fixed => handleActionFix(groupResultId);
       case _ =>
         List(msgBuilder.buildError(groupResultId, s"Unknown action $action", TellWhom.SenderOnly))
@@ -50,74 +54,170 @@ class GroupActionHandler @Inject()(jpa: JPAApi,
   }
 
   /**
-    * Applies the patch to the group session
+    * Applies the patch to the in-memory group session and appends it to the patch log in the database. If the group
+    * session was changed somewhere else in the meantime (e.g. in JATOS' GUI) the session is reloaded and everyone gets
+    * the current session data.
     */
-  private def handlePatch(json: JsObject, groupResultId: Long, studyResultId: Long): List[GroupMsg] = {
-    jpa.withTransaction(asJavaSupplier(() => {
-      val groupResult = groupResultDao.findById(groupResultId)
-      if (groupResult == null) {
-        val errorMsg = s"Couldn't find group result with ID $groupResultId in database."
-        List(msgBuilder.buildError(groupResultId, errorMsg, TellWhom.SenderOnly))
+  private def handlePatch(json: JsObject, groupResultId: Long, studyResultId: Long,
+                          sessionOption: Option[GroupSession]): List[GroupMsg] = {
+    if (sessionOption.isEmpty) {
+      val errorMsg = s"Couldn't find group result with ID $groupResultId in database."
+      return List(msgBuilder.buildError(groupResultId, errorMsg, TellWhom.SenderOnly))
+    }
+    val session = sessionOption.get
+
+    val sessionActionId = (json \ GroupActionJsonKey.SessionActionId.toString).as[Long]
+    val clientsVersion = (json \ GroupActionJsonKey.SessionVersion.toString).as[Long]
+    val versioning = (json \ GroupActionJsonKey.SessionVersioning.toString).as[Boolean]
+    try {
+      val patches = (json \ GroupActionJsonKey.SessionPatches.toString).get
+      if (versioning && session.version != clientsVersion) {
+        return List(msgBuilder.buildSimple(groupResultId, session.version, GroupAction.SessionFail,
+          Some(sessionActionId), TellWhom.SenderOnly))
       }
 
-      val sessionActionId = (json \ GroupActionJsonKey.SessionActionId.toString).as[Long]
-      val clientsVersion = (json \ GroupActionJsonKey.SessionVersion.toString).as[Long]
-      val versioning = (json \ GroupActionJsonKey.SessionVersioning.toString).as[Boolean]
-      try {
-        val patches = (json \ GroupActionJsonKey.SessionPatches.toString).get
-        val patchedSessionData = patchSessionData(patches, groupResult)
-        logger.debug(s".handlePatch: groupResultId $groupResultId, " +
-          s"clientsVersion $clientsVersion, versioning $versioning, groupSessionPatch ${Json.stringify(patches)}, " +
-          s"updatedSessionData ${Json.stringify(patchedSessionData)}")
-
-        val success = checkVersionAndPersistSessionData(patchedSessionData, groupResult, clientsVersion, versioning)
-        if (success) {
-          val msg1 = msgBuilder.buildSessionPatch(groupResult, studyResultId, patches, TellWhom.All)
-          val msg2 = msgBuilder.buildSimple(groupResult, GroupAction.SessionAck, Some(sessionActionId), TellWhom.SenderOnly)
-          List(msg1, msg2)
-        } else {
-          List(msgBuilder.buildSimple(groupResult, GroupAction.SessionFail, Some(sessionActionId), TellWhom.SenderOnly))
-        }
-      } catch {
-        case e: Exception =>
-          logger.warn(s".handlePatch: groupResultId $groupResultId, json ${Json.stringify(json)}," +
-            s" ${e.getClass.getName}: ${e.getMessage}")
-          List(msgBuilder.buildSimple(groupResult, GroupAction.SessionFail, Some(sessionActionId), TellWhom.SenderOnly))
+      val patchedSessionData = patchSessionData(patches, session.data)
+      val appended = jpa.withTransaction(asJavaSupplier(() => {
+        groupSessionDao.appendPatch(groupResultId, Json.stringify(patches), session.version)
+      }))
+      if (!appended) {
+        logger.info(s".handlePatch: group session of groupResultId $groupResultId was changed somewhere else - " +
+          s"reload it")
+        return reloadSession(groupResultId, session) :+ msgBuilder.buildSimple(groupResultId, session.version,
+          GroupAction.SessionFail, Some(sessionActionId), TellWhom.SenderOnly)
       }
-    }))
-  }
 
-  private def patchSessionData(patches: JsValue, groupResult: GroupResult): JsValue = {
-    val currentSessionData =
-      if (!Strings.isNullOrEmpty(groupResult.getGroupSessionData))
-        Json.parse(groupResult.getGroupSessionData)
-      else Json.obj()
+      session.data = patchedSessionData
+      session.version += 1L
+      session.recentPatches.add(session.version, patches)
+      logger.debug(s".handlePatch: groupResultId $groupResultId, " +
+        s"clientsVersion $clientsVersion, versioning $versioning, groupSessionPatch ${Json.stringify(patches)}, " +
+        s"version ${session.version}")
+      if (session.patchCount >= Common.getGroupSessionSnapshotEveryPatches) compactSession(groupResultId, session)
+
+      val msg1 = msgBuilder.buildSessionPatch(session.version, studyResultId, patches, TellWhom.All)
+      val msg2 = msgBuilder.buildSimple(groupResultId, session.version, GroupAction.SessionAck,
+        Some(sessionActionId), TellWhom.SenderOnly)
+      List(msg1, msg2)
+    } catch {
+      case e: Exception =>
+        logger.warn(s".handlePatch: groupResultId $groupResultId, json ${Json.stringify(json)}," +
+          s" ${e.getClass.getName}: ${e.getMessage}")
+        List(msgBuilder.buildSimple(groupResultId, session.version, GroupAction.SessionFail, Some(sessionActionId),
+          TellWhom.SenderOnly))
+    }
+  }
 
+  /**
+    * Applies the patches on the session data. The session data are immutable JSON, so the returned value is a new
+    * one and the old one is untouched if a patch fails.
+    */
+  private def patchSessionData(patches: JsValue, sessionData: JsValue): JsValue = {
     // Fix for gnieh.diffson JsonPatch for "remove" and "/" - clear session data
     // Assumes the 'remove' operation is in the first JSON patch
     if ((patches \ 0 \ "op").as[String] == "remove" && (patches \ 0 \ "path").as[String] == "/") {
       return Json.obj()
     }
 
-    val patch = Json.parse(patches.toString()).as[JsonPatch[JsValue]]
-    patch[Try](currentSessionData).get
+    val patch = patches.as[JsonPatch[JsValue]]
+    patch[Try](sessionData).get
+  }
+
+  /**
+    * Loads the group session from the database: the snapshot with all patches of the log applied. Returns None if
+    * the GroupResult doesn't exist.
+    */
+  def loadSession(groupResultId: Long): Option[GroupSession] = {
+    jpa.withTransaction("default", true, asJavaSupplier(() => {
+      val groupResult = groupResultDao.findById(groupResultId)
+      if (groupResult == null) None
+      else {
+        val snapshotVersion: Long = groupResult.getGroupSessionSnapshotVersion
+        var sessionData: JsValue = Json.obj()
+        try {
+          if (!Strings.isNullOrEmpty(groupResult.getGroupSessionData))
+            sessionData = Json.parse(groupResult.getGroupSessionData)
+          groupSessionDao.findPatchesSince(groupResultId, snapshotVersion).values.asScala
+            .foreach(patches => sessionData = patchSessionData(Json.parse(patches), sessionData))
+        } catch {
+          case e: Exception =>
+            logger.error(s".loadSession: invalid group session in DB - groupResultId $groupResultId, " +
+              s"groupSessionVersion ${groupResult.getGroupSessionVersion}, snapshotVersion $snapshotVersion, " +
+              s"error: ${e.getMessage}")
+        }
+        Some(new GroupSession(sessionData, groupResult.getGroupSessionVersion, snapshotVersion,
+          PatchCoalescer.window(groupResult.getBatch)))
+      }
+    }))
+  }
+
+  /**
+    * Returns the given in-memory group session if it's still up to date - otherwise the group session is loaded anew
+    * from the database. Returns None if the GroupResult doesn't exist anymore.
+    */
+  def refreshSession(groupResultId: Long, session: GroupSession): Option[GroupSession] = {
+    val storedVersion = jpa.withTransaction("default", true, asJavaSupplier(() => {
+      groupSessionDao.findVersion(groupResultId)
+    }))
+    if (storedVersion == null) None
+    else if (storedVersion == session.version) Some(session)
+    else loadSession(groupResultId)
   }
 
   /**
-    * Persists the given sessionData in the GroupResult and increases the groupSessionVersion by 1 - but only if the
-    * stored version is equal to the received one or versioning is turned off. Returns true if this was successful -
-    * otherwise false.
+    * Reloads the given in-memory group session from the database and returns the message that tells everyone about
+    * the current session data
     */
-  private def checkVersionAndPersistSessionData(sessionData: JsValue, groupResult: GroupResult,
-                                                version: Long,
-                                                versioning: Boolean): Boolean = {
-    if (groupResult != null && sessionData != null && (!versioning || groupResult.getGroupSessionVersion == version)) {
-      groupResult.setGroupSessionData(sessionData.toString)
-      groupResult.setGroupSessionVersion(groupResult.getGroupSessionVersion + 1L)
-      groupResultDao.update(groupResult)
-      return true
+  private def reloadSession(groupResultId: Long, session: GroupSession): List[GroupMsg] = {
+    loadSession(groupResultId) match {
+      case Some(loaded) =>
+        session.data = loaded.data
+        session.version = loaded.version
+        session.snapshotVersion = loaded.snapshotVersion
+        session.recentPatches.clear()
+        List(msgBuilder.buildSessionData(groupResultId, session, TellWhom.All))
+      case None => List()
     }
-    false
+  }
+
+  /**
+    * Compacts the patch log into a new snapshot of the current session data. If it fails the log just stays a bit
+    * longer.
+    */
+  private def compactSession(groupResultId: Long, session: GroupSession): Unit = {
+    val sessionDataStr = Json.stringify(session.data)
+    val compacted = jpa.withTransaction(asJavaSupplier(() => {
+      groupSessionDao.writeSnapshot(groupResultId, sessionDataStr, session.version, session.version)
+    }))
+    if (compacted) session.snapshotVersion = session.version
+    logger.debug(s".compactSession: groupResultId $groupResultId, version ${session.version}, " +
+      s"compacted $compacted")
+  }
+
+  /**
+    * Returns the number of group channels the group waits for before it starts - 0 if it doesn't wait. That's the
+    * batch's minActiveMembers, but only as long as the group hasn't started yet. A group that doesn't wait is marked
+    * as started right away: it mustn't wait later on if the batch's minActiveMembers are changed in the meantime.
+    */
+  def loadMembersToStart(groupResultId: Long): Int = {
+    jpa.withTransaction(asJavaSupplier(() => {
+      val groupResult = groupResultDao.findById(groupResultId)
+      if (groupResult == null || groupResult.isStarted) 0
+      else {
+        val minActiveMembers = groupResult.getBatch.getMinActiveMembers
+        if (minActiveMembers == null) {
+          groupResultDao.setStarted(groupResultId)
+          0
+        } else minActiveMembers.intValue
+      }
+    }))
+  }
+
+  /**
+    * Persists that the group started
+    */
+  def markStarted(groupResultId: Long): Unit = {
+    jpa.withTransaction(asJavaSupplier(() => groupResultDao.setStarted(groupResultId)))
   }
 
   /**
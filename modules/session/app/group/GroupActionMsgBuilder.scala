@@ -54,10 +54,28 @@ class GroupActionMsgBuilder @Inject()(jpa: JPAApi, groupResultDao: GroupResultDa
   }
 
   /**
-    * Builds a GroupMsg with or without session data but always with session version
+    * Builds a simple GroupMsg with the action, group result ID, and the given session version
+    */
+  def buildSimple(groupResultId: Long, sessionVersion: Long, action: GroupAction, sessionActionId: Option[Long],
+                  tellWhom: TellWhom): GroupMsg = {
+    var json = Json.obj(
+      GroupActionJsonKey.Action.toString -> action.toString,
+      GroupActionJsonKey.GroupResultId.toString -> groupResultId.toString,
+      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(sessionVersion)))
+    if (sessionActionId.isDefined) {
+      json = json + (GroupActionJsonKey.SessionActionId.toString -> JsNumber(BigDecimal(sessionActionId.get)))
+    }
+    GroupMsg(json, tellWhom)
+  }
+
+  /**
+    * Builds a GroupMsg with or without session data but always with session version. If a group session is given its
+    * data and version are included - or, if the recipient already knows the session up to knownSessionVersion, only
+    * the patches it missed (if they are still available).
     */
   def build(groupResultId: Long, studyResultId: Long, registry: ChannelRegistry,
-            includeSessionData: Boolean, action: GroupAction, tellWhom: TellWhom): GroupMsg = {
+            session: Option[GroupSession], action: GroupAction, tellWhom: TellWhom,
+            knownSessionVersion: Option[Long] = None): GroupMsg = {
     // The current group data are persisted in a GroupResult entity.
     // The GroupResult determines who is member of the group - and not the group registry.
     jpa.withTransaction(asJavaSupplier(() => {
@@ -65,7 +83,7 @@ class GroupActionMsgBuilder @Inject()(jpa: JPAApi, groupResultDao: GroupResultDa
         s"$action , tellWhom ${tellWhom.toString}")
       val groupResult = groupResultDao.findById(groupResultId)
       if (groupResult != null)
-        buildAction(groupResult, studyResultId, registry, includeSessionData, action, tellWhom)
+        buildAction(groupResult, studyResultId, registry, session, knownSessionVersion, action, tellWhom)
       else
         buildError(groupResultId, s"Couldn't find group result with ID $groupResultId in database" +
           s".", TellWhom.SenderOnly)
@@ -75,17 +93,31 @@ class GroupActionMsgBuilder @Inject()(jpa: JPAApi, groupResultDao: GroupResultDa
   /**
     * Builds a GroupMsg with the group session patch and version
     */
-  def buildSessionPatch(groupResult: GroupResult, studyResultId: Long, patches: JsValue, tellWhom: TellWhom): GroupMsg = {
-    logger.debug(s".buildSessionPatch: groupResultId ${groupResult.getId}, studyResultId $studyResultId")
+  def buildSessionPatch(sessionVersion: Long, studyResultId: Long, patches: JsValue, tellWhom: TellWhom): GroupMsg = {
+    logger.debug(s".buildSessionPatch: studyResultId $studyResultId, sessionVersion $sessionVersion")
     val json = Json.obj(
       GroupActionJsonKey.Action.toString -> GroupAction.Session.toString,
       GroupActionJsonKey.SessionPatches.toString -> patches,
-      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(groupResult.getGroupSessionVersion)))
+      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(sessionVersion)))
+    GroupMsg(json, tellWhom)
+  }
+
+  /**
+    * Builds a GroupMsg with the whole group session data and version
+    */
+  def buildSessionData(groupResultId: Long, session: GroupSession, tellWhom: TellWhom): GroupMsg = {
+    logger.debug(s".buildSessionData: groupResultId $groupResultId, sessionVersion ${session.version}")
+    val json = Json.obj(
+      GroupActionJsonKey.Action.toString -> GroupAction.SessionData.toString,
+      GroupActionJsonKey.GroupResultId.toString -> groupResultId.toString,
+      GroupActionJsonKey.SessionData.toString -> session.data,
+      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(session.version)))
     GroupMsg(json, tellWhom)
   }
 
   private def buildAction(groupResult: GroupResult, studyResultId: Long, registry: ChannelRegistry,
-                          includeSessionData: Boolean, action: GroupAction, tellWhom: TellWhom): GroupMsg = {
+                          session: Option[GroupSession], knownSessionVersion: Option[Long], action: GroupAction,
+                          tellWhom: TellWhom): GroupMsg = {
     val members = JsArray(
       groupResult.getActiveMemberList.asScala.map(sr => JsString(sr.getId.toString)).toSeq
     )
@@ -98,8 +130,15 @@ class GroupActionMsgBuilder @Inject()(jpa: JPAApi, groupResultDao: GroupResultDa
       GroupActionJsonKey.Members.toString -> members,
       GroupActionJsonKey.Channels.toString -> channels,
       GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(groupResult.getGroupSessionVersion)))
-    if (includeSessionData)
-      json = json + (GroupActionJsonKey.SessionData.toString -> Json.parse(groupResult.getGroupSessionData))
+    if (session.isDefined) {
+      val s = session.get
+      json = knownSessionVersion.flatMap(s.recentPatches.patchesSince(_, s.version)) match {
+        case Some(missingPatches) if missingPatches.value.isEmpty => json
+        case Some(missingPatches) => json + (GroupActionJsonKey.SessionPatches.toString -> missingPatches)
+        case None => json + (GroupActionJsonKey.SessionData.toString -> s.data)
+      }
+      json = json + (GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(s.version)))
+    }
     GroupMsg(json, tellWhom)
   }
 
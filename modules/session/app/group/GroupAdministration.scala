@@ -1,15 +1,18 @@
 package group
 
-import daos.common.{GroupResultDao, StudyResultDao}
+import daos.common.{GroupResultDao, GroupSessionDao, StudyResultDao}
+import general.common.Common
 import models.common.GroupResult.GroupState
 import models.common.{Batch, GroupResult, StudyResult}
+import org.hibernate.Session
 import play.db.jpa.JPAApi
 
 import java.sql.Timestamp
 import java.util.Date
+import java.util.concurrent.locks.ReentrantLock
 import javax.inject.{Inject, Singleton}
+import javax.transaction.Synchronization
 import scala.collection.JavaConverters._
-import scala.compat.java8.FunctionConverters.asJavaSupplier
 
 /**
   * Administrates groups, e.g. joining or leaving. A group's state is stored in a GroupResult. Members of a group are
@@ -18,44 +21,108 @@ import scala.compat.java8.FunctionConverters.asJavaSupplier
   * All group members exchange messages via WebSockets that are called group channels in JATOS. The message dispatching
   * system is implemented with Akka.
   *
+  * Membership decisions (join, reassign, leave) are serialised per batch: groups of different batches are independent
+  * of each other and their members can join in parallel. Which group a member joins is decided by the
+  * GroupMatchmaker in memory - only if JATOS runs on multiple nodes it is searched in the database.
+  *
   * @author Kristian Lange (2015 - 2019)
   */
 //noinspection ScalaDeprecation
 @Singleton
 class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
                                     groupResultDao: GroupResultDao,
+                                    groupSessionDao: GroupSessionDao,
+                                    groupMatchmaker: GroupMatchmaker,
                                     jpa: JPAApi) {
 
   /**
-    * Joins the a GroupResult or create a new one. Persists changes.
+    * Striped locks: each batch maps to one of them by its ID. Reentrant, because a membership change takes the lock
+    * again that its caller already holds.
+    */
+  private val batchLocks = Array.fill(GroupAdministration.BatchLockStripes)(new ReentrantLock())
+
+  private def batchLock(batch: Batch): ReentrantLock =
+    batchLocks(Math.floorMod(batch.getId.longValue, batchLocks.length.toLong).toInt)
+
+  /**
+    * Runs the given code while holding the lock of the given batch. Used around a membership change's transaction: the
+    * study result has to be loaded under the lock, otherwise a membership decision might be based on a state that
+    * another one changed in the meantime.
+    */
+  def withBatchLock[T](batch: Batch)(body: => T): T = {
+    val lock = batchLock(batch)
+    lock.lock()
+    try body
+    finally lock.unlock()
+  }
+
+  /**
+    * Takes the lock of the given batch for the rest of the current transaction: it's released only after the
+    * transaction is committed or rolled back. Only one membership decision per batch happens at a time - including
+    * its commit - to prevent race conditions with group members joining, leaving, reassigning. The next decision then
+    * sees this one's changes in the database even if the caller's transaction goes on after the membership change
+    * (e.g. finishing a study).
+    */
+  private def lockBatchUntilCompletion(batch: Batch): Unit = {
+    val lock = batchLock(batch)
+    lock.lock()
+    try {
+      jpa.em().unwrap(classOf[Session]).getTransaction.registerSynchronization(new Synchronization {
+        override def beforeCompletion(): Unit = ()
+
+        override def afterCompletion(status: Int): Unit = lock.unlock()
+      })
+    } catch {
+      case e: Throwable =>
+        lock.unlock()
+        throw e
+    }
+  }
+
+  /**
+    * Joins the a GroupResult or create a new one. Has to be called within a transaction.
     *
-    * Looks in the database whether we have an incomplete GroupResult (state STARTED, maxActiveMember not reached,
-    * maxTotalMembers not reached). If there is none, create a new GroupResult.
+    * Looks for an incomplete GroupResult (state STARTED, maxActiveMember not reached, maxTotalMembers not reached).
+    * If there is none, create a new GroupResult.
     */
   def join(studyResult: StudyResult, batch: Batch): GroupResult = {
-    jpa.withTransaction(asJavaSupplier(() => {
-      val allGroupMaxNotReached = groupResultDao.findAllMaxNotReached(batch)
-      val groupMaxNotReached =
-        if (allGroupMaxNotReached.isEmpty) groupResultDao.create(new GroupResult(batch))
-        else allGroupMaxNotReached.get(0)
-
-      groupMaxNotReached.addActiveMember(studyResult)
-      studyResult.setActiveGroupResult(groupMaxNotReached)
-      groupResultDao.update(groupMaxNotReached)
-      studyResultDao.update(studyResult)
-      groupMaxNotReached
-    }))
+    lockBatchUntilCompletion(batch)
+    val groupMaxNotReached = findGroupMaxNotReached(batch)
+      .getOrElse(groupResultDao.create(new GroupResult(batch)))
+
+    groupMaxNotReached.addActiveMember(studyResult)
+    studyResult.setActiveGroupResult(groupMaxNotReached)
+    groupResultDao.update(groupMaxNotReached)
+    studyResultDao.update(studyResult)
+    groupMatchmaker.track(groupMaxNotReached)
+    groupMaxNotReached
+  }
+
+  /**
+    * Returns the incomplete GroupResult with the most active members - but not the excluded one. On a single node
+    * it's picked by the GroupMatchmaker. With multiple nodes the GroupResults are searched (and locked) in the
+    * database.
+    */
+  private def findGroupMaxNotReached(batch: Batch, excluded: Option[GroupResult] = None): Option[GroupResult] = {
+    if (Common.isMultiNode) {
+      groupResultDao.findAllMaxNotReached(batch).asScala.find(groupResult => !excluded.contains(groupResult))
+    } else {
+      groupMatchmaker.pick(batch, excluded)
+    }
   }
 
   /**
     * Leaves the group that this studyResult is member of. Moves the given StudyResult in its group result into history.
+    * Has to be called within a transaction - usually the one of the request that finishes the study run.
     */
   def leave(studyResult: StudyResult): Unit = {
     val groupResult = studyResult.getActiveGroupResult
     if (groupResult == null || !studyResult.getStudy.isGroupStudy) return
 
+    lockBatchUntilCompletion(groupResult.getBatch)
     moveActiveMemberToHistory(studyResult)
     checkAndFinishGroup(groupResult)
+    groupMatchmaker.track(groupResult)
   }
 
   /**
@@ -75,39 +142,39 @@ class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
   /**
     * Reassigns this StudyResult to a different GroupResult if possible.
     *
-    * Looks in the database whether we have other incomplete GroupResult. If there are more than one, it returns the
-    * one with the most active members. If there is no other GroupResult it returns an error msg.
+    * Looks whether we have other incomplete GroupResult. If there are more than one, it returns the one with the most
+    * active members. If there is no other GroupResult it returns an error msg. Has to be called within a transaction.
     *
     * @return Either with String if error or a GroupResult if success
     */
   def reassign(studyResult: StudyResult, batch: Batch): Either[String, GroupResult] = {
-    jpa.withTransaction(asJavaSupplier(() => {
-      val currentGroupResult = studyResult.getActiveGroupResult
-      if (currentGroupResult == null) {
-        return Left(s"The study result with ID ${studyResult.getId} isn't member in any group.")
-      }
-
-      val allGroupMaxNotReached = groupResultDao.findAllMaxNotReached(batch).asScala
-      // Don't reassign to the same group again
-      allGroupMaxNotReached -= currentGroupResult
-      if (allGroupMaxNotReached.isEmpty) {
-        // No other possible group result found
-        return Left(s"Couldn't reassign the study result with ID ${studyResult.getId} to any other group.")
-      }
-
-      // Found a possible group: put into active members of new group - do not put into history members of old group
-      val differentGroupResult = allGroupMaxNotReached.head
-      currentGroupResult.removeActiveMember(studyResult)
-      differentGroupResult.addActiveMember(studyResult)
-      studyResult.setActiveGroupResult(differentGroupResult)
-
-      groupResultDao.update(currentGroupResult)
-      groupResultDao.update(differentGroupResult)
-      studyResultDao.update(studyResult)
+    val currentGroupResult = studyResult.getActiveGroupResult
+    if (currentGroupResult == null) {
+      return Left(s"The study result with ID ${studyResult.getId} isn't member in any group.")
+    }
 
-      checkAndFinishGroup(currentGroupResult)
-      Right(differentGroupResult)
-    }))
+    lockBatchUntilCompletion(batch)
+    // Don't reassign to the same group again
+    val differentGroupResultOption = findGroupMaxNotReached(batch, excluded = Some(currentGroupResult))
+    if (differentGroupResultOption.isEmpty) {
+      // No other possible group result found
+      return Left(s"Couldn't reassign the study result with ID ${studyResult.getId} to any other group.")
+    }
+
+    // Found a possible group: put into active members of new group - do not put into history members of old group
+    val differentGroupResult = differentGroupResultOption.get
+    currentGroupResult.removeActiveMember(studyResult)
+    differentGroupResult.addActiveMember(studyResult)
+    studyResult.setActiveGroupResult(differentGroupResult)
+
+    groupResultDao.update(currentGroupResult)
+    groupResultDao.update(differentGroupResult)
+    studyResultDao.update(studyResult)
+
+    checkAndFinishGroup(currentGroupResult)
+    groupMatchmaker.track(currentGroupResult)
+    groupMatchmaker.track(differentGroupResult)
+    Right(differentGroupResult)
   }
 
   /**
@@ -123,14 +190,24 @@ class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
     }
   }
 
+  /**
+    * Happens in the transaction of the membership change that finished the group.
+    */
   private def finishGroupResult(groupResult: GroupResult): Unit = {
-    jpa.withTransaction(asJavaSupplier(() => {
-      groupResult.setGroupState(GroupState.FINISHED)
-      groupResult.setEndDate(new Timestamp(new Date().getTime))
-      // All session data are temporarily and have to be deleted when the group is finished
-      groupResult.setGroupSessionData(null)
-      groupResultDao.update(groupResult)
-    }))
+    groupResult.setGroupState(GroupState.FINISHED)
+    groupResult.setEndDate(new Timestamp(new Date().getTime))
+    groupResultDao.update(groupResult)
+    // All session data are temporarily and have to be deleted when the group is finished (snapshot and patch log)
+    groupSessionDao.clear(groupResult.getId)
   }
 
 }
+
+object GroupAdministration {
+
+  /**
+    * Number of locks the batches are spread over
+    */
+  val BatchLockStripes = 64
+
+}
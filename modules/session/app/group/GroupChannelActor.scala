@@ -5,6 +5,8 @@ import akka.actor.{Actor, ActorRef, PoisonPill, Props}
 import group.GroupDispatcher._
 import play.api.libs.json.{JsObject, Json}
 
+import scala.util.{Success, Try}
+
 /**
   * GroupChannelActor is an Akka Actor that represents the group channel's WebSocket. A group
   * channel is a WebSocket connecting a client who's running a study with the JATOS server.
@@ -19,37 +21,44 @@ import play.api.libs.json.{JsObject, Json}
   * GroupDispatcher. It closes down after receiving a PoisonChannel message or if the WebSocket
   * is closed. While closing down it unregisters from the GroupDispatcher by sending a
   * UnregisterChannel message. A GroupChannelActor can, if it's told to, reassign itself to a
-  * different GroupDispatcher.
+  * different GroupDispatcher. A reconnecting client can tell the group session version it knows
+  * (knownSessionVersion) so it only gets the patches it missed.
   *
   * @author Kristian Lange
   */
 object GroupChannelActor {
-  def props(out: ActorRef, studyResultId: Long, groupDispatcher: ActorRef): Props =
-    Props(new GroupChannelActor(out, studyResultId, groupDispatcher))
+  def props(out: ActorRef, studyResultId: Long, groupDispatcher: ActorRef, knownSessionVersion: Option[Long]): Props =
+    Props(new GroupChannelActor(out, studyResultId, groupDispatcher, knownSessionVersion))
 }
 
 class GroupChannelActor @Inject()(out: ActorRef,
                                   studyResultId: Long,
-                                  var groupDispatcher: ActorRef) extends Actor {
+                                  var groupDispatcher: ActorRef,
+                                  knownSessionVersion: Option[Long]) extends Actor {
 
-  val pong: JsObject = Json.obj("heartbeat" -> "pong")
+  val pong: String = Json.stringify(Json.obj("heartbeat" -> "pong"))
 
-  override def preStart(): Unit = groupDispatcher ! RegisterChannel(studyResultId)
+  override def preStart(): Unit = groupDispatcher ! RegisterChannel(studyResultId, knownSessionVersion)
 
   override def postStop(): Unit = groupDispatcher ! UnregisterChannel(studyResultId)
 
   def receive: Receive = {
-    case msg: JsObject if msg.keys.contains("heartbeat") =>
-      // If we receive a heartbeat ping, answer directly with a pong
-      out ! pong
-    case json: JsObject =>
-      // If we receive a JsonNode (only from the client) wrap it in a GroupMsg and forward it to
-      // the GroupDispatcher
-      groupDispatcher ! GroupMsg(json)
+    case text: String =>
+      // A text message can only come from the client
+      Try(Json.parse(text)) match {
+        case Success(msg: JsObject) if msg.keys.contains("heartbeat") =>
+          // If we receive a heartbeat ping, answer directly with a pong
+          out ! pong
+        case Success(json: JsObject) =>
+          // If we receive a JSON object wrap it in a GroupMsg and forward it to the GroupDispatcher
+          groupDispatcher ! GroupMsg(json)
+        case _ =>
+          // Ignore everything else
+      }
     case msg: GroupMsg =>
-      // If we receive a GroupMsg (only from the GroupDispatcher) send the wrapped JsonNode to
-      // the client
-      out ! msg.json
+      // If we receive a GroupMsg (only from the GroupDispatcher) send the JSON to the client -
+      // it's serialized only once for all group members
+      out ! msg.text
     case rc: ReassignChannel =>
       // This group channel has to reassign to a different dispatcher
       groupDispatcher ! UnregisterChannel(studyResultId)
@@ -1,8 +1,10 @@
 package group
 
-import akka.actor.{Actor, ActorRef, PoisonPill}
+import akka.actor.{Actor, ActorRef, Cancellable, PoisonPill}
 import com.google.inject.assistedinject.Assisted
-import general.ChannelRegistry
+import general.common.{Common, SessionDispatcherMetrics}
+import general.common.SessionDispatcherMetrics.DispatcherMetrics
+import general.{ChannelRegistry, PatchCoalescer, SessionDbWork}
 import group.GroupDispatcher.TellWhom.TellWhom
 import group.GroupDispatcher._
 import group.GroupDispatcherRegistry.Unregister
@@ -12,6 +14,11 @@ import play.api.Logger
 import play.api.libs.json.Reads._
 import play.api.libs.json.{JsObject, Json}
 
+import scala.collection.mutable
+import scala.concurrent.ExecutionContext
+import scala.concurrent.duration._
+import scala.util.{Failure, Success}
+
 /**
   * A GroupDispatcher is an Akka Actor responsible for distributing messages (GroupMsg) within a
   * group. Thus it is the central class handling a group.
@@ -36,7 +43,20 @@ import play.api.libs.json.{JsObject, Json}
   * and 3) direct messages for a particular group member.
   *
   * The group session patches are JSON Patches after RFC 6902 and used to describe changes in the
-  * group session data. The session data are stored in the GroupResult.
+  * group session data. The GroupDispatcher keeps the group session in memory (loaded lazily). In the
+  * database it is stored as a snapshot in the GroupResult plus a log of the patches since then. If the batch has a
+  * patch coalescing window, the session patches within this window are merged into one message before they are sent
+  * to the members. Every other message to the members first flushes the pending patches.
+  *
+  * All database access (group session and GroupResult) runs on the dedicated session database dispatcher
+  * (SessionDbWork) and never blocks a thread of Akka's default dispatcher. Meanwhile all other messages are stashed,
+  * so the GroupActionHandler can work with the in-memory group session and the channel registry without them being
+  * changed at the same time.
+  *
+  * If the batch has minActiveMembers, a new group waits until this number of members opened their group channel: the
+  * channels are only registered (and get the OPENED message) all together when enough are there - or when the group
+  * start timeout is over. Until then the channels are kept open, but they don't get any messages and their own messages
+  * are answered with an error. That the group started is persisted in the GroupResult.
   *
   * @author Kristian Lange (2015, 2017)
   */
@@ -64,9 +84,10 @@ object GroupDispatcher {
   case class LeftGroup(studyResultId: Long)
 
   /**
-    * Message a GroupChannelActor can send to register in a GroupDispatcher.
+    * Message a GroupChannelActor can send to register in a GroupDispatcher. A reconnecting channel can tell the group
+    * session version it knows - then it only gets the patches it missed.
     */
-  case class RegisterChannel(studyResultId: Long)
+  case class RegisterChannel(studyResultId: Long, knownSessionVersion: Option[Long] = None)
 
   /**
     * Message an GroupChannelActor can send to its GroupDispatcher to indicate it's closure.
@@ -104,6 +125,7 @@ object GroupDispatcher {
     val Session = Value("SESSION") // Signals this message contains a group session update
     val SessionAck = Value("SESSION_ACK") // Signals that the session update was successful
     val SessionFail = Value("SESSION_FAIL") // Signals that the session update failed
+    val SessionData = Value("SESSION_DATA") // Signals this message contains the whole current group session data
     val Fixed = Value("FIXED") // Signals that this group is now fixed (no new members)
     val Error = Value("ERROR") // Used to send an error back to the sender
   }
@@ -150,20 +172,77 @@ object GroupDispatcher {
     *
     * The parameter 'tellWhom' can be used to address the recipient.
     */
-  case class GroupMsg(json: JsObject, tellWhom: TellWhom = TellWhom.Unknown)
+  case class GroupMsg(json: JsObject, tellWhom: TellWhom = TellWhom.Unknown) {
+    /**
+      * Creation time (System.nanoTime) - for messages from a client it's when the group channel received it
+      */
+    val created: Long = System.nanoTime()
+
+    /**
+      * The serialized JSON - it's done only once, even if the same message is sent to all members
+      */
+    lazy val text: String = Json.stringify(json)
+  }
+
+  /**
+    * Message a GroupDispatcher sends to itself at the end of a patch coalescing window
+    */
+  case object FlushPatches
+
+  /**
+    * Message a GroupDispatcher sends to itself when the time to wait for the group's min active members is over
+    */
+  case object StartGroup
 
 }
 
 class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
                                 @Assisted actionHandler: GroupActionHandler,
                                 @Assisted actionMsgBuilder: GroupActionMsgBuilder,
-                                @Assisted groupResultId: Long) extends Actor {
+                                @Assisted groupResultId: Long,
+                                sessionDispatcherMetrics: SessionDispatcherMetrics) extends Actor with SessionDbWork {
 
   private val logger: Logger = Logger(this.getClass)
 
   private val channelRegistry = new ChannelRegistry
 
-  override def postStop(): Unit = dispatcherRegistry ! Unregister(groupResultId)
+  protected val dispatcherMetrics: DispatcherMetrics = sessionDispatcherMetrics.register("group", groupResultId)
+
+  /**
+    * In-memory group session - loaded from the database with the first use
+    */
+  private var groupSession: Option[GroupSession] = None
+
+  private val patchCoalescer = new PatchCoalescer[GroupMsg](GroupActionJsonKey.SessionPatches.toString)
+
+  /**
+    * Scheduled end of the current patch coalescing window
+    */
+  private var flushPatchesTimer: Option[Cancellable] = None
+
+  /**
+    * Number of group channels this group waits for before it starts - None if not loaded yet, 0 if it started
+    */
+  private var membersToStart: Option[Int] = None
+
+  /**
+    * Channels that wait for the group to start: study result ID -> (channel, known session version)
+    */
+  private val waitingChannels = mutable.LinkedHashMap.empty[Long, (ActorRef, Option[Long])]
+
+  /**
+    * Scheduled end of the time to wait for the group's min active members
+    */
+  private var startGroupTimer: Option[Cancellable] = None
+
+  private implicit val executionContext: ExecutionContext = context.dispatcher
+
+  override def postStop(): Unit = {
+    startGroupTimer.foreach(_.cancel())
+    flushPatches()
+    sessionDispatcherMetrics.unregister(dispatcherMetrics)
+    dispatcherRegistry ! Unregister(groupResultId)
+  }
 
   def receive: Receive = {
     case groupMsg: GroupMsg =>
@@ -175,9 +254,9 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     case LeftGroup(studyResultId: Long) =>
       // A member left
       left(studyResultId)
-    case RegisterChannel(studyResultId: Long) =>
+    case RegisterChannel(studyResultId: Long, knownSessionVersion) =>
       // A GroupChannelActor wants to register
-      registerChannel(studyResultId)
+      registerChannel(studyResultId, knownSessionVersion, sender)
     case UnregisterChannel(studyResultId: Long) =>
       // A GroupChannelActor wants to unregister
       unregisterChannel(studyResultId)
@@ -189,6 +268,13 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
       poisonChannel(p)
     case PoisonEmptyDispatcher =>
       poisonEmptyDispatcher()
+    case FlushPatches =>
+      // End of a patch coalescing window
+      flushPatches()
+    case StartGroup =>
+      // Time to wait for the min active members is over - start with the members that are there
+      startGroupTimer = None
+      if (membersToStart.exists(_ > 0) && waitingChannels.nonEmpty) startGroup()
   }
 
   /**
@@ -199,12 +285,28 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
   private def handleGroupMsg(msg: GroupMsg): Unit = {
     logger.debug(s".handleGroupMsg: groupResultId $groupResultId, groupMsg " +
         s"${Json.stringify(msg.json)}")
+    if (waitingChannels.values.exists(_._1 == sender)) {
+      logger.debug(s".handleGroupMsg: groupResultId $groupResultId, channel waits for the group to start")
+      tellChannelOnly(actionMsgBuilder.buildError(groupResultId, "The group hasn't started yet.",
+        TellWhom.SenderOnly), sender)
+      return
+    }
 
     if (msg.json.keys.contains(GroupActionJsonKey.Action.toString)) {
       // We have a group action message
-      val studyResultId = channelRegistry.getStudyResult(sender).get
-      val msgList = actionHandler.handleActionMsg(msg, groupResultId, studyResultId)
-      tellActionMsg(msgList)
+      val channel = sender
+      val studyResultId = channelRegistry.getStudyResult(channel).get
+      withSession(channel) { session =>
+        runDbWork(actionHandler.handleActionMsg(msg, groupResultId, studyResultId, session)) {
+          case Success(msgList) =>
+            tellActionMsg(msgList, channel)
+            if (isSessionPatch(msg)) dispatcherMetrics.addPatchLatency(System.nanoTime() - msg.created)
+          case Failure(e) =>
+            logger.error(s".handleGroupMsg: groupResultId $groupResultId, couldn't handle action message", e)
+            tellActionMsg(List(actionMsgBuilder.buildError(groupResultId, "Couldn't handle group action.",
+              TellWhom.SenderOnly)), channel)
+        }
+      }
 
     } else if (msg.json.keys.contains(GroupActionJsonKey.Recipient.toString)) {
       // We have a message intended for only one recipient (direct msg)
@@ -215,22 +317,120 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
 
     } else {
       // We have broadcast msg: Tell everyone except the sender
-      tellAllButSender(msg)
+      tellAllButSender(msg, sender)
+    }
+  }
+
+  /**
+    * Registers the given channel - or lets it wait if the group hasn't started yet. Whether the group has to wait is
+    * loaded from the database with the first channel.
+    */
+  private def registerChannel(studyResultId: Long, knownSessionVersion: Option[Long], channel: ActorRef): Unit = {
+    logger.debug(s".registerChannel: groupResultId $groupResultId, studyResultId $studyResultId, " +
+      s"knownSessionVersion $knownSessionVersion")
+    membersToStart match {
+      case None =>
+        runDbWork(actionHandler.loadMembersToStart(groupResultId)) { result =>
+          result.failed.foreach(e => logger.error(s".registerChannel: groupResultId $groupResultId", e))
+          // If it fails the group doesn't wait
+          membersToStart = Some(result.getOrElse(0))
+          registerChannel(studyResultId, knownSessionVersion, channel)
+        }
+      case Some(toStart) if toStart > 0 =>
+        waitingChannels.put(studyResultId, (channel, knownSessionVersion))
+        if (waitingChannels.size >= toStart) startGroup()
+        else if (startGroupTimer.isEmpty) {
+          startGroupTimer = Some(context.system.scheduler.scheduleOnce(Common.getGroupStartTimeout.seconds, self,
+            StartGroup))
+        }
+      case _ =>
+        openChannels(List((studyResultId, channel, knownSessionVersion)))
+    }
+  }
+
+  /**
+    * Starts the group: persists that it started and opens all waiting channels together
+    */
+  private def startGroup(): Unit = {
+    logger.info(s".startGroup: groupResultId $groupResultId starts with ${waitingChannels.size} of " +
+      s"${membersToStart.getOrElse(0)} members")
+    startGroupTimer.foreach(_.cancel())
+    startGroupTimer = None
+    membersToStart = Some(0)
+    val channels = waitingChannels.toList.map { case (studyResultId, (channel, knownSessionVersion)) =>
+      (studyResultId, channel, knownSessionVersion)
+    }
+    waitingChannels.clear()
+    runDbWork(actionHandler.markStarted(groupResultId)) { result =>
+      // The group starts anyway - at worst a new dispatcher of this group lets its channels wait again
+      result.failed.foreach(e => logger.error(s".startGroup: groupResultId $groupResultId", e))
+      if (channels.nonEmpty) openChannels(channels)
     }
   }
 
   /**
-    * Registers the given channel and sends an OPENED action group message to everyone in this
-    * group.
+    * Registers the given channels and sends an OPENED action group message to everyone in this group. Each of the
+    * channels gets the whole group session data - or only the missed patches if it reconnects with a known session
+    * version.
     */
-  private def registerChannel(studyResultId: Long): Unit = {
-    logger.debug(s".registerChannel: groupResultId $groupResultId, studyResultId $studyResultId")
-    channelRegistry.register(studyResultId, sender)
-    val msg1 = actionMsgBuilder.build(groupResultId, studyResultId,
-      channelRegistry, includeSessionData = true, GroupAction.Opened, TellWhom.SenderOnly)
-    val msg2 = actionMsgBuilder.build(groupResultId, studyResultId,
-      channelRegistry, includeSessionData = false, GroupAction.Opened, TellWhom.AllButSender)
-    tellActionMsg(List(msg1, msg2))
+  private def openChannels(channels: List[(Long, ActorRef, Option[Long])]): Unit = {
+    // The OPENED msg already contains all pending patches
+    flushPatches()
+    channels.foreach { case (studyResultId, channel, _) => channelRegistry.register(studyResultId, channel) }
+    dispatcherMetrics.setChannels(channelRegistry.getAllChannels.size)
+    val currentSession = groupSession
+    runDbWork {
+      // Refresh the group session - it might have been changed somewhere else (e.g. in JATOS' GUI)
+      val refreshedSession = currentSession match {
+        case Some(s) => actionHandler.refreshSession(groupResultId, s)
+        case None => actionHandler.loadSession(groupResultId)
+      }
+      val msgLists = channels.map { case (studyResultId, channel, knownSessionVersion) =>
+        val msg1 = actionMsgBuilder.build(groupResultId, studyResultId,
+          channelRegistry, refreshedSession, GroupAction.Opened, TellWhom.SenderOnly, knownSessionVersion)
+        val msg2 = actionMsgBuilder.build(groupResultId, studyResultId,
+          channelRegistry, session = None, GroupAction.Opened, TellWhom.AllButSender)
+        (channel, List(msg1, msg2))
+      }
+      (refreshedSession, msgLists)
+    } {
+      case Success((refreshedSession, msgLists)) =>
+        groupSession = refreshedSession
+        msgLists.foreach { case (channel, msgList) => tellActionMsg(msgList, channel) }
+      case Failure(e) =>
+        logger.error(s".openChannels: groupResultId $groupResultId", e)
+        channels.foreach { case (_, channel, _) =>
+          tellActionMsg(List(actionMsgBuilder.buildError(groupResultId, "Couldn't open group channel.",
+            TellWhom.SenderOnly)), channel)
+        }
+    }
+  }
+
+  /**
+    * Calls f with the in-memory group session - loads it from the database first if necessary. The group session is
+    * None if the GroupResult doesn't exist.
+    */
+  private def withSession(channel: ActorRef)(f: Option[GroupSession] => Unit): Unit = {
+    if (groupSession.isDefined) f(groupSession)
+    else runDbWork(actionHandler.loadSession(groupResultId)) {
+      case Success(loaded) =>
+        groupSession = loaded
+        f(loaded)
+      case Failure(e) =>
+        logger.error(s".withSession: couldn't load group session of groupResultId $groupResultId", e)
+        tellActionMsg(List(actionMsgBuilder.buildError(groupResultId, "Couldn't load group session.",
+          TellWhom.SenderOnly)), channel)
+    }
+  }
+
+  /**
+    * Builds the messages on the session database dispatcher (it needs the database) and sends them afterwards
+    */
+  private def buildAndTell(channel: ActorRef)(build: => List[GroupMsg]): Unit = {
+    runDbWork(build) {
+      case Success(msgList) => tellActionMsg(msgList, channel)
+      case Failure(e) => logger.error(s".buildAndTell: groupResultId $groupResultId", e)
+    }
   }
 
   /**
@@ -242,12 +442,14 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
 
     // Only unregister GroupChannelActor if it's the one from the sender (there
     // might be a new GroupChannelActor for the same StudyResult after a reload)
-    if (channelRegistry.containsStudyResult(studyResultId)
+    if (waitingChannels.get(studyResultId).exists(_._1 == sender)) {
+      waitingChannels.remove(studyResultId)
+    } else if (channelRegistry.containsStudyResult(studyResultId)
         && channelRegistry.getChannel(studyResultId).get == sender) {
       channelRegistry.unregister(studyResultId)
-      val msg = actionMsgBuilder.build(groupResultId, studyResultId,
-        channelRegistry, includeSessionData = false, GroupAction.Closed, TellWhom.AllButSender)
-      tellActionMsg(List(msg))
+      dispatcherMetrics.setChannels(channelRegistry.getAllChannels.size)
+      buildAndTell(sender)(List(actionMsgBuilder.build(groupResultId, studyResultId,
+        channelRegistry, session = None, GroupAction.Closed, TellWhom.AllButSender)))
     }
   }
 
@@ -257,14 +459,14 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
   private def reassignChannel(reassignChannel: ReassignChannel): Unit = {
     logger.debug(s".reassignChannel: groupResultId $groupResultId, studyResultId " +
         s"${reassignChannel.studyResultId}")
-    val groupChannelOption = channelRegistry.getChannel(reassignChannel.studyResultId)
+    val groupChannelOption = getChannel(reassignChannel.studyResultId)
     if (groupChannelOption.nonEmpty)
       groupChannelOption.get forward reassignChannel
     else {
       val errorMsg = s"StudyResult with ID ${reassignChannel.studyResultId} not handled by " +
           s"GroupDispatcher for GroupResult with ID $groupResultId."
       val groupMsg = actionMsgBuilder.buildError(groupResultId, errorMsg, TellWhom.SenderOnly)
-      tellSenderOnly(groupMsg)
+      tellChannelOnly(groupMsg, sender)
     }
   }
 
@@ -278,7 +480,7 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
   private def poisonChannel(poison: PoisonChannel): Unit = {
     logger.debug(s".poisonGroupChannel: groupResultId $groupResultId, studyResultId " +
         s"${poison.studyResultId}")
-    val groupChannelOption = channelRegistry.getChannel(poison.studyResultId)
+    val groupChannelOption = getChannel(poison.studyResultId)
     if (groupChannelOption.nonEmpty) {
       groupChannelOption.get ! GroupMsg(Json.obj(GroupActionJsonKey.Action.toString -> GroupAction.Closed))
       groupChannelOption.get ! poison
@@ -289,18 +491,23 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
 
   private def poisonEmptyDispatcher(): Unit = {
     // Tell this dispatcher to kill itself if it has no more members
-    if (channelRegistry.isEmpty) self ! PoisonPill
+    if (channelRegistry.isEmpty && waitingChannels.isEmpty) self ! PoisonPill
   }
 
+  /**
+    * Returns the registered or waiting channel of the given study result
+    */
+  private def getChannel(studyResultId: Long): Option[ActorRef] =
+    channelRegistry.getChannel(studyResultId).orElse(waitingChannels.get(studyResultId).map(_._1))
+
   /**
     * Send the JOINED group action message to all group members. Who's joined the group is
     * specified in the given JoinedGroup object.
     */
   private def joined(studyResultId: Long): Unit = {
     logger.debug(s".joined: groupResultId $groupResultId studyResultId $studyResultId")
-    val msg = actionMsgBuilder.build(groupResultId, studyResultId,
-      channelRegistry, includeSessionData = false, GroupAction.Joined, TellWhom.AllButSender)
-    tellAllButSender(msg)
+    buildAndTell(sender)(List(actionMsgBuilder.build(groupResultId, studyResultId,
+      channelRegistry, session = None, GroupAction.Joined, TellWhom.AllButSender)))
   }
 
   /**
@@ -309,9 +516,8 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     */
   private def left(studyResultId: Long): Unit = {
     logger.debug(s".left: groupResultId $groupResultId, studyResultId $studyResultId")
-    val msg = actionMsgBuilder.build(groupResultId, studyResultId, channelRegistry, includeSessionData = false,
-      GroupAction.Left, TellWhom.AllButSender)
-    tellAllButSender(msg)
+    buildAndTell(sender)(List(actionMsgBuilder.build(groupResultId, studyResultId, channelRegistry, session = None,
+      GroupAction.Left, TellWhom.AllButSender)))
   }
 
   /**
@@ -319,54 +525,97 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     */
   private def tellRecipientOnly(msg: GroupMsg, recipientStudyResultId: Long): Unit = {
     logger.debug(s".tellRecipientOnly: groupResultId $groupResultId, recipientStudyResultId " +
-        s"$recipientStudyResultId, msg ${Json.stringify(msg.json)}")
+        s"$recipientStudyResultId, msg ${msg.text}")
     val groupChannel = channelRegistry.getChannel(recipientStudyResultId)
+    flushPatches()
     if (groupChannel.isDefined)
       groupChannel.get ! msg
     else {
       val errorMsg = s"Recipient $recipientStudyResultId isn't member of this group."
       logger.debug(s".tellRecipientOnly: groupResultId $groupResultId, errorMsg $errorMsg")
       val groupMsg = actionMsgBuilder.buildError(groupResultId, errorMsg, TellWhom.SenderOnly)
-      tellActionMsg(List(groupMsg))
+      tellActionMsg(List(groupMsg), sender)
     }
   }
 
-  private def tellActionMsg(msgList: List[GroupMsg]): Unit = {
+  /**
+    * Sends the messages according to their TellWhom. The 'sender' is the given channel - the sender of the message
+    * that caused them (which isn't necessarily the current sender after waiting for the database).
+    */
+  private def tellActionMsg(msgList: List[GroupMsg], channel: ActorRef): Unit = {
     msgList.foreach(msg =>
       msg.tellWhom match {
+        case TellWhom.All if isSessionPatch(msg) && patchCoalescingWindow > 0 => coalescePatch(msg)
         case TellWhom.All => tellAll(msg)
-        case TellWhom.SenderOnly => tellSenderOnly(msg)
-        case TellWhom.AllButSender => tellAllButSender(msg)
+        case TellWhom.SenderOnly if !patchCoalescer.isEmpty => patchCoalescer.holdBack(channel, msg)
+        case TellWhom.SenderOnly => tellChannelOnly(msg, channel)
+        case TellWhom.AllButSender => tellAllButSender(msg, channel)
         case _ => logger.warn(s".tellActionMsg: no TellWhom specified")
       }
     )
   }
 
+  private def isSessionPatch(msg: GroupMsg): Boolean =
+    (msg.json \ GroupActionJsonKey.Action.toString).asOpt[String].contains(GroupAction.Session.toString)
+
+  private def patchCoalescingWindow: Int = groupSession.map(_.patchCoalescingWindow).getOrElse(0)
+
   /**
-    * Sends the message to everyone in channelRegistry.
+    * Adds the session patch message to the pending ones. The first one starts the coalescing window.
+    */
+  private def coalescePatch(msg: GroupMsg): Unit = {
+    if (!patchCoalescer.addPatchMsg(msg.json)) {
+      flushPatches()
+      patchCoalescer.addPatchMsg(msg.json)
+    }
+    if (flushPatchesTimer.isEmpty) {
+      flushPatchesTimer = Some(context.system.scheduler.scheduleOnce(patchCoalescingWindow.millis, self, FlushPatches))
+    }
+  }
+
+  /**
+    * Sends the pending session patches as one message to everyone and afterwards the held back messages
+    */
+  private def flushPatches(): Unit = {
+    flushPatchesTimer.foreach(_.cancel())
+    flushPatchesTimer = None
+    if (patchCoalescer.isEmpty) return
+    val (mergedPatchMsg, heldBack) = patchCoalescer.drain()
+    mergedPatchMsg.foreach(json => sendToAll(GroupMsg(json, TellWhom.All)))
+    heldBack.foreach { case (recipient, msg) => recipient ! msg }
+  }
+
+  /**
+    * Sends the message to everyone in channelRegistry - after the pending session patches.
     */
   private def tellAll(msg: GroupMsg): Unit = {
-    logger.debug(s".tellAll: groupResultId $groupResultId, msg ${Json.stringify(msg.json)}")
+    flushPatches()
+    sendToAll(msg)
+  }
+
+  private def sendToAll(msg: GroupMsg): Unit = {
+    logger.debug(s".tellAll: groupResultId $groupResultId, msg ${msg.text}")
     for (actorRef <- channelRegistry.getAllChannels)
       actorRef ! msg
   }
 
   /**
-    * Sends the message to everyone in the group registry except the sender of this message.
+    * Sends the message to everyone in the group registry except the excluded one (usually the sender) - after the
+    * pending session patches.
     */
-  private def tellAllButSender(msg: GroupMsg): Unit = {
-    logger.debug(s".tellAllButSender: groupResultId $groupResultId, " +
-        s"msg ${Json.stringify(msg.json)}")
+  private def tellAllButSender(msg: GroupMsg, excluded: ActorRef): Unit = {
+    flushPatches()
+    logger.debug(s".tellAllButSender: groupResultId $groupResultId, msg ${msg.text}")
     for (actorRef <- channelRegistry.getAllChannels)
-      if (actorRef != sender) actorRef ! msg
+      if (actorRef != excluded) actorRef ! msg
   }
 
   /**
-    * Sends the message only to the sender.
+    * Sends the message only to the given channel.
     */
-  private def tellSenderOnly(msg: GroupMsg): Unit = {
-    logger.debug(s".tellSenderOnly: groupResultId $groupResultId, msg ${Json.stringify(msg.json)}")
-    sender ! msg
+  private def tellChannelOnly(msg: GroupMsg, channel: ActorRef): Unit = {
+    logger.debug(s".tellChannelOnly: groupResultId $groupResultId, msg ${msg.text}")
+    channel ! msg
   }
 
   /**
@@ -0,0 +1,137 @@
+package group
+
+import daos.common.GroupResultDao
+import general.common.Common
+import group.GroupMatchmaker.{BatchGroups, GroupCounts}
+import models.common.GroupResult.GroupState
+import models.common.{Batch, GroupResult}
+
+import javax.inject.{Inject, Singleton}
+import scala.collection.JavaConverters._
+import scala.collection.concurrent.TrieMap
+import scala.collection.mutable
+
+/**
+  * Keeps the groups of each batch that can still get members in memory, so the GroupAdministration can pick the group
+  * to join without searching (and locking) all of the batch's GroupResults in the database. Like before the group
+  * with the most active members (and then the most history members) is picked. A batch's groups are loaded from the
+  * database with their first use (e.g. after JATOS started), after the batch's max member limits changed, and every
+  * now and then (jatos.group.matchmakerReloadInterval) to notice groups that were changed somewhere else (e.g. in
+  * JATOS' GUI).
+  *
+  * It must only be used while holding the batch's lock in the GroupAdministration and within a transaction. It's
+  * only used if JATOS runs on a single node - with multiple nodes other nodes change the groups too.
+  *
+  * @author Kristian Lange
+  */
+@Singleton
+class GroupMatchmaker(groupResultDao: GroupResultDao, reloadInterval: () => Long) {
+
+  /**
+    * The reload interval is read from the config with each use - Common might not be initialised yet
+    */
+  @Inject
+  def this(groupResultDao: GroupResultDao) =
+    this(groupResultDao, () => Common.getGroupMatchmakerReloadInterval * 1000L)
+
+  /**
+    * Maps batch ID -> groups of this batch
+    */
+  private val batches = TrieMap.empty[Long, BatchGroups]
+
+  /**
+    * Returns the group with the most active members that can still get a new one or None if there is none. A group
+    * can be excluded, e.g. the current one during a reassignment. Each picked group is checked against its
+    * GroupResult in the database (fetched by ID) - if it isn't up to date it's corrected and the next one is picked.
+    */
+  def pick(batch: Batch, excluded: Option[GroupResult] = None): Option[GroupResult] = {
+    val groups = batchGroups(batch)
+    val excludedId = excluded.map(_.getId.longValue)
+    var picked: Option[GroupResult] = None
+    var candidate = groups.best(excludedId)
+    while (picked.isEmpty && candidate.isDefined) {
+      val groupResult = groupResultDao.findById(candidate.get.id)
+      if (groupResult != null && GroupCounts(groupResult) == candidate.get
+        && groupResult.getGroupState == GroupState.STARTED) {
+        picked = Some(groupResult)
+      } else {
+        if (groupResult == null) groups.remove(candidate.get.id) else groups.track(groupResult)
+        candidate = groups.best(excludedId)
+      }
+    }
+    picked
+  }
+
+  /**
+    * Updates the group with the current member counts and state of the GroupResult. Has to be called after each
+    * change of a group's members.
+    */
+  def track(groupResult: GroupResult): Unit = {
+    batches.get(groupResult.getBatch.getId).foreach(_.track(groupResult))
+  }
+
+  private def batchGroups(batch: Batch): BatchGroups = {
+    val maxActiveMembers = Option(batch.getMaxActiveMembers).map(_.intValue)
+    val maxTotalMembers = Option(batch.getMaxTotalMembers).map(_.intValue)
+    batches.get(batch.getId) match {
+      case Some(groups) if groups.isValid(maxActiveMembers, maxTotalMembers, reloadInterval()) => groups
+      case _ =>
+        val groups = new BatchGroups(maxActiveMembers, maxTotalMembers)
+        groupResultDao.findAllStartedByBatch(batch).asScala.foreach(groups.track)
+        batches.put(batch.getId, groups)
+        groups
+    }
+  }
+
+}
+
+object GroupMatchmaker {
+
+  private case class GroupCounts(id: Long, activeMemberCount: Int, historyMemberCount: Int)
+
+  private object GroupCounts {
+    def apply(groupResult: GroupResult): GroupCounts = GroupCounts(groupResult.getId,
+      groupResult.getActiveMemberCount, groupResult.getHistoryMemberCount)
+
+    /**
+      * Most active members first, then most history members, then oldest
+      */
+    val ordering: Ordering[GroupCounts] =
+      Ordering.by((g: GroupCounts) => (-g.activeMemberCount, -g.historyMemberCount, g.id))
+  }
+
+  /**
+    * The STARTED groups of one batch. The ones that can still get members are additionally sorted in 'open'.
+    */
+  private class BatchGroups(maxActiveMembers: Option[Int], maxTotalMembers: Option[Int]) {
+
+    private val loaded = System.currentTimeMillis()
+    private val groups = mutable.Map.empty[Long, GroupCounts]
+    private val open = mutable.TreeSet.empty[GroupCounts](GroupCounts.ordering)
+
+    /**
+      * @param reloadInterval time in ms after which the groups are loaded anew from the database
+      */
+    def isValid(maxActiveMembers: Option[Int], maxTotalMembers: Option[Int], reloadInterval: Long): Boolean =
+      this.maxActiveMembers == maxActiveMembers && this.maxTotalMembers == maxTotalMembers &&
+        System.currentTimeMillis() - loaded < reloadInterval
+
+    def best(excludedId: Option[Long]): Option[GroupCounts] = open.find(g => !excludedId.contains(g.id))
+
+    def track(groupResult: GroupResult): Unit = {
+      remove(groupResult.getId)
+      if (groupResult.getGroupState == GroupState.STARTED) {
+        val counts = GroupCounts(groupResult)
+        groups.put(counts.id, counts)
+        if (isOpen(counts)) open += counts
+      }
+    }
+
+    def remove(id: Long): Unit = groups.remove(id).foreach(open -= _)
+
+    private def isOpen(g: GroupCounts): Boolean =
+      maxActiveMembers.forall(g.activeMemberCount < _) &&
+        maxTotalMembers.forall(g.activeMemberCount + g.historyMemberCount < _)
+  }
+
+}
@@ -0,0 +1,26 @@
+package group
+
+import general.PatchBuffer
+import general.common.Common
+import play.api.libs.json.JsValue
+
+/**
+  * In-memory state of a group session. It's kept by the GroupDispatcher so the session data don't have to be read
+  * from the database for every patch. The database stores the group session as a snapshot (at snapshotVersion) plus
+  * a log of all patches since then - every patch is written right away (write-through). The most recent patches are
+  * kept for reconnecting channels. Patches within patchCoalescingWindow (in ms, from the batch's properties) are sent
+  * to the members as one message.
+  *
+  * @author Kristian Lange
+  */
+class GroupSession(var data: JsValue, var version: Long, var snapshotVersion: Long,
+                   val patchCoalescingWindow: Int = 0) {
+
+  val recentPatches = new PatchBuffer(Common.getChannelReconnectPatches)
+
+  /**
+    * Number of patches in the log since the last snapshot
+    */
+  def patchCount: Long = version - snapshotVersion
+
+}
@@ -0,0 +1,110 @@
+package daos.common;
+
+import com.typesafe.config.ConfigFactory;
+import general.common.Common;
+import models.common.ComponentResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Application;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.test.Helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests for ComponentResultDao with chunked result data
+ *
+ * @author Kristian Lange
+ */
+public class ComponentResultDaoTest {
+
+    private static final int APPENDS = 50;
+
+    private Application application;
+    private JPAApi jpaApi;
+    private ComponentResultDao componentResultDao;
+
+    @Before
+    public void startApp() {
+        application = new GuiceApplicationBuilder()
+                .loadConfig(ConfigFactory.load("testing.conf"))
+                .configure("jatos.resultData.chunked", true)
+                // Concurrent appends wait for each other's row lock
+                .configure("db.default.url", "jdbc:h2:mem:test/jatos;MODE=MYSQL;DATABASE_TO_UPPER=FALSE;"
+                        + "IGNORECASE=TRUE;LOCK_TIMEOUT=10000")
+                .build();
+        Helpers.start(application);
+        application.injector().instanceOf(Common.class);
+        jpaApi = application.injector().instanceOf(JPAApi.class);
+        componentResultDao = application.injector().instanceOf(ComponentResultDao.class);
+    }
+
+    @After
+    public void stopApp() {
+        Helpers.stop(application);
+    }
+
+    @Test
+    public void appendDataChunkConcurrently() throws Exception {
+        Long id = jpaApi.withTransaction(() -> {
+            ComponentResult componentResult = new ComponentResult();
+            componentResultDao.create(componentResult);
+            return componentResult.getId();
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> appends = new ArrayList<>();
+        for (int i = 0; i < APPENDS; i++) {
+            String data = "[" + i + "]";
+            appends.add(executor.submit(() -> {
+                start.await();
+                jpaApi.withTransaction(() -> componentResultDao.appendData(id, data));
+                return null;
+            }));
+        }
+        start.countDown();
+        try {
+            // Throws an ExecutionException if an append failed, e.g. because of a duplicate sequence number
+            for (Future<?> append : appends) append.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        String data = jpaApi.withTransaction(() -> componentResultDao.getData(id));
+        int expectedLength = 0;
+        for (int i = 0; i < APPENDS; i++) {
+            assertThat(data).contains("[" + i + "]");
+            expectedLength += ("[" + i + "]").length();
+        }
+        assertThat(data.length()).isEqualTo(expectedLength);
+    }
+
+    @Test
+    public void dataSizeIsInBytes() {
+        Long id = jpaApi.withTransaction(() -> {
+            ComponentResult componentResult = new ComponentResult();
+            componentResultDao.create(componentResult);
+            return componentResult.getId();
+        });
+
+        // 'ä' and 'ö' have two bytes each in UTF-8
+        jpaApi.withTransaction(() -> componentResultDao.replaceData(id, "äö"));
+        assertThat(jpaApi.withTransaction(() -> componentResultDao.findById(id).getDataSize())).isEqualTo(4);
+
+        jpaApi.withTransaction(() -> componentResultDao.appendData(id, "ü"));
+        assertThat(jpaApi.withTransaction(() -> componentResultDao.findById(id).getDataSize())).isEqualTo(6);
+        assertThat(jpaApi.withTransaction(() -> componentResultDao.getData(id))).isEqualTo("äöü");
+    }
+
+}
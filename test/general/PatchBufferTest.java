@@ -0,0 +1,127 @@
+package general;
+
+import org.junit.Test;
+import play.api.libs.json.JsArray;
+import play.api.libs.json.JsValue;
+import play.api.libs.json.Json;
+import scala.Option;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests for PatchBuffer
+ *
+ * @author Kristian Lange
+ */
+public class PatchBufferTest {
+
+    /**
+     * The patches (a JSON Patch array with one operation) that led to the given version
+     */
+    private static JsValue patch(long version) {
+        return Json.parse("[" + op(version) + "]");
+    }
+
+    private static String op(long version) {
+        return "{\"op\":\"add\",\"path\":\"/v" + version + "\",\"value\":" + version + "}";
+    }
+
+    /**
+     * The merged JSON Patch array of the patches that led to the given versions
+     */
+    private static String merged(long... versions) {
+        return Arrays.stream(versions).mapToObj(PatchBufferTest::op).collect(Collectors.joining(",", "[", "]"));
+    }
+
+    private static String stringify(Option<JsArray> patches) {
+        return Json.stringify(patches.get());
+    }
+
+    private static PatchBuffer filled(int capacity, long fromVersion, long toVersion) {
+        PatchBuffer buffer = new PatchBuffer(capacity);
+        for (long version = fromVersion; version <= toVersion; version++) buffer.add(version, patch(version));
+        return buffer;
+    }
+
+    @Test
+    public void missingPatchesAreMerged() {
+        PatchBuffer buffer = filled(5, 2, 4);
+
+        assertThat(stringify(buffer.patchesSince(1, 4))).isEqualTo(merged(2, 3, 4));
+        assertThat(stringify(buffer.patchesSince(3, 4))).isEqualTo(merged(4));
+        assertThat(stringify(buffer.patchesSince(4, 4))).isEqualTo("[]");
+    }
+
+    @Test
+    public void versionOutsideOfBuffer() {
+        PatchBuffer buffer = filled(5, 3, 4);
+
+        // Too old - patch 2 is missing
+        assertThat(buffer.patchesSince(1, 4).isEmpty()).isTrue();
+        // Newer than the current version
+        assertThat(buffer.patchesSince(5, 4).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void wraparound() {
+        // Versions 2 to 8 go into a buffer with capacity 3 - only 6, 7, and 8 are left
+        PatchBuffer buffer = filled(3, 2, 8);
+
+        assertThat(stringify(buffer.patchesSince(5, 8))).isEqualTo(merged(6, 7, 8));
+        assertThat(stringify(buffer.patchesSince(6, 8))).isEqualTo(merged(7, 8));
+        assertThat(stringify(buffer.patchesSince(8, 8))).isEqualTo("[]");
+        assertThat(buffer.patchesSince(4, 8).isEmpty()).isTrue();
+
+        // And once more around the ring
+        buffer.add(9, patch(9));
+        buffer.add(10, patch(10));
+        assertThat(stringify(buffer.patchesSince(7, 10))).isEqualTo(merged(8, 9, 10));
+        assertThat(buffer.patchesSince(6, 10).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void skippedVersionStartsAnew() {
+        PatchBuffer buffer = filled(5, 2, 4);
+        buffer.add(7, patch(7));
+
+        assertThat(stringify(buffer.patchesSince(6, 7))).isEqualTo(merged(7));
+        assertThat(buffer.patchesSince(4, 7).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void currentVersionNeedsValidBuffer() {
+        // Right after the session was (re)loaded the buffer is empty: even the current version can't be trusted
+        assertThat(new PatchBuffer(5).patchesSince(4, 4).isEmpty()).isTrue();
+
+        PatchBuffer cleared = filled(5, 2, 4);
+        cleared.clear();
+        assertThat(cleared.patchesSince(4, 4).isEmpty()).isTrue();
+
+        // The buffer doesn't lead up to the current version (e.g. the session was reloaded with a newer version)
+        PatchBuffer outdated = filled(5, 2, 4);
+        assertThat(outdated.patchesSince(6, 6).isEmpty()).isTrue();
+        assertThat(outdated.patchesSince(4, 6).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void clearingPatchIsNotMerged() {
+        PatchBuffer buffer = filled(5, 2, 3);
+        buffer.add(4, Json.parse("[{\"op\":\"remove\",\"path\":\"/\"}]"));
+        buffer.add(5, patch(5));
+
+        assertThat(buffer.patchesSince(3, 5).isEmpty()).isTrue();
+        assertThat(stringify(buffer.patchesSince(4, 5))).isEqualTo(merged(5));
+    }
+
+    @Test
+    public void zeroCapacity() {
+        PatchBuffer buffer = filled(0, 2, 4);
+
+        assertThat(buffer.patchesSince(3, 4).isEmpty()).isTrue();
+        assertThat(buffer.patchesSince(4, 4).isEmpty()).isTrue();
+    }
+
+}
@@ -0,0 +1,95 @@
+package general;
+
+import akka.actor.ActorRef;
+import models.common.Batch;
+import org.junit.Test;
+import play.api.libs.json.JsObject;
+import play.api.libs.json.Json;
+import scala.Option;
+import scala.Tuple2;
+import scala.collection.immutable.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests for PatchCoalescer
+ *
+ * @author Kristian Lange
+ */
+public class PatchCoalescerTest {
+
+    private static final String PATCHES = "patches";
+
+    private static JsObject patchMsg(long version, String patches) {
+        return (JsObject) Json.parse("{\"action\":\"SESSION\",\"version\":" + version
+                + ",\"patches\":" + patches + "}");
+    }
+
+    private static String add(String path) {
+        return "{\"op\":\"add\",\"path\":\"/" + path + "\",\"value\":1}";
+    }
+
+    @Test
+    public void patchMessagesAreMerged() {
+        PatchCoalescer<String> coalescer = new PatchCoalescer<>(PATCHES);
+        assertThat(coalescer.isEmpty()).isTrue();
+        assertThat(coalescer.addPatchMsg(patchMsg(2, "[" + add("a") + "]"))).isTrue();
+        assertThat(coalescer.addPatchMsg(patchMsg(3, "[" + add("b") + "," + add("c") + "]"))).isTrue();
+        assertThat(coalescer.isEmpty()).isFalse();
+
+        Tuple2<Option<JsObject>, List<Tuple2<ActorRef, String>>> drained = coalescer.drain();
+        // The last message with all patches
+        assertThat(drained._1().get()).isEqualTo(patchMsg(3, "[" + add("a") + "," + add("b") + "," + add("c") + "]"));
+        assertThat(drained._2().isEmpty()).isTrue();
+        assertThat(coalescer.isEmpty()).isTrue();
+
+        // It starts anew
+        coalescer.addPatchMsg(patchMsg(4, "[" + add("d") + "]"));
+        assertThat(coalescer.drain()._1().get()).isEqualTo(patchMsg(4, "[" + add("d") + "]"));
+    }
+
+    @Test
+    public void clearingPatchIsNotMerged() {
+        String clear = "[{\"op\":\"remove\",\"path\":\"/\"}]";
+        PatchCoalescer<String> coalescer = new PatchCoalescer<>(PATCHES);
+        coalescer.addPatchMsg(patchMsg(2, "[" + add("a") + "]"));
+        assertThat(coalescer.addPatchMsg(patchMsg(3, clear))).isFalse();
+        assertThat(coalescer.drain()._1().get()).isEqualTo(patchMsg(2, "[" + add("a") + "]"));
+
+        // A clearing patch can start the next merged message
+        assertThat(coalescer.addPatchMsg(patchMsg(3, clear))).isTrue();
+        assertThat(coalescer.addPatchMsg(patchMsg(4, "[" + add("b") + "]"))).isTrue();
+        assertThat(coalescer.drain()._1().get())
+                .isEqualTo(patchMsg(4, "[{\"op\":\"remove\",\"path\":\"/\"}," + add("b") + "]"));
+    }
+
+    @Test
+    public void heldBackMessagesComeAfterMergedMessage() {
+        PatchCoalescer<String> coalescer = new PatchCoalescer<>(PATCHES);
+        coalescer.holdBack(ActorRef.noSender(), "ack 2");
+        assertThat(coalescer.isEmpty()).isFalse();
+        coalescer.addPatchMsg(patchMsg(2, "[" + add("a") + "]"));
+        coalescer.holdBack(ActorRef.noSender(), "ack 3");
+
+        Tuple2<Option<JsObject>, List<Tuple2<ActorRef, String>>> drained = coalescer.drain();
+        assertThat(drained._1().isDefined()).isTrue();
+        assertThat(drained._2().size()).isEqualTo(2);
+        assertThat(drained._2().apply(0)._2()).isEqualTo("ack 2");
+        assertThat(drained._2().apply(1)._2()).isEqualTo("ack 3");
+        assertThat(coalescer.isEmpty()).isTrue();
+
+        // Only held back messages
+        coalescer.holdBack(ActorRef.noSender(), "ack 4");
+        drained = coalescer.drain();
+        assertThat(drained._1().isEmpty()).isTrue();
+        assertThat(drained._2().size()).isEqualTo(1);
+    }
+
+    @Test
+    public void windowOfBatch() {
+        Batch batch = new Batch();
+        batch.setPatchCoalescingWindow(50);
+        assertThat(PatchCoalescer.window(batch)).isEqualTo(50);
+    }
+
+}
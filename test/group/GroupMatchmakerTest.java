@@ -0,0 +1,161 @@
+package group;
+
+import daos.common.GroupResultDao;
+import models.common.Batch;
+import models.common.GroupResult;
+import models.common.GroupResult.GroupState;
+import org.junit.Before;
+import org.junit.Test;
+import scala.Option;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for GroupMatchmaker. The GroupResultDao is mocked - its GroupResults are kept in a map that stands for the
+ * database.
+ *
+ * @author Kristian Lange
+ */
+public class GroupMatchmakerTest {
+
+    private static final long RELOAD_INTERVAL = 60000;
+
+    private final Map<Long, GroupResult> database = new HashMap<>();
+
+    private GroupResultDao groupResultDao;
+    private Batch batch;
+
+    @Before
+    public void setUp() {
+        groupResultDao = mock(GroupResultDao.class);
+        when(groupResultDao.findById(anyLong()))
+                .thenAnswer(invocation -> database.get(invocation.<Long>getArgument(0)));
+        when(groupResultDao.findAllStartedByBatch(any())).thenAnswer(invocation -> database.values().stream()
+                .filter(groupResult -> groupResult.getGroupState() == GroupState.STARTED)
+                .collect(Collectors.toList()));
+
+        batch = new Batch();
+        batch.setId(1L);
+        batch.setMaxActiveMembers(3);
+        batch.setMaxTotalMembers(5);
+    }
+
+    private GroupResult groupResult(long id, int activeMemberCount, int historyMemberCount) {
+        GroupResult groupResult = new GroupResult(batch);
+        groupResult.setId(id);
+        groupResult.setActiveMemberCount(activeMemberCount);
+        groupResult.setHistoryMemberCount(historyMemberCount);
+        database.put(id, groupResult);
+        return groupResult;
+    }
+
+    private static Long pickedId(Option<GroupResult> picked) {
+        return picked.isDefined() ? picked.get().getId() : null;
+    }
+
+    @Test
+    public void groupWithMostMembersIsPicked() {
+        groupResult(1, 1, 0);
+        groupResult(2, 2, 0);
+        groupResult(3, 2, 1);
+        GroupMatchmaker groupMatchmaker = new GroupMatchmaker(groupResultDao, () -> RELOAD_INTERVAL);
+
+        // Most active members, then most history members
+        assertThat(pickedId(groupMatchmaker.pick(batch, Option.empty()))).isEqualTo(3L);
+        // E.g. the current group during a reassignment
+        assertThat(pickedId(groupMatchmaker.pick(batch, Option.apply(database.get(3L))))).isEqualTo(2L);
+    }
+
+    @Test
+    public void fullGroupsAreNotPicked() {
+        // Max active members reached
+        groupResult(1, 3, 0);
+        // Max total members reached
+        groupResult(2, 2, 3);
+        GroupMatchmaker groupMatchmaker = new GroupMatchmaker(groupResultDao, () -> RELOAD_INTERVAL);
+
+        assertThat(groupMatchmaker.pick(batch, Option.empty()).isEmpty()).isTrue();
+
+        // Without limits every group can get members
+        batch.setMaxActiveMembers(null);
+        batch.setMaxTotalMembers(null);
+        assertThat(pickedId(groupMatchmaker.pick(batch, Option.empty()))).isEqualTo(1L);
+    }
+
+    @Test
+    public void trackedChangesArePicked() {
+        GroupResult groupResult1 = groupResult(1, 1, 0);
+        groupResult(2, 2, 0);
+        GroupMatchmaker groupMatchmaker = new GroupMatchmaker(groupResultDao, () -> RELOAD_INTERVAL);
+        assertThat(pickedId(groupMatchmaker.pick(batch, Option.empty()))).isEqualTo(2L);
+
+        // A member joins group 1 - now it's the one with the most active members
+        groupResult1.setActiveMemberCount(2);
+        groupResult1.setHistoryMemberCount(1);
+        groupMatchmaker.track(groupResult1);
+        assertThat(pickedId(groupMatchmaker.pick(batch, Option.empty()))).isEqualTo(1L);
+
+        // A finished group isn't picked anymore
+        groupResult1.setGroupState(GroupState.FINISHED);
+        groupMatchmaker.track(groupResult1);
+        assertThat(pickedId(groupMatchmaker.pick(batch, Option.empty()))).isEqualTo(2L);
+        verify(groupResultDao, times(1)).findAllStartedByBatch(batch);
+    }
+
+    @Test
+    public void staleGroupsAreCorrected() {
+        GroupResult groupResult1 = groupResult(1, 2, 0);
+        GroupResult groupResult2 = groupResult(2, 1, 0);
+        groupResult(3, 0, 0);
+        GroupMatchmaker groupMatchmaker = new GroupMatchmaker(groupResultDao, () -> RELOAD_INTERVAL);
+        assertThat(pickedId(groupMatchmaker.pick(batch, Option.empty()))).isEqualTo(1L);
+
+        // Changed in the database but not tracked (e.g. in JATOS' GUI): group 1 is fixed and group 2 is full now
+        groupResult1.setGroupState(GroupState.FIXED);
+        groupResult2.setActiveMemberCount(3);
+        assertThat(pickedId(groupMatchmaker.pick(batch, Option.empty()))).isEqualTo(3L);
+
+        // A removed group isn't picked either
+        database.remove(3L);
+        assertThat(groupMatchmaker.pick(batch, Option.empty()).isEmpty()).isTrue();
+        verify(groupResultDao, times(1)).findAllStartedByBatch(batch);
+    }
+
+    @Test
+    public void groupsAreReloadedAfterReloadInterval() {
+        groupResult(1, 1, 0);
+        GroupMatchmaker groupMatchmaker = new GroupMatchmaker(groupResultDao, () -> RELOAD_INTERVAL);
+        assertThat(pickedId(groupMatchmaker.pick(batch, Option.empty()))).isEqualTo(1L);
+
+        // A new group that wasn't tracked is only noticed after a reload
+        groupResult(2, 2, 0);
+        assertThat(pickedId(groupMatchmaker.pick(batch, Option.empty()))).isEqualTo(1L);
+        verify(groupResultDao, times(1)).findAllStartedByBatch(batch);
+
+        GroupMatchmaker reloadingGroupMatchmaker = new GroupMatchmaker(groupResultDao, () -> 0L);
+        reloadingGroupMatchmaker.pick(batch, Option.empty());
+        groupResult(3, 2, 1);
+        assertThat(pickedId(reloadingGroupMatchmaker.pick(batch, Option.empty()))).isEqualTo(3L);
+        verify(groupResultDao, times(3)).findAllStartedByBatch(batch);
+    }
+
+    @Test
+    public void groupsAreReloadedAfterMaxMembersChanged() {
+        groupResult(1, 1, 0);
+        GroupMatchmaker groupMatchmaker = new GroupMatchmaker(groupResultDao, () -> RELOAD_INTERVAL);
+        groupMatchmaker.pick(batch, Option.empty());
+        groupResult(2, 2, 0);
+
+        batch.setMaxActiveMembers(4);
+        assertThat(pickedId(groupMatchmaker.pick(batch, Option.empty()))).isEqualTo(2L);
+        verify(groupResultDao, times(2)).findAllStartedByBatch(batch);
+    }
+
+}
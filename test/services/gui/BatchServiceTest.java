@@ -0,0 +1,220 @@
+package services.gui;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.pattern.Patterns;
+import batch.BatchDispatcher;
+import batch.BatchDispatcherRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.typesafe.config.ConfigFactory;
+import general.common.Common;
+import models.common.Batch;
+import models.common.Study;
+import models.gui.BatchSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Application;
+import play.db.jpa.JPAApi;
+import play.inject.BindingKey;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.libs.Json;
+import play.test.Helpers;
+import scala.Option;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+/**
+ * Tests for the batch session edits in JATOS' GUI (BatchService) while a member of the batch patches the batch session
+ * through the BatchDispatcher. The batch session is only persisted when a test flushes it - until then the database
+ * lags behind the dispatcher's in-memory batch session (write-behind).
+ *
+ * @author Kristian Lange
+ */
+public class BatchServiceTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final BlockingQueue<JsonNode> received = new LinkedBlockingQueue<>();
+
+    private Application application;
+    private JPAApi jpaApi;
+    private BatchService batchService;
+    private long batchId;
+    private ActorRef batchDispatcher;
+    private ActorRef channel;
+
+    @Before
+    public void startApp() throws Exception {
+        application = new GuiceApplicationBuilder()
+                .loadConfig(ConfigFactory.load("testing.conf"))
+                .configure("jatos.batchSession.persistInterval", 600000)
+                .configure("jatos.batchSession.persistEveryVersions", 1000)
+                .build();
+        Helpers.start(application);
+        application.injector().instanceOf(Common.class);
+        jpaApi = application.injector().instanceOf(JPAApi.class);
+        batchService = application.injector().instanceOf(BatchService.class);
+        batchId = createBatch();
+
+        ActorRef batchDispatcherRegistry = application.injector()
+                .instanceOf(new BindingKey<>(ActorRef.class).qualifiedWith("batch-dispatcher-registry-actor"));
+        batchDispatcher = ((BatchDispatcherRegistry.ItsThisOne) await(Patterns.ask(batchDispatcherRegistry,
+                new BatchDispatcherRegistry.GetOrCreate(batchId), TIMEOUT))).dispatcher();
+        channel = application.injector().instanceOf(ActorSystem.class)
+                .actorOf(Props.create(Channel.class, received));
+        batchDispatcher.tell(new BatchDispatcher.RegisterChannel(1L, Option.empty()), channel);
+        awaitAction("OPENED");
+    }
+
+    @After
+    public void stopApp() {
+        Helpers.stop(application);
+    }
+
+    @Test
+    public void editIsCheckedAgainstInMemoryVersion() throws Exception {
+        patch(1, 1, "{\"op\":\"add\",\"path\":\"/a\",\"value\":1}");
+        assertThat(awaitAction("SESSION_ACK").get("version").asLong()).isEqualTo(2);
+        // The database still has version 1
+        assertThat(storedBatch().getBatchSessionVersion()).isEqualTo(1);
+
+        // The GUI gets the in-memory batch session
+        BatchSession loaded = await(batchService.fetchBatchSession(batchId));
+        assertThat(loaded.getVersion()).isEqualTo(2);
+        assertThat(Json.parse(loaded.getData())).isEqualTo(Json.parse("{\"a\":1}"));
+
+        // An edit based on the stored version is too old
+        assertThat(await(batchService.updateBatchSession(batchId, batchSession(1, "{\"x\":1}")))).isFalse();
+
+        assertThat(await(batchService.updateBatchSession(batchId, batchSession(2, "{\"a\":1,\"b\":2}")))).isTrue();
+        JsonNode sessionData = awaitAction("SESSION_DATA");
+        assertThat(sessionData.get("version").asLong()).isEqualTo(3);
+        assertThat(sessionData.get("data")).isEqualTo(Json.parse("{\"a\":1,\"b\":2}"));
+    }
+
+    @Test
+    public void editDoesNotDiscardAcknowledgedPatches() throws Exception {
+        patch(1, 1, "{\"op\":\"add\",\"path\":\"/a\",\"value\":1}");
+        awaitAction("SESSION_ACK");
+        assertThat(await(batchService.updateBatchSession(batchId, batchSession(2, "{\"a\":1,\"b\":2}")))).isTrue();
+        awaitAction("SESSION_DATA");
+        patch(2, 3, "{\"op\":\"add\",\"path\":\"/c\",\"value\":3}");
+        assertThat(awaitAction("SESSION_ACK").get("version").asLong()).isEqualTo(4);
+
+        // Nothing was reloaded from the database: persisting keeps all acknowledged changes
+        await(Patterns.ask(batchDispatcher, BatchDispatcher.FlushSession$.MODULE$, TIMEOUT));
+        Batch stored = storedBatch();
+        assertThat(stored.getBatchSessionVersion()).isEqualTo(4);
+        assertThat(Json.parse(stored.getBatchSessionData())).isEqualTo(Json.parse("{\"a\":1,\"b\":2,\"c\":3}"));
+        assertThat(received.stream().noneMatch(msg -> msg.get("action").asText().equals("SESSION_DATA"))).isTrue();
+    }
+
+    @Test
+    public void concurrentPatchAndEdit() throws Exception {
+        // A patch and a GUI edit that are both based on version 1: only one of them wins
+        patch(1, 1, "{\"op\":\"add\",\"path\":\"/a\",\"value\":1}");
+        CompletionStage<Boolean> edit = batchService.updateBatchSession(batchId, batchSession(1, "{\"b\":2}"));
+        JsonNode patchResult = awaitAction("SESSION_ACK", "SESSION_FAIL");
+        boolean patched = patchResult.get("action").asText().equals("SESSION_ACK");
+        boolean edited = await(edit);
+        assertThat(patched).isNotEqualTo(edited);
+
+        BatchSession loaded = await(batchService.fetchBatchSession(batchId));
+        assertThat(loaded.getVersion()).isEqualTo(2);
+        assertThat(Json.parse(loaded.getData())).isEqualTo(Json.parse(patched ? "{\"a\":1}" : "{\"b\":2}"));
+        await(Patterns.ask(batchDispatcher, BatchDispatcher.FlushSession$.MODULE$, TIMEOUT));
+        assertThat(storedBatch().getBatchSessionVersion()).isEqualTo(2);
+        assertThat(Json.parse(storedBatch().getBatchSessionData())).isEqualTo(Json.parse(loaded.getData()));
+    }
+
+    /**
+     * Records all messages the BatchDispatcher sends to this batch channel
+     */
+    static class Channel extends AbstractActor {
+
+        private final BlockingQueue<JsonNode> received;
+
+        public Channel(BlockingQueue<JsonNode> received) {
+            this.received = received;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(BatchDispatcher.BatchMsg.class, msg -> received.add(Json.parse(msg.text())))
+                    .build();
+        }
+
+    }
+
+    private long createBatch() {
+        return jpaApi.withTransaction(entityManager -> {
+            Study study = new Study();
+            study.setUuid(UUID.randomUUID().toString());
+            study.setTitle("Study");
+            entityManager.persist(study);
+            Batch batch = new Batch();
+            batch.setUuid(UUID.randomUUID().toString());
+            batch.setTitle("Batch");
+            batch.setStudy(study);
+            entityManager.persist(batch);
+            return batch.getId();
+        });
+    }
+
+    private Batch storedBatch() {
+        return jpaApi.withTransaction(entityManager -> {
+            return entityManager.find(Batch.class, batchId);
+        });
+    }
+
+    /**
+     * Sends a session patch from the batch channel (like jatos.js does)
+     */
+    private void patch(long id, long version, String patch) {
+        String json = "{\"action\":\"SESSION\",\"id\":" + id + ",\"version\":" + version
+                + ",\"versioning\":true,\"patches\":[" + patch + "]}";
+        play.api.libs.json.JsObject jsObject = (play.api.libs.json.JsObject) play.api.libs.json.Json.parse(json);
+        batchDispatcher.tell(new BatchDispatcher.BatchMsg(jsObject, BatchDispatcher.TellWhom$.MODULE$.Unknown()),
+                channel);
+    }
+
+    private static BatchSession batchSession(long version, String data) {
+        BatchSession batchSession = new BatchSession();
+        batchSession.setVersion(version);
+        batchSession.setData(data);
+        return batchSession;
+    }
+
+    /**
+     * Waits for the next message with one of the given actions and skips all others
+     */
+    private JsonNode awaitAction(String... actions) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT.toMillis();
+        while (System.currentTimeMillis() < deadline) {
+            JsonNode msg = received.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            if (msg == null) break;
+            for (String action : actions) {
+                if (msg.get("action").asText().equals(action)) return msg;
+            }
+        }
+        fail("Expected a message with one of the actions " + String.join(", ", actions));
+        return null;
+    }
+
+    private static <T> T await(CompletionStage<T> stage) throws Exception {
+        return stage.toCompletableFuture().get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -0,0 +1,233 @@
+package services.gui;
+
+import com.typesafe.config.ConfigFactory;
+import exceptions.gui.ForbiddenException;
+import general.common.Common;
+import models.common.ResultExportJob;
+import models.common.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Application;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.test.Helpers;
+import services.gui.ResultStreamer.ResultType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+import static play.inject.Bindings.bind;
+
+/**
+ * Tests for the lifecycle of result export jobs in ResultExportJobService: queue limit, removal of queued and running
+ * jobs, and expiry. The ResultStreamer is mocked - the export blocks until the test releases it.
+ *
+ * @author Kristian Lange
+ */
+public class ResultExportJobServiceTest {
+
+    private final User user = new User("bla", "Bla", "bla@bla.com");
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger exportsStarted = new AtomicInteger();
+    private final AtomicBoolean exportInterrupted = new AtomicBoolean();
+
+    private Application application;
+    private JPAApi jpaApi;
+    private ResultStreamer resultStreamer;
+    private ResultExportJobService resultExportJobService;
+    private Path jobsDir;
+
+    @Before
+    public void startApp() throws Exception {
+        jobsDir = Files.createTempDirectory("resultExports");
+        resultStreamer = mock(ResultStreamer.class);
+        doAnswer(invocation -> {
+            exportsStarted.incrementAndGet();
+            OutputStream out = invocation.getArgument(5);
+            Runnable resultWritten = invocation.getArgument(6);
+            out.write("result".getBytes());
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                exportInterrupted.set(true);
+                throw e;
+            }
+            resultWritten.run();
+            return null;
+        }).when(resultStreamer).writeResultsZip(any(), any(), any(), any(), anyBoolean(), any(), any());
+
+        application = new GuiceApplicationBuilder()
+                .loadConfig(ConfigFactory.load("testing.conf"))
+                .configure("jatos.resultExport.jobs.max", 1)
+                .configure("jatos.resultExport.jobs.maxQueued", 1)
+                .configure("jatos.resultExport.jobs.path", jobsDir.toString())
+                .overrides(bind(ResultStreamer.class).toInstance(resultStreamer))
+                .build();
+        Helpers.start(application);
+        application.injector().instanceOf(Common.class);
+        jpaApi = application.injector().instanceOf(JPAApi.class);
+        resultExportJobService = application.injector().instanceOf(ResultExportJobService.class);
+    }
+
+    @After
+    public void stopApp() throws IOException {
+        release.countDown();
+        Helpers.stop(application);
+        try (Stream<Path> files = Files.list(jobsDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) Files.deleteIfExists(file);
+        }
+        Files.deleteIfExists(jobsDir);
+    }
+
+    @Test
+    public void jobFinishes() throws Exception {
+        ResultExportJob job = create().get();
+        assertThat(job.getState()).isEqualTo(ResultExportJob.State.QUEUED);
+
+        release.countDown();
+        ResultExportJob finished = awaitState(job.getId(), ResultExportJob.State.FINISHED);
+        assertThat(finished.getResultsWritten()).isEqualTo(1);
+        assertThat(new String(Files.readAllBytes(resultExportJobService.getFile(job)))).isEqualTo("result");
+    }
+
+    @Test
+    public void forbiddenResultsAreCheckedBeforeQueueing() throws Exception {
+        doThrow(new ForbiddenException("Not allowed")).when(resultStreamer).checkComponentResults(any(), any());
+        try {
+            create();
+            fail("Expected a ForbiddenException");
+        } catch (ForbiddenException e) {
+            // expected
+        }
+        assertThat(countJobs()).isEqualTo(0);
+        verify(resultStreamer, never()).writeResultsZip(any(), any(), any(), any(), anyBoolean(), any(), any());
+    }
+
+    @Test
+    public void queueLimit() throws Exception {
+        ResultExportJob running = create().get();
+        awaitExportsStarted(1);
+        assertThat(create().isPresent()).isTrue();
+
+        // One job runs and one waits - the next one doesn't fit into the queue anymore
+        assertThat(create().isPresent()).isFalse();
+        assertThat(countJobs()).isEqualTo(2);
+
+        release.countDown();
+        awaitState(running.getId(), ResultExportJob.State.FINISHED);
+    }
+
+    @Test
+    public void removeQueuedJobFreesQueue() throws Exception {
+        ResultExportJob running = create().get();
+        awaitExportsStarted(1);
+        ResultExportJob queued = create().get();
+
+        resultExportJobService.remove(queued);
+        assertThat(resultExportJobService.get(queued.getId(), user).isPresent()).isFalse();
+        ResultExportJob next = create().get();
+
+        release.countDown();
+        awaitState(running.getId(), ResultExportJob.State.FINISHED);
+        awaitState(next.getId(), ResultExportJob.State.FINISHED);
+        // The removed job never ran
+        assertThat(exportsStarted.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void removeRunningJobStopsItWithoutInterrupt() throws Exception {
+        ResultExportJob running = create().get();
+        awaitExportsStarted(1);
+
+        resultExportJobService.remove(running);
+        release.countDown();
+
+        // The job stops with its next written result and deletes its file
+        Path file = resultExportJobService.getFile(running);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Files.exists(file) && System.currentTimeMillis() < deadline) Thread.sleep(20);
+        assertThat(Files.exists(file)).isFalse();
+        assertThat(exportInterrupted.get()).isFalse();
+        assertThat(countJobs()).isEqualTo(0);
+        // Its thread is free for the next job
+        ResultExportJob next = create().get();
+        awaitState(next.getId(), ResultExportJob.State.FINISHED);
+    }
+
+    @Test
+    public void expiredJobsAndFilesAreRemoved() throws Exception {
+        release.countDown();
+        ResultExportJob expired = create().get();
+        awaitState(expired.getId(), ResultExportJob.State.FINISHED);
+        ResultExportJob recent = create().get();
+        awaitState(recent.getId(), ResultExportJob.State.FINISHED);
+        jpaApi.withTransaction(entityManager -> {
+            entityManager.createNativeQuery("UPDATE ResultExportJob SET endDate = '2020-01-01 00:00:00' WHERE id = '"
+                    + expired.getId() + "'").executeUpdate();
+        });
+        FileTime old = FileTime.from(Instant.now().minus(Duration.ofDays(30)));
+        Path oldOrphan = Files.createFile(jobsDir.resolve(UUID.randomUUID() + ".zip"));
+        Files.setLastModifiedTime(oldOrphan, old);
+        Files.setLastModifiedTime(resultExportJobService.getFile(recent), old);
+        Path newOrphan = Files.createFile(jobsDir.resolve(UUID.randomUUID() + ".zip"));
+
+        resultExportJobService.removeExpiredJobs();
+
+        assertThat(resultExportJobService.get(expired.getId(), user).isPresent()).isFalse();
+        assertThat(Files.exists(resultExportJobService.getFile(expired))).isFalse();
+        assertThat(Files.exists(oldOrphan)).isFalse();
+        // A file is only deleted if it's old and its job doesn't exist anymore
+        assertThat(resultExportJobService.get(recent.getId(), user).isPresent()).isTrue();
+        assertThat(Files.exists(resultExportJobService.getFile(recent))).isTrue();
+        assertThat(Files.exists(newOrphan)).isTrue();
+    }
+
+    private Optional<ResultExportJob> create() throws Exception {
+        return resultExportJobService.create(Arrays.asList(1L, 2L), user, ResultType.COMBINED, false, false,
+                new LinkedHashMap<>());
+    }
+
+    private ResultExportJob awaitState(String id, ResultExportJob.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        ResultExportJob job = resultExportJobService.get(id, user).orElse(null);
+        while ((job == null || job.getState() != state) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            job = resultExportJobService.get(id, user).orElse(null);
+        }
+        assertThat(job).isNotNull();
+        assertThat(job.getState()).isEqualTo(state);
+        return job;
+    }
+
+    private void awaitExportsStarted(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (exportsStarted.get() < count && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        assertThat(exportsStarted.get()).isEqualTo(count);
+    }
+
+    private long countJobs() {
+        return jpaApi.withTransaction(entityManager -> {
+            return ((Number) entityManager.createNativeQuery("SELECT COUNT(*) FROM ResultExportJob")
+                    .getSingleResult()).longValue();
+        });
+    }
+
+}
@@ -0,0 +1,104 @@
+package services.gui;
+
+import com.typesafe.config.ConfigFactory;
+import exceptions.gui.BadRequestException;
+import general.common.Common;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Application;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.mvc.Http;
+import play.test.Helpers;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests for delta result exports (with a cursor) in ResultStreamer
+ *
+ * @author Kristian Lange
+ */
+public class ResultStreamerTest {
+
+    private Application application;
+    private JPAApi jpaApi;
+    private ResultStreamer resultStreamer;
+
+    @Before
+    public void startApp() {
+        application = new GuiceApplicationBuilder()
+                .loadConfig(ConfigFactory.load("testing.conf"))
+                .build();
+        Helpers.start(application);
+        application.injector().instanceOf(Common.class);
+        jpaApi = application.injector().instanceOf(JPAApi.class);
+        resultStreamer = application.injector().instanceOf(ResultStreamer.class);
+    }
+
+    @After
+    public void stopApp() {
+        Helpers.stop(application);
+    }
+
+    @Test
+    public void fetchTwoDeltaPages() {
+        long srid = createStudyResult();
+        long crid1 = createComponentResult(srid);
+        long crid2 = createComponentResult(srid);
+
+        // First page: the cursor 0_0 gets everything
+        Map<String, Object> wrapObject1 = new LinkedHashMap<>();
+        List<Long> page1 = fetchDeltaPage(srid, "0_0", wrapObject1);
+        assertThat(page1).isEqualTo(Arrays.asList(crid1, crid2));
+        String cursor1 = (String) wrapObject1.get(ResultCursor.METADATA_FIELD);
+        assertThat(cursor1).startsWith(crid2 + "_");
+
+        // Second page: only the component result that was created after the first page
+        long crid3 = createComponentResult(srid);
+        Map<String, Object> wrapObject2 = new LinkedHashMap<>();
+        List<Long> page2 = fetchDeltaPage(srid, cursor1, wrapObject2);
+        assertThat(page2).isEqualTo(Arrays.asList(crid3));
+        String cursor2 = (String) wrapObject2.get(ResultCursor.METADATA_FIELD);
+        assertThat(cursor2).startsWith(crid3 + "_");
+
+        // Nothing changed since the second page
+        assertThat(fetchDeltaPage(srid, cursor2, new LinkedHashMap<>())).isEmpty();
+    }
+
+    private List<Long> fetchDeltaPage(long studyResultId, String cursor, Map<String, Object> wrapObject) {
+        Http.Request request = Helpers.fakeRequest("GET",
+                "/?studyResultId=" + studyResultId + "&" + ResultCursor.QUERY_PARAMETER + "=" + cursor).build();
+        return jpaApi.withTransaction(() -> {
+            try {
+                return resultStreamer.extractComponentResultIds(request, wrapObject);
+            } catch (BadRequestException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private long createStudyResult() {
+        return insert("INSERT INTO StudyResult (startDate, endDate, lastSeenDate) "
+                + "VALUES ('2020-01-01 00:00:00', '2020-01-01 00:00:00', '2020-01-01 00:00:00')", "StudyResult");
+    }
+
+    private long createComponentResult(long studyResultId) {
+        return insert("INSERT INTO ComponentResult (studyResult_id, startDate, endDate) "
+                + "VALUES (" + studyResultId + ", '2020-01-01 00:00:00', '2020-01-01 00:00:00')", "ComponentResult");
+    }
+
+    private long insert(String sql, String table) {
+        return jpaApi.withTransaction(() -> {
+            jpaApi.em().createNativeQuery(sql).executeUpdate();
+            return ((Number) jpaApi.em().createNativeQuery("SELECT MAX(id) FROM " + table).getSingleResult())
+                    .longValue();
+        });
+    }
+
+}
@@ -0,0 +1,293 @@
+package services.gui;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.typesafe.config.ConfigFactory;
+import exceptions.gui.BadRequestException;
+import general.common.Common;
+import models.common.*;
+import models.common.ComponentResult.ComponentState;
+import models.common.StudyResult.StudyState;
+import models.common.workers.GeneralSingleWorker;
+import models.common.workers.PersonalMultipleWorker;
+import models.common.workers.Worker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Application;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.test.Helpers;
+
+import java.sql.Timestamp;
+import java.util.*;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests for the server-side processing of the result tables in ResultTableService: paging, sorting, filters, and the
+ * bounds of the query parameters
+ *
+ * @author Kristian Lange
+ */
+public class ResultTableServiceTest {
+
+    private static final int MAX_PAGE_LENGTH = 3;
+
+    private Application application;
+    private JPAApi jpaApi;
+    private ResultTableService resultTableService;
+
+    private Study study;
+    private Batch batchB;
+    private Component component;
+    private final List<Long> srids = new ArrayList<>();
+    private final List<Long> crids = new ArrayList<>();
+
+    @Before
+    public void startApp() {
+        application = new GuiceApplicationBuilder()
+                .loadConfig(ConfigFactory.load("testing.conf"))
+                .configure("jatos.maxResultsDbQuerySize", MAX_PAGE_LENGTH)
+                .build();
+        Helpers.start(application);
+        application.injector().instanceOf(Common.class);
+        jpaApi = application.injector().instanceOf(JPAApi.class);
+        resultTableService = application.injector().instanceOf(ResultTableService.class);
+        createResults();
+    }
+
+    @After
+    public void stopApp() {
+        Helpers.stop(application);
+    }
+
+    @Test
+    public void sortByStartDate() {
+        // Results 2 and 3 started on the same day - the ID is the tiebreaker
+        JsonNode ascending = studyResultsPage("sortBy=startDate", "sortDir=asc");
+        assertThat(ids(ascending)).isEqualTo(srids.subList(0, 3));
+
+        JsonNode descending = studyResultsPage("sortBy=startDate", "sortDir=desc", "start=2");
+        assertThat(ids(descending)).isEqualTo(Arrays.asList(srids.get(2), srids.get(1), srids.get(0)));
+    }
+
+    @Test
+    public void sortByState() {
+        // The state is stored as its ordinal: STARTED (4) < FINISHED (1, 3, 5) < FAIL (2)
+        JsonNode page = studyResultsPage("sortBy=studyState", "sortDir=asc");
+        assertThat(ids(page)).isEqualTo(Arrays.asList(srids.get(3), srids.get(0), srids.get(2)));
+    }
+
+    @Test
+    public void defaultIsNewestFirst() {
+        JsonNode page = studyResultsPage("draw=7");
+        assertThat(page.get("draw").asInt()).isEqualTo(7);
+        assertThat(page.get("recordsTotal").asInt()).isEqualTo(5);
+        assertThat(page.get("recordsFiltered").asInt()).isEqualTo(5);
+        assertThat(ids(page)).isEqualTo(Arrays.asList(srids.get(4), srids.get(3), srids.get(2)));
+    }
+
+    @Test
+    public void paging() {
+        JsonNode page = studyResultsPage("sortBy=id", "sortDir=asc", "start=1", "length=2");
+        assertThat(ids(page)).isEqualTo(srids.subList(1, 3));
+
+        JsonNode lastPage = studyResultsPage("sortBy=id", "sortDir=asc", "start=4", "length=2");
+        assertThat(ids(lastPage)).isEqualTo(srids.subList(4, 5));
+
+        JsonNode behindLastPage = studyResultsPage("start=10");
+        assertThat(ids(behindLastPage)).isEmpty();
+        assertThat(behindLastPage.get("recordsFiltered").asInt()).isEqualTo(5);
+    }
+
+    @Test
+    public void pageLengthIsBounded() {
+        // DataTables' 'All' (-1), zero, and too large lengths get the max number of results fetched at once
+        assertThat(ids(studyResultsPage("length=-1")).size()).isEqualTo(MAX_PAGE_LENGTH);
+        assertThat(ids(studyResultsPage("length=0")).size()).isEqualTo(MAX_PAGE_LENGTH);
+        assertThat(ids(studyResultsPage("length=1000")).size()).isEqualTo(MAX_PAGE_LENGTH);
+        assertThat(ids(studyResultsPage("length=1")).size()).isEqualTo(1);
+    }
+
+    @Test
+    public void filterByState() {
+        JsonNode page = studyResultsPage("state=finished", "sortBy=id", "sortDir=asc");
+        assertThat(page.get("recordsTotal").asInt()).isEqualTo(5);
+        assertThat(page.get("recordsFiltered").asInt()).isEqualTo(3);
+        assertThat(ids(page)).isEqualTo(Arrays.asList(srids.get(0), srids.get(2), srids.get(4)));
+    }
+
+    @Test
+    public void filterByBatchAndWorkerType() {
+        JsonNode page = studyResultsPage("batchId=" + batchB.getId(), "workerType=PersonalMultiple");
+        assertThat(page.get("recordsFiltered").asInt()).isEqualTo(1);
+        assertThat(ids(page)).isEqualTo(Collections.singletonList(srids.get(3)));
+    }
+
+    @Test
+    public void filterByDate() {
+        // fromDate is inclusive and toDate exclusive
+        JsonNode page = studyResultsPage("fromDate=" + day(2).getTime(), "toDate=" + day(3).getTime(),
+                "sortBy=id", "sortDir=asc");
+        assertThat(page.get("recordsFiltered").asInt()).isEqualTo(2);
+        assertThat(ids(page)).isEqualTo(srids.subList(1, 3));
+    }
+
+    @Test
+    public void componentResults() {
+        JsonNode page = componentResultsPage("state=finished", "sortBy=id", "sortDir=asc");
+        assertThat(page.get("recordsTotal").asInt()).isEqualTo(3);
+        assertThat(page.get("recordsFiltered").asInt()).isEqualTo(2);
+        assertThat(ids(page)).isEqualTo(Arrays.asList(crids.get(0), crids.get(2)));
+
+        JsonNode sortedByStudyResult = componentResultsPage("sortBy=studyResultId", "sortDir=desc");
+        assertThat(ids(sortedByStudyResult)).isEqualTo(Arrays.asList(crids.get(2), crids.get(1), crids.get(0)));
+    }
+
+    @Test
+    public void invalidParameters() {
+        assertThat(isBadRequest("start=-1")).isTrue();
+        assertThat(isBadRequest("start=abc")).isTrue();
+        assertThat(isBadRequest("length=abc")).isTrue();
+        // Only whitelisted columns can be sorted by - the sort column goes directly into the query
+        assertThat(isBadRequest("sortBy=duration")).isTrue();
+        assertThat(isBadRequest("sortBy=r.id")).isTrue();
+        assertThat(isBadRequest("sortBy=id; DROP TABLE StudyResult")).isTrue();
+        assertThat(isBadRequest("state=bla")).isTrue();
+        assertThat(isBadRequest("workerType=bla")).isTrue();
+        assertThat(isBadRequest("batchId=bla")).isTrue();
+        assertThat(isBadRequest("fromDate=yesterday")).isTrue();
+        // An unknown sort direction is descending
+        assertThat(isBadRequest("sortDir=bla")).isFalse();
+    }
+
+    /**
+     * Creates a study with five StudyResults (started on day 1, 2, 2, 3, and 4) and a component with three
+     * ComponentResults. Another study has a StudyResult that must never show up.
+     */
+    private void createResults() {
+        jpaApi.withTransaction(() -> {
+            study = createStudy();
+            Batch batchA = createBatch(study, "A");
+            batchB = createBatch(study, "B");
+            component = new Component();
+            component.setUuid(UUID.randomUUID().toString());
+            component.setTitle("Component");
+            component.setStudy(study);
+            jpaApi.em().persist(component);
+            Worker generalSingleWorker = persist(new GeneralSingleWorker());
+            Worker personalMultipleWorker = persist(new PersonalMultipleWorker());
+
+            StudyResult sr1 = createStudyResult(study, batchA, generalSingleWorker, day(1), StudyState.FINISHED);
+            StudyResult sr2 = createStudyResult(study, batchA, personalMultipleWorker, day(2), StudyState.FAIL);
+            StudyResult sr3 = createStudyResult(study, batchB, generalSingleWorker, day(2), StudyState.FINISHED);
+            createStudyResult(study, batchB, personalMultipleWorker, day(3), StudyState.STARTED);
+            createStudyResult(study, batchA, generalSingleWorker, day(4), StudyState.FINISHED);
+
+            Study otherStudy = createStudy();
+            createStudyResult(otherStudy, createBatch(otherStudy, "C"), generalSingleWorker, day(1),
+                    StudyState.FINISHED);
+
+            createComponentResult(sr1, ComponentState.FINISHED);
+            createComponentResult(sr2, ComponentState.FAIL);
+            createComponentResult(sr3, ComponentState.FINISHED);
+            return null;
+        });
+    }
+
+    private Study createStudy() {
+        Study study = new Study();
+        study.setUuid(UUID.randomUUID().toString());
+        study.setTitle("Study");
+        return persist(study);
+    }
+
+    private Batch createBatch(Study study, String title) {
+        Batch batch = new Batch();
+        batch.setUuid(UUID.randomUUID().toString());
+        batch.setTitle(title);
+        batch.setStudy(study);
+        return persist(batch);
+    }
+
+    private StudyResult createStudyResult(Study study, Batch batch, Worker worker, Timestamp startDate,
+            StudyState state) {
+        StudyResult studyResult = new StudyResult();
+        studyResult.setUuid(UUID.randomUUID().toString());
+        studyResult.setStudy(study);
+        studyResult.setBatch(batch);
+        studyResult.setWorker(worker);
+        studyResult.setStartDate(startDate);
+        studyResult.setLastSeenDate(startDate);
+        studyResult.setStudyState(state);
+        persist(studyResult);
+        if (study == this.study) srids.add(studyResult.getId());
+        return studyResult;
+    }
+
+    private void createComponentResult(StudyResult studyResult, ComponentState state) {
+        ComponentResult componentResult = new ComponentResult(component);
+        componentResult.setComponentState(state);
+        componentResult.setStudyResult(studyResult);
+        studyResult.addComponentResult(componentResult);
+        persist(componentResult);
+        jpaApi.em().flush();
+        crids.add(componentResult.getId());
+    }
+
+    private <T> T persist(T entity) {
+        jpaApi.em().persist(entity);
+        return entity;
+    }
+
+    private static Timestamp day(int day) {
+        return Timestamp.valueOf("2024-01-0" + day + " 00:00:00");
+    }
+
+    private JsonNode studyResultsPage(String... params) {
+        return jpaApi.withTransaction(() -> {
+            try {
+                return resultTableService.studyResultsPage(study, queryString(params));
+            } catch (BadRequestException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private JsonNode componentResultsPage(String... params) {
+        return jpaApi.withTransaction(() -> {
+            try {
+                return resultTableService.componentResultsPage(component, queryString(params));
+            } catch (BadRequestException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private boolean isBadRequest(String... params) {
+        return jpaApi.withTransaction(() -> {
+            try {
+                resultTableService.studyResultsPage(study, queryString(params));
+                return false;
+            } catch (BadRequestException e) {
+                return true;
+            }
+        });
+    }
+
+    private static Map<String, String[]> queryString(String... params) {
+        Map<String, String[]> queryString = new HashMap<>();
+        for (String param : params) {
+            String[] keyValue = param.split("=", 2);
+            queryString.put(keyValue[0], new String[]{keyValue[1]});
+        }
+        return queryString;
+    }
+
+    private static List<Long> ids(JsonNode page) {
+        List<Long> ids = new ArrayList<>();
+        page.get("data").forEach(row -> ids.add(row.get("id").asLong()));
+        return ids;
+    }
+
+}
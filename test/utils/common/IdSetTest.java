@@ -0,0 +1,176 @@
+package utils.common;
+
+import org.junit.Test;
+
+import javax.persistence.Query;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for IdSet
+ *
+ * @author Kristian Lange
+ */
+public class IdSetTest {
+
+    /**
+     * Returns count IDs that are not consecutive, so each one is a single ID in the IdSet
+     */
+    private static List<Long> singles(int count) {
+        List<Long> ids = new ArrayList<>();
+        for (long i = 0; i < count; i++) ids.add(i * 2);
+        return ids;
+    }
+
+    /**
+     * Returns IDs that form count ranges of two consecutive IDs each
+     */
+    private static List<Long> ranges(int count) {
+        List<Long> ids = new ArrayList<>();
+        for (long i = 0; i < count; i++) {
+            ids.add(i * 3);
+            ids.add(i * 3 + 1);
+        }
+        return ids;
+    }
+
+    @Test
+    public void empty() {
+        assertThat(IdSet.of(null)).isSameAs(IdSet.EMPTY);
+        assertThat(IdSet.of(Collections.emptyList())).isSameAs(IdSet.EMPTY);
+        assertThat(IdSet.of(Collections.singletonList(null))).isSameAs(IdSet.EMPTY);
+
+        IdSet idSet = IdSet.EMPTY;
+        assertThat(idSet.isEmpty()).isTrue();
+        assertThat(idSet.size()).isEqualTo(0);
+        assertThat(idSet.toList()).isEmpty();
+        assertThat(idSet.contains(1L)).isFalse();
+        assertThat(idSet.partition()).isEmpty();
+        assertThat(idSet.condition("cr.id")).isEqualTo("1 = 0");
+        assertThat(idSet.conditionWithValues("cr.id")).isEqualTo("1 = 0");
+    }
+
+    @Test
+    public void singleId() {
+        IdSet idSet = IdSet.of(Collections.singletonList(5L));
+        assertThat(idSet.size()).isEqualTo(1);
+        assertThat(idSet.toList()).containsExactly(5L);
+        assertThat(idSet.contains(5L)).isTrue();
+        assertThat(idSet.contains(4L)).isFalse();
+        assertThat(idSet.contains(6L)).isFalse();
+        assertThat(idSet.contains(null)).isFalse();
+        assertThat(idSet.partition()).hasSize(1);
+        assertThat(idSet.condition("cr.id")).isEqualTo("(cr.id IN :idSetSingles)");
+        assertThat(idSet.conditionWithValues("cr.id")).isEqualTo("(cr.id IN (5))");
+        assertThat(idSet.toString()).isEqualTo("[5]");
+    }
+
+    @Test
+    public void contiguousRange() {
+        // Order and duplicates don't matter
+        IdSet idSet = IdSet.of(Arrays.asList(4L, 2L, 3L, 1L, 3L));
+        assertThat(idSet.size()).isEqualTo(4);
+        assertThat(idSet.toList()).containsExactly(1L, 2L, 3L, 4L);
+        assertThat(idSet.contains(1L)).isTrue();
+        assertThat(idSet.contains(4L)).isTrue();
+        assertThat(idSet.contains(0L)).isFalse();
+        assertThat(idSet.contains(5L)).isFalse();
+        assertThat(idSet.condition("cr.id")).isEqualTo("(cr.id BETWEEN :idSetStart0 AND :idSetEnd0)");
+        assertThat(idSet.conditionWithValues("cr.id")).isEqualTo("(cr.id BETWEEN 1 AND 4)");
+        assertThat(idSet.toString()).isEqualTo("[1-4]");
+    }
+
+    @Test
+    public void rangesAndSingles() {
+        IdSet idSet = IdSet.of(Arrays.asList(1L, 5L, 10L, 11L, 12L, 20L));
+        assertThat(idSet.size()).isEqualTo(6);
+        assertThat(idSet.toList()).containsExactly(1L, 5L, 10L, 11L, 12L, 20L);
+        assertThat(idSet.contains(11L)).isTrue();
+        assertThat(idSet.contains(13L)).isFalse();
+        assertThat(idSet.toString()).isEqualTo("[1, 5, 10-12, 20]");
+        assertThat(idSet.condition("cr.id"))
+                .isEqualTo("(cr.id IN :idSetSingles OR cr.id BETWEEN :idSetStart2 AND :idSetEnd2)");
+        assertThat(idSet.conditionWithValues("cr.id")).isEqualTo("(cr.id IN (1, 5, 20) OR cr.id BETWEEN 10 AND 12)");
+    }
+
+    @Test
+    public void bindParameters() {
+        Query query = mock(Query.class);
+        IdSet.of(Arrays.asList(1L, 5L, 10L, 11L, 12L, 20L)).bindParameters(query);
+        verify(query).setParameter("idSetSingles", Arrays.asList(1L, 5L, 20L));
+        verify(query).setParameter("idSetStart2", 10L);
+        verify(query).setParameter("idSetEnd2", 12L);
+        verifyNoMoreInteractions(query);
+    }
+
+    @Test
+    public void partitionSinglesAtLimit() {
+        IdSet idSet = IdSet.of(singles(IdSet.MAX_QUERY_PARAMETERS));
+        assertThat(idSet.partition()).hasSize(1);
+        assertThat(idSet.partition().get(0).size()).isEqualTo(IdSet.MAX_QUERY_PARAMETERS);
+    }
+
+    @Test
+    public void partitionSinglesAboveLimit() {
+        IdSet idSet = IdSet.of(singles(IdSet.MAX_QUERY_PARAMETERS + 1));
+        List<IdSet> parts = idSet.partition();
+        assertThat(parts).hasSize(2);
+        assertThat(parts.get(0).size()).isEqualTo(IdSet.MAX_QUERY_PARAMETERS);
+        assertThat(parts.get(1).toList()).containsExactly((long) IdSet.MAX_QUERY_PARAMETERS * 2);
+    }
+
+    @Test
+    public void partitionRangesAtLimit() {
+        // Each range needs two parameters
+        IdSet idSet = IdSet.of(ranges(IdSet.MAX_QUERY_PARAMETERS / 2));
+        assertThat(idSet.partition()).hasSize(1);
+    }
+
+    @Test
+    public void partitionRangesAboveLimit() {
+        IdSet idSet = IdSet.of(ranges(IdSet.MAX_QUERY_PARAMETERS / 2 + 1));
+        List<IdSet> parts = idSet.partition();
+        assertThat(parts).hasSize(2);
+        assertThat(parts.get(1).size()).isEqualTo(2);
+    }
+
+    @Test
+    public void partitionRangeDoesNotExceedLimit() {
+        // 999 singles and a range need 1001 parameters - the range goes into the next part
+        List<Long> ids = singles(IdSet.MAX_QUERY_PARAMETERS - 1);
+        ids.add(100000L);
+        ids.add(100001L);
+        List<IdSet> parts = IdSet.of(ids).partition();
+        assertThat(parts).hasSize(2);
+        assertThat(parts.get(0).size()).isEqualTo(IdSet.MAX_QUERY_PARAMETERS - 1);
+        assertThat(parts.get(1).toList()).containsExactly(100000L, 100001L);
+    }
+
+    @Test
+    public void partitionKeepsAllIdsInOrder() {
+        List<Long> ids = singles(2500);
+        ids.addAll(ranges(700).stream().map(id -> id + 10000).collect(Collectors.toList()));
+        IdSet idSet = IdSet.of(ids);
+
+        List<Long> partitionedIds = new ArrayList<>();
+        for (IdSet part : idSet.partition()) partitionedIds.addAll(part.toList());
+        assertThat(partitionedIds).isEqualTo(idSet.toList());
+        assertThat((long) partitionedIds.size()).isEqualTo(idSet.size());
+    }
+
+    @Test
+    public void contiguousIdsNeedOnePart() {
+        List<Long> ids = new ArrayList<>();
+        for (long i = 1; i <= 100000; i++) ids.add(i);
+        IdSet idSet = IdSet.of(ids);
+        assertThat(idSet.partition()).hasSize(1);
+        assertThat(idSet.conditionWithValues("cr.id")).isEqualTo("(cr.id BETWEEN 1 AND 100000)");
+    }
+
+}
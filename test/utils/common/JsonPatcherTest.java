@@ -0,0 +1,118 @@
+package utils.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+import play.libs.Json;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests for JsonPatcher
+ *
+ * @author Kristian Lange
+ */
+public class JsonPatcherTest {
+
+    private static JsonNode patch(String data, String patches) {
+        return JsonPatcher.apply(Json.parse(data), Json.parse(patches));
+    }
+
+    @Test
+    public void add() {
+        assertThat(patch("{\"a\":1}", "[{\"op\":\"add\",\"path\":\"/b\",\"value\":2}]"))
+                .isEqualTo(Json.parse("{\"a\":1,\"b\":2}"));
+        assertThat(patch("{\"a\":[1,3]}", "[{\"op\":\"add\",\"path\":\"/a/1\",\"value\":2}]"))
+                .isEqualTo(Json.parse("{\"a\":[1,2,3]}"));
+        assertThat(patch("{\"a\":[1,2]}", "[{\"op\":\"add\",\"path\":\"/a/-\",\"value\":3}]"))
+                .isEqualTo(Json.parse("{\"a\":[1,2,3]}"));
+        assertThat(patch("{\"a\":{}}", "[{\"op\":\"add\",\"path\":\"/a/b~1c\",\"value\":1}]"))
+                .isEqualTo(Json.parse("{\"a\":{\"b/c\":1}}"));
+    }
+
+    @Test
+    public void addRoot() {
+        assertThat(patch("{\"a\":1}", "[{\"op\":\"add\",\"path\":\"\",\"value\":{\"b\":2}}]"))
+                .isEqualTo(Json.parse("{\"b\":2}"));
+    }
+
+    @Test
+    public void remove() {
+        assertThat(patch("{\"a\":1,\"b\":2}", "[{\"op\":\"remove\",\"path\":\"/b\"}]"))
+                .isEqualTo(Json.parse("{\"a\":1}"));
+        assertThat(patch("{\"a\":[1,2,3]}", "[{\"op\":\"remove\",\"path\":\"/a/1\"}]"))
+                .isEqualTo(Json.parse("{\"a\":[1,3]}"));
+    }
+
+    @Test
+    public void removeRoot() {
+        assertThat(patch("{\"a\":1}", "[{\"op\":\"remove\",\"path\":\"\"}]")).isEqualTo(Json.newObject());
+        // Like jatos.js: 'remove' of "/" in the first patch clears all session data
+        assertThat(patch("{\"a\":1}", "[{\"op\":\"remove\",\"path\":\"/\"}]")).isEqualTo(Json.newObject());
+    }
+
+    @Test
+    public void replace() {
+        assertThat(patch("{\"a\":1}", "[{\"op\":\"replace\",\"path\":\"/a\",\"value\":\"x\"}]"))
+                .isEqualTo(Json.parse("{\"a\":\"x\"}"));
+        assertThat(patch("{\"a\":[1,2]}", "[{\"op\":\"replace\",\"path\":\"/a/0\",\"value\":3}]"))
+                .isEqualTo(Json.parse("{\"a\":[3,2]}"));
+    }
+
+    @Test
+    public void replaceRoot() {
+        assertThat(patch("{\"a\":1}", "[{\"op\":\"replace\",\"path\":\"\",\"value\":{\"b\":2}}]"))
+                .isEqualTo(Json.parse("{\"b\":2}"));
+    }
+
+    @Test
+    public void move() {
+        assertThat(patch("{\"a\":1,\"b\":{}}", "[{\"op\":\"move\",\"from\":\"/a\",\"path\":\"/b/c\"}]"))
+                .isEqualTo(Json.parse("{\"b\":{\"c\":1}}"));
+    }
+
+    @Test
+    public void copy() {
+        assertThat(patch("{\"a\":{\"x\":1}}", "[{\"op\":\"copy\",\"from\":\"/a\",\"path\":\"/b\"}]"))
+                .isEqualTo(Json.parse("{\"a\":{\"x\":1},\"b\":{\"x\":1}}"));
+    }
+
+    @Test
+    public void test() {
+        assertThat(patch("{\"a\":\"x\"}", "[{\"op\":\"test\",\"path\":\"/a\",\"value\":\"x\"}]"))
+                .isEqualTo(Json.parse("{\"a\":\"x\"}"));
+        // Numbers are compared by their value
+        assertThat(patch("{\"a\":1}", "[{\"op\":\"test\",\"path\":\"/a\",\"value\":1.0}]"))
+                .isEqualTo(Json.parse("{\"a\":1}"));
+        assertThat(patch("{\"a\":[1.50]}", "[{\"op\":\"test\",\"path\":\"/a\",\"value\":[1.5]}]"))
+                .isEqualTo(Json.parse("{\"a\":[1.50]}"));
+    }
+
+    @Test
+    public void testRoot() {
+        assertThat(patch("{\"a\":1}", "[{\"op\":\"test\",\"path\":\"\",\"value\":{\"a\":1.0}}]"))
+                .isEqualTo(Json.parse("{\"a\":1}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFails() {
+        patch("{\"a\":1}", "[{\"op\":\"test\",\"path\":\"/a\",\"value\":2}]");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownOperation() {
+        patch("{\"a\":1}", "[{\"op\":\"foo\",\"path\":\"/a\"}]");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pathDoesNotExist() {
+        patch("{\"a\":1}", "[{\"op\":\"remove\",\"path\":\"/b\"}]");
+    }
+
+    @Test
+    public void dataStayUntouched() {
+        JsonNode data = Json.parse("{\"a\":{\"b\":1}}");
+        JsonPatcher.apply(data, Json.parse("[{\"op\":\"replace\",\"path\":\"/a/b\",\"value\":2}]"));
+        assertThat(data).isEqualTo(Json.parse("{\"a\":{\"b\":1}}"));
+    }
+
+}
@@ -0,0 +1,155 @@
+package utils.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+/**
+ * Tests for ParallelZipWriter
+ *
+ * @author Kristian Lange
+ */
+public class ParallelZipWriterTest {
+
+    private ExecutorService executor;
+    private Path zipFile;
+
+    @Before
+    public void createExecutor() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        zipFile = Files.createTempFile("test", ".zip");
+    }
+
+    @After
+    public void shutdownExecutor() throws IOException {
+        executor.shutdownNow();
+        Files.deleteIfExists(zipFile);
+    }
+
+    @Test
+    public void entriesCanBeRead() throws IOException {
+        try (ParallelZipWriter zipWriter = new ParallelZipWriter(Files.newOutputStream(zipFile), executor, 4, false)) {
+            zipWriter.addData("a/data.txt", "foo".getBytes(UTF_8));
+            try (OutputStream entry = zipWriter.newEntry("b/data.txt")) {
+                entry.write("bar".getBytes(UTF_8));
+            }
+            zipWriter.newEntry("c/data.txt").discard();
+        }
+
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertThat(zip.size()).isEqualTo(2);
+            assertThat(read(zip, "a/data.txt")).isEqualTo("foo".getBytes(UTF_8));
+            assertThat(read(zip, "b/data.txt")).isEqualTo("bar".getBytes(UTF_8));
+            assertThat(zip.getEntry("c/data.txt")).isNull();
+        }
+    }
+
+    /**
+     * Large STORED files get their CRC in a data descriptor after the data
+     */
+    @Test
+    public void largeStoredFile() throws IOException {
+        byte[] data = new byte[5 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        Path file = Files.createTempFile("test", ".jpg");
+        try {
+            Files.write(file, data);
+            try (ParallelZipWriter zipWriter = new ParallelZipWriter(Files.newOutputStream(zipFile), executor, 4,
+                    false)) {
+                zipWriter.addData("before.txt", "before".getBytes(UTF_8));
+                zipWriter.addFile("files/image.jpg", file);
+                zipWriter.addData("after.txt", "after".getBytes(UTF_8));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            ZipEntry entry = zip.getEntry("files/image.jpg");
+            assertThat(entry.getMethod()).isEqualTo(ZipEntry.STORED);
+            assertThat(entry.getCrc()).isEqualTo(crc.getValue());
+            assertThat(entry.getSize()).isEqualTo(data.length);
+            assertThat(read(zip, "files/image.jpg")).isEqualTo(data);
+            assertThat(read(zip, "before.txt")).isEqualTo("before".getBytes(UTF_8));
+            assertThat(read(zip, "after.txt")).isEqualTo("after".getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * More than 65535 entries need the ZIP64 end of central directory record
+     */
+    @Test
+    public void zip64EntryCount() throws IOException {
+        int entryCount = 0xFFFF + 2;
+        try (ParallelZipWriter zipWriter = new ParallelZipWriter(Files.newOutputStream(zipFile), executor, 64,
+                false)) {
+            for (int i = 0; i < entryCount; i++) {
+                zipWriter.addData(i + ".txt", String.valueOf(i).getBytes(UTF_8));
+            }
+        }
+
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertThat(zip.size()).isEqualTo(entryCount);
+            assertThat(read(zip, "0.txt")).isEqualTo("0".getBytes(UTF_8));
+            assertThat(read(zip, (entryCount - 1) + ".txt")).isEqualTo(String.valueOf(entryCount - 1).getBytes(UTF_8));
+        }
+    }
+
+    @Test
+    public void closeClosesStreamIfInterrupted() throws IOException {
+        ClosableOutputStream out = new ClosableOutputStream();
+        ParallelZipWriter zipWriter = new ParallelZipWriter(out, executor, 4, false);
+        zipWriter.addData("a.txt", "a".getBytes());
+
+        Thread.currentThread().interrupt();
+        try {
+            zipWriter.close();
+            fail("Expected an InterruptedIOException");
+        } catch (InterruptedIOException e) {
+            // The interrupt flag is restored
+            assertThat(Thread.interrupted()).isTrue();
+        }
+        assertThat(out.closed).isTrue();
+    }
+
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        try (InputStream in = zip.getInputStream(zip.getEntry(name))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) != -1) out.write(buffer, 0, length);
+            return out.toByteArray();
+        }
+    }
+
+    private static class ClosableOutputStream extends ByteArrayOutputStream {
+
+        private volatile boolean closed = false;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+}